@@ -0,0 +1,103 @@
+package com.example.kvm.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.env.StandardEnvironment;
+
+import com.example.kvm.model.DomainProfile;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/*
+ * KvmService.listVMs against libvirt's test:///default driver, next to the
+ * per-request enumeration it replaced (listDomains, a lookup per running domain,
+ * listDefinedDomains). Needs libvirt installed on the machine running it; the
+ * test driver keeps everything in memory, so no hypervisor is touched.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListVmsBenchmark {
+
+    private static final String HOST = "local";
+
+    // Domains defined on top of the driver's own; every other one is started
+    @Param({"10", "100", "1000"})
+    public int domains;
+
+    private HypervisorPool hypervisors;
+    private KvmService kvmService;
+    private Connect connect;
+    private LibvirtExecutor libvirt;
+
+    @Setup
+    public void setUp() throws LibvirtException {
+        DomainInventory inventory = new DomainInventory(event -> {
+        });
+        CapacityTracker capacityTracker = new CapacityTracker(inventory, 1.0, 4.0, 1.0, 0, 0);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        StandardEnvironment environment = new StandardEnvironment();
+        libvirt = new LibvirtExecutor(registry, environment, 2000);
+        hypervisors = new HypervisorPool(inventory, capacityTracker, libvirt, environment,
+                HOST + "=test:///default", HypervisorPool.PlacementStrategy.LEAST_LOADED, "localhost", 5000);
+        // The pool connects in the background once an application is ready; connect here instead
+        hypervisors.checkHealth();
+        StorageService storage = new StorageService(hypervisors, libvirt, registry, 64, 256, 4);
+        kvmService = new KvmService(hypervisors, libvirt, inventory, new DomainDescriptorCache(),
+                capacityTracker, storage, registry, 1, DomainProfile.STANDARD);
+
+        connect = hypervisors.connection(HOST);
+        for (int i = 0; i < domains; i++) {
+            Domain domain = connect.domainDefineXML("<domain type='test'><name>bench-" + i + "</name>"
+                    + "<memory unit='MiB'>64</memory><vcpu>1</vcpu><os><type>hvm</type></os></domain>");
+            if (i % 2 == 0) {
+                domain.create();
+            }
+        }
+        // Lifecycle events arrive asynchronously; reload so the first measurement sees every domain
+        inventory.load(HOST, connect);
+    }
+
+    @Benchmark
+    public List<String> listVMs() {
+        return kvmService.listVMs();
+    }
+
+    @Benchmark
+    public List<String> enumerate() throws LibvirtException {
+        List<String> vms = new ArrayList<>();
+        for (int id : connect.listDomains()) {
+            vms.add(connect.domainLookupByID(id).getName());
+        }
+        for (String name : connect.listDefinedDomains()) {
+            vms.add(name + " (stopped)");
+        }
+        return vms;
+    }
+
+    @TearDown
+    public void tearDown() throws LibvirtException {
+        hypervisors.close();
+        libvirt.shutdown();
+    }
+}
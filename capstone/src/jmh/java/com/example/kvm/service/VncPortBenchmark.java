@@ -0,0 +1,146 @@
+package com.example.kvm.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.libvirt.LibvirtException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * VNC port lookup from domain XML: the regex the console endpoint used to run on
+ * every request, a full DomainDescriptorParser pass (a cache miss) and a
+ * DomainDescriptorCache hit (the steady state).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VncPortBenchmark {
+
+    // Live XML of a running domain as virsh dumpxml prints it, trimmed to typical devices
+    private static final String DOMAIN_XML = """
+            <domain type='kvm' id='7'>
+              <name>web-01</name>
+              <uuid>4dea22b3-1d52-d8f3-2516-782e98ab3fa0</uuid>
+              <metadata>
+                <kvm:labels xmlns:kvm='urn:kvm-manager:labels'>
+                  <kvm:label key='env' value='lab'/>
+                  <kvm:label key='template' value='ubuntu-24.04'/>
+                </kvm:labels>
+              </metadata>
+              <memory unit='KiB'>2097152</memory>
+              <currentMemory unit='KiB'>2097152</currentMemory>
+              <vcpu placement='static'>2</vcpu>
+              <os>
+                <type arch='x86_64' machine='pc-q35-8.2'>hvm</type>
+                <boot dev='hd'/>
+              </os>
+              <features>
+                <acpi/>
+                <apic/>
+              </features>
+              <cpu mode='host-passthrough' check='none' migratable='on'/>
+              <clock offset='utc'/>
+              <on_poweroff>destroy</on_poweroff>
+              <on_reboot>restart</on_reboot>
+              <on_crash>destroy</on_crash>
+              <devices>
+                <emulator>/usr/bin/qemu-system-x86_64</emulator>
+                <disk type='file' device='disk'>
+                  <driver name='qemu' type='qcow2' cache='none' io='native'/>
+                  <source file='/var/lib/libvirt/images/web-01.qcow2' index='2'/>
+                  <backingStore/>
+                  <target dev='vda' bus='virtio'/>
+                  <alias name='virtio-disk0'/>
+                  <address type='pci' domain='0x0000' bus='0x04' slot='0x00' function='0x0'/>
+                </disk>
+                <disk type='file' device='cdrom'>
+                  <driver name='qemu' type='raw'/>
+                  <source file='/var/lib/libvirt/images/web-01-seed.iso' index='1'/>
+                  <target dev='sda' bus='sata'/>
+                  <readonly/>
+                  <alias name='sata0-0-0'/>
+                  <address type='drive' controller='0' bus='0' target='0' unit='0'/>
+                </disk>
+                <controller type='usb' index='0' model='qemu-xhci' ports='15'>
+                  <alias name='usb'/>
+                  <address type='pci' domain='0x0000' bus='0x02' slot='0x00' function='0x0'/>
+                </controller>
+                <controller type='pci' index='0' model='pcie-root'>
+                  <alias name='pcie.0'/>
+                </controller>
+                <interface type='network'>
+                  <mac address='52:54:00:6b:3c:58'/>
+                  <source network='default' portid='c8a7e1b2-5f0d-4e0e-9a52-0d6c1f4b7e21' bridge='virbr0'/>
+                  <target dev='vnet6'/>
+                  <model type='virtio'/>
+                  <alias name='net0'/>
+                  <address type='pci' domain='0x0000' bus='0x01' slot='0x00' function='0x0'/>
+                </interface>
+                <serial type='pty'>
+                  <source path='/dev/pts/3'/>
+                  <target type='isa-serial' port='0'>
+                    <model name='isa-serial'/>
+                  </target>
+                  <alias name='serial0'/>
+                </serial>
+                <input type='tablet' bus='usb'>
+                  <alias name='input0'/>
+                  <address type='usb' bus='0' port='1'/>
+                </input>
+                <graphics type='vnc' port='5907' autoport='yes' listen='127.0.0.1'>
+                  <listen type='address' address='127.0.0.1'/>
+                </graphics>
+                <video>
+                  <model type='virtio' heads='1' primary='yes'/>
+                  <alias name='video0'/>
+                </video>
+                <memballoon model='virtio'>
+                  <alias name='balloon0'/>
+                </memballoon>
+              </devices>
+            </domain>
+            """;
+
+    private DomainDescriptorCache cache;
+
+    @Setup
+    public void setUp() throws LibvirtException, XMLStreamException {
+        cache = new DomainDescriptorCache();
+        cache.get("web-01", () -> DOMAIN_XML);
+    }
+
+    /*
+     * The lookup as originally written: the pattern compiled on each call.
+     */
+    @Benchmark
+    public int regex() {
+        Pattern pattern = Pattern.compile("<graphics type='vnc'[^>]*port='(\\d+)'");
+        Matcher matcher = pattern.matcher(DOMAIN_XML);
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+
+    @Benchmark
+    public int parse() throws XMLStreamException {
+        return DomainDescriptorParser.parse(DOMAIN_XML).getVncPort();
+    }
+
+    @Benchmark
+    public int cached() throws LibvirtException, XMLStreamException {
+        return cache.get("web-01", () -> DOMAIN_XML).getVncPort();
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.kvm.websocket;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/*
+ * Browser end of a benchmarked console: accepts every frame immediately and counts
+ * the bytes, so the relay is measured without a servlet container in the way.
+ * Not a native session, so WebSocketSender takes its synchronous path.
+ */
+final class BenchmarkSession implements WebSocketSession {
+
+    private final String id;
+    private final Map<String, Object> attributes = new HashMap<>();
+
+    // Guarded by this
+    private long receivedBytes;
+    private boolean open = true;
+
+    BenchmarkSession(String id) {
+        this.id = id;
+    }
+
+    synchronized long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    /*
+     * Blocks until at least target bytes have been received in total.
+     */
+    synchronized void awaitReceived(long target) throws InterruptedException {
+        while (receivedBytes < target) {
+            if (!open) {
+                throw new IllegalStateException("Console session closed");
+            }
+            wait();
+        }
+    }
+
+    @Override
+    public synchronized void sendMessage(WebSocketMessage<?> message) {
+        receivedBytes += message.getPayloadLength();
+        notifyAll();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        close(CloseStatus.NORMAL);
+    }
+
+    @Override
+    public synchronized void close(CloseStatus status) {
+        open = false;
+        notifyAll();
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public URI getUri() {
+        return URI.create("ws://localhost/vnc/" + id);
+    }
+
+    @Override
+    public HttpHeaders getHandshakeHeaders() {
+        return new HttpHeaders();
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public Principal getPrincipal() {
+        return null;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return null;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return null;
+    }
+
+    @Override
+    public String getAcceptedProtocol() {
+        return null;
+    }
+
+    @Override
+    public void setTextMessageSizeLimit(int messageSizeLimit) {
+    }
+
+    @Override
+    public int getTextMessageSizeLimit() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+    }
+
+    @Override
+    public int getBinaryMessageSizeLimit() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public List<WebSocketExtension> getExtensions() {
+        return List.of();
+    }
+}
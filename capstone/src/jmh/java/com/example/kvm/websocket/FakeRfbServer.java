@@ -0,0 +1,93 @@
+package com.example.kvm.websocket;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/*
+ * In-process stand-in for a QEMU VNC server: answers every FramebufferUpdateRequest
+ * with the same raw-encoded FramebufferUpdate of roughly the requested size.
+ *
+ * The RFB handshake is skipped, since the passthrough relay never looks at it.
+ * Serves a single client, on a blocking daemon thread.
+ */
+final class FakeRfbServer implements AutoCloseable {
+
+    // FramebufferUpdate header plus one rectangle header
+    static final int UPDATE_HEADER_LENGTH = 16;
+
+    private static final int UPDATE_REQUEST_LENGTH = 10;
+
+    private final ServerSocket serverSocket;
+    private final byte[] update;
+    private volatile Socket client;
+
+    FakeRfbServer(int approximateUpdateSize) throws IOException {
+        if (approximateUpdateSize < UPDATE_HEADER_LENGTH + 4) {
+            throw new IllegalArgumentException("Updates need at least one pixel: " + approximateUpdateSize);
+        }
+        this.update = buildUpdate(approximateUpdateSize);
+        this.serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(this::serve, "fake-rfb-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /*
+     * Exact length of each update, at most the size asked for.
+     */
+    int getUpdateSize() {
+        return update.length;
+    }
+
+    /*
+     * FramebufferUpdate with a single raw 32bpp rectangle of up to 1024 pixels per row.
+     */
+    private static byte[] buildUpdate(int size) {
+        int pixels = (size - UPDATE_HEADER_LENGTH) / 4;
+        int width = Math.min(pixels, 1024);
+        int height = pixels / width;
+        ByteBuffer buffer = ByteBuffer.allocate(UPDATE_HEADER_LENGTH + width * height * 4);
+        buffer.put((byte) Rfb.SERVER_FRAMEBUFFER_UPDATE).put((byte) 0).putShort((short) 1);
+        buffer.putShort((short) 0).putShort((short) 0).putShort((short) width).putShort((short) height);
+        buffer.putInt(Rfb.ENCODING_RAW);
+        for (int i = 0; buffer.hasRemaining(); i++) {
+            buffer.put((byte) i);
+        }
+        return buffer.array();
+    }
+
+    private void serve() {
+        try (Socket socket = serverSocket.accept()) {
+            client = socket;
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            byte[] request = new byte[UPDATE_REQUEST_LENGTH];
+            while (true) {
+                in.readFully(request);
+                out.write(update);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Closed by the benchmark
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        Socket socket = client;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+}
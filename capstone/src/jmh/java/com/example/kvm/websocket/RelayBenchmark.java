@@ -0,0 +1,79 @@
+package com.example.kvm.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/*
+ * Passthrough console relay: one FramebufferUpdateRequest from the browser goes
+ * through VNCConnection and the selector engine to a FakeRfbServer, and the
+ * operation ends once the whole update has reached the browser session.
+ * Covers UpstreamChannel writes, adaptive reads, the buffer pool and SessionOutbound.
+ *
+ * Run with -prof gc for allocation per relayed update.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelayBenchmark {
+
+    // Approximate FramebufferUpdate sizes: cursor-sized, a small dirty region, a tile row, a full HD frame
+    @Param({"64", "4096", "65536", "8294416"})
+    public int updateSize;
+
+    private VNCProxyEngine engine;
+    private FakeRfbServer server;
+    private BenchmarkSession session;
+    private VNCConnection connection;
+    private ByteBuffer request;
+    private int exactUpdateSize;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        engine = new VNCProxyEngine(new SimpleMeterRegistry(), 16, 16, 64L * 1024 * 1024);
+        server = new FakeRfbServer(updateSize);
+        exactUpdateSize = server.getUpdateSize();
+        session = new BenchmarkSession("relay-benchmark");
+        OutboundPolicy policy = new OutboundPolicy(16 * 1024 * 1024, 10_000, OverflowPolicy.PAUSE_UPSTREAM);
+        connection = new VNCConnection(session, "benchmark", engine, policy, EncodingProfile.PASSTHROUGH);
+        connection.open(engine, "127.0.0.1", server.getPort());
+        request = Rfb.framebufferUpdateRequest(true, 1920, 1080);
+
+        // Prime the connection so the first measured operation does not include the TCP connect
+        relay();
+    }
+
+    @Benchmark
+    public long relay() throws InterruptedException {
+        long target = session.getReceivedBytes() + exactUpdateSize;
+        connection.handleBrowserMessage(request.duplicate());
+        session.awaitReceived(target);
+        return target;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        connection.close();
+        server.close();
+        engine.shutdown();
+    }
+}
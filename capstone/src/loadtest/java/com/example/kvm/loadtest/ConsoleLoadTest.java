@@ -0,0 +1,326 @@
+package com.example.kvm.loadtest;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.example.kvm.KvmManagerApplication;
+import com.example.kvm.service.HypervisorPool;
+
+/*
+ * Console load test: how many concurrent consoles can one manager node relay?
+ *
+ * Everything runs in one JVM on one box. A SyntheticRfbServer plays the VNC
+ * servers, the application is started against libvirt's test driver with a
+ * node file whose running domains all point their VNC graphics at it, and
+ * SimulatedViewers open consoles through /ws/vnc/{vm} exactly like browsers.
+ * Only libvirt's client library is needed, no libvirtd or QEMU.
+ *
+ *   mvn -Ploadtest compile exec:exec -Dloadtest.args="viewers=500 mode=broadcast"
+ *
+ * Options (name=value, or --name=value):
+ *   viewers   simulated browser consoles (200)
+ *   vms       domains the viewers are spread over (10)
+ *   mode      passthrough or broadcast (passthrough)
+ *   rate      framebuffer updates per second per VNC connection (30)
+ *   update    size of each update in pixels, WxH (256x256)
+ *   screen    desktop size, WxH (1280x800)
+ *   ramp      seconds over which the viewers connect (10)
+ *   warmup    seconds measured but discarded after the ramp (10)
+ *   duration  seconds measured (60)
+ *   interval  seconds between progress lines (5)
+ *
+ * Frame latency runs from the server building an update to a viewer having
+ * received all of it. Thread and heap figures are for the whole JVM; the
+ * harness threads are reported separately, and heap per console is the growth
+ * of the live heap after connecting, client side included. Each passthrough
+ * console uses four sockets and each broadcast viewer two, so raise
+ * ulimit -n for more than a few hundred viewers.
+ */
+public final class ConsoleLoadTest {
+
+    private static final int CLIENT_THREADS = 4;
+    private static final long BYTES_PER_MIB = 1024L * 1024;
+
+    private final Map<String, String> options;
+    private final LoadStats stats = new LoadStats();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    // Counter values at the previous progress line
+    private long reportedFrames;
+    private long reportedBytes;
+
+    private ConsoleLoadTest(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("viewers", "200");
+        options.put("vms", "10");
+        options.put("mode", "passthrough");
+        options.put("rate", "30");
+        options.put("update", "256x256");
+        options.put("screen", "1280x800");
+        options.put("ramp", "10");
+        options.put("warmup", "10");
+        options.put("duration", "60");
+        options.put("interval", "5");
+        for (String arg : args) {
+            String option = arg.startsWith("--") ? arg.substring(2) : arg;
+            int separator = option.indexOf('=');
+            String name = separator > 0 ? option.substring(0, separator) : null;
+            if (name == null || !options.containsKey(name)) {
+                System.err.println("Unknown option " + arg + "; options are " + options.keySet());
+                System.exit(2);
+            }
+            options.put(name, option.substring(separator + 1));
+        }
+        System.exit(new ConsoleLoadTest(options).run());
+    }
+
+    private int run() throws Exception {
+        int viewers = intOption("viewers");
+        int vms = intOption("vms");
+        String mode = options.get("mode").toLowerCase(Locale.ROOT);
+        int[] update = sizeOption("update");
+        int[] screen = sizeOption("screen");
+        System.out.println("Console load test " + options);
+
+        Path directory = Files.createTempDirectory("kvm-loadtest");
+        try (SyntheticRfbServer server = new SyntheticRfbServer(screen[0], screen[1], update[0], update[1],
+                Double.parseDouble(options.get("rate")))) {
+            Path node = writeNode(directory, vms, server.getPort());
+            ConfigurableApplicationContext context = startApplication(directory, node, viewers);
+            awaitHypervisor(context);
+            ExecutorService executor = Executors.newFixedThreadPool(CLIENT_THREADS, daemonThreads("loadtest-client"));
+            HttpClient client = HttpClient.newBuilder().executor(executor).build();
+            try {
+                int port = context.getEnvironment().getRequiredProperty("local.server.port", Integer.class);
+                long baselineHeap = liveHeap();
+                System.out.printf("Application up on port %d, synthetic VNC server on %d, %d byte updates%n",
+                        port, server.getPort(), server.getUpdateSize());
+
+                List<SimulatedViewer> consoles = new ArrayList<>(viewers);
+                long rampNanos = TimeUnit.SECONDS.toNanos(intOption("ramp"));
+                long started = System.nanoTime();
+                long nextReport = started + TimeUnit.SECONDS.toNanos(intOption("interval"));
+                for (int i = 0; i < viewers; i++) {
+                    URI uri = URI.create("ws://127.0.0.1:" + port + "/ws/vnc/" + domainName(i % vms) + "?mode=" + mode);
+                    consoles.add(SimulatedViewer.connect(client, uri, stats));
+                    long due = started + rampNanos * (i + 1) / viewers;
+                    while (System.nanoTime() < due) {
+                        TimeUnit.NANOSECONDS.sleep(Math.min(due - System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(100)));
+                        nextReport = maybeReport(started, nextReport, "ramp");
+                    }
+                }
+                nextReport = measure(started, nextReport, intOption("warmup"), "warmup");
+                stats.reset();
+                reportedFrames = 0;
+                reportedBytes = 0;
+                long measuredFrom = System.nanoTime();
+                measure(started, nextReport, intOption("duration"), "measure");
+                double seconds = (System.nanoTime() - measuredFrom) / 1e9;
+                long heapWithConsoles = liveHeap();
+
+                report(server, viewers, seconds, baselineHeap, heapWithConsoles);
+                consoles.forEach(SimulatedViewer::close);
+                return stats.failed.get() == 0 && stats.disconnected.get() == 0 ? 0 : 1;
+            } finally {
+                context.close();
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private long measure(long started, long nextReport, int seconds, String phase) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < end) {
+            TimeUnit.NANOSECONDS.sleep(Math.min(end - System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(100)));
+            nextReport = maybeReport(started, nextReport, phase);
+        }
+        return nextReport;
+    }
+
+    /*
+     * Prints a progress line for the interval ending now if one is due.
+     */
+    private long maybeReport(long started, long nextReport, String phase) {
+        long now = System.nanoTime();
+        if (now < nextReport) {
+            return nextReport;
+        }
+        long intervalNanos = TimeUnit.SECONDS.toNanos(intOption("interval"));
+        long totalFrames = stats.frames.sum();
+        long totalBytes = stats.bytes.sum();
+        long frames = totalFrames - reportedFrames;
+        long bytes = totalBytes - reportedBytes;
+        reportedFrames = totalFrames;
+        reportedBytes = totalBytes;
+        Histogram latency = stats.intervalFrameLatency();
+        double seconds = intervalNanos / 1e9;
+        System.out.printf(Locale.ROOT,
+                "%5ds %-7s consoles %d streaming %d connecting %d failed %d dropped | %,.0f frames/s %,.1f MiB/s"
+                        + " | p50 %.2f ms p99 %.2f ms | threads %d | heap %d MiB%n",
+                TimeUnit.NANOSECONDS.toSeconds(now - started), phase, stats.streaming.get(), stats.connecting.get(),
+                stats.failed.get(), stats.disconnected.get(), frames / seconds, bytes / seconds / BYTES_PER_MIB,
+                millis(latency, 50), millis(latency, 99), threads.getThreadCount(),
+                memory.getHeapMemoryUsage().getUsed() / BYTES_PER_MIB);
+        return nextReport + intervalNanos;
+    }
+
+    private void report(SyntheticRfbServer server, int viewers, double seconds, long baselineHeap,
+                        long heapWithConsoles) {
+        Histogram latency = stats.totalFrameLatency();
+        Histogram firstFrame = stats.totalFirstFrame();
+        int streaming = stats.streaming.get();
+        int harnessThreads = harnessThreadCount();
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Consoles:      %d of %d streaming, %d failed to connect, %d dropped%n",
+                streaming, viewers, stats.failed.get(), stats.disconnected.get());
+        if (stats.lastError.get() != null) {
+            System.out.println("Last error:    " + stats.lastError.get());
+        }
+        System.out.printf(Locale.ROOT, "Throughput:    %,.0f frames/s, %,.1f MiB/s to viewers (%,.1f frames/s per console)%n",
+                stats.frames.sum() / seconds, stats.bytes.sum() / seconds / BYTES_PER_MIB,
+                streaming == 0 ? 0.0 : stats.frames.sum() / seconds / streaming);
+        System.out.printf(Locale.ROOT, "Server:        %,d updates sent, %,d skipped while a connection was busy, %d VNC connections%n",
+                server.getUpdatesSent(), server.getUpdatesSkipped(), server.getClientCount());
+        System.out.printf(Locale.ROOT, "Frame latency: p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms (%,d frames)%n",
+                millis(latency, 50), millis(latency, 90), millis(latency, 99), millis(latency, 99.9),
+                latency.getMaxValue() / 1000.0, latency.getTotalCount());
+        System.out.printf(Locale.ROOT, "First frame:   p50 %.2f ms, p99 %.2f ms after opening the WebSocket%n",
+                millis(firstFrame, 50), millis(firstFrame, 99));
+        System.out.printf(Locale.ROOT, "Threads:       %d live (%d application, %d harness), peak %d%n",
+                threads.getThreadCount(), threads.getThreadCount() - harnessThreads, harnessThreads,
+                threads.getPeakThreadCount());
+        System.out.printf(Locale.ROOT, "Heap:          %d MiB live with consoles, %d MiB before, %,d KiB per console%n",
+                heapWithConsoles / BYTES_PER_MIB, baselineHeap / BYTES_PER_MIB,
+                streaming == 0 ? 0 : (heapWithConsoles - baselineHeap) / streaming / 1024);
+    }
+
+    /*
+     * Threads of the load test itself: the RFB server, the WebSocket client and this one.
+     */
+    private int harnessThreadCount() {
+        int count = 0;
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null && (info.getThreadName().startsWith("loadtest-")
+                    || info.getThreadName().startsWith("HttpClient-") || info.getThreadName().equals("main"))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private long liveHeap() {
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private ConfigurableApplicationContext startApplication(Path directory, Path node, int viewers) {
+        // Command line arguments, so they win over application.properties
+        List<String> args = new ArrayList<>();
+        args.add("--server.port=0");
+        args.add("--kvm.hypervisors=loadtest=test://" + node.toAbsolutePath());
+        args.add("--kvm.console.vnc-host=127.0.0.1");
+        args.add("--kvm.console.max-sessions=" + viewers);
+        args.add("--kvm.console.max-sessions-per-vm=" + viewers);
+        // Keep the test driver's unsupported calls (stats, screenshots) out of the picture
+        args.add("--kvm.metrics.enabled=false");
+        args.add("--kvm.thumbnails.enabled=false");
+        args.add("--kvm.warm-pool.enabled=false");
+        args.add("--kvm.templates.registry-file=" + directory.resolve("templates.json"));
+        args.add("--kvm.backup.dir=" + directory.resolve("backups"));
+        args.add("--logging.level.root=WARN");
+        return SpringApplication.run(KvmManagerApplication.class, args.toArray(new String[0]));
+    }
+
+    /*
+     * The hypervisor is connected in the background after startup; consoles need it up.
+     */
+    private static void awaitHypervisor(ConfigurableApplicationContext context) throws InterruptedException {
+        HypervisorPool hypervisors = context.getBean(HypervisorPool.class);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (hypervisors.getUpHosts().isEmpty()) {
+            if (System.nanoTime() > deadline) {
+                context.close();
+                throw new IllegalStateException("Hypervisor did not come up: " + hypervisors.getStatus());
+            }
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+    }
+
+    /*
+     * libvirt test driver node with running domains whose VNC graphics are the synthetic server.
+     */
+    private static Path writeNode(Path directory, int vms, int vncPort) throws IOException {
+        StringBuilder xml = new StringBuilder("<node>\n");
+        for (int i = 0; i < vms; i++) {
+            xml.append("  <domain type='test'>\n")
+                    .append("    <name>").append(domainName(i)).append("</name>\n")
+                    .append("    <memory unit='MiB'>512</memory>\n")
+                    .append("    <vcpu>1</vcpu>\n")
+                    .append("    <os><type>hvm</type></os>\n")
+                    .append("    <devices>\n")
+                    .append("      <graphics type='vnc' port='").append(vncPort)
+                    .append("' autoport='no' listen='127.0.0.1'/>\n")
+                    .append("    </devices>\n")
+                    .append("  </domain>\n");
+        }
+        xml.append("</node>\n");
+        Path node = directory.resolve("node.xml");
+        Files.writeString(node, xml);
+        return node;
+    }
+
+    private static String domainName(int index) {
+        return "loadtest-" + index;
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static double millis(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    private int[] sizeOption(String name) {
+        String[] parts = options.get(name).toLowerCase(Locale.ROOT).split("x");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException(name + " must be WxH: " + options.get(name));
+        }
+        return new int[] {Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.kvm.loadtest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/*
+ * Counters and latency histograms shared by all simulated viewers. Latencies
+ * are recorded in microseconds; interval histograms feed the periodic report,
+ * and are added to the totals the final report is built from.
+ */
+final class LoadStats {
+
+    // Up to a minute at three significant digits
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    final AtomicInteger connecting = new AtomicInteger();
+    final AtomicInteger streaming = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    final AtomicInteger disconnected = new AtomicInteger();
+    final LongAdder frames = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    // Why the most recent viewer failed or was disconnected
+    final AtomicReference<String> lastError = new AtomicReference<>();
+
+    private final Recorder frameLatency = new Recorder(MAX_LATENCY_MICROS, 3);
+    private final Recorder firstFrame = new Recorder(MAX_LATENCY_MICROS, 3);
+    private final Histogram frameLatencyTotal = new Histogram(MAX_LATENCY_MICROS, 3);
+    private final Histogram firstFrameTotal = new Histogram(MAX_LATENCY_MICROS, 3);
+    private Histogram frameInterval;
+
+    void recordFrame(long latencyNanos, int length) {
+        frames.increment();
+        bytes.add(length);
+        frameLatency.recordValue(clamp(latencyNanos));
+    }
+
+    /*
+     * Time from opening the WebSocket to the end of the first framebuffer update.
+     */
+    void recordFirstFrame(long nanos) {
+        firstFrame.recordValue(clamp(nanos));
+    }
+
+    /*
+     * Latencies since the previous call, which are also added to the totals.
+     * Only called by the reporting thread.
+     */
+    synchronized Histogram intervalFrameLatency() {
+        frameInterval = frameLatency.getIntervalHistogram(frameInterval);
+        frameLatencyTotal.add(frameInterval);
+        firstFrameTotal.add(firstFrame.getIntervalHistogram());
+        return frameInterval;
+    }
+
+    /*
+     * Discards what was measured so far, e.g. at the end of the warm-up.
+     */
+    synchronized void reset() {
+        intervalFrameLatency();
+        frameLatencyTotal.reset();
+        firstFrameTotal.reset();
+        frames.reset();
+        bytes.reset();
+    }
+
+    synchronized Histogram totalFrameLatency() {
+        intervalFrameLatency();
+        return frameLatencyTotal.copy();
+    }
+
+    synchronized Histogram totalFirstFrame() {
+        intervalFrameLatency();
+        return firstFrameTotal.copy();
+    }
+
+    private static long clamp(long nanos) {
+        return Math.min(MAX_LATENCY_MICROS, Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)));
+    }
+}
@@ -0,0 +1,383 @@
+package com.example.kvm.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/*
+ * A browser console, minus the drawing: speaks RFB 3.8 over the proxy's
+ * WebSocket, offers the encodings noVNC does and, like noVNC, sends the next
+ * incremental FramebufferUpdateRequest as soon as an update is complete.
+ *
+ * Pixel data is skipped without being copied; only the timestamp the
+ * SyntheticRfbServer puts at the start of each update is read, giving the
+ * frame latency through the whole relay. WebSocket callbacks for one viewer
+ * never overlap, so the parser state needs no locking.
+ */
+final class SimulatedViewer implements WebSocket.Listener {
+
+    private static final int ENCODING_RAW = 0;
+    private static final int ENCODING_COPY_RECT = 1;
+    private static final int ENCODING_DESKTOP_SIZE = -223;
+    private static final int ENCODING_LAST_RECT = -224;
+
+    // What noVNC offers that shared consoles insist on; the synthetic server itself only sends raw
+    private static final int[] ENCODINGS = {0, 1, 2, 5, -239, ENCODING_DESKTOP_SIZE, ENCODING_LAST_RECT};
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private enum State {
+        VERSION, SECURITY_TYPES, SECURITY_RESULT, SERVER_INIT, MESSAGE, RECTANGLE, TIMESTAMP, PIXELS, CUT_TEXT
+    }
+
+    private final LoadStats stats;
+    private final long openedAt = System.nanoTime();
+    // Bytes of an incomplete message carried over to the next WebSocket frame (write mode)
+    private ByteBuffer pending = ByteBuffer.allocate(1024);
+    private CompletableFuture<WebSocket> sending;
+    private volatile WebSocket webSocket;
+    private volatile boolean streaming;
+    private volatile boolean done;
+
+    private State state = State.VERSION;
+    private int width;
+    private int height;
+    private int rectangles;
+    private long skip;
+    private long timestamp;
+    private int updateLength;
+    private boolean firstFrame = true;
+
+    private SimulatedViewer(LoadStats stats) {
+        this.stats = stats;
+    }
+
+    static SimulatedViewer connect(HttpClient client, URI uri, LoadStats stats) {
+        SimulatedViewer viewer = new SimulatedViewer(stats);
+        stats.connecting.incrementAndGet();
+        client.newWebSocketBuilder()
+                .connectTimeout(Duration.ofSeconds(30))
+                .buildAsync(uri, viewer)
+                .whenComplete((webSocket, error) -> {
+                    if (error != null) {
+                        viewer.finish("WebSocket handshake failed: " + error.getMessage());
+                    }
+                });
+        return viewer;
+    }
+
+    @Override
+    public void onOpen(WebSocket webSocket) {
+        this.webSocket = webSocket;
+        this.sending = CompletableFuture.completedFuture(webSocket);
+        webSocket.request(1);
+    }
+
+    @Override
+    public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+        try {
+            if (pending.position() == 0) {
+                consume(data);
+                if (data.hasRemaining()) {
+                    append(data);
+                }
+            } else {
+                append(data);
+                pending.flip();
+                consume(pending);
+                pending.compact();
+            }
+        } catch (IOException e) {
+            finish(e.getMessage());
+            webSocket.abort();
+            return null;
+        }
+        webSocket.request(1);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+        webSocket.request(1);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+        finish("Closed by the proxy: " + statusCode + " " + reason);
+        return null;
+    }
+
+    @Override
+    public void onError(WebSocket webSocket, Throwable error) {
+        finish(error.toString());
+    }
+
+    /*
+     * Closes the console at the end of the test; not counted as a disconnect.
+     */
+    synchronized void close() {
+        if (done) {
+            return;
+        }
+        done = true;
+        if (streaming) {
+            stats.streaming.decrementAndGet();
+        } else {
+            stats.connecting.decrementAndGet();
+        }
+        WebSocket socket = webSocket;
+        if (socket != null) {
+            socket.sendClose(WebSocket.NORMAL_CLOSURE, "").exceptionally(error -> {
+                socket.abort();
+                return null;
+            });
+        }
+    }
+
+    private synchronized void started() {
+        if (!done) {
+            streaming = true;
+            stats.connecting.decrementAndGet();
+            stats.streaming.incrementAndGet();
+        }
+    }
+
+    private synchronized void finish(String reason) {
+        if (done) {
+            return;
+        }
+        done = true;
+        if (streaming) {
+            stats.streaming.decrementAndGet();
+            stats.disconnected.incrementAndGet();
+        } else {
+            stats.connecting.decrementAndGet();
+            stats.failed.incrementAndGet();
+        }
+        stats.lastError.set(reason);
+    }
+
+    private void append(ByteBuffer data) {
+        if (pending.remaining() < data.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + data.remaining()));
+            pending.flip();
+            pending = larger.put(pending);
+        }
+        pending.put(data);
+    }
+
+    private void consume(ByteBuffer in) throws IOException {
+        while (step(in)) {
+            // Parse as far as the buffered bytes go
+        }
+    }
+
+    /*
+     * Parses one handshake step, message header or run of pixel data; false if
+     * more bytes are needed.
+     */
+    private boolean step(ByteBuffer in) throws IOException {
+        int start = in.position();
+        switch (state) {
+            case VERSION -> {
+                if (in.remaining() < 12) {
+                    return false;
+                }
+                in.position(start + 12);
+                send("RFB 003.008\n".getBytes(StandardCharsets.US_ASCII));
+                state = State.SECURITY_TYPES;
+            }
+            case SECURITY_TYPES -> {
+                if (!in.hasRemaining()) {
+                    return false;
+                }
+                int count = in.get(start) & 0xff;
+                if (count == 0) {
+                    throw new IOException("VNC server refused the connection");
+                }
+                if (in.remaining() < 1 + count) {
+                    return false;
+                }
+                boolean none = false;
+                for (int i = 1; i <= count; i++) {
+                    none |= in.get(start + i) == 1;
+                }
+                if (!none) {
+                    throw new IOException("Security type None not offered");
+                }
+                in.position(start + 1 + count);
+                send(new byte[] {1});
+                state = State.SECURITY_RESULT;
+            }
+            case SECURITY_RESULT -> {
+                if (in.remaining() < 4) {
+                    return false;
+                }
+                if (in.getInt() != 0) {
+                    throw new IOException("VNC security handshake failed");
+                }
+                // ClientInit, shared
+                send(new byte[] {1});
+                state = State.SERVER_INIT;
+            }
+            case SERVER_INIT -> {
+                if (in.remaining() < 24 || in.remaining() < 24 + in.getInt(start + 20)) {
+                    return false;
+                }
+                width = in.getShort(start) & 0xffff;
+                height = in.getShort(start + 2) & 0xffff;
+                in.position(start + 24 + in.getInt(start + 20));
+                ByteBuffer setEncodings = ByteBuffer.allocate(4 + 4 * ENCODINGS.length)
+                        .put((byte) 2).put((byte) 0).putShort((short) ENCODINGS.length);
+                for (int encoding : ENCODINGS) {
+                    setEncodings.putInt(encoding);
+                }
+                send(setEncodings.array());
+                requestUpdate(false);
+                started();
+                state = State.MESSAGE;
+            }
+            case MESSAGE -> {
+                return message(in, start);
+            }
+            case RECTANGLE -> {
+                if (in.remaining() < 12) {
+                    return false;
+                }
+                int rectangleWidth = in.getShort(start + 4) & 0xffff;
+                int rectangleHeight = in.getShort(start + 6) & 0xffff;
+                int encoding = in.getInt(start + 8);
+                in.position(start + 12);
+                updateLength += 12;
+                if (encoding == ENCODING_RAW) {
+                    skip = (long) rectangleWidth * rectangleHeight * BYTES_PER_PIXEL;
+                    updateLength += skip;
+                    state = timestamp == 0 && skip >= 8 ? State.TIMESTAMP : State.PIXELS;
+                } else if (encoding == ENCODING_COPY_RECT) {
+                    skip = 4;
+                    updateLength += skip;
+                    state = State.PIXELS;
+                } else if (encoding == ENCODING_DESKTOP_SIZE) {
+                    width = rectangleWidth;
+                    height = rectangleHeight;
+                    rectangleDone();
+                } else if (encoding == ENCODING_LAST_RECT) {
+                    rectangles = 1;
+                    rectangleDone();
+                } else {
+                    throw new IOException("Unexpected encoding " + encoding);
+                }
+            }
+            case TIMESTAMP -> {
+                if (in.remaining() < 8) {
+                    return false;
+                }
+                timestamp = in.getLong();
+                skip -= 8;
+                state = State.PIXELS;
+            }
+            case PIXELS, CUT_TEXT -> {
+                int skipped = (int) Math.min(skip, in.remaining());
+                in.position(start + skipped);
+                skip -= skipped;
+                if (skip > 0) {
+                    return false;
+                }
+                if (state == State.PIXELS) {
+                    rectangleDone();
+                } else {
+                    state = State.MESSAGE;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean message(ByteBuffer in, int start) throws IOException {
+        if (!in.hasRemaining()) {
+            return false;
+        }
+        int type = in.get(start) & 0xff;
+        switch (type) {
+            // FramebufferUpdate
+            case 0 -> {
+                if (in.remaining() < 4) {
+                    return false;
+                }
+                rectangles = in.getShort(start + 2) & 0xffff;
+                in.position(start + 4);
+                updateLength = 4;
+                if (rectangles == 0) {
+                    updateDone();
+                } else {
+                    state = State.RECTANGLE;
+                }
+            }
+            // SetColourMapEntries
+            case 1 -> {
+                if (in.remaining() < 6 || in.remaining() < 6 + 6 * (in.getShort(start + 4) & 0xffff)) {
+                    return false;
+                }
+                in.position(start + 6 + 6 * (in.getShort(start + 4) & 0xffff));
+            }
+            // Bell
+            case 2 -> in.position(start + 1);
+            // ServerCutText
+            case 3 -> {
+                if (in.remaining() < 8) {
+                    return false;
+                }
+                skip = in.getInt(start + 4) & 0xffffffffL;
+                in.position(start + 8);
+                state = State.CUT_TEXT;
+            }
+            default -> throw new IOException("Unexpected server message type " + type);
+        }
+        return true;
+    }
+
+    private void rectangleDone() {
+        if (--rectangles == 0) {
+            updateDone();
+        } else {
+            state = State.RECTANGLE;
+        }
+    }
+
+    private void updateDone() {
+        long now = System.nanoTime();
+        if (timestamp != 0) {
+            stats.recordFrame(now - timestamp, updateLength);
+            timestamp = 0;
+        }
+        if (firstFrame) {
+            stats.recordFirstFrame(now - openedAt);
+            firstFrame = false;
+        }
+        requestUpdate(true);
+        state = State.MESSAGE;
+    }
+
+    private void requestUpdate(boolean incremental) {
+        send(ByteBuffer.allocate(10).put((byte) 3).put((byte) (incremental ? 1 : 0))
+                .putShort((short) 0).putShort((short) 0).putShort((short) width).putShort((short) height).array());
+    }
+
+    /*
+     * Queues a message behind the previous one; the JDK client allows one outstanding send.
+     */
+    private void send(byte[] message) {
+        sending = sending.thenCompose(socket -> socket.sendBinary(ByteBuffer.wrap(message), true));
+        sending.whenComplete((socket, error) -> {
+            if (error != null) {
+                finish("Send failed: " + error.getMessage());
+            }
+        });
+    }
+}
@@ -0,0 +1,387 @@
+package com.example.kvm.loadtest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Stand-in for the QEMU VNC servers of many VMs: one loopback port speaking
+ * RFB 3.8 with security type None to any number of clients.
+ *
+ * Like QEMU, it only sends a FramebufferUpdate to a client that has a request
+ * outstanding, and it skips a tick for a client whose previous update is still
+ * being written (the relay has paused reading). A tick produces one raw 32bpp
+ * rectangle whose first 8 pixel bytes carry System.nanoTime() at the tick, so
+ * viewers in the same JVM can measure end-to-end frame latency.
+ *
+ * Everything runs on one selector thread, so the server adds a single thread
+ * to the figures of the load test.
+ */
+final class SyntheticRfbServer implements Closeable {
+
+    // FramebufferUpdate header plus one rectangle header
+    private static final int UPDATE_HEADER_LENGTH = 16;
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int ENCODING_RAW = 0;
+    private static final int CLIENT_BUFFER_SIZE = 4096;
+
+    // 32bpp, depth 24, little endian true colour, red at bit 16
+    private static final byte[] PIXEL_FORMAT = {
+            32, 24, 0, 1, 0, (byte) 255, 0, (byte) 255, 0, (byte) 255, 16, 8, 0, 0, 0, 0
+    };
+    private static final byte[] DESKTOP_NAME = "synthetic".getBytes(StandardCharsets.US_ASCII);
+
+    private enum State { VERSION, SECURITY, CLIENT_INIT, MESSAGES }
+
+    private final int screenWidth;
+    private final int screenHeight;
+    private final int updateWidth;
+    private final int updateHeight;
+    private final long tickNanos;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    private final List<Client> clients = new ArrayList<>();
+    private final AtomicInteger clientCount = new AtomicInteger();
+    private final AtomicLong updatesSent = new AtomicLong();
+    private final AtomicLong updatesSkipped = new AtomicLong();
+    private long sequence;
+
+    SyntheticRfbServer(int screenWidth, int screenHeight, int updateWidth, int updateHeight, double updatesPerSecond)
+            throws IOException {
+        if (updateWidth * updateHeight < 2 || updateWidth > screenWidth || updateHeight > screenHeight) {
+            throw new IllegalArgumentException("Updates must cover 2 to " + screenWidth + "x" + screenHeight
+                    + " pixels: " + updateWidth + "x" + updateHeight);
+        }
+        if (updatesPerSecond <= 0) {
+            throw new IllegalArgumentException("Update rate must be positive: " + updatesPerSecond);
+        }
+        this.screenWidth = screenWidth;
+        this.screenHeight = screenHeight;
+        this.updateWidth = updateWidth;
+        this.updateHeight = updateHeight;
+        this.tickNanos = (long) (TimeUnit.SECONDS.toNanos(1) / updatesPerSecond);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.thread = new Thread(this::run, "loadtest-rfb-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    int getUpdateSize() {
+        return UPDATE_HEADER_LENGTH + updateWidth * updateHeight * BYTES_PER_PIXEL;
+    }
+
+    int getClientCount() {
+        return clientCount.get();
+    }
+
+    long getUpdatesSent() {
+        return updatesSent.get();
+    }
+
+    /*
+     * Ticks at which a client had requested an update but was still busy with the previous one.
+     */
+    long getUpdatesSkipped() {
+        return updatesSkipped.get();
+    }
+
+    private void run() {
+        long nextTick = System.nanoTime() + tickNanos;
+        try {
+            while (!closed) {
+                long wait = TimeUnit.NANOSECONDS.toMillis(nextTick - System.nanoTime());
+                if (wait > 0) {
+                    selector.select(wait);
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            client.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            client.flush();
+                        }
+                    } catch (IOException e) {
+                        client.close();
+                    }
+                }
+                if (System.nanoTime() - nextTick >= 0) {
+                    tick();
+                    // Fall behind rather than burst when the thread could not keep up
+                    nextTick = Math.max(nextTick + tickNanos, System.nanoTime());
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Synthetic RFB server failed: " + e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Client client = new Client(channel);
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+            clients.add(client);
+            clientCount.incrementAndGet();
+            client.send(ByteBuffer.wrap("RFB 003.008\n".getBytes(StandardCharsets.US_ASCII)));
+        }
+    }
+
+    /*
+     * Builds this tick's update once and hands it to every client waiting for one.
+     */
+    private void tick() {
+        ByteBuffer update = null;
+        for (int i = 0; i < clients.size(); i++) {
+            Client client = clients.get(i);
+            if (!client.requested) {
+                continue;
+            }
+            if (!client.out.isEmpty()) {
+                updatesSkipped.incrementAndGet();
+                continue;
+            }
+            if (update == null) {
+                update = buildUpdate();
+            }
+            client.requested = false;
+            updatesSent.incrementAndGet();
+            try {
+                client.send(update.duplicate());
+            } catch (IOException e) {
+                client.close();
+                i--;
+            }
+        }
+    }
+
+    private ByteBuffer buildUpdate() {
+        // Move the rectangle around so updates look like a changing screen region
+        long tick = sequence++;
+        int x = (int) (tick * updateWidth % (screenWidth - updateWidth + 1));
+        int y = (int) (tick * updateHeight % (screenHeight - updateHeight + 1));
+        ByteBuffer buffer = ByteBuffer.allocate(getUpdateSize());
+        buffer.put((byte) 0).put((byte) 0).putShort((short) 1);
+        buffer.putShort((short) x).putShort((short) y).putShort((short) updateWidth).putShort((short) updateHeight);
+        buffer.putInt(ENCODING_RAW);
+        buffer.putLong(System.nanoTime());
+        byte shade = (byte) tick;
+        while (buffer.hasRemaining()) {
+            buffer.put(shade);
+        }
+        return buffer.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    /*
+     * One connected RFB client (the proxy's upstream connection). Selector thread only.
+     */
+    private final class Client {
+
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocate(CLIENT_BUFFER_SIZE);
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        private SelectionKey key;
+        private State state = State.VERSION;
+        private boolean requested;
+        // Bytes of a client cut text still to be discarded
+        private long skip;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            int count = channel.read(in);
+            if (count < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            while (process()) {
+                // Handle every complete message in the buffer
+            }
+            in.compact();
+        }
+
+        /*
+         * Consumes one handshake step or client message; false if more bytes are needed.
+         */
+        private boolean process() throws IOException {
+            if (skip > 0) {
+                int skipped = (int) Math.min(skip, in.remaining());
+                in.position(in.position() + skipped);
+                skip -= skipped;
+                return skip == 0 && in.hasRemaining();
+            }
+            switch (state) {
+                case VERSION -> {
+                    if (in.remaining() < 12) {
+                        return false;
+                    }
+                    in.position(in.position() + 12);
+                    send(ByteBuffer.wrap(new byte[] {1, 1}));
+                    state = State.SECURITY;
+                }
+                case SECURITY -> {
+                    if (!in.hasRemaining()) {
+                        return false;
+                    }
+                    if (in.get() != 1) {
+                        throw new IOException("Client chose an unsupported security type");
+                    }
+                    send(ByteBuffer.allocate(4));
+                    state = State.CLIENT_INIT;
+                }
+                case CLIENT_INIT -> {
+                    if (!in.hasRemaining()) {
+                        return false;
+                    }
+                    in.get();
+                    ByteBuffer serverInit = ByteBuffer.allocate(24 + DESKTOP_NAME.length);
+                    serverInit.putShort((short) screenWidth).putShort((short) screenHeight);
+                    serverInit.put(PIXEL_FORMAT).putInt(DESKTOP_NAME.length).put(DESKTOP_NAME);
+                    send(serverInit.flip());
+                    state = State.MESSAGES;
+                }
+                case MESSAGES -> {
+                    return message();
+                }
+            }
+            return true;
+        }
+
+        private boolean message() throws IOException {
+            if (!in.hasRemaining()) {
+                return false;
+            }
+            int start = in.position();
+            int type = in.get(start) & 0xff;
+            int length;
+            switch (type) {
+                // SetPixelFormat: the server keeps sending its own format, as the viewers never change it
+                case 0 -> length = 20;
+                case 2 -> {
+                    if (in.remaining() < 4) {
+                        return false;
+                    }
+                    length = 4 + 4 * (in.getShort(start + 2) & 0xffff);
+                }
+                case 3 -> {
+                    if (in.remaining() < 10) {
+                        return false;
+                    }
+                    requested = true;
+                    length = 10;
+                }
+                case 4 -> length = 8;
+                case 5 -> length = 6;
+                case 6 -> {
+                    if (in.remaining() < 8) {
+                        return false;
+                    }
+                    in.position(start + 8);
+                    skip = in.getInt(start + 4) & 0xffffffffL;
+                    return true;
+                }
+                // QEMU extended key event
+                case 255 -> length = 12;
+                default -> throw new IOException("Unsupported client message type " + type);
+            }
+            if (length > in.capacity()) {
+                throw new IOException("Client message too long: " + length);
+            }
+            if (in.remaining() < length) {
+                return false;
+            }
+            in.position(start + length);
+            return true;
+        }
+
+        void send(ByteBuffer buffer) throws IOException {
+            out.add(buffer);
+            flush();
+        }
+
+        void flush() throws IOException {
+            while (!out.isEmpty()) {
+                ByteBuffer head = out.peek();
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                out.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void close() {
+            if (clients.remove(this)) {
+                clientCount.decrementAndGet();
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+}
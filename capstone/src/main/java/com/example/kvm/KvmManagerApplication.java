@@ -2,6 +2,7 @@ package com.example.kvm;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 /*
  * KvmManagerApplication is the main entry point for the KVM (Kernel Virtual Machine) Manager application.
@@ -14,8 +15,11 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
  * - Component scanning to discover Spring beans
  * - Auto-configuration of Spring components
  * - Property file configuration support
+ *
+ * @EnableScheduling drives periodic background work such as console watchdogs.
  */
 @SpringBootApplication
+@EnableScheduling
 public class KvmManagerApplication {
 
     /*
@@ -4,7 +4,9 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
 
+import com.example.kvm.websocket.ConsoleUpgradeStrategy;
 import com.example.kvm.websocket.VNCWebSocketHandler;
 import com.example.kvm.websocket.VNCHandshakeInterceptor;
 
@@ -18,10 +20,13 @@ public class WebSocketConfig implements WebSocketConfigurer {
 
     private final VNCWebSocketHandler vncWebSocketHandler;
     private final VNCHandshakeInterceptor vncHandshakeInterceptor;
+    private final ConsoleUpgradeStrategy consoleUpgradeStrategy;
 
-    public WebSocketConfig(VNCWebSocketHandler vncWebSocketHandler, VNCHandshakeInterceptor vncHandshakeInterceptor) {
+    public WebSocketConfig(VNCWebSocketHandler vncWebSocketHandler, VNCHandshakeInterceptor vncHandshakeInterceptor,
+                           ConsoleUpgradeStrategy consoleUpgradeStrategy) {
         this.vncWebSocketHandler = vncWebSocketHandler;
         this.vncHandshakeInterceptor = vncHandshakeInterceptor;
+        this.consoleUpgradeStrategy = consoleUpgradeStrategy;
     }
 
     @Override
@@ -29,6 +34,8 @@ public class WebSocketConfig implements WebSocketConfigurer {
         // Register the VNC WebSocket handler at /ws/vnc/{vmName}
         registry.addHandler(vncWebSocketHandler, "/ws/vnc/{vmName}")
                 .addInterceptors(vncHandshakeInterceptor)
+                // Decides per session whether permessage-deflate is negotiated
+                .setHandshakeHandler(new DefaultHandshakeHandler(consoleUpgradeStrategy))
                 .setAllowedOrigins("*");
     }
 }
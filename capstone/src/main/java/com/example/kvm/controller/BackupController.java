@@ -0,0 +1,106 @@
+package com.example.kvm.controller;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.example.kvm.service.BackupService;
+import com.example.kvm.service.HypervisorUnavailableException;
+
+/*
+ * REST API for VM backups. Backups and restores run as jobs; the responses
+ * carry the job ID to poll under /api/jobs.
+ */
+@RestController
+public class BackupController {
+
+    private final BackupService backupService;
+
+    public BackupController(BackupService backupService) {
+        this.backupService = backupService;
+    }
+
+    @GetMapping("/api/vms/{name}/backups")
+    public ResponseEntity<Map<String, Object>> listBackups(@PathVariable String name) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            response.put("backups", backupService.list(name));
+            response.put("success", true);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    /*
+     * Backs up a running VM: incremental since its last backup unless full is set.
+     */
+    @PostMapping("/api/vms/{name}/backups")
+    public ResponseEntity<Map<String, Object>> backup(@PathVariable String name,
+                                                      @RequestParam(defaultValue = "false") boolean full) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            response.put("jobId", backupService.submit(name, full).getId());
+            response.put("success", true);
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(response);
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    /*
+     * Rebuilds a disk as of a backup into a new image next to the backups; the
+     * job's result is the image path. The running VM is not touched.
+     */
+    @PostMapping("/api/vms/{name}/backups/{id}/restore")
+    public ResponseEntity<Map<String, Object>> restore(@PathVariable String name, @PathVariable String id,
+                                                       @RequestParam(required = false) String disk,
+                                                       @RequestParam(defaultValue = "qcow2") String format) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            response.put("jobId", backupService.submitRestore(name, id, disk, format).getId());
+            response.put("success", true);
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(response);
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    /*
+     * Queues a backup of every running VM on a local host.
+     */
+    @PostMapping("/api/backups")
+    public ResponseEntity<Map<String, Object>> backupAll() {
+        Map<String, Object> response = new HashMap<>(backupService.backupAll());
+        response.put("success", true);
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(response);
+    }
+
+    private static ResponseEntity<Map<String, Object>> error(Exception e) {
+        HttpStatus status;
+        if (e instanceof IllegalArgumentException) {
+            status = HttpStatus.BAD_REQUEST;
+        } else if (e instanceof HypervisorUnavailableException || e instanceof RejectedExecutionException) {
+            status = HttpStatus.SERVICE_UNAVAILABLE;
+        } else {
+            status = HttpStatus.INTERNAL_SERVER_ERROR;
+        }
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", false);
+        response.put("error", e.getMessage());
+        ResponseEntity.BodyBuilder builder = ResponseEntity.status(status);
+        if (status == HttpStatus.SERVICE_UNAVAILABLE) {
+            builder.header(HttpHeaders.RETRY_AFTER, HypervisorUnavailableException.RETRY_AFTER_SECONDS);
+        }
+        return builder.body(response);
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.kvm.controller;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.example.kvm.service.HypervisorUnavailableException;
+import com.example.kvm.service.MemoryBalancer;
+
+/*
+ * REST API of the memory balancer: its state and recent adjustments, an
+ * on-demand round, and per-VM opt-in.
+ */
+@RestController
+public class BalloonController {
+
+    private final MemoryBalancer memoryBalancer;
+
+    public BalloonController(MemoryBalancer memoryBalancer) {
+        this.memoryBalancer = memoryBalancer;
+    }
+
+    @GetMapping("/api/balloon")
+    public Map<String, Object> getStatus() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("balancer", memoryBalancer.getStatus());
+        return response;
+    }
+
+    /*
+     * Runs a round now. Dry run unless dryRun=false is passed and the balancer
+     * itself is not in dry-run mode; this works while scheduled rounds are disabled.
+     */
+    @PostMapping("/api/balloon/run")
+    public ResponseEntity<Map<String, Object>> run(@RequestParam(defaultValue = "true") boolean dryRun) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            boolean effective = dryRun || memoryBalancer.isDryRun();
+            response.put("adjustments", memoryBalancer.balance(effective));
+            response.put("dryRun", effective);
+            response.put("success", true);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    @PutMapping("/api/vms/{name}/balloon")
+    public ResponseEntity<Map<String, Object>> setManaged(@PathVariable String name,
+                                                         @RequestParam boolean enabled) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            memoryBalancer.setManaged(name, enabled);
+            response.put("name", name);
+            response.put("managed", enabled);
+            response.put("success", true);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    private static ResponseEntity<Map<String, Object>> error(Exception e) {
+        HttpStatus status;
+        if (e instanceof IllegalArgumentException) {
+            status = HttpStatus.BAD_REQUEST;
+        } else if (e instanceof HypervisorUnavailableException) {
+            status = HttpStatus.SERVICE_UNAVAILABLE;
+        } else {
+            status = HttpStatus.INTERNAL_SERVER_ERROR;
+        }
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", false);
+        response.put("error", e.getMessage());
+        ResponseEntity.BodyBuilder builder = ResponseEntity.status(status);
+        if (status == HttpStatus.SERVICE_UNAVAILABLE) {
+            builder.header(HttpHeaders.RETRY_AFTER, HypervisorUnavailableException.RETRY_AFTER_SECONDS);
+        }
+        return builder.body(response);
+    }
+}
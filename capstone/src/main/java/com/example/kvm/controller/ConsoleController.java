@@ -0,0 +1,76 @@
+package com.example.kvm.controller;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.example.kvm.websocket.BufferPool;
+import com.example.kvm.websocket.ConsoleBroadcaster;
+import com.example.kvm.websocket.RelayStats;
+import com.example.kvm.websocket.VNCProxyEngine;
+import com.example.kvm.websocket.VNCWebSocketHandler;
+
+/*
+ * REST API for inspecting the VNC console proxy.
+ */
+@RestController
+public class ConsoleController {
+
+    private final VNCProxyEngine proxyEngine;
+    private final VNCWebSocketHandler vncWebSocketHandler;
+    private final ConsoleBroadcaster consoleBroadcaster;
+
+    public ConsoleController(VNCProxyEngine proxyEngine, VNCWebSocketHandler vncWebSocketHandler,
+                             ConsoleBroadcaster consoleBroadcaster) {
+        this.proxyEngine = proxyEngine;
+        this.vncWebSocketHandler = vncWebSocketHandler;
+        this.consoleBroadcaster = consoleBroadcaster;
+    }
+
+    /*
+     * Per-session relay counters, shared (broadcast) upstreams and buffer pool statistics.
+     * Sessions are ordered by queued bytes, so clients falling behind come first.
+     */
+    @GetMapping("/api/console/stats")
+    public Map<String, Object> getConsoleStats() {
+        BufferPool pool = proxyEngine.getBufferPool();
+
+        Map<String, Object> poolStats = new HashMap<>();
+        poolStats.put("acquires", pool.getAcquires());
+        poolStats.put("allocations", pool.getAllocations());
+        poolStats.put("allocatedBytes", pool.getAllocatedBytes());
+        poolStats.put("retainedBytes", pool.getRetainedBytes());
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("activeSessions", proxyEngine.getActiveSessions());
+        response.put("bufferPool", poolStats);
+        List<RelayStats> sessions = vncWebSocketHandler.getSessionStats();
+        sessions.sort(Comparator.comparingLong(RelayStats::getQueuedBytes).reversed());
+        response.put("sessions", sessions);
+        response.put("sharedUpstreams", consoleBroadcaster.getUpstreamStats());
+        response.put("byEncodingProfile", totalsByEncodingProfile(sessions));
+        return response;
+    }
+
+    /*
+     * RFB bytes sent and estimated wire bytes after permessage-deflate, summed per
+     * encoding profile and deflate setting, for comparing bandwidth between profiles.
+     */
+    private Map<String, Map<String, Long>> totalsByEncodingProfile(List<RelayStats> sessions) {
+        Map<String, Map<String, Long>> totals = new TreeMap<>();
+        for (RelayStats session : sessions) {
+            String key = session.getEncodingProfile() + (session.isDeflate() ? "+deflate" : "");
+            Map<String, Long> total = totals.computeIfAbsent(key, k -> new HashMap<>());
+            total.merge("sessions", 1L, Long::sum);
+            total.merge("bytesToBrowser", session.getBytesToBrowser(), Long::sum);
+            total.merge("estimatedWireBytes", session.getEstimatedWireBytes(), Long::sum);
+        }
+        return totals;
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.kvm.controller;
+
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.example.kvm.service.LiveEventHub;
+
+/*
+ * Server-Sent Events stream of VM state and job changes (see LiveEventHub),
+ * consumed by the index page instead of reloading or polling.
+ */
+@RestController
+public class EventController {
+
+    private final LiveEventHub liveEventHub;
+
+    public EventController(LiveEventHub liveEventHub) {
+        this.liveEventHub = liveEventHub;
+    }
+
+    @GetMapping(path = "/api/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter events() {
+        return liveEventHub.subscribe();
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.kvm.controller;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.example.kvm.model.Job;
+import com.example.kvm.service.JobService;
+
+/*
+ * REST API for polling asynchronous VM jobs.
+ */
+@RestController
+public class JobController {
+
+    private final JobService jobService;
+
+    public JobController(JobService jobService) {
+        this.jobService = jobService;
+    }
+
+    /*
+     * Recent jobs, newest first, plus per-type concurrency usage.
+     */
+    @GetMapping("/api/jobs")
+    public Map<String, Object> listJobs(@RequestParam(defaultValue = "false") boolean active,
+                                        @RequestParam(defaultValue = "50") int limit) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("jobs", jobService.list(active, Math.max(1, limit)));
+        response.put("lanes", jobService.getLaneStats());
+        return response;
+    }
+
+    @GetMapping("/api/jobs/{id}")
+    public ResponseEntity<Map<String, Object>> getJob(@PathVariable String id) {
+        Map<String, Object> response = new HashMap<>();
+        Job job = jobService.get(id);
+        if (job == null) {
+            response.put("success", false);
+            response.put("error", "Unknown job: " + id);
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
+        }
+        response.put("success", true);
+        response.put("job", job);
+        return ResponseEntity.ok(response);
+    }
+}
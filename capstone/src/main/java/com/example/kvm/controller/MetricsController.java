@@ -0,0 +1,95 @@
+package com.example.kvm.controller;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.example.kvm.model.Metric;
+import com.example.kvm.model.MetricSeries;
+import com.example.kvm.service.MetricsCollector;
+
+/*
+ * REST API for the per-domain usage history kept by the MetricsCollector.
+ * Times are epoch milliseconds; ranges default to the last hour.
+ */
+@RestController
+public class MetricsController {
+
+    private final MetricsCollector metricsCollector;
+
+    public MetricsController(MetricsCollector metricsCollector) {
+        this.metricsCollector = metricsCollector;
+    }
+
+    @GetMapping("/api/metrics")
+    public Map<String, Object> getMetricsStatus() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("collector", metricsCollector.getStats());
+        return response;
+    }
+
+    /*
+     * Downsampled series of one VM, e.g. /api/vms/web-1/metrics?from=...&step=60&agg=max
+     * (step in seconds; omitted, it is chosen to fit kvm.metrics.max-points)
+     */
+    @GetMapping("/api/vms/{name}/metrics")
+    public ResponseEntity<Map<String, Object>> getVmMetrics(@PathVariable String name,
+                                                            @RequestParam(required = false) Long from,
+                                                            @RequestParam(required = false) Long to,
+                                                            @RequestParam(defaultValue = "0") long step,
+                                                            @RequestParam(defaultValue = "AVG") String agg) {
+        Map<String, Object> response = new HashMap<>();
+        long end = to != null ? to : System.currentTimeMillis();
+        long start = from != null ? from : end - TimeUnit.HOURS.toMillis(1);
+        MetricSeries series;
+        try {
+            series = metricsCollector.query(name, start, end, TimeUnit.SECONDS.toMillis(step),
+                    MetricsCollector.Aggregation.valueOf(agg.toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            response.put("success", false);
+            response.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
+        }
+        if (series == null) {
+            response.put("success", false);
+            response.put("error", "No metrics recorded for VM: " + name);
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
+        }
+        response.put("success", true);
+        response.put("series", series);
+        return ResponseEntity.ok(response);
+    }
+
+    /*
+     * VMs ranked by their average of one metric over the last minutes, e.g.
+     * /api/metrics/top?metric=disk-write&minutes=5
+     */
+    @GetMapping("/api/metrics/top")
+    public ResponseEntity<Map<String, Object>> getTopVms(@RequestParam(defaultValue = "cpu") String metric,
+                                                         @RequestParam(defaultValue = "5") int minutes,
+                                                         @RequestParam(defaultValue = "10") int limit) {
+        Map<String, Object> response = new HashMap<>();
+        Metric selected;
+        try {
+            selected = Metric.fromKey(metric);
+        } catch (IllegalArgumentException e) {
+            response.put("success", false);
+            response.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
+        }
+        response.put("success", true);
+        response.put("metric", selected.getKey());
+        response.put("unit", selected.getUnit());
+        response.put("vms", metricsCollector.top(selected, TimeUnit.MINUTES.toMillis(Math.max(1, minutes)),
+                Math.max(1, limit)));
+        return ResponseEntity.ok(response);
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.kvm.controller;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Reads a multipart/form-data body part by part straight from the request
+ * stream, with one fixed buffer. Unlike the servlet container's parser nothing
+ * is spooled to disk, so a multi-GB file part can be handed on as a stream.
+ *
+ * Parts must be read in order: nextPart() skips whatever is left of the
+ * current part's body.
+ */
+final class MultipartReader {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final InputStream in;
+    // "\r\n--" + boundary; the first boundary line is matched as if preceded by a CRLF
+    private final byte[] delimiter;
+    private final byte[] buffer;
+    // Unread bytes are buffer[start, end)
+    private int start;
+    private int end;
+    private boolean eof;
+
+    private PartBody current;
+    private boolean finished;
+
+    MultipartReader(InputStream in, String boundary, int bufferSize) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buffer = new byte[Math.max(bufferSize, 4 * delimiter.length)];
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        end = 2;
+    }
+
+    /*
+     * Moves to the next part and returns its headers, names in lower case.
+     * Returns null after the last part.
+     */
+    Map<String, String> nextPart() throws IOException {
+        if (finished) {
+            return null;
+        }
+        if (current == null) {
+            // Preamble before the first boundary
+            new PartBody().skipAll();
+        } else {
+            current.skipAll();
+        }
+        // After a delimiter: "--" closes the body, anything else ends with the line break
+        ensure(2);
+        if (end - start >= 2 && buffer[start] == '-' && buffer[start + 1] == '-') {
+            finished = true;
+            current = null;
+            return null;
+        }
+        readLine();
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+        current = new PartBody();
+        return headers;
+    }
+
+    /*
+     * Body of the part returned by the last nextPart(). Closing it does not
+     * close the request stream.
+     */
+    InputStream body() {
+        if (current == null) {
+            throw new IllegalStateException("No current part");
+        }
+        return current;
+    }
+
+    /*
+     * Reads the current part's body as text, failing if it is longer than maxLength bytes.
+     */
+    String readText(int maxLength) throws IOException {
+        byte[] value = body().readNBytes(maxLength + 1);
+        if (value.length > maxLength) {
+            throw new IOException("Multipart field longer than " + maxLength + " bytes");
+        }
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private String readLine() throws IOException {
+        // Bytes after start already searched; fill() may move start
+        int scanned = 0;
+        while (true) {
+            int index = indexOf(CRLF, start + scanned);
+            if (index >= 0) {
+                String line = new String(buffer, start, index - start, StandardCharsets.UTF_8);
+                start = index + CRLF.length;
+                return line;
+            }
+            if (eof) {
+                throw new EOFException("Multipart body ended inside the part headers");
+            }
+            if (start == 0 && end == buffer.length) {
+                throw new IOException("Multipart header line longer than " + buffer.length + " bytes");
+            }
+            scanned = Math.max(0, end - start - 1);
+            fill();
+        }
+    }
+
+    /*
+     * Reads until at least n bytes are buffered or the stream has ended.
+     */
+    private void ensure(int n) throws IOException {
+        while (end - start < n && !eof) {
+            fill();
+        }
+    }
+
+    /*
+     * Moves the unread bytes to the front of the buffer and reads once into the rest.
+     */
+    private void fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        int read = in.read(buffer, end, buffer.length - end);
+        if (read < 0) {
+            eof = true;
+        } else {
+            end += read;
+        }
+    }
+
+    private int indexOf(byte[] pattern, int from) {
+        int last = end - pattern.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buffer[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /*
+     * One part's body: everything up to the next delimiter. Bytes that could be
+     * the start of a delimiter stay buffered until enough follows to tell.
+     */
+    private final class PartBody extends InputStream {
+
+        private boolean done;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                int index = indexOf(delimiter, start);
+                if (index == start) {
+                    start += delimiter.length;
+                    done = true;
+                    return -1;
+                }
+                int available = index >= 0 ? index - start : end - start - (delimiter.length - 1);
+                if (available > 0) {
+                    int count = Math.min(len, available);
+                    System.arraycopy(buffer, start, b, off, count);
+                    start += count;
+                    return count;
+                }
+                if (eof) {
+                    throw new EOFException("Multipart body ended before its closing boundary");
+                }
+                fill();
+            }
+        }
+
+        void skipAll() throws IOException {
+            while (!done) {
+                int index = indexOf(delimiter, start);
+                if (index >= 0) {
+                    start = index + delimiter.length;
+                    done = true;
+                } else if (eof) {
+                    throw new EOFException("Multipart body ended before its closing boundary");
+                } else {
+                    start = Math.max(start, end - (delimiter.length - 1));
+                    fill();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            // The request stream belongs to the container
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.example.kvm.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.libvirt.LibvirtException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.example.kvm.libvirt.LibvirtNativeException;
+import com.example.kvm.model.JobType;
+import com.example.kvm.service.HypervisorUnavailableException;
+import com.example.kvm.service.JobService;
+import com.example.kvm.service.StorageNotFoundException;
+import com.example.kvm.service.StorageService;
+import com.example.kvm.service.UploadConflictException;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/*
+ * REST API for storage pools and their volumes (see StorageService). Every
+ * endpoint takes an optional ?host=, defaulting to the first hypervisor host.
+ *
+ * Volume content is uploaded either as a raw body:
+ *   curl -T debian.iso http://manager/api/storage/pools/default/volumes/debian.iso/content
+ * or as the file part of a multipart/form-data POST (an HTML form):
+ *   curl -F capacity=658505728 -F file=@debian.iso http://manager/api/storage/pools/default/volumes/debian.iso/content
+ * An interrupted upload is resumed by sending the rest of the file with an
+ * Upload-Offset header; HEAD on the content returns the offset to resume at.
+ */
+@RestController
+public class StorageController {
+
+    private static final Logger log = LoggerFactory.getLogger(StorageController.class);
+
+    private static final String UPLOAD_OFFSET = "Upload-Offset";
+
+    // Read buffer of the multipart parser, and the size limit for plain form fields
+    private static final int MULTIPART_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_FIELD_LENGTH = 1024;
+
+    private final StorageService storageService;
+    private final JobService jobService;
+
+    public StorageController(StorageService storageService, JobService jobService) {
+        this.storageService = storageService;
+        this.jobService = jobService;
+    }
+
+    @GetMapping("/api/storage/pools")
+    public ResponseEntity<Map<String, Object>> listPools(@RequestParam(required = false) String host) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            response.put("pools", storageService.listPools(host));
+            response.put("success", true);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    @GetMapping("/api/storage/pools/{pool}/volumes")
+    public ResponseEntity<Map<String, Object>> listVolumes(@PathVariable String pool,
+                                                           @RequestParam(required = false) String host) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            response.put("volumes", storageService.listVolumes(host, pool));
+            response.put("success", true);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    /*
+     * Creates an empty volume, e.g. to upload into or as a blank disk.
+     */
+    @PostMapping("/api/storage/pools/{pool}/volumes")
+    public ResponseEntity<Map<String, Object>> createVolume(@PathVariable String pool,
+                                                            @RequestParam String name,
+                                                            @RequestParam long capacity,
+                                                            @RequestParam(defaultValue = "qcow2") String format,
+                                                            @RequestParam(required = false) String host) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            response.put("volume", storageService.createVolume(host, pool, name, capacity, format));
+            response.put("success", true);
+            return ResponseEntity.status(HttpStatus.CREATED).body(response);
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    @GetMapping("/api/storage/pools/{pool}/volumes/{volume}")
+    public ResponseEntity<Map<String, Object>> getVolume(@PathVariable String pool, @PathVariable String volume,
+                                                         @RequestParam(required = false) String host) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            response.put("volume", storageService.getVolume(host, pool, volume));
+            response.put("success", true);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    @DeleteMapping("/api/storage/pools/{pool}/volumes/{volume}")
+    public ResponseEntity<Map<String, Object>> deleteVolume(@PathVariable String pool, @PathVariable String volume,
+                                                            @RequestParam(required = false) String host) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            storageService.deleteVolume(host, pool, volume);
+            response.put("success", true);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    /*
+     * Copies a volume as a job, answering 202 with the job ID. The new volume
+     * is the job's result. targetPool defaults to the source pool.
+     */
+    @PostMapping("/api/storage/pools/{pool}/volumes/{volume}/clone")
+    public ResponseEntity<Map<String, Object>> cloneVolume(@PathVariable String pool, @PathVariable String volume,
+                                                           @RequestParam String name,
+                                                           @RequestParam(required = false) String targetPool,
+                                                           @RequestParam(required = false) String host) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            // Fail now rather than in the job when the source is missing or its host is down
+            storageService.getVolume(host, pool, volume);
+            String hostId = storageService.hostOrDefault(host);
+            response.put("jobId", jobService.submitForResult(JobType.CLONE, pool + "/" + volume,
+                    progress -> storageService.cloneVolume(hostId, pool, volume, targetPool, name, progress)).getId());
+            response.put("success", true);
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(response);
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    /*
+     * Offset to resume an interrupted upload at, in the Upload-Offset header.
+     * 404 if no upload into the volume is pending.
+     */
+    @RequestMapping(value = "/api/storage/pools/{pool}/volumes/{volume}/content", method = RequestMethod.HEAD)
+    public ResponseEntity<Void> getUploadOffset(@PathVariable String pool, @PathVariable String volume,
+                                                @RequestParam(required = false) String host) {
+        Long offset = storageService.getUploadOffset(host, pool, volume);
+        if (offset == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok().header(UPLOAD_OFFSET, Long.toString(offset)).build();
+    }
+
+    /*
+     * Raw upload: the request body is the volume content. A new volume gets the
+     * body's Content-Length as capacity unless ?capacity= says otherwise; with
+     * chunked transfer encoding the capacity must be given.
+     */
+    @PutMapping("/api/storage/pools/{pool}/volumes/{volume}/content")
+    public ResponseEntity<Map<String, Object>> uploadRaw(@PathVariable String pool, @PathVariable String volume,
+                                                         @RequestParam(required = false) Long capacity,
+                                                         @RequestParam(required = false) String format,
+                                                         @RequestParam(required = false) String host,
+                                                         @RequestHeader(value = UPLOAD_OFFSET, defaultValue = "0")
+                                                         long offset,
+                                                         HttpServletRequest request) {
+        Long size = capacity;
+        if (size == null && offset == 0 && request.getContentLengthLong() > 0) {
+            size = request.getContentLengthLong();
+        }
+        try {
+            return upload(host, pool, volume, offset, size, format, request.getInputStream());
+        } catch (IOException e) {
+            return uploadFailed(host, pool, volume, HttpStatus.BAD_REQUEST, e);
+        }
+    }
+
+    /*
+     * Multipart upload: the first part with a filename is the volume content.
+     * capacity and format may also be sent as form fields ahead of the file.
+     */
+    @PostMapping(value = "/api/storage/pools/{pool}/volumes/{volume}/content",
+            consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<Map<String, Object>> uploadMultipart(@PathVariable String pool, @PathVariable String volume,
+                                                               @RequestParam(required = false) Long capacity,
+                                                               @RequestParam(required = false) String format,
+                                                               @RequestParam(required = false) String host,
+                                                               @RequestHeader(value = UPLOAD_OFFSET, defaultValue = "0")
+                                                               long offset,
+                                                               HttpServletRequest request) {
+        String boundary = MediaType.parseMediaType(request.getContentType()).getParameter("boundary");
+        if (boundary == null || boundary.isEmpty()) {
+            return badRequest("Multipart request without a boundary");
+        }
+        if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+        }
+        try {
+            MultipartReader reader = new MultipartReader(request.getInputStream(), boundary, MULTIPART_BUFFER_SIZE);
+            Map<String, String> fields = new HashMap<>();
+            Map<String, String> headers;
+            while ((headers = reader.nextPart()) != null) {
+                ContentDisposition disposition = ContentDisposition.parse(
+                        headers.getOrDefault("content-disposition", "form-data"));
+                if (disposition.getFilename() != null) {
+                    Long size = capacity != null ? capacity : parseCapacity(fields.get("capacity"));
+                    String type = format != null ? format : fields.get("format");
+                    return upload(host, pool, volume, offset, size, type, reader.body());
+                }
+                if (disposition.getName() != null) {
+                    fields.put(disposition.getName(), reader.readText(MAX_FIELD_LENGTH).trim());
+                }
+            }
+            return badRequest("Multipart request without a file part");
+        } catch (IllegalArgumentException e) {
+            return badRequest(e.getMessage());
+        } catch (IOException e) {
+            return uploadFailed(host, pool, volume, HttpStatus.BAD_REQUEST, e);
+        }
+    }
+
+    private ResponseEntity<Map<String, Object>> upload(String host, String pool, String volume, long offset,
+                                                       Long capacity, String format, InputStream body) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            response.put("volume", storageService.upload(host, pool, volume, offset, capacity, format, body));
+            response.put("success", true);
+            return ResponseEntity.ok(response);
+        } catch (UploadConflictException e) {
+            response.put("success", false);
+            response.put("error", e.getMessage());
+            response.put("uploadedBytes", e.getCommittedOffset());
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .header(UPLOAD_OFFSET, Long.toString(e.getCommittedOffset()))
+                    .body(response);
+        } catch (IOException e) {
+            // Usually the client went away; whatever it sent up to the last segment is kept
+            return uploadFailed(host, pool, volume, HttpStatus.BAD_REQUEST, e);
+        } catch (LibvirtException | LibvirtNativeException | XMLStreamException e) {
+            return uploadFailed(host, pool, volume, HttpStatus.INTERNAL_SERVER_ERROR, e);
+        } catch (RuntimeException e) {
+            return error(e);
+        }
+    }
+
+    /*
+     * Reports a failed upload with the offset it can be resumed at.
+     */
+    private ResponseEntity<Map<String, Object>> uploadFailed(String host, String pool, String volume,
+                                                             HttpStatus status, Exception e) {
+        Long offset = storageService.getUploadOffset(host, pool, volume);
+        log.atWarn().addKeyValue("volume", pool + "/" + volume)
+                .log("Upload into {}/{} failed at offset {}: {}", pool, volume, offset, e.getMessage());
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", false);
+        response.put("error", "Upload failed: " + e.getMessage());
+        response.put("uploadedBytes", offset);
+        ResponseEntity.BodyBuilder builder = ResponseEntity.status(status);
+        if (offset != null) {
+            builder.header(UPLOAD_OFFSET, Long.toString(offset));
+        }
+        return builder.body(response);
+    }
+
+    private static Long parseCapacity(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid capacity: " + value);
+        }
+    }
+
+    private static ResponseEntity<Map<String, Object>> badRequest(String message) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", false);
+        response.put("error", message);
+        return ResponseEntity.badRequest().body(response);
+    }
+
+    /*
+     * Maps the storage API's failures to status codes.
+     */
+    private static ResponseEntity<Map<String, Object>> error(Exception e) {
+        HttpStatus status;
+        if (e instanceof StorageNotFoundException) {
+            status = HttpStatus.NOT_FOUND;
+        } else if (e instanceof UploadConflictException) {
+            status = HttpStatus.CONFLICT;
+        } else if (e instanceof IllegalArgumentException) {
+            status = HttpStatus.BAD_REQUEST;
+        } else if (e instanceof HypervisorUnavailableException || e instanceof RejectedExecutionException) {
+            status = HttpStatus.SERVICE_UNAVAILABLE;
+        } else {
+            status = HttpStatus.INTERNAL_SERVER_ERROR;
+        }
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", false);
+        response.put("error", e.getMessage());
+        ResponseEntity.BodyBuilder builder = ResponseEntity.status(status);
+        if (status == HttpStatus.SERVICE_UNAVAILABLE) {
+            builder.header(HttpHeaders.RETRY_AFTER, HypervisorUnavailableException.RETRY_AFTER_SECONDS);
+        }
+        return builder.body(response);
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.kvm.controller;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.example.kvm.model.VmTemplate;
+import com.example.kvm.service.KvmService;
+import com.example.kvm.service.TemplateService;
+
+/*
+ * REST API for registering the golden images VMs are cloned from.
+ */
+@RestController
+public class TemplateController {
+
+    private final TemplateService templateService;
+    private final KvmService kvmService;
+
+    public TemplateController(TemplateService templateService, KvmService kvmService) {
+        this.templateService = templateService;
+        this.kvmService = kvmService;
+    }
+
+    @GetMapping("/api/templates")
+    public Map<String, Object> listTemplates() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("templates", templateService.list());
+        return response;
+    }
+
+    @PostMapping("/api/templates")
+    public ResponseEntity<Map<String, Object>> registerTemplate(@RequestBody VmTemplate template) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            response.put("template", templateService.register(template));
+            response.put("success", true);
+            return ResponseEntity.status(HttpStatus.CREATED).body(response);
+        } catch (IllegalArgumentException e) {
+            response.put("success", false);
+            response.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
+        } catch (IOException e) {
+            response.put("success", false);
+            response.put("error", e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
+        }
+    }
+
+    /*
+     * Unregisters a template; refused while VMs cloned from it still exist.
+     */
+    @DeleteMapping("/api/templates/{name}")
+    public ResponseEntity<Map<String, Object>> unregisterTemplate(@PathVariable String name) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            List<String> clones = kvmService.getVMsUsingTemplate(name);
+            if (!clones.isEmpty()) {
+                response.put("success", false);
+                response.put("error", "Template is used by " + clones);
+                return ResponseEntity.status(HttpStatus.CONFLICT).body(response);
+            }
+            if (!templateService.unregister(name)) {
+                response.put("success", false);
+                response.put("error", "Unknown template: " + name);
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
+            }
+            response.put("success", true);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            response.put("success", false);
+            response.put("error", e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.kvm.controller;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+
+import com.example.kvm.service.ThumbnailService;
+
+/*
+ * Console previews of running VMs (see ThumbnailService). Thumbnails carry an
+ * ETag, so browsers revalidating an unchanged screen get a 304.
+ */
+@RestController
+public class ThumbnailController {
+
+    private final ThumbnailService thumbnailService;
+
+    public ThumbnailController(ThumbnailService thumbnailService) {
+        this.thumbnailService = thumbnailService;
+    }
+
+    @GetMapping("/api/vms/{name}/thumbnail")
+    public ResponseEntity<byte[]> getThumbnail(@PathVariable String name, WebRequest request) {
+        ThumbnailService.Thumbnail thumbnail = thumbnailService.get(name);
+        if (thumbnail == null) {
+            return ResponseEntity.notFound().build();
+        }
+        if (request.checkNotModified(thumbnail.getEtag())) {
+            return null;
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.IMAGE_JPEG)
+                .eTag(thumbnail.getEtag())
+                .cacheControl(CacheControl.noCache())
+                .body(thumbnail.getJpeg());
+    }
+
+    @GetMapping("/api/thumbnails")
+    public Map<String, Object> getThumbnailStats() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("thumbnails", thumbnailService.getStats());
+        return response;
+    }
+}
@@ -1,36 +1,66 @@
 package com.example.kvm.controller;
 
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 
+import com.example.kvm.model.BatchRequest;
+import com.example.kvm.model.CloudInitConfig;
+import com.example.kvm.model.DomainProfile;
+import com.example.kvm.model.DomainStats;
+import com.example.kvm.model.Job;
+import com.example.kvm.model.JobType;
+import com.example.kvm.model.VmTemplate;
+import com.example.kvm.service.CapacityTracker;
+import com.example.kvm.service.HypervisorUnavailableException;
+import com.example.kvm.service.JobService;
 import com.example.kvm.service.KvmService;
+import com.example.kvm.service.TemplateService;
+import com.example.kvm.service.WarmPoolService;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 @Controller
 public class WebController {
 
     private KvmService kvmService = null;
+    private final JobService jobService;
+    private final TemplateService templateService;
+    private final WarmPoolService warmPoolService;
 
-    public WebController(KvmService kvmService) {
+    public WebController(KvmService kvmService, JobService jobService, TemplateService templateService,
+                         WarmPoolService warmPoolService) {
         this.kvmService = kvmService;
+        this.jobService = jobService;
+        this.templateService = templateService;
+        this.warmPoolService = warmPoolService;
     }
 
     @GetMapping("/")
-    public String index(Model model) throws Exception {
+    public String index(Model model) {
         model.addAttribute("vms", kvmService.listVMs());
+        model.addAttribute("jobs", jobService.list(false, 10));
         return "index";
     }
 
     @GetMapping("/createvm")
     public String createVMForm(Model model) {
+        model.addAttribute("templates", templateService.list());
+        model.addAttribute("profiles", DomainProfile.values());
+        model.addAttribute("warmPoolEnabled", warmPoolService.isEnabled());
+        model.addAttribute("sizeClasses", warmPoolService.getClassNames());
         return "createvm";
     }
 
@@ -54,20 +84,47 @@ public class WebController {
      */
     @GetMapping("/api/vm/{name}/vnc-port")
     @ResponseBody
-    public Map<String, Object> getVNCPort(@PathVariable String name) {
+    public ResponseEntity<Map<String, Object>> getVNCPort(@PathVariable String name) {
         Map<String, Object> response = new HashMap<>();
         try {
             int port = kvmService.getVNCPortByName(name);
             response.put("success", true);
             response.put("port", port);
-            response.put("host", "localhost");
+            response.put("host", kvmService.getVncHost(name));
+        } catch (HypervisorUnavailableException e) {
+            return unavailable(e);
         } catch (Exception e) {
             response.put("success", false);
             response.put("error", e.getMessage());
         }
-        return response;
+        return ResponseEntity.ok(response);
+    }
+
+    /*
+     * REST API endpoint returning bulk statistics for all VMs (used by dashboards)
+     */
+    @GetMapping("/api/vms/stats")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> getAllStats() {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            List<DomainStats> stats = kvmService.getAllDomainStats();
+            response.put("success", true);
+            response.put("timestamp", System.currentTimeMillis());
+            response.put("domains", stats);
+        } catch (HypervisorUnavailableException e) {
+            return unavailable(e);
+        } catch (Exception e) {
+            response.put("success", false);
+            response.put("error", e.getMessage());
+        }
+        return ResponseEntity.ok(response);
     }
 
+    /*
+     * Lifecycle operations run as jobs (see JobService); the form endpoints return
+     * to the VM list right away and the list page polls /api/jobs for progress.
+     */
     @PostMapping("/vm/create")
     public String createVM(
             @RequestParam String name,
@@ -75,32 +132,350 @@ public class WebController {
             @RequestParam int vcpus,
             @RequestParam String iso,
             @RequestParam Integer diskSize,
-            @RequestParam String localPath
-    ) throws Exception {
-        kvmService.createVMFromISO(name, memory, vcpus, iso, diskSize, localPath);
+            @RequestParam(required = false) String localPath,
+            @RequestParam(required = false) String pool,
+            @RequestParam(required = false) DomainProfile profile,
+            RedirectAttributes redirectAttributes
+    ) {
+        try {
+            submitCreate(name, memory, vcpus, iso, diskSize, localPath, pool, profile);
+        } catch (IllegalArgumentException | RejectedExecutionException e) {
+            redirectAttributes.addFlashAttribute("error", e.getMessage());
+            return "redirect:/createvm";
+        }
         return "redirect:/";
     }
 
-    @PostMapping("/vm/{name}/start")
-    public String startVM(@PathVariable String name) throws Exception {
-        kvmService.startVM(name);
+    @PostMapping("/vm/create-from-template")
+    public String createVMFromTemplate(
+            @RequestParam String name,
+            @RequestParam String template,
+            @RequestParam(required = false) Integer memory,
+            @RequestParam(required = false) Integer vcpus,
+            @RequestParam(required = false) Integer diskSize,
+            @RequestParam String localPath,
+            @RequestParam(required = false) String hostname,
+            @RequestParam(required = false) String sshKey,
+            @RequestParam(required = false) String userData,
+            @RequestParam(required = false) DomainProfile profile,
+            RedirectAttributes redirectAttributes
+    ) {
+        try {
+            submitCreateFromTemplate(name, template, memory, vcpus, diskSize, localPath,
+                    cloudInit(hostname, sshKey, userData), profile);
+        } catch (IllegalArgumentException | RejectedExecutionException e) {
+            redirectAttributes.addFlashAttribute("error", e.getMessage());
+            return "redirect:/createvm";
+        }
         return "redirect:/";
     }
-    @PostMapping("/vm/{name}/shutdown")
-    public String shutdownVM(@PathVariable String name) throws Exception {
-        kvmService.stopVM(name);
+
+    @PostMapping("/vm/create-warm")
+    public String createWarmVM(@RequestParam String name, @RequestParam String sizeClass,
+                               RedirectAttributes redirectAttributes) {
+        try {
+            submitCreateWarm(name, sizeClass);
+        } catch (IllegalArgumentException | RejectedExecutionException e) {
+            redirectAttributes.addFlashAttribute("error", e.getMessage());
+            return "redirect:/createvm";
+        }
         return "redirect:/";
     }
+
+    @PostMapping("/vm/{name}/start")
+    public String startVM(@PathVariable String name, RedirectAttributes redirectAttributes) {
+        return submitFromForm(JobType.START, name, redirectAttributes);
+    }
+    @PostMapping("/vm/{name}/shutdown")
+    public String shutdownVM(@PathVariable String name, RedirectAttributes redirectAttributes) {
+        return submitFromForm(JobType.SHUTDOWN, name, redirectAttributes);
+    }
     @PostMapping("/vm/{name}/forceshutdown")
-    public String forceShutdownVM(@PathVariable String name) throws Exception {
-        kvmService.forceStopVM(name);
-        return "redirect:/";
+    public String forceShutdownVM(@PathVariable String name, RedirectAttributes redirectAttributes) {
+        return submitFromForm(JobType.FORCE_SHUTDOWN, name, redirectAttributes);
     }
     @PostMapping("/vm/{name}/delete")
-    public String deleteVM(@PathVariable String name) throws Exception {
-        kvmService.deleteVM(name);
+    public String deleteVM(@PathVariable String name, RedirectAttributes redirectAttributes) {
+        return submitFromForm(JobType.DELETE, name, redirectAttributes);
+    }
+
+    /*
+     * A full job queue is shown on the VM list instead of failing the request.
+     */
+    private String submitFromForm(JobType type, String name, RedirectAttributes redirectAttributes) {
+        try {
+            submitLifecycle(type, name);
+        } catch (RejectedExecutionException e) {
+            redirectAttributes.addFlashAttribute("error", e.getMessage());
+        }
         return "redirect:/";
     }
+
+    /*
+     * REST API endpoints for the same operations, answering 202 with the job ID
+     */
+    @PostMapping("/api/vms")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> createVMApi(
+            @RequestParam String name,
+            @RequestParam int memory,
+            @RequestParam int vcpus,
+            @RequestParam String iso,
+            @RequestParam Integer diskSize,
+            @RequestParam(required = false) String localPath,
+            @RequestParam(required = false) String pool,
+            @RequestParam(required = false) DomainProfile profile
+    ) {
+        try {
+            if (kvmService.evaluateCreate(memory, vcpus, diskSize, localPath, pool) == CapacityTracker.Decision.REJECT) {
+                return insufficientCapacity(name);
+            }
+            return accepted(submitCreate(name, memory, vcpus, iso, diskSize, localPath, pool, profile));
+        } catch (IllegalArgumentException e) {
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", false);
+            response.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
+        } catch (HypervisorUnavailableException e) {
+            return unavailable(e);
+        } catch (RejectedExecutionException e) {
+            return rejected(e);
+        }
+    }
+
+    @PostMapping("/api/vms/from-template")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> createVMFromTemplateApi(
+            @RequestParam String name,
+            @RequestParam String template,
+            @RequestParam(required = false) Integer memory,
+            @RequestParam(required = false) Integer vcpus,
+            @RequestParam(required = false) Integer diskSize,
+            @RequestParam String localPath,
+            @RequestParam(required = false) String hostname,
+            @RequestParam(required = false) String sshKey,
+            @RequestParam(required = false) String userData,
+            @RequestParam(required = false) DomainProfile profile
+    ) {
+        try {
+            return accepted(submitCreateFromTemplate(name, template, memory, vcpus, diskSize, localPath,
+                    cloudInit(hostname, sshKey, userData), profile));
+        } catch (IllegalArgumentException e) {
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", false);
+            response.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
+        } catch (RejectedExecutionException e) {
+            return rejected(e);
+        }
+    }
+
+    /*
+     * Creates a VM of a size class from the warm pool (see WarmPoolService)
+     */
+    @PostMapping("/api/vms/warm")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> createWarmVMApi(@RequestParam String name,
+                                                               @RequestParam String sizeClass) {
+        try {
+            return accepted(submitCreateWarm(name, sizeClass));
+        } catch (IllegalArgumentException e) {
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", false);
+            response.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
+        } catch (RejectedExecutionException e) {
+            return rejected(e);
+        }
+    }
+
+    /*
+     * Host capacity, committed and reserved resources, and admission counters
+     */
+    @GetMapping("/api/capacity")
+    @ResponseBody
+    public Map<String, Object> getCapacity() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("capacity", kvmService.getCapacityStats());
+        return response;
+    }
+
+    /*
+     * Hypervisor hosts with their connection state and placement strategy
+     */
+    @GetMapping("/api/hypervisors")
+    @ResponseBody
+    public Map<String, Object> getHypervisors() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("hosts", kvmService.getHypervisorStatus());
+        return response;
+    }
+
+    @GetMapping("/api/warm-pool")
+    @ResponseBody
+    public Map<String, Object> getWarmPoolStats() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("pool", warmPoolService.getStats());
+        return response;
+    }
+
+    @PostMapping("/api/vms/{name}/{action}")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> lifecycleApi(@PathVariable String name, @PathVariable String action) {
+        JobType type;
+        switch (action) {
+            case "start" -> type = JobType.START;
+            case "shutdown" -> type = JobType.SHUTDOWN;
+            case "forceshutdown" -> type = JobType.FORCE_SHUTDOWN;
+            case "delete" -> type = JobType.DELETE;
+            default -> {
+                Map<String, Object> response = new HashMap<>();
+                response.put("success", false);
+                response.put("error", "Unknown action: " + action);
+                return ResponseEntity.badRequest().body(response);
+            }
+        }
+        try {
+            // Fail now rather than in the job when the VM's host is down
+            kvmService.checkHostAvailable(name);
+            if (type == JobType.START && kvmService.evaluateStart(name) == CapacityTracker.Decision.REJECT) {
+                return insufficientCapacity(name);
+            }
+            return accepted(submitLifecycle(type, name));
+        } catch (HypervisorUnavailableException e) {
+            return unavailable(e);
+        } catch (RejectedExecutionException e) {
+            return rejected(e);
+        }
+    }
+
+    /*
+     * Applies one lifecycle action to many VMs as a single job. The per-VM outcome
+     * is available as the job's result once it has finished.
+     */
+    @PostMapping("/api/vms/batch")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> batchApi(@RequestBody BatchRequest request) {
+        String error = null;
+        if (request.getAction() == null) {
+            error = "Missing action";
+        } else if (request.getNames() == null && request.getPattern() == null && request.getLabel() == null) {
+            error = "Select VMs by names, pattern or label";
+        }
+        if (error != null) {
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", false);
+            response.put("error", error);
+            return ResponseEntity.badRequest().body(response);
+        }
+        try {
+            return accepted(jobService.submitForResult(JobType.BATCH, request.describe(),
+                    progress -> kvmService.runBatch(request, progress)));
+        } catch (RejectedExecutionException e) {
+            return rejected(e);
+        }
+    }
+
+    /*
+     * The disk goes to a storage pool volume if pool is given, else to an image file in localPath.
+     */
+    private Job submitCreate(String name, int memory, int vcpus, String iso, Integer diskSize, String localPath,
+                             String pool, DomainProfile profile) {
+        if (isBlank(pool) && isBlank(localPath)) {
+            throw new IllegalArgumentException("Choose a storage pool or a local path for the disk");
+        }
+        return jobService.submit(JobType.CREATE, name, progress -> kvmService.createVMFromISO(
+                name, memory, vcpus, iso, diskSize, localPath, pool, profile, progress));
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+
+    private Job submitCreateFromTemplate(String name, String templateName, Integer memory, Integer vcpus,
+                                         Integer diskSize, String localPath, CloudInitConfig cloudInit,
+                                         DomainProfile profile) {
+        VmTemplate template = templateService.get(templateName);
+        if (template == null) {
+            throw new IllegalArgumentException("Unknown template: " + templateName);
+        }
+        return jobService.submit(JobType.CREATE, name, progress -> kvmService.createVMFromTemplate(
+                name, template, memory, vcpus, diskSize, localPath, cloudInit, profile, progress));
+    }
+
+    private Job submitCreateWarm(String name, String sizeClass) {
+        if (!warmPoolService.isEnabled()) {
+            throw new IllegalArgumentException("Warm pool is disabled");
+        }
+        if (!warmPoolService.getClassNames().contains(sizeClass)) {
+            throw new IllegalArgumentException("Unknown size class: " + sizeClass);
+        }
+        return jobService.submit(JobType.CREATE, name, progress -> warmPoolService.create(name, sizeClass, progress));
+    }
+
+    private static CloudInitConfig cloudInit(String hostname, String sshKey, String userData) {
+        CloudInitConfig cloudInit = new CloudInitConfig();
+        cloudInit.setHostname(hostname);
+        if (sshKey != null && !sshKey.isBlank()) {
+            cloudInit.setSshAuthorizedKeys(sshKey.lines().filter(line -> !line.isBlank()).toList());
+        }
+        cloudInit.setUserData(userData);
+        return cloudInit;
+    }
+
+    private Job submitLifecycle(JobType type, String name) {
+        return jobService.submit(type, name, progress -> {
+            switch (type) {
+                case START -> kvmService.startVM(name, progress);
+                case SHUTDOWN -> kvmService.stopVM(name);
+                case FORCE_SHUTDOWN -> kvmService.forceStopVM(name);
+                case DELETE -> kvmService.deleteVM(name);
+                default -> throw new IllegalArgumentException("Not a lifecycle job: " + type);
+            }
+        });
+    }
+
+    private ResponseEntity<Map<String, Object>> accepted(Job job) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("jobId", job.getId());
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(response);
+    }
+
+    /*
+     * 409 for requests the host could not take even when idle (see CapacityTracker).
+     * Requests that merely have to wait for capacity are accepted and queue in their job.
+     */
+    private ResponseEntity<Map<String, Object>> insufficientCapacity(String name) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", false);
+        response.put("error", "Insufficient host capacity for " + name);
+        response.put("capacity", kvmService.getCapacityStats());
+        return ResponseEntity.status(HttpStatus.CONFLICT).body(response);
+    }
+
+    private ResponseEntity<Map<String, Object>> rejected(RejectedExecutionException e) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", false);
+        response.put("error", e.getMessage());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(response);
+    }
+
+    /*
+     * 503 while a hypervisor is down or its libvirt calls are backed up; clients may retry.
+     */
+    private ResponseEntity<Map<String, Object>> unavailable(HypervisorUnavailableException e) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", false);
+        response.put("error", e.getMessage());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, HypervisorUnavailableException.RETRY_AFTER_SECONDS)
+                .body(response);
+    }
+
     @PostMapping("/vm/{name}/connect")
     public String connectToVM(@PathVariable String name) throws Exception {
         kvmService.connectToVM(name);
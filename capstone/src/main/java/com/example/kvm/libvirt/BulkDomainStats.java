@@ -0,0 +1,128 @@
+package com.example.kvm.libvirt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.libvirt.Connect;
+import org.libvirt.DomainInfo.DomainState;
+
+import com.example.kvm.model.DomainStats;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.PointerByReference;
+
+/*
+ * Collects statistics for every domain on a connection with a single
+ * virConnectGetAllDomainStats round-trip, instead of one call per domain
+ * per attribute.
+ */
+public final class BulkDomainStats {
+
+    // virDomainStatsTypes
+    public static final int STATS_STATE = 1;
+    public static final int STATS_CPU_TOTAL = 2;
+    public static final int STATS_BALLOON = 4;
+    public static final int STATS_VCPU = 8;
+    public static final int STATS_INTERFACE = 16;
+    public static final int STATS_BLOCK = 32;
+
+    public static final int STATS_DEFAULT =
+            STATS_STATE | STATS_CPU_TOTAL | STATS_BALLOON | STATS_VCPU | STATS_INTERFACE | STATS_BLOCK;
+
+    // virDomainStatsRecord: { virDomainPtr dom; virTypedParameterPtr params; int nparams; }
+    private static final int RECORD_PARAMS_OFFSET = Native.POINTER_SIZE;
+    private static final int RECORD_NPARAMS_OFFSET = 2 * Native.POINTER_SIZE;
+
+    private BulkDomainStats() {
+    }
+
+    /*
+     * Returns statistics for all domains (running and inactive) on the connection.
+     */
+    public static List<DomainStats> query(Connect connect, int statsMask) throws LibvirtNativeException {
+        PointerByReference records = new PointerByReference();
+        int count = NativeLibvirt.INSTANCE.virConnectGetAllDomainStats(
+                NativeLibvirt.Handles.of(connect), statsMask, records, 0);
+        if (count < 0) {
+            throw LibvirtNativeException.lastError("virConnectGetAllDomainStats");
+        }
+
+        Pointer list = records.getValue();
+        List<DomainStats> result = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                Pointer record = list.getPointer((long) i * Native.POINTER_SIZE);
+                result.add(readRecord(record));
+            }
+        } finally {
+            // Frees the records and drops the domain references they hold
+            NativeLibvirt.INSTANCE.virDomainStatsRecordListFree(list);
+        }
+        return result;
+    }
+
+    private static DomainStats readRecord(Pointer record) {
+        DomainStats stats = new DomainStats();
+        stats.setName(NativeLibvirt.INSTANCE.virDomainGetName(record.getPointer(0)));
+
+        Pointer params = record.getPointer(RECORD_PARAMS_OFFSET);
+        int nparams = record.getInt(RECORD_NPARAMS_OFFSET);
+        TypedParameters.forEach(params, nparams, (field, value) -> apply(stats, field, value));
+        return stats;
+    }
+
+    /*
+     * Maps one stats field onto the model. Per-device block and net fields
+     * (e.g. "block.0.rd.bytes") are summed over all devices.
+     */
+    private static void apply(DomainStats stats, String field, long value) {
+        switch (field) {
+            case "state.state" -> stats.setState(toState(value));
+            case "cpu.time" -> stats.setCpuTimeNs(value);
+            case "vcpu.current" -> stats.setVcpus((int) value);
+            case "balloon.current" -> stats.setBalloonCurrentKiB(value);
+            case "balloon.maximum" -> stats.setBalloonMaximumKiB(value);
+            case "balloon.unused" -> stats.setBalloonUnusedKiB(value);
+            case "balloon.available" -> stats.setBalloonAvailableKiB(value);
+            case "balloon.usable" -> stats.setBalloonUsableKiB(value);
+            case "balloon.last-update" -> stats.setBalloonLastUpdate(value);
+            default -> {
+                if (field.startsWith("block.")) {
+                    applyBlock(stats, field, value);
+                } else if (field.startsWith("net.")) {
+                    applyNet(stats, field, value);
+                }
+            }
+        }
+    }
+
+    private static void applyBlock(DomainStats stats, String field, long value) {
+        if (field.endsWith(".rd.bytes")) {
+            stats.addBlockReadBytes(value);
+        } else if (field.endsWith(".wr.bytes")) {
+            stats.addBlockWriteBytes(value);
+        } else if (field.endsWith(".rd.reqs")) {
+            stats.addBlockReadRequests(value);
+        } else if (field.endsWith(".wr.reqs")) {
+            stats.addBlockWriteRequests(value);
+        }
+    }
+
+    private static void applyNet(DomainStats stats, String field, long value) {
+        if (field.endsWith(".rx.bytes")) {
+            stats.addNetRxBytes(value);
+        } else if (field.endsWith(".tx.bytes")) {
+            stats.addNetTxBytes(value);
+        } else if (field.endsWith(".rx.pkts")) {
+            stats.addNetRxPackets(value);
+        } else if (field.endsWith(".tx.pkts")) {
+            stats.addNetTxPackets(value);
+        }
+    }
+
+    private static DomainState toState(long value) {
+        DomainState[] states = DomainState.values();
+        // States newer than the bindings (e.g. PMSUSPENDED) are reported as NOSTATE
+        return (value >= 0 && value < states.length) ? states[(int) value] : DomainState.VIR_DOMAIN_NOSTATE;
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.kvm.libvirt;
+
+import org.libvirt.Domain;
+
+/*
+ * Edits to a defined domain that libvirt-java 0.5.x cannot express: renaming,
+ * replacing an application metadata element, and the balloon stats period.
+ */
+public final class DomainConfig {
+
+    // virDomainMetadataType
+    private static final int METADATA_ELEMENT = 2;
+    // virDomainModificationImpact
+    private static final int AFFECT_LIVE = 1;
+    private static final int AFFECT_CONFIG = 2;
+
+    private DomainConfig() {
+    }
+
+    /*
+     * Renames an inactive domain (virDomainRename). libvirt reports it as the old
+     * name being undefined and the new one defined.
+     */
+    public static void rename(Domain domain, String newName) throws LibvirtNativeException {
+        if (NativeLibvirt.INSTANCE.virDomainRename(NativeLibvirt.Handles.of(domain), newName, 0) < 0) {
+            throw LibvirtNativeException.lastError("virDomainRename");
+        }
+    }
+
+    /*
+     * Replaces the metadata element in namespace uri with the given XML, written
+     * with the given prefix. Null metadata removes the element.
+     */
+    public static void setMetadata(Domain domain, String metadata, String prefix, String uri)
+            throws LibvirtNativeException {
+        setMetadata(domain, metadata, prefix, uri, false);
+    }
+
+    /*
+     * As above; live also changes the running domain, whose XML would otherwise
+     * only show the new metadata after its next start.
+     */
+    public static void setMetadata(Domain domain, String metadata, String prefix, String uri, boolean live)
+            throws LibvirtNativeException {
+        int result = NativeLibvirt.INSTANCE.virDomainSetMetadata(NativeLibvirt.Handles.of(domain),
+                METADATA_ELEMENT, metadata, metadata == null ? null : prefix, uri,
+                live ? AFFECT_LIVE | AFFECT_CONFIG : AFFECT_CONFIG);
+        if (result < 0) {
+            throw LibvirtNativeException.lastError("virDomainSetMetadata");
+        }
+    }
+
+    /*
+     * Sets how often a running domain's balloon driver reports guest memory
+     * statistics, in seconds (0 stops it). Domains defined without a period
+     * in their memballoon element report nothing but the balloon size.
+     */
+    public static void setMemoryStatsPeriod(Domain domain, int seconds) throws LibvirtNativeException {
+        if (NativeLibvirt.INSTANCE.virDomainSetMemoryStatsPeriod(NativeLibvirt.Handles.of(domain), seconds,
+                AFFECT_LIVE) < 0) {
+            throw LibvirtNativeException.lastError("virDomainSetMemoryStatsPeriod");
+        }
+    }
+}
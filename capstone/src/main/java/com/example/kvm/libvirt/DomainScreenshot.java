@@ -0,0 +1,58 @@
+package com.example.kvm.libvirt;
+
+import java.io.ByteArrayOutputStream;
+
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+import org.libvirt.Stream;
+
+/*
+ * Screen contents of a running domain, read through virDomainScreenshot and
+ * a libvirt stream. QEMU returns a PPM image, newer versions may send PNG.
+ */
+public final class DomainScreenshot {
+
+    // Initial buffer; a 1024x768 PPM is about 2.3 MB
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    private final String mimeType;
+    private final byte[] data;
+
+    private DomainScreenshot(String mimeType, byte[] data) {
+        this.mimeType = mimeType;
+        this.data = data;
+    }
+
+    /*
+     * Captures the first screen of a domain. Blocks until the whole image has been received.
+     */
+    public static DomainScreenshot capture(Connect connect, Domain domain) throws LibvirtException {
+        Stream stream = connect.streamNew(0);
+        try {
+            String mimeType = domain.screenshot(stream, 0);
+            ByteArrayOutputStream image = new ByteArrayOutputStream(CHUNK_SIZE);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int received;
+            // 0 marks the end of the stream; errors are thrown
+            while ((received = stream.receive(chunk)) > 0) {
+                image.write(chunk, 0, received);
+            }
+            stream.finish();
+            return new DomainScreenshot(mimeType, image.toByteArray());
+        } catch (LibvirtException e) {
+            stream.abort();
+            throw e;
+        } finally {
+            stream.free();
+        }
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+}
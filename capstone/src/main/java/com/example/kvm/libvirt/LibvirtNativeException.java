@@ -0,0 +1,24 @@
+package com.example.kvm.libvirt;
+
+import org.libvirt.jna.Libvirt;
+import org.libvirt.jna.virError;
+
+/*
+ * Raised when a call made through the direct native bindings fails.
+ * Carries the message of the last libvirt error on the calling thread.
+ */
+public class LibvirtNativeException extends Exception {
+
+    public LibvirtNativeException(String message) {
+        super(message);
+    }
+
+    /*
+     * Builds an exception from libvirt's thread-local last error.
+     */
+    static LibvirtNativeException lastError(String call) {
+        virError error = Libvirt.INSTANCE.virGetLastError();
+        String detail = (error != null && error.message != null) ? error.message : "unknown error";
+        return new LibvirtNativeException(call + " failed: " + detail);
+    }
+}
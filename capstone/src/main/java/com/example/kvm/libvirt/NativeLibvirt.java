@@ -0,0 +1,116 @@
+package com.example.kvm.libvirt;
+
+import java.lang.reflect.Field;
+
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.StorageVol;
+import org.libvirt.Stream;
+import org.libvirt.jna.ConnectionPointer;
+import org.libvirt.jna.DomainPointer;
+import org.libvirt.jna.SizeT;
+import org.libvirt.jna.StorageVolPointer;
+import org.libvirt.jna.StreamPointer;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.PointerByReference;
+
+/*
+ * Direct JNA bindings for libvirt entry points that the libvirt-java
+ * 0.5.x bindings do not expose (bulk stats, etc.).
+ *
+ * Raw handles are taken from the libvirt-java objects so the calls run on
+ * the same connection the rest of the application uses.
+ */
+public interface NativeLibvirt extends Library {
+
+    NativeLibvirt INSTANCE = Native.load("virt", NativeLibvirt.class);
+
+    // virConnectGetAllDomainStats / virDomainStatsRecordListFree
+    int virConnectGetAllDomainStats(ConnectionPointer conn, int stats, PointerByReference retStats, int flags);
+
+    void virDomainStatsRecordListFree(Pointer stats);
+
+    // virDomainGetName on a raw virDomainPtr taken from a stats record
+    String virDomainGetName(Pointer domain);
+
+    // virDomainRename / virDomainSetMetadata (inactive domain edits)
+    int virDomainRename(DomainPointer domain, String newName, int flags);
+
+    int virDomainSetMetadata(DomainPointer domain, int type, String metadata, String key, String uri, int flags);
+
+    // virDomainSetMemoryStatsPeriod (how often the balloon driver reports guest memory use)
+    int virDomainSetMemoryStatsPeriod(DomainPointer domain, int period, int flags);
+
+    // virStorageVolUpload / virStreamSend (streaming writes into a volume at an offset)
+    int virStorageVolUpload(StorageVolPointer vol, StreamPointer stream, long offset, long length, int flags);
+
+    int virStreamSend(StreamPointer stream, Pointer data, SizeT nbytes);
+
+    // virDomainBackupBegin and checkpoints (libvirt 6.0+); checkpoints are plain virDomainCheckpointPtr handles
+    int virDomainBackupBegin(DomainPointer domain, String backupXML, String checkpointXML, int flags);
+
+    Pointer virDomainCheckpointLookupByName(DomainPointer domain, String name, int flags);
+
+    int virDomainCheckpointDelete(Pointer checkpoint, int flags);
+
+    int virDomainCheckpointFree(Pointer checkpoint);
+
+    /*
+     * Reflection helpers to reach the handles libvirt-java keeps private.
+     */
+    final class Handles {
+
+        private static final Field CONNECTION_POINTER = field(Connect.class, "vcp");
+        private static final Field DOMAIN_POINTER = field(Domain.class, "vdp");
+        private static final Field STORAGE_VOL_POINTER = field(StorageVol.class, "vsvp");
+        private static final Field STREAM_POINTER = field(Stream.class, "vsp");
+
+        private Handles() {
+        }
+
+        static ConnectionPointer of(Connect connect) {
+            try {
+                return (ConnectionPointer) CONNECTION_POINTER.get(connect);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Cannot access libvirt connection handle", e);
+            }
+        }
+
+        static DomainPointer of(Domain domain) {
+            try {
+                return (DomainPointer) DOMAIN_POINTER.get(domain);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Cannot access libvirt domain handle", e);
+            }
+        }
+
+        static StorageVolPointer of(StorageVol volume) {
+            try {
+                return (StorageVolPointer) STORAGE_VOL_POINTER.get(volume);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Cannot access libvirt storage volume handle", e);
+            }
+        }
+
+        static StreamPointer of(Stream stream) {
+            try {
+                return (StreamPointer) STREAM_POINTER.get(stream);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Cannot access libvirt stream handle", e);
+            }
+        }
+
+        static Field field(Class<?> type, String name) {
+            try {
+                Field field = type.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                throw new IllegalStateException("Unsupported libvirt-java version: missing " + type.getSimpleName() + "." + name, e);
+            }
+        }
+    }
+}
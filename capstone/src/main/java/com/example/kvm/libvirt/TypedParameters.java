@@ -0,0 +1,75 @@
+package com.example.kvm.libvirt;
+
+import java.nio.charset.StandardCharsets;
+
+import com.sun.jna.Pointer;
+
+/*
+ * Reader for native virTypedParameter arrays.
+ *
+ * Layout (see libvirt-common.h):
+ *   char field[80]; int type; union { int; uint; llong; ullong; double; char; char* } value;
+ * The union is 8-byte aligned, so every element is 96 bytes wide.
+ */
+final class TypedParameters {
+
+    private static final int FIELD_LENGTH = 80;
+    private static final int TYPE_OFFSET = FIELD_LENGTH;
+    private static final int VALUE_OFFSET = 88;
+    private static final int ELEMENT_SIZE = 96;
+
+    // virTypedParameterType
+    private static final int TYPE_INT = 1;
+    private static final int TYPE_UINT = 2;
+    private static final int TYPE_LLONG = 3;
+    private static final int TYPE_ULLONG = 4;
+    private static final int TYPE_DOUBLE = 5;
+    private static final int TYPE_BOOLEAN = 6;
+    private static final int TYPE_STRING = 7;
+
+    /*
+     * Callback receiving each parameter; numeric types arrive widened to long.
+     */
+    interface Visitor {
+        void onNumber(String field, long value);
+
+        default void onText(String field, String value) {
+        }
+    }
+
+    private TypedParameters() {
+    }
+
+    static void forEach(Pointer params, int count, Visitor visitor) {
+        for (int i = 0; i < count; i++) {
+            long base = (long) i * ELEMENT_SIZE;
+            String field = readField(params, base);
+            int type = params.getInt(base + TYPE_OFFSET);
+            long value = base + VALUE_OFFSET;
+
+            switch (type) {
+                case TYPE_INT -> visitor.onNumber(field, params.getInt(value));
+                case TYPE_UINT -> visitor.onNumber(field, Integer.toUnsignedLong(params.getInt(value)));
+                case TYPE_LLONG, TYPE_ULLONG -> visitor.onNumber(field, params.getLong(value));
+                case TYPE_DOUBLE -> visitor.onNumber(field, (long) params.getDouble(value));
+                case TYPE_BOOLEAN -> visitor.onNumber(field, params.getByte(value));
+                case TYPE_STRING -> {
+                    Pointer text = params.getPointer(value);
+                    visitor.onText(field, text == null ? null : text.getString(0));
+                }
+                default -> {
+                    // Unknown parameter types are skipped; newer libvirt may add more
+                }
+            }
+        }
+    }
+
+    private static String readField(Pointer params, long base) {
+        byte[] raw = params.getByteArray(base, FIELD_LENGTH);
+        int length = 0;
+        while (length < raw.length && raw[length] != 0) {
+            length++;
+        }
+        return new String(raw, 0, length, StandardCharsets.US_ASCII);
+    }
+}
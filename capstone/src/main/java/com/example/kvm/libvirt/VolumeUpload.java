@@ -0,0 +1,100 @@
+package com.example.kvm.libvirt;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.libvirt.Connect;
+import org.libvirt.LibvirtException;
+import org.libvirt.StorageVol;
+import org.libvirt.Stream;
+import org.libvirt.jna.SizeT;
+import org.libvirt.jna.StreamPointer;
+
+import com.sun.jna.Memory;
+
+/*
+ * Writes an InputStream into a storage volume through virStorageVolUpload and a
+ * libvirt stream, one chunk at a time - nothing is staged on disk or held in the
+ * heap beyond the chunk buffer.
+ *
+ * Data is written in segments: each segment is its own upload that is finished
+ * (flushed by libvirtd) before the next one starts, so after a failure everything
+ * up to the last finished segment is known to be in the volume.
+ */
+public final class VolumeUpload {
+
+    private final Connect connect;
+    private final StorageVol volume;
+    private final byte[] chunk;
+    // Native copy of the chunk; virStreamSend may take it in several pieces
+    private final Memory nativeChunk;
+
+    public VolumeUpload(Connect connect, StorageVol volume, int chunkSize) {
+        this.connect = connect;
+        this.volume = volume;
+        this.chunk = new byte[chunkSize];
+        this.nativeChunk = new Memory(chunkSize);
+    }
+
+    /*
+     * Copies up to maxLength bytes from in to the volume starting at offset.
+     * Returns the bytes written, less than maxLength only if in ended. Nothing is
+     * started when in is already at its end.
+     */
+    public long writeSegment(long offset, InputStream in, long maxLength)
+            throws LibvirtException, LibvirtNativeException, IOException {
+        int read = in.readNBytes(chunk, 0, (int) Math.min(chunk.length, maxLength));
+        if (read == 0) {
+            return 0;
+        }
+
+        Stream stream = connect.streamNew(0);
+        boolean finished = false;
+        try {
+            StreamPointer handle = NativeLibvirt.Handles.of(stream);
+            if (NativeLibvirt.INSTANCE.virStorageVolUpload(NativeLibvirt.Handles.of(volume), handle,
+                    offset, maxLength, 0) < 0) {
+                throw LibvirtNativeException.lastError("virStorageVolUpload");
+            }
+            long written = 0;
+            while (read > 0) {
+                send(handle, read);
+                written += read;
+                if (written == maxLength) {
+                    break;
+                }
+                read = in.readNBytes(chunk, 0, (int) Math.min(chunk.length, maxLength - written));
+            }
+            stream.finish();
+            finished = true;
+            return written;
+        } finally {
+            if (!finished) {
+                abortQuietly(stream);
+            }
+            stream.free();
+        }
+    }
+
+    private void send(StreamPointer stream, int length) throws LibvirtNativeException {
+        nativeChunk.write(0, chunk, 0, length);
+        int sent = 0;
+        // A blocking stream may still accept less than offered
+        while (sent < length) {
+            int result = NativeLibvirt.INSTANCE.virStreamSend(stream, nativeChunk.share(sent),
+                    new SizeT(length - sent));
+            if (result < 0) {
+                throw LibvirtNativeException.lastError("virStreamSend");
+            }
+            sent += result;
+        }
+    }
+
+    private static void abortQuietly(Stream stream) {
+        try {
+            stream.abort();
+        } catch (LibvirtException e) {
+            // The upload failed already; the abort only releases libvirtd's side
+        }
+    }
+}
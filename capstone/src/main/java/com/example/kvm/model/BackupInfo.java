@@ -0,0 +1,161 @@
+package com.example.kvm.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * One backup of a VM: a full copy of its disks, or the blocks changed since
+ * the previous backup in its chain. Kept in the VM's backup index as JSON,
+ * hence the mutable bean form.
+ */
+public class BackupInfo {
+
+    public enum Type { FULL, INCREMENTAL }
+
+    private String id;
+    private String vm;
+    private String host;
+    private Type type;
+    // Backup this one is based on, null for full backups
+    private String parent;
+    // libvirt checkpoint taken with this backup; the next incremental one starts from it
+    private String checkpoint;
+    private long startedAt;
+    private long finishedAt;
+    private List<Disk> disks = new ArrayList<>();
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getVm() {
+        return vm;
+    }
+
+    public void setVm(String vm) {
+        this.vm = vm;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public String getParent() {
+        return parent;
+    }
+
+    public void setParent(String parent) {
+        this.parent = parent;
+    }
+
+    public String getCheckpoint() {
+        return checkpoint;
+    }
+
+    public void setCheckpoint(String checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public void setStartedAt(long startedAt) {
+        this.startedAt = startedAt;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public void setFinishedAt(long finishedAt) {
+        this.finishedAt = finishedAt;
+    }
+
+    public List<Disk> getDisks() {
+        return disks;
+    }
+
+    public void setDisks(List<Disk> disks) {
+        this.disks = disks;
+    }
+
+    /*
+     * One disk of a backup, by its target device (vda, sdb, ...).
+     */
+    public static class Disk {
+
+        private String target;
+        // Image the disk was read from, for reference
+        private String source;
+        private long virtualSize;
+        // Bytes exported by libvirt (changed or allocated blocks), and bytes stored after dropping zeros
+        private long changedBytes;
+        private long storedBytes;
+        private long extents;
+
+        public String getTarget() {
+            return target;
+        }
+
+        public void setTarget(String target) {
+            this.target = target;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public void setSource(String source) {
+            this.source = source;
+        }
+
+        public long getVirtualSize() {
+            return virtualSize;
+        }
+
+        public void setVirtualSize(long virtualSize) {
+            this.virtualSize = virtualSize;
+        }
+
+        public long getChangedBytes() {
+            return changedBytes;
+        }
+
+        public void setChangedBytes(long changedBytes) {
+            this.changedBytes = changedBytes;
+        }
+
+        public long getStoredBytes() {
+            return storedBytes;
+        }
+
+        public void setStoredBytes(long storedBytes) {
+            this.storedBytes = storedBytes;
+        }
+
+        public long getExtents() {
+            return extents;
+        }
+
+        public void setExtents(long extents) {
+            this.extents = extents;
+        }
+    }
+}
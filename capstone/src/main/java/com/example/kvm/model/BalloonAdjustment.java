@@ -0,0 +1,104 @@
+package com.example.kvm.model;
+
+/*
+ * One balloon change decided by the memory balancer, applied or not. Written
+ * to the audit log as a JSON line, hence the mutable bean form.
+ */
+public class BalloonAdjustment {
+
+    public enum Outcome { APPLIED, DRY_RUN, FAILED }
+
+    private long time;
+    private String host;
+    private String vm;
+    // Balloon size before and the target, in KiB
+    private long fromKiB;
+    private long toKiB;
+    // Guest memory in use (not free or reclaimable) when the target was set
+    private long usedKiB;
+    private long maximumKiB;
+    private String reason;
+    private Outcome outcome;
+    // Why the change failed, null otherwise
+    private String error;
+
+    public long getTime() {
+        return time;
+    }
+
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public String getVm() {
+        return vm;
+    }
+
+    public void setVm(String vm) {
+        this.vm = vm;
+    }
+
+    public long getFromKiB() {
+        return fromKiB;
+    }
+
+    public void setFromKiB(long fromKiB) {
+        this.fromKiB = fromKiB;
+    }
+
+    public long getToKiB() {
+        return toKiB;
+    }
+
+    public void setToKiB(long toKiB) {
+        this.toKiB = toKiB;
+    }
+
+    public long getUsedKiB() {
+        return usedKiB;
+    }
+
+    public void setUsedKiB(long usedKiB) {
+        this.usedKiB = usedKiB;
+    }
+
+    public long getMaximumKiB() {
+        return maximumKiB;
+    }
+
+    public void setMaximumKiB(long maximumKiB) {
+        this.maximumKiB = maximumKiB;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public void setReason(String reason) {
+        this.reason = reason;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public void setOutcome(Outcome outcome) {
+        this.outcome = outcome;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
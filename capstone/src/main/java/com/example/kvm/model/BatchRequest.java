@@ -0,0 +1,88 @@
+package com.example.kvm.model;
+
+import java.util.List;
+
+/*
+ * A lifecycle operation applied to many VMs at once, as posted to /api/vms/batch.
+ *
+ * VMs are selected by explicit names, a glob pattern on the name ("lab-*") and/or
+ * a label selector ("env=lab"); a VM must match every selector that is given.
+ */
+public class BatchRequest {
+
+    public enum Action { START, SHUTDOWN, FORCE_SHUTDOWN }
+
+    private Action action;
+    private List<String> names;
+    private String pattern;
+    private String label;
+    // Operations run at once; capped by kvm.batch.max-parallelism
+    private int parallelism = 8;
+    // For SHUTDOWN: destroy VMs still running after this many seconds, 0 to never escalate
+    private int escalateAfterSeconds = 0;
+
+    public Action getAction() {
+        return action;
+    }
+
+    public void setAction(Action action) {
+        this.action = action;
+    }
+
+    public List<String> getNames() {
+        return names;
+    }
+
+    public void setNames(List<String> names) {
+        this.names = names;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public void setPattern(String pattern) {
+        this.pattern = pattern;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public void setLabel(String label) {
+        this.label = label;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public int getEscalateAfterSeconds() {
+        return escalateAfterSeconds;
+    }
+
+    public void setEscalateAfterSeconds(int escalateAfterSeconds) {
+        this.escalateAfterSeconds = escalateAfterSeconds;
+    }
+
+    /*
+     * Short description of the selection, used as the batch job's target.
+     */
+    public String describe() {
+        StringBuilder target = new StringBuilder(String.valueOf(action).toLowerCase());
+        if (names != null) {
+            target.append(" names=").append(String.join(",", names));
+        }
+        if (pattern != null) {
+            target.append(" pattern=").append(pattern);
+        }
+        if (label != null) {
+            target.append(" label=").append(label);
+        }
+        return target.toString();
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.kvm.model;
+
+import java.util.List;
+
+/*
+ * Per-VM outcome of a batch lifecycle operation, plus totals per outcome.
+ */
+public class BatchResult {
+
+    public enum Outcome {
+        SUCCEEDED,
+        // Nothing to do, e.g. starting a VM that is already running
+        SKIPPED,
+        // Graceful shutdown timed out and the VM was destroyed
+        ESCALATED,
+        FAILED
+    }
+
+    /*
+     * Result for one VM.
+     */
+    public static final class Entry {
+        private final String name;
+        private final Outcome outcome;
+        private final String message;
+        private final long durationMillis;
+
+        public Entry(String name, Outcome outcome, String message, long durationMillis) {
+            this.name = name;
+            this.outcome = outcome;
+            this.message = message;
+            this.durationMillis = durationMillis;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+    }
+
+    private final BatchRequest.Action action;
+    private final List<Entry> entries;
+
+    public BatchResult(BatchRequest.Action action, List<Entry> entries) {
+        this.action = action;
+        this.entries = List.copyOf(entries);
+    }
+
+    public BatchRequest.Action getAction() {
+        return action;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public int getTotal() {
+        return entries.size();
+    }
+
+    public int getSucceeded() {
+        return count(Outcome.SUCCEEDED);
+    }
+
+    public int getSkipped() {
+        return count(Outcome.SKIPPED);
+    }
+
+    public int getEscalated() {
+        return count(Outcome.ESCALATED);
+    }
+
+    public int getFailed() {
+        return count(Outcome.FAILED);
+    }
+
+    private int count(Outcome outcome) {
+        int count = 0;
+        for (Entry entry : entries) {
+            if (entry.outcome == outcome) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
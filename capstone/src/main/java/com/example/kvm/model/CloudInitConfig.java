@@ -0,0 +1,49 @@
+package com.example.kvm.model;
+
+import java.util.List;
+
+/*
+ * Guest customization applied on first boot of a VM cloned from a template,
+ * delivered as a cloud-init NoCloud seed image.
+ *
+ * If userData is given it is used verbatim; otherwise a #cloud-config document
+ * is generated from the hostname and SSH keys.
+ */
+public class CloudInitConfig {
+
+    private String hostname;
+    private List<String> sshAuthorizedKeys;
+    private String userData;
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public void setHostname(String hostname) {
+        this.hostname = hostname;
+    }
+
+    public List<String> getSshAuthorizedKeys() {
+        return sshAuthorizedKeys;
+    }
+
+    public void setSshAuthorizedKeys(List<String> sshAuthorizedKeys) {
+        this.sshAuthorizedKeys = sshAuthorizedKeys;
+    }
+
+    public String getUserData() {
+        return userData;
+    }
+
+    public void setUserData(String userData) {
+        this.userData = userData;
+    }
+
+    public boolean isEmpty() {
+        return isBlank(hostname) && (sshAuthorizedKeys == null || sshAuthorizedKeys.isEmpty()) && isBlank(userData);
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.kvm.model;
+
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Typed view of the parts of a domain's XML description that the manager uses:
+ * graphics, disks, network interfaces, vCPU pins and the manager's own labels. Built from the live XML, so graphics
+ * ports reflect what QEMU actually bound for running domains.
+ */
+public final class DomainDescriptor {
+
+    private final String name;
+    private final String uuid;
+    // Hypervisor-assigned ID from <domain id='N'>, -1 for inactive domains
+    private final int id;
+    private final List<Graphics> graphics;
+    private final List<Disk> disks;
+    private final List<Interface> interfaces;
+    // Free-form key/value labels kept in the domain's <metadata> (see LABELS_NAMESPACE)
+    private final Map<String, String> labels;
+    // Host CPUs the vCPUs are pinned to by <cputune><vcpupin>, one entry per vCPU and CPU
+    private final List<Integer> pinnedCpus;
+
+    /*
+     * Namespace of the manager's labels element:
+     * <metadata>
+     *   <kvm:labels xmlns:kvm='urn:kvm-manager:labels'>
+     *     <kvm:label key='env' value='lab'/>
+     *   </kvm:labels>
+     * </metadata>
+     */
+    public static final String LABELS_NAMESPACE = "urn:kvm-manager:labels";
+
+    public DomainDescriptor(String name, String uuid, int id,
+                            List<Graphics> graphics, List<Disk> disks, List<Interface> interfaces,
+                            Map<String, String> labels, List<Integer> pinnedCpus) {
+        this.name = name;
+        this.uuid = uuid;
+        this.id = id;
+        this.graphics = List.copyOf(graphics);
+        this.disks = List.copyOf(disks);
+        this.interfaces = List.copyOf(interfaces);
+        this.labels = Map.copyOf(labels);
+        this.pinnedCpus = List.copyOf(pinnedCpus);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public List<Graphics> getGraphics() {
+        return graphics;
+    }
+
+    public List<Disk> getDisks() {
+        return disks;
+    }
+
+    public List<Interface> getInterfaces() {
+        return interfaces;
+    }
+
+    public Map<String, String> getLabels() {
+        return labels;
+    }
+
+    public List<Integer> getPinnedCpus() {
+        return pinnedCpus;
+    }
+
+    /*
+     * Returns the first VNC graphics device, or null if the domain has none.
+     */
+    public Graphics getVncGraphics() {
+        for (Graphics g : graphics) {
+            if ("vnc".equals(g.getType())) {
+                return g;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Returns the live VNC port, or -1 if there is no VNC device or the port is not bound yet.
+     */
+    public int getVncPort() {
+        Graphics vnc = getVncGraphics();
+        return vnc == null ? -1 : vnc.getPort();
+    }
+
+    /*
+     * <graphics type='vnc' port='5900' autoport='yes' listen='127.0.0.1'/>
+     */
+    public static final class Graphics {
+        private final String type;
+        private final int port;
+        private final boolean autoport;
+        private final String listen;
+
+        public Graphics(String type, int port, boolean autoport, String listen) {
+            this.type = type;
+            this.port = port;
+            this.autoport = autoport;
+            this.listen = listen;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public boolean isAutoport() {
+            return autoport;
+        }
+
+        public String getListen() {
+            return listen;
+        }
+    }
+
+    /*
+     * <disk type='file' device='disk'> with driver, source and target children.
+     */
+    public static final class Disk {
+        private final String type;
+        private final String device;
+        private final String driverType;
+        private final String source;
+        private final String targetDev;
+        private final String targetBus;
+        private final boolean readOnly;
+
+        public Disk(String type, String device, String driverType, String source,
+                    String targetDev, String targetBus, boolean readOnly) {
+            this.type = type;
+            this.device = device;
+            this.driverType = driverType;
+            this.source = source;
+            this.targetDev = targetDev;
+            this.targetBus = targetBus;
+            this.readOnly = readOnly;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getDevice() {
+            return device;
+        }
+
+        public String getDriverType() {
+            return driverType;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public String getTargetDev() {
+            return targetDev;
+        }
+
+        public String getTargetBus() {
+            return targetBus;
+        }
+
+        public boolean isReadOnly() {
+            return readOnly;
+        }
+    }
+
+    /*
+     * <interface type='network'> with mac, source, model and target children.
+     */
+    public static final class Interface {
+        private final String type;
+        private final String mac;
+        private final String source;
+        private final String model;
+        private final String targetDev;
+
+        public Interface(String type, String mac, String source, String model, String targetDev) {
+            this.type = type;
+            this.mac = mac;
+            this.source = source;
+            this.model = model;
+            this.targetDev = targetDev;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getMac() {
+            return mac;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public String getModel() {
+            return model;
+        }
+
+        public String getTargetDev() {
+            return targetDev;
+        }
+    }
+}
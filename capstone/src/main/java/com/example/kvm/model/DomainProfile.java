@@ -0,0 +1,54 @@
+package com.example.kvm.model;
+
+/*
+ * Tuning applied to the XML of newly defined domains (see DomainXmlBuilder).
+ *
+ * Every profile uses a q35 machine, virtio disk and network, and a SATA cdrom.
+ * THROUGHPUT exposes the host CPU and gives disks and NICs their own queues.
+ * LATENCY additionally pins vCPUs and memory to one NUMA cell and backs memory
+ * with hugepages, which trades overcommit for predictable response times.
+ */
+public enum DomainProfile {
+
+    STANDARD(false, false, false, false, false),
+    THROUGHPUT(true, true, true, false, false),
+    LATENCY(true, true, true, true, true);
+
+    // <cpu mode='host-passthrough'>
+    private final boolean hostPassthrough;
+    // Disk cache='none' io='native' on a dedicated IOThread
+    private final boolean directIo;
+    // One virtio-net queue per vCPU
+    private final boolean multiqueue;
+    // vCPUs pinned 1:1 to host CPUs of one NUMA cell, memory bound to that cell
+    private final boolean pinned;
+    private final boolean hugepages;
+
+    DomainProfile(boolean hostPassthrough, boolean directIo, boolean multiqueue, boolean pinned, boolean hugepages) {
+        this.hostPassthrough = hostPassthrough;
+        this.directIo = directIo;
+        this.multiqueue = multiqueue;
+        this.pinned = pinned;
+        this.hugepages = hugepages;
+    }
+
+    public boolean isHostPassthrough() {
+        return hostPassthrough;
+    }
+
+    public boolean isDirectIo() {
+        return directIo;
+    }
+
+    public boolean isMultiqueue() {
+        return multiqueue;
+    }
+
+    public boolean isPinned() {
+        return pinned;
+    }
+
+    public boolean isHugepages() {
+        return hugepages;
+    }
+}
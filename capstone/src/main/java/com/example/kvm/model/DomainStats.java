@@ -0,0 +1,192 @@
+package com.example.kvm.model;
+
+import org.libvirt.DomainInfo.DomainState;
+
+/*
+ * Point-in-time statistics for a single domain, as returned by one bulk
+ * virConnectGetAllDomainStats call. Block and network counters are summed
+ * over all disks and interfaces of the domain.
+ */
+public class DomainStats {
+
+    // Hypervisor host the statistics were collected from
+    private String host;
+    private String name;
+    private DomainState state = DomainState.VIR_DOMAIN_NOSTATE;
+    private int vcpus;
+    // Cumulative CPU time in nanoseconds
+    private long cpuTimeNs;
+    // Balloon sizes in KiB
+    private long balloonCurrentKiB;
+    private long balloonMaximumKiB;
+    // What the guest's balloon driver reports, 0 if it reports nothing (no
+    // driver, or no stats period set): memory it leaves unused, the total it
+    // sees, what it could use without swapping (free plus reclaimable caches),
+    // and when it last reported, in seconds since the epoch
+    private long balloonUnusedKiB;
+    private long balloonAvailableKiB;
+    private long balloonUsableKiB;
+    private long balloonLastUpdate;
+    // Cumulative block counters
+    private long blockReadBytes;
+    private long blockWriteBytes;
+    private long blockReadRequests;
+    private long blockWriteRequests;
+    // Cumulative network counters
+    private long netRxBytes;
+    private long netTxBytes;
+    private long netRxPackets;
+    private long netTxPackets;
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public DomainState getState() {
+        return state;
+    }
+
+    public void setState(DomainState state) {
+        this.state = state;
+    }
+
+    public int getVcpus() {
+        return vcpus;
+    }
+
+    public void setVcpus(int vcpus) {
+        this.vcpus = vcpus;
+    }
+
+    public long getCpuTimeNs() {
+        return cpuTimeNs;
+    }
+
+    public void setCpuTimeNs(long cpuTimeNs) {
+        this.cpuTimeNs = cpuTimeNs;
+    }
+
+    public long getBalloonCurrentKiB() {
+        return balloonCurrentKiB;
+    }
+
+    public void setBalloonCurrentKiB(long balloonCurrentKiB) {
+        this.balloonCurrentKiB = balloonCurrentKiB;
+    }
+
+    public long getBalloonMaximumKiB() {
+        return balloonMaximumKiB;
+    }
+
+    public void setBalloonMaximumKiB(long balloonMaximumKiB) {
+        this.balloonMaximumKiB = balloonMaximumKiB;
+    }
+
+    public long getBalloonUnusedKiB() {
+        return balloonUnusedKiB;
+    }
+
+    public void setBalloonUnusedKiB(long balloonUnusedKiB) {
+        this.balloonUnusedKiB = balloonUnusedKiB;
+    }
+
+    public long getBalloonAvailableKiB() {
+        return balloonAvailableKiB;
+    }
+
+    public void setBalloonAvailableKiB(long balloonAvailableKiB) {
+        this.balloonAvailableKiB = balloonAvailableKiB;
+    }
+
+    public long getBalloonUsableKiB() {
+        return balloonUsableKiB;
+    }
+
+    public void setBalloonUsableKiB(long balloonUsableKiB) {
+        this.balloonUsableKiB = balloonUsableKiB;
+    }
+
+    public long getBalloonLastUpdate() {
+        return balloonLastUpdate;
+    }
+
+    public void setBalloonLastUpdate(long balloonLastUpdate) {
+        this.balloonLastUpdate = balloonLastUpdate;
+    }
+
+    public long getBlockReadBytes() {
+        return blockReadBytes;
+    }
+
+    public void addBlockReadBytes(long bytes) {
+        this.blockReadBytes += bytes;
+    }
+
+    public long getBlockWriteBytes() {
+        return blockWriteBytes;
+    }
+
+    public void addBlockWriteBytes(long bytes) {
+        this.blockWriteBytes += bytes;
+    }
+
+    public long getBlockReadRequests() {
+        return blockReadRequests;
+    }
+
+    public void addBlockReadRequests(long requests) {
+        this.blockReadRequests += requests;
+    }
+
+    public long getBlockWriteRequests() {
+        return blockWriteRequests;
+    }
+
+    public void addBlockWriteRequests(long requests) {
+        this.blockWriteRequests += requests;
+    }
+
+    public long getNetRxBytes() {
+        return netRxBytes;
+    }
+
+    public void addNetRxBytes(long bytes) {
+        this.netRxBytes += bytes;
+    }
+
+    public long getNetTxBytes() {
+        return netTxBytes;
+    }
+
+    public void addNetTxBytes(long bytes) {
+        this.netTxBytes += bytes;
+    }
+
+    public long getNetRxPackets() {
+        return netRxPackets;
+    }
+
+    public void addNetRxPackets(long packets) {
+        this.netRxPackets += packets;
+    }
+
+    public long getNetTxPackets() {
+        return netTxPackets;
+    }
+
+    public void addNetTxPackets(long packets) {
+        this.netTxPackets += packets;
+    }
+}
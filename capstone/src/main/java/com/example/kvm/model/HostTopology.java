@@ -0,0 +1,104 @@
+package com.example.kvm.model;
+
+import java.util.List;
+import java.util.Map;
+
+/*
+ * NUMA layout of the hypervisor host, from the <topology> section of the
+ * libvirt capabilities XML. Used to place pinned vCPUs and hugepage-backed
+ * memory on a single NUMA cell.
+ */
+public final class HostTopology {
+
+    private final List<Cell> cells;
+
+    public HostTopology(List<Cell> cells) {
+        this.cells = List.copyOf(cells);
+    }
+
+    public List<Cell> getCells() {
+        return cells;
+    }
+
+    public int getCpuCount() {
+        int count = 0;
+        for (Cell cell : cells) {
+            count += cell.getCpus().size();
+        }
+        return count;
+    }
+
+    /*
+     * <cell id='0'>
+     *   <memory unit='KiB'>16315200</memory>
+     *   <pages unit='KiB' size='2048'>512</pages>
+     *   <cpus num='8'> ... </cpus>
+     * </cell>
+     */
+    public static final class Cell {
+
+        private final int id;
+        private final long memoryKiB;
+        // Page size in KiB -> number of pages reserved on this cell
+        private final Map<Long, Long> pages;
+        private final List<Cpu> cpus;
+
+        public Cell(int id, long memoryKiB, Map<Long, Long> pages, List<Cpu> cpus) {
+            this.id = id;
+            this.memoryKiB = memoryKiB;
+            this.pages = Map.copyOf(pages);
+            this.cpus = List.copyOf(cpus);
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public long getMemoryKiB() {
+            return memoryKiB;
+        }
+
+        public Map<Long, Long> getPages() {
+            return pages;
+        }
+
+        public List<Cpu> getCpus() {
+            return cpus;
+        }
+
+        /*
+         * Memory reserved as pages of the given size, in KiB.
+         */
+        public long getHugepageKiB(long pageSizeKiB) {
+            return pages.getOrDefault(pageSizeKiB, 0L) * pageSizeKiB;
+        }
+    }
+
+    /*
+     * <cpu id='0' socket_id='0' core_id='0' siblings='0,4'/>
+     */
+    public static final class Cpu {
+
+        private final int id;
+        private final int socketId;
+        private final int coreId;
+
+        public Cpu(int id, int socketId, int coreId) {
+            this.id = id;
+            this.socketId = socketId;
+            this.coreId = coreId;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public int getSocketId() {
+            return socketId;
+        }
+
+        public int getCoreId() {
+            return coreId;
+        }
+    }
+}
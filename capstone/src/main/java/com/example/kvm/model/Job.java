@@ -0,0 +1,107 @@
+package com.example.kvm.model;
+
+/*
+ * An asynchronous VM operation as reported to API clients.
+ *
+ * Jobs are created and updated by JobService only; readers poll them through
+ * /api/jobs. Fields are volatile so a poll always sees the latest progress
+ * without locking the worker.
+ */
+public class Job {
+
+    private final String id;
+    private final JobType type;
+    // VM (or other object) the job works on
+    private final String target;
+    private final long createdAt = System.currentTimeMillis();
+
+    private volatile JobStatus status = JobStatus.QUEUED;
+    // 0..100
+    private volatile int progress;
+    // Human-readable description of the current step
+    private volatile String step = "Queued";
+    private volatile String error;
+    // Job-specific outcome (e.g. a BatchResult), null if the job produces none
+    private volatile Object result;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+
+    public Job(String id, JobType type, String target) {
+        this.id = id;
+        this.type = type;
+        this.target = target;
+    }
+
+    public void markRunning() {
+        startedAt = System.currentTimeMillis();
+        status = JobStatus.RUNNING;
+        step = "Running";
+    }
+
+    public void updateProgress(int progress, String step) {
+        this.progress = Math.max(0, Math.min(100, progress));
+        this.step = step;
+    }
+
+    public void setResult(Object result) {
+        this.result = result;
+    }
+
+    public void markSucceeded() {
+        progress = 100;
+        step = "Done";
+        finishedAt = System.currentTimeMillis();
+        status = JobStatus.SUCCEEDED;
+    }
+
+    public void markFailed(String error) {
+        this.error = error;
+        step = "Failed";
+        finishedAt = System.currentTimeMillis();
+        status = JobStatus.FAILED;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public JobType getType() {
+        return type;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public JobStatus getStatus() {
+        return status;
+    }
+
+    public int getProgress() {
+        return progress;
+    }
+
+    public String getStep() {
+        return step;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public Object getResult() {
+        return result;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+}
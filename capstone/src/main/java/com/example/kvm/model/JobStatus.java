@@ -0,0 +1,15 @@
+package com.example.kvm.model;
+
+/*
+ * Lifecycle of an asynchronous job.
+ */
+public enum JobStatus {
+    QUEUED,
+    RUNNING,
+    SUCCEEDED,
+    FAILED;
+
+    public boolean isFinished() {
+        return this == SUCCEEDED || this == FAILED;
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.kvm.model;
+
+/*
+ * Kinds of asynchronous VM operations. Each type has its own concurrency limit
+ * (kvm.jobs.limits.<type>), defaulting to the value given here.
+ */
+public enum JobType {
+    // Disk image creation is I/O heavy, so only a few run at once
+    CREATE(2),
+    START(8),
+    SHUTDOWN(8),
+    FORCE_SHUTDOWN(8),
+    DELETE(4),
+    // Volume copies move whole images through libvirtd
+    CLONE(2),
+    // Backups read whole disks and compete with guest I/O
+    BACKUP(2),
+    RESTORE(1),
+    // One batch job fans out to many VMs on its own workers
+    BATCH(2);
+
+    private final int defaultLimit;
+
+    JobType(int defaultLimit) {
+        this.defaultLimit = defaultLimit;
+    }
+
+    public int getDefaultLimit() {
+        return defaultLimit;
+    }
+
+    /*
+     * Property-style name, e.g. FORCE_SHUTDOWN -> force-shutdown.
+     */
+    public String getKey() {
+        return name().toLowerCase().replace('_', '-');
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.kvm.model;
+
+/*
+ * Per-domain series kept by the metrics collector. Counters are stored as
+ * rates over the sampling interval, so every value is directly plottable.
+ */
+public enum Metric {
+    // Guest CPU time as a share of its vCPUs, 0-100
+    CPU("%"),
+    // Current balloon size
+    MEMORY("KiB"),
+    DISK_READ("B/s"),
+    DISK_WRITE("B/s"),
+    NET_RX("B/s"),
+    NET_TX("B/s");
+
+    private final String unit;
+
+    Metric(String unit) {
+        this.unit = unit;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    /*
+     * Name used in URLs and responses, e.g. DISK_READ -> disk-read.
+     */
+    public String getKey() {
+        return name().toLowerCase().replace('_', '-');
+    }
+
+    public static Metric fromKey(String key) {
+        for (Metric metric : values()) {
+            if (metric.getKey().equals(key)) {
+                return metric;
+            }
+        }
+        throw new IllegalArgumentException("Unknown metric: " + key);
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.kvm.model;
+
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A domain's metrics over a time range, downsampled into buckets of stepMillis.
+ * Only buckets holding at least one sample are included; a null value means the
+ * metric had no data in that bucket (e.g. the first sample after a start has no rate).
+ */
+public class MetricSeries {
+
+    private final String name;
+    private final long from;
+    private final long to;
+    private final long stepMillis;
+    private final String aggregation;
+    // Bucket start times (epoch millis)
+    private final List<Long> timestamps;
+    // Keyed by Metric.getKey(), aligned with timestamps
+    private final Map<String, List<Double>> values;
+
+    public MetricSeries(String name, long from, long to, long stepMillis, String aggregation,
+                        List<Long> timestamps, Map<String, List<Double>> values) {
+        this.name = name;
+        this.from = from;
+        this.to = to;
+        this.stepMillis = stepMillis;
+        this.aggregation = aggregation;
+        this.timestamps = timestamps;
+        this.values = values;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public long getStepMillis() {
+        return stepMillis;
+    }
+
+    public String getAggregation() {
+        return aggregation;
+    }
+
+    public List<Long> getTimestamps() {
+        return timestamps;
+    }
+
+    public Map<String, List<Double>> getValues() {
+        return values;
+    }
+}
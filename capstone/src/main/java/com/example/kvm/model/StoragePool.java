@@ -0,0 +1,61 @@
+package com.example.kvm.model;
+
+/*
+ * A libvirt storage pool on one hypervisor host.
+ */
+public final class StoragePool {
+
+    private final String host;
+    private final String name;
+    private final boolean active;
+    // Directory (or device) the pool's volumes live under, from <target><path>
+    private final String path;
+    private final long capacity;
+    private final long allocation;
+    private final long available;
+    private final int volumes;
+
+    public StoragePool(String host, String name, boolean active, String path,
+                       long capacity, long allocation, long available, int volumes) {
+        this.host = host;
+        this.name = name;
+        this.active = active;
+        this.path = path;
+        this.capacity = capacity;
+        this.allocation = allocation;
+        this.available = available;
+        this.volumes = volumes;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getAllocation() {
+        return allocation;
+    }
+
+    public long getAvailable() {
+        return available;
+    }
+
+    public int getVolumes() {
+        return volumes;
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.kvm.model;
+
+/*
+ * A volume in a libvirt storage pool, as listed by the storage API.
+ */
+public final class StorageVolume {
+
+    private final String host;
+    private final String pool;
+    private final String name;
+    // Path the volume is attached to domains with
+    private final String path;
+    // Image format from the volume's <target><format>, e.g. raw, qcow2 or iso
+    private final String format;
+    // Virtual size and bytes actually allocated on the pool
+    private final long capacity;
+    private final long allocation;
+    // Bytes written so far while an upload into the volume is unfinished, otherwise null
+    private final Long uploadedBytes;
+
+    public StorageVolume(String host, String pool, String name, String path, String format,
+                         long capacity, long allocation, Long uploadedBytes) {
+        this.host = host;
+        this.pool = pool;
+        this.name = name;
+        this.path = path;
+        this.format = format;
+        this.capacity = capacity;
+        this.allocation = allocation;
+        this.uploadedBytes = uploadedBytes;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String getPool() {
+        return pool;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getAllocation() {
+        return allocation;
+    }
+
+    public Long getUploadedBytes() {
+        return uploadedBytes;
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.kvm.model;
+
+import org.libvirt.DomainInfo.DomainState;
+
+/*
+ * Immutable snapshot of a single domain as seen by the inventory.
+ * Instances are replaced (never mutated) whenever libvirt reports a change.
+ */
+public final class VmInfo {
+
+    // ID of the hypervisor host the domain is defined on (see HypervisorPool)
+    private final String host;
+    private final String name;
+    private final String uuid;
+    private final DomainState state;
+    // Hypervisor-assigned ID, -1 while the domain is not running
+    private final int id;
+    private final int vcpus;
+    // Current and maximum memory in KiB, as reported by virDomainGetInfo
+    private final long memoryKiB;
+    private final long maxMemoryKiB;
+
+    public VmInfo(String host, String name, String uuid, DomainState state, int id, int vcpus,
+                  long memoryKiB, long maxMemoryKiB) {
+        this.host = host;
+        this.name = name;
+        this.uuid = uuid;
+        this.state = state;
+        this.id = id;
+        this.vcpus = vcpus;
+        this.memoryKiB = memoryKiB;
+        this.maxMemoryKiB = maxMemoryKiB;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public DomainState getState() {
+        return state;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getVcpus() {
+        return vcpus;
+    }
+
+    public long getMemoryKiB() {
+        return memoryKiB;
+    }
+
+    public long getMaxMemoryKiB() {
+        return maxMemoryKiB;
+    }
+
+    /*
+     * A domain counts as running whenever it has a live QEMU process behind it.
+     */
+    public boolean isRunning() {
+        return id >= 0 && state != DomainState.VIR_DOMAIN_SHUTOFF && state != DomainState.VIR_DOMAIN_CRASHED;
+    }
+
+    /*
+     * Name as shown in the VM list - stopped VMs carry a "(stopped)" suffix.
+     */
+    public String getDisplayName() {
+        return isRunning() ? name : name + " (stopped)";
+    }
+}
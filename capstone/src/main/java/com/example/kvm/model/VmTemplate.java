@@ -0,0 +1,87 @@
+package com.example.kvm.model;
+
+/*
+ * A golden disk image new VMs can be cloned from.
+ *
+ * Clones are qcow2 overlays backed by the template image, so the image must
+ * never be modified once VMs use it. Templates are persisted by TemplateService
+ * as JSON, hence the mutable bean form.
+ */
+public class VmTemplate {
+
+    private String name;
+    private String description;
+    // Absolute path of the base image on the hypervisor host
+    private String imagePath;
+    // Image format reported by qemu-img (qcow2, raw, ...)
+    private String format;
+    private long virtualSizeBytes;
+    // Defaults for VMs created from this template
+    private int memoryMB = 2048;
+    private int vcpus = 2;
+    private long registeredAt;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    public String getImagePath() {
+        return imagePath;
+    }
+
+    public void setImagePath(String imagePath) {
+        this.imagePath = imagePath;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    public long getVirtualSizeBytes() {
+        return virtualSizeBytes;
+    }
+
+    public void setVirtualSizeBytes(long virtualSizeBytes) {
+        this.virtualSizeBytes = virtualSizeBytes;
+    }
+
+    public int getMemoryMB() {
+        return memoryMB;
+    }
+
+    public void setMemoryMB(int memoryMB) {
+        this.memoryMB = memoryMB;
+    }
+
+    public int getVcpus() {
+        return vcpus;
+    }
+
+    public void setVcpus(int vcpus) {
+        this.vcpus = vcpus;
+    }
+
+    public long getRegisteredAt() {
+        return registeredAt;
+    }
+
+    public void setRegisteredAt(long registeredAt) {
+        this.registeredAt = registeredAt;
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.kvm.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/*
+ * On-disk format of one disk in one backup, in the VM's backup directory:
+ *
+ *   <id>-<disk>.data     contents of the exported blocks, back to back
+ *   <id>-<disk>.extents  index: magic, virtual size (u64), then one 20 byte
+ *                        record per extent - guest offset (u64), length (u32)
+ *                        and offset in the .data file (u64, -1 if all zeros)
+ *
+ * Blocks that read as zeros are only recorded, not stored. A disk at a point in
+ * time is rebuilt by applying the extents of the chain's full backup and of
+ * every incremental backup after it, in order.
+ */
+final class BackupFiles {
+
+    // "KVMBKX01"
+    private static final long MAGIC = 0x4b564d424b583031L;
+
+    // Data offset of extents that read as zeros
+    static final long ZEROS = -1;
+
+    private static final byte[] ZERO_BLOCK = new byte[64 * 1024];
+
+    private BackupFiles() {
+    }
+
+    static Path dataFile(Path directory, String backupId, String disk) {
+        return directory.resolve(backupId + "-" + disk + ".data");
+    }
+
+    static Path extentsFile(Path directory, String backupId, String disk) {
+        return directory.resolve(backupId + "-" + disk + ".extents");
+    }
+
+    /*
+     * Receives the extents of a backup in the order they were written.
+     */
+    @FunctionalInterface
+    interface ExtentVisitor {
+        void visit(long offset, int length, long dataOffset) throws IOException;
+    }
+
+    /*
+     * Reads an extents file, returning the virtual size of the disk.
+     */
+    static long read(Path extentsFile, ExtentVisitor visitor) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(extentsFile)))) {
+            if (in.readLong() != MAGIC) {
+                throw new IOException("Not a backup extents file: " + extentsFile);
+            }
+            long virtualSize = in.readLong();
+            while (true) {
+                long offset;
+                try {
+                    offset = in.readLong();
+                } catch (EOFException e) {
+                    return virtualSize;
+                }
+                visitor.visit(offset, in.readInt(), in.readLong());
+            }
+        }
+    }
+
+    /*
+     * Writes the files of one disk. Blocks are passed in ascending offset order;
+     * consecutive zero blocks are merged into one extent.
+     */
+    static final class Writer implements Closeable {
+
+        private final FileChannel data;
+        private final FileChannel extentsChannel;
+        private final DataOutputStream extents;
+
+        private long dataPosition;
+        private long extentCount;
+        private long changedBytes;
+
+        // Zero run not written yet, -1 if none
+        private long zeroOffset = -1;
+        private long zeroLength;
+
+        Writer(Path dataFile, Path extentsFile, long virtualSize) throws IOException {
+            this.data = FileChannel.open(dataFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            try {
+                this.extentsChannel = FileChannel.open(extentsFile, StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                data.close();
+                throw e;
+            }
+            this.extents = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(extentsChannel)));
+            extents.writeLong(MAGIC);
+            extents.writeLong(virtualSize);
+        }
+
+        /*
+         * Records the block at offset with the contents between block's position and limit.
+         */
+        void write(long offset, ByteBuffer block) throws IOException {
+            int length = block.remaining();
+            changedBytes += length;
+            if (isZero(block)) {
+                addZeros(offset, length);
+                return;
+            }
+            flushZeros();
+            record(offset, length, dataPosition);
+            ByteBuffer contents = block.duplicate();
+            while (contents.hasRemaining()) {
+                dataPosition += data.write(contents, dataPosition);
+            }
+        }
+
+        private void addZeros(long offset, long length) throws IOException {
+            if (zeroOffset >= 0 && zeroOffset + zeroLength == offset) {
+                zeroLength += length;
+                return;
+            }
+            flushZeros();
+            zeroOffset = offset;
+            zeroLength = length;
+        }
+
+        private void flushZeros() throws IOException {
+            long offset = zeroOffset;
+            long remaining = zeroLength;
+            while (remaining > 0) {
+                int length = (int) Math.min(remaining, Integer.MAX_VALUE);
+                record(offset, length, ZEROS);
+                offset += length;
+                remaining -= length;
+            }
+            zeroOffset = -1;
+            zeroLength = 0;
+        }
+
+        private void record(long offset, int length, long dataOffset) throws IOException {
+            extents.writeLong(offset);
+            extents.writeInt(length);
+            extents.writeLong(dataOffset);
+            extentCount++;
+        }
+
+        long getChangedBytes() {
+            return changedBytes;
+        }
+
+        long getStoredBytes() {
+            return dataPosition;
+        }
+
+        long getExtentCount() {
+            return extentCount;
+        }
+
+        /*
+         * Writes the pending zero run and syncs both files to disk. Closing
+         * again does nothing.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!data.isOpen()) {
+                return;
+            }
+            try (data; extentsChannel) {
+                flushZeros();
+                extents.flush();
+                data.force(true);
+                extentsChannel.force(true);
+            }
+        }
+
+        private static boolean isZero(ByteBuffer block) {
+            byte[] array = block.array();
+            int position = block.arrayOffset() + block.position();
+            int end = block.arrayOffset() + block.limit();
+            while (position < end) {
+                int length = Math.min(ZERO_BLOCK.length, end - position);
+                if (Arrays.mismatch(array, position, position + length, ZERO_BLOCK, 0, length) >= 0) {
+                    return false;
+                }
+                position += length;
+            }
+            return true;
+        }
+    }
+}
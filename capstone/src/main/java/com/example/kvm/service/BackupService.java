@@ -0,0 +1,508 @@
+package com.example.kvm.service;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.example.kvm.libvirt.DomainBackup;
+import com.example.kvm.libvirt.LibvirtNativeException;
+import com.example.kvm.model.BackupInfo;
+import com.example.kvm.model.DomainDescriptor;
+import com.example.kvm.model.Job;
+import com.example.kvm.model.JobType;
+import com.example.kvm.model.VmInfo;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/*
+ * Incremental backups of running VMs.
+ *
+ * Every backup takes a libvirt checkpoint, which starts a dirty bitmap in each
+ * qcow2 disk. The next backup is a pull mode backup job based on that
+ * checkpoint: libvirt exports the disks over NBD on a Unix socket together with
+ * the bitmap, and only the blocks marked dirty are read (see NbdClient). The
+ * first backup of a VM, or one whose base checkpoint is gone, is a full one
+ * that skips unallocated blocks. Blocks are stored in the compact format of
+ * BackupFiles under kvm.backup.dir/<vm>/, listed in the VM's index.json.
+ *
+ * Reads from all backups together are limited to kvm.backup.max-mb-per-second,
+ * and the BACKUP job lane bounds how many run at once, so backups do not
+ * starve guest I/O. Backups need libvirt 6.0+ and QEMU 4.2+, qcow2 disks,
+ * and a local host: the NBD socket is only reachable on the hypervisor itself.
+ */
+@Service
+public class BackupService {
+
+    private static final Logger log = LoggerFactory.getLogger(BackupService.class);
+
+    private static final String CHECKPOINT_PREFIX = "kvm-backup-";
+    private static final String INDEX_FILE = "index.json";
+    private static final String RESTORE_DIRECTORY = "restore";
+
+    // Backup IDs sort by time and are safe in file and checkpoint names
+    private static final DateTimeFormatter ID_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+    // Bytes per NBD read; also the granularity at which zero blocks are dropped
+    private static final int READ_SIZE = 4 * 1024 * 1024;
+
+    private static final long BYTES_PER_MIB = 1024L * 1024;
+
+    private final HypervisorPool hypervisors;
+    private final DomainInventory inventory;
+    private final JobService jobService;
+    private final LibvirtExecutor libvirt;
+    private final ObjectMapper objectMapper;
+    private final Path backupDirectory;
+    private final Path socketDirectory;
+    private final ThroughputLimiter limiter;
+
+    // VMs with a backup running; one at a time per VM
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+
+    private final Counter exportedBytes;
+
+    public BackupService(HypervisorPool hypervisors, DomainInventory inventory, JobService jobService,
+                         LibvirtExecutor libvirt, ObjectMapper objectMapper, MeterRegistry registry,
+                         @Value("${kvm.backup.dir:/var/lib/kvm-manager/backups}") String backupDirectory,
+                         @Value("${kvm.backup.socket-dir:/var/lib/libvirt/qemu/backup}") String socketDirectory,
+                         @Value("${kvm.backup.max-mb-per-second:100}") long maxMBPerSecond) {
+        this.hypervisors = hypervisors;
+        this.inventory = inventory;
+        this.jobService = jobService;
+        this.libvirt = libvirt;
+        this.objectMapper = objectMapper;
+        this.backupDirectory = Paths.get(backupDirectory);
+        this.socketDirectory = Paths.get(socketDirectory);
+        this.limiter = new ThroughputLimiter(maxMBPerSecond * BYTES_PER_MIB);
+
+        this.exportedBytes = Counter.builder("kvm.backup.bytes")
+                .description("Disk bytes read from VMs by backups")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    /*
+     * Backs up the qcow2 disks of a running VM: incremental if its last backup's
+     * checkpoint still exists and the disks are the same, full otherwise or when
+     * full is set.
+     */
+    public BackupInfo backup(String name, boolean full, JobProgress progress)
+            throws LibvirtException, LibvirtNativeException, IOException, XMLStreamException {
+        String host = hypervisors.hostOf(name);
+        if (!hypervisors.isLocal(host)) {
+            throw new IllegalArgumentException("Backups need a local hypervisor; " + name + " runs on " + host);
+        }
+        if (!running.add(name)) {
+            throw new IllegalStateException("A backup of " + name + " is already running");
+        }
+        try {
+            Connect connect = hypervisors.connection(host);
+            Domain domain = libvirt.time("domainLookupByName", host, () -> connect.domainLookupByName(name));
+            if (libvirt.time("isActive", host, domain::isActive) != 1) {
+                throw new IllegalStateException(name + " is not running");
+            }
+            DomainDescriptor descriptor = DomainDescriptorParser.parse(
+                    libvirt.time("getXMLDesc", host, () -> domain.getXMLDesc(0)));
+            List<DomainDescriptor.Disk> disks = new ArrayList<>();
+            List<String> excluded = new ArrayList<>();
+            for (DomainDescriptor.Disk disk : descriptor.getDisks()) {
+                if (!"disk".equals(disk.getDevice()) || disk.getTargetDev() == null) {
+                    continue;
+                }
+                // Dirty bitmaps live in qcow2 images
+                if ("qcow2".equals(disk.getDriverType()) && !disk.isReadOnly() && disk.getSource() != null) {
+                    disks.add(disk);
+                } else {
+                    excluded.add(disk.getTargetDev());
+                }
+            }
+            if (disks.isEmpty()) {
+                throw new IllegalArgumentException(name + " has no qcow2 disks to back up");
+            }
+            List<String> targets = disks.stream().map(DomainDescriptor.Disk::getTargetDev).toList();
+
+            List<BackupInfo> chain = loadIndex(name);
+            BackupInfo parent = chain.isEmpty() ? null : chain.get(chain.size() - 1);
+            boolean incremental = !full && parent != null
+                    && parent.getDisks().stream().map(BackupInfo.Disk::getTarget).toList().equals(targets)
+                    && DomainBackup.hasCheckpoint(domain, parent.getCheckpoint());
+
+            BackupInfo backup = new BackupInfo();
+            backup.setId(newId(chain));
+            backup.setVm(name);
+            backup.setHost(host);
+            backup.setType(incremental ? BackupInfo.Type.INCREMENTAL : BackupInfo.Type.FULL);
+            backup.setParent(incremental ? parent.getId() : null);
+            backup.setCheckpoint(CHECKPOINT_PREFIX + backup.getId());
+            backup.setStartedAt(System.currentTimeMillis());
+
+            Path directory = vmDirectory(name);
+            Files.createDirectories(directory);
+            Files.createDirectories(socketDirectory);
+            Path socket = socketDirectory.resolve(UUID.randomUUID() + ".sock");
+            String backupXml = BackupXml.pullBackup(socket.toString(), incremental ? parent.getCheckpoint() : null,
+                    targets, excluded);
+            String checkpointXml = BackupXml.checkpoint(backup.getCheckpoint(), targets, excluded);
+
+            progress.update(5, (incremental ? "Incremental backup since " + parent.getId() : "Full backup")
+                    + " of " + String.join(", ", targets));
+            boolean complete = false;
+            try {
+                // Inside the cleanup: a begin that timed out may still have started the job and checkpoint
+                libvirt.run("backupBegin", host, () -> DomainBackup.begin(domain, backupXml, checkpointXml));
+                for (int i = 0; i < disks.size(); i++) {
+                    backup.getDisks().add(exportDisk(socket, directory, backup.getId(), disks.get(i), incremental,
+                            progress, i, disks.size()));
+                }
+                complete = true;
+            } finally {
+                endBackupJob(host, domain, name);
+                Files.deleteIfExists(socket);
+                if (!complete) {
+                    // Without its data the new checkpoint must not become the base of the next backup
+                    deleteCheckpoint(domain, name, backup.getCheckpoint());
+                    for (String target : targets) {
+                        Files.deleteIfExists(BackupFiles.dataFile(directory, backup.getId(), target));
+                        Files.deleteIfExists(BackupFiles.extentsFile(directory, backup.getId(), target));
+                    }
+                }
+            }
+
+            backup.setFinishedAt(System.currentTimeMillis());
+            chain.add(backup);
+            saveIndex(name, chain);
+            // Only the newest checkpoint is needed; older bitmaps would slow down guest writes for nothing
+            if (parent != null) {
+                deleteCheckpoint(domain, name, parent.getCheckpoint());
+            }
+            long stored = backup.getDisks().stream().mapToLong(BackupInfo.Disk::getStoredBytes).sum();
+            log.atInfo().addKeyValue("vm", name).addKeyValue("backup", backup.getId())
+                    .log("{} backup {} of {} finished: {} MiB stored", backup.getType(), backup.getId(), name,
+                            stored / BYTES_PER_MIB);
+            return backup;
+        } finally {
+            running.remove(name);
+        }
+    }
+
+    /*
+     * Reads one exported disk into the backup files. Full backups read every
+     * allocated, non-zero extent, incremental ones every dirty extent.
+     */
+    private BackupInfo.Disk exportDisk(Path socket, Path directory, String backupId, DomainDescriptor.Disk disk,
+                                       boolean incremental, JobProgress progress, int index, int count)
+            throws IOException {
+        String target = disk.getTargetDev();
+        String context = incremental ? "qemu:dirty-bitmap:backup-" + target : "base:allocation";
+        BackupInfo.Disk result = new BackupInfo.Disk();
+        result.setTarget(target);
+        result.setSource(disk.getSource());
+        try (NbdClient nbd = NbdClient.connect(socket, target, context)) {
+            long size = nbd.getExportSize();
+            result.setVirtualSize(size);
+            ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+            int reported = -1;
+            try (BackupFiles.Writer writer = new BackupFiles.Writer(BackupFiles.dataFile(directory, backupId, target),
+                    BackupFiles.extentsFile(directory, backupId, target), size)) {
+                long offset = 0;
+                while (offset < size) {
+                    for (NbdClient.Extent extent : nbd.blockStatus(offset, size - offset)) {
+                        long end = Math.min(extent.offset + extent.length, size);
+                        boolean copy = incremental ? (extent.flags & NbdClient.STATE_DIRTY) != 0
+                                : (extent.flags & NbdClient.STATE_ZERO) == 0;
+                        for (long position = extent.offset; copy && position < end; position += READ_SIZE) {
+                            int length = (int) Math.min(READ_SIZE, end - position);
+                            limiter.acquire(length);
+                            buffer.clear().limit(length);
+                            nbd.read(position, buffer);
+                            writer.write(position, buffer);
+                            exportedBytes.increment(length);
+                        }
+                        offset = end;
+                    }
+                    int percent = 5 + (int) (90 * (index + (double) offset / size) / count);
+                    if (percent != reported) {
+                        progress.update(percent, "Reading " + target + ": " + offset / BYTES_PER_MIB + " of "
+                                + size / BYTES_PER_MIB + " MiB");
+                        reported = percent;
+                    }
+                }
+                writer.close();
+                result.setChangedBytes(writer.getChangedBytes());
+                result.setStoredBytes(writer.getStoredBytes());
+                result.setExtents(writer.getExtentCount());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Backup of " + target + " interrupted", e);
+            }
+        }
+        return result;
+    }
+
+    private void endBackupJob(String host, Domain domain, String name) {
+        try {
+            libvirt.run("abortJob", host, () -> DomainBackup.end(domain));
+        } catch (LibvirtException | HypervisorUnavailableException e) {
+            // Also reached when the job never started
+            log.atWarn().addKeyValue("vm", name).log("Could not end the backup job of {}: {}", name, e.getMessage());
+        }
+    }
+
+    private void deleteCheckpoint(Domain domain, String name, String checkpoint) {
+        try {
+            DomainBackup.deleteCheckpoint(domain, checkpoint);
+        } catch (LibvirtNativeException e) {
+            log.atWarn().addKeyValue("vm", name).log("Could not delete checkpoint {} of {}: {}", checkpoint, name,
+                    e.getMessage());
+        }
+    }
+
+    /*
+     * Rebuilds a disk as it was at a backup into the VM's restore directory
+     * and returns the image path. The chain from the last full backup up to the
+     * given one is applied in order. format is raw (sparse) or qcow2; a null
+     * disk means the backup's first disk.
+     */
+    public String restore(String name, String backupId, String disk, String format, JobProgress progress)
+            throws IOException {
+        if (!"raw".equals(format) && !"qcow2".equals(format)) {
+            throw new IllegalArgumentException("Unsupported restore format: " + format + " (use raw or qcow2)");
+        }
+        List<BackupInfo> chain = loadIndex(name);
+        int last = indexOf(chain, backupId);
+        if (last < 0) {
+            throw new IllegalArgumentException("Unknown backup of " + name + ": " + backupId);
+        }
+        int first = last;
+        while (chain.get(first).getType() != BackupInfo.Type.FULL) {
+            first--;
+            if (first < 0) {
+                throw new IOException("Backup chain of " + name + " has no full backup before " + backupId);
+            }
+        }
+        BackupInfo.Disk target = chain.get(last).getDisks().stream()
+                .filter(candidate -> disk == null || candidate.getTarget().equals(disk))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Backup " + backupId + " has no disk " + disk));
+        String targetDev = target.getTarget();
+
+        Path directory = vmDirectory(name);
+        Path restoreDirectory = directory.resolve(RESTORE_DIRECTORY);
+        Files.createDirectories(restoreDirectory);
+        Path raw = restoreDirectory.resolve(backupId + "-" + targetDev + ".raw");
+        try (RandomAccessFile file = new RandomAccessFile(raw.toFile(), "rw")) {
+            // A fresh sparse file reads as zeros, so the full backup's zero extents need no writing
+            file.setLength(0);
+            file.setLength(target.getVirtualSize());
+            FileChannel out = file.getChannel();
+            for (int i = first; i <= last; i++) {
+                BackupInfo layer = chain.get(i);
+                progress.update(5 + 85 * (i - first) / (last - first + 1), "Applying backup " + layer.getId());
+                boolean base = i == first;
+                try (FileChannel data = FileChannel.open(BackupFiles.dataFile(directory, layer.getId(), targetDev),
+                        StandardOpenOption.READ)) {
+                    BackupFiles.read(BackupFiles.extentsFile(directory, layer.getId(), targetDev),
+                            (offset, length, dataOffset) -> {
+                                if (dataOffset == BackupFiles.ZEROS) {
+                                    if (!base) {
+                                        writeZeros(out, offset, length);
+                                    }
+                                } else {
+                                    copy(data, dataOffset, out, offset, length);
+                                }
+                            });
+                }
+            }
+            out.force(true);
+        }
+
+        if ("raw".equals(format)) {
+            return raw.toString();
+        }
+        progress.update(90, "Converting to qcow2");
+        Path qcow2 = restoreDirectory.resolve(backupId + "-" + targetDev + ".qcow2");
+        Files.deleteIfExists(qcow2);
+        DiskImages.convert(raw.toString(), "raw", qcow2.toString(), "qcow2");
+        Files.delete(raw);
+        return qcow2.toString();
+    }
+
+    private static void copy(FileChannel source, long sourceOffset, FileChannel target, long targetOffset, int length)
+            throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            long transferred = source.transferTo(sourceOffset + copied, length - copied,
+                    target.position(targetOffset + copied));
+            if (transferred <= 0) {
+                throw new IOException("Backup data file is truncated");
+            }
+            copied += transferred;
+        }
+    }
+
+    private static void writeZeros(FileChannel target, long offset, int length) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate(Math.min(length, READ_SIZE));
+        long written = 0;
+        while (written < length) {
+            zeros.clear().limit((int) Math.min(zeros.capacity(), length - written));
+            while (zeros.hasRemaining()) {
+                written += target.write(zeros, offset + written);
+            }
+        }
+    }
+
+    /*
+     * Queues a backup job for every running VM on a local host. VMs that cannot
+     * be backed up right now are reported with the reason.
+     */
+    public Map<String, Object> backupAll() {
+        Map<String, String> jobs = new LinkedHashMap<>();
+        Map<String, String> skipped = new LinkedHashMap<>();
+        for (VmInfo vm : inventory.getAll()) {
+            if (!vm.isRunning()) {
+                continue;
+            }
+            String name = vm.getName();
+            if (!hypervisors.isLocal(vm.getHost())) {
+                skipped.put(name, "on remote host " + vm.getHost());
+            } else if (running.contains(name)) {
+                skipped.put(name, "backup already running");
+            } else {
+                try {
+                    jobs.put(name, submit(name, false).getId());
+                } catch (RejectedExecutionException e) {
+                    skipped.put(name, e.getMessage());
+                }
+            }
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("jobs", jobs);
+        result.put("skipped", skipped);
+        return result;
+    }
+
+    /*
+     * Queues a backup of one VM as a BACKUP job. Unknown VMs and VMs on remote
+     * hosts are refused here rather than failing the job.
+     */
+    public Job submit(String name, boolean full) {
+        VmInfo vm = inventory.get(name);
+        if (vm == null) {
+            throw new IllegalArgumentException("Unknown VM: " + name);
+        }
+        if (!hypervisors.isLocal(vm.getHost())) {
+            throw new IllegalArgumentException("Backups need a local hypervisor; " + name + " runs on " + vm.getHost());
+        }
+        return jobService.submitForResult(JobType.BACKUP, name, progress -> backup(name, full, progress));
+    }
+
+    /*
+     * Queues a restore of one disk of a backup as a RESTORE job; the job's result is the image path.
+     */
+    public Job submitRestore(String name, String backupId, String disk, String format) throws IOException {
+        if (get(name, backupId) == null) {
+            throw new IllegalArgumentException("Unknown backup of " + name + ": " + backupId);
+        }
+        return jobService.submitForResult(JobType.RESTORE, name + "/" + backupId,
+                progress -> restore(name, backupId, disk, format, progress));
+    }
+
+    /*
+     * Fleet backup on the kvm.backup.cron schedule; disabled by default.
+     */
+    @Scheduled(cron = "${kvm.backup.cron:-}", zone = "UTC")
+    public void scheduledBackup() {
+        Map<String, Object> result = backupAll();
+        log.info("Scheduled backup queued {}, skipped {}", result.get("jobs"), result.get("skipped"));
+    }
+
+    /*
+     * Backups of a VM, oldest first.
+     */
+    public List<BackupInfo> list(String name) throws IOException {
+        return loadIndex(name);
+    }
+
+    public BackupInfo get(String name, String backupId) throws IOException {
+        List<BackupInfo> chain = loadIndex(name);
+        int index = indexOf(chain, backupId);
+        return index < 0 ? null : chain.get(index);
+    }
+
+    private static int indexOf(List<BackupInfo> chain, String backupId) {
+        for (int i = 0; i < chain.size(); i++) {
+            if (chain.get(i).getId().equals(backupId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String newId(List<BackupInfo> chain) {
+        String id = ID_FORMAT.format(Instant.now());
+        // Two backups within a second; IDs must stay unique and ordered
+        String unique = id;
+        for (int suffix = 1; indexOf(chain, unique) >= 0; suffix++) {
+            unique = id + "-" + suffix;
+        }
+        return unique;
+    }
+
+    private Path vmDirectory(String name) {
+        Path directory = backupDirectory.resolve(name).normalize();
+        if (!directory.getParent().equals(backupDirectory.normalize())) {
+            throw new IllegalArgumentException("Invalid VM name: " + name);
+        }
+        return directory;
+    }
+
+    private synchronized List<BackupInfo> loadIndex(String name) throws IOException {
+        Path index = vmDirectory(name).resolve(INDEX_FILE);
+        if (!Files.exists(index)) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(objectMapper.readValue(index.toFile(), new TypeReference<List<BackupInfo>>() { }));
+    }
+
+    private synchronized void saveIndex(String name, List<BackupInfo> chain) throws IOException {
+        Path directory = vmDirectory(name);
+        Files.createDirectories(directory);
+        // Write a sibling file first so a crash never leaves a truncated index
+        Path temp = Files.createTempFile(directory, INDEX_FILE, ".tmp");
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(temp.toFile(), chain);
+        Files.move(temp, directory.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
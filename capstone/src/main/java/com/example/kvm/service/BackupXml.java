@@ -0,0 +1,105 @@
+package com.example.kvm.service;
+
+import java.io.StringWriter;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/*
+ * Backup and checkpoint XML for virDomainBackupBegin.
+ */
+final class BackupXml {
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private BackupXml() {
+    }
+
+    /*
+     * <domainbackup mode='pull'>
+     *   <incremental>kvm-backup-20261016T020000Z</incremental>
+     *   <server transport='unix' socket='/var/lib/libvirt/qemu/backup/....sock'/>
+     *   <disks>
+     *     <disk name='vda' backup='yes' type='file'/>
+     *     <disk name='vdb' backup='no'/>
+     *   </disks>
+     * </domainbackup>
+     * Each included disk is exported under its target name; without <scratch>
+     * libvirt places the scratch images itself. A null incremental means a full backup.
+     */
+    static String pullBackup(String socket, String incremental, List<String> included, List<String> excluded)
+            throws XMLStreamException {
+        StringWriter out = new StringWriter();
+        XMLStreamWriter xml = OUTPUT_FACTORY.createXMLStreamWriter(out);
+        try {
+            xml.writeStartElement("domainbackup");
+            xml.writeAttribute("mode", "pull");
+            if (incremental != null) {
+                xml.writeStartElement("incremental");
+                xml.writeCharacters(incremental);
+                xml.writeEndElement();
+            }
+            xml.writeEmptyElement("server");
+            xml.writeAttribute("transport", "unix");
+            xml.writeAttribute("socket", socket);
+            xml.writeStartElement("disks");
+            for (String disk : included) {
+                xml.writeEmptyElement("disk");
+                xml.writeAttribute("name", disk);
+                xml.writeAttribute("backup", "yes");
+                xml.writeAttribute("type", "file");
+            }
+            writeExcluded(xml, excluded, "backup");
+            xml.writeEndElement();
+            xml.writeEndElement();
+            xml.writeEndDocument();
+        } finally {
+            xml.close();
+        }
+        return out.toString();
+    }
+
+    /*
+     * <domaincheckpoint>
+     *   <name>kvm-backup-20261017T020000Z</name>
+     *   <disks>
+     *     <disk name='vda' checkpoint='bitmap'/>
+     *     <disk name='vdb' checkpoint='no'/>
+     *   </disks>
+     * </domaincheckpoint>
+     */
+    static String checkpoint(String name, List<String> included, List<String> excluded) throws XMLStreamException {
+        StringWriter out = new StringWriter();
+        XMLStreamWriter xml = OUTPUT_FACTORY.createXMLStreamWriter(out);
+        try {
+            xml.writeStartElement("domaincheckpoint");
+            xml.writeStartElement("name");
+            xml.writeCharacters(name);
+            xml.writeEndElement();
+            xml.writeStartElement("disks");
+            for (String disk : included) {
+                xml.writeEmptyElement("disk");
+                xml.writeAttribute("name", disk);
+                xml.writeAttribute("checkpoint", "bitmap");
+            }
+            writeExcluded(xml, excluded, "checkpoint");
+            xml.writeEndElement();
+            xml.writeEndElement();
+            xml.writeEndDocument();
+        } finally {
+            xml.close();
+        }
+        return out.toString();
+    }
+
+    private static void writeExcluded(XMLStreamWriter xml, List<String> excluded, String attribute)
+            throws XMLStreamException {
+        for (String disk : excluded) {
+            xml.writeEmptyElement("disk");
+            xml.writeAttribute("name", disk);
+            xml.writeAttribute(attribute, "no");
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package com.example.kvm.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.libvirt.NodeInfo;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.example.kvm.model.VmInfo;
+
+/*
+ * Admission control for VM creation and start, per hypervisor host.
+ *
+ * Memory and vCPUs are committed by running domains (their maximum memory, since
+ * a balloon can always grow back) and are recomputed from the inventory on every
+ * lifecycle event. Operations in flight hold a reservation on top of that until
+ * the domain shows up as running, so a burst of starts cannot all pass the same
+ * check. Disk space is checked against the free space of the target filesystem,
+ * minus the images being created right now.
+ *
+ * Both totals are immutable snapshots swapped with compare-and-set: admission
+ * never takes a lock. A request that fits the host but not the current headroom
+ * is queued, polling until capacity is released or the queue timeout passes;
+ * one that exceeds the host limits is rejected right away. The same headroom
+ * figures drive placement in HypervisorPool.
+ */
+@Component
+public class CapacityTracker {
+
+    public enum Decision { ADMIT, QUEUE, REJECT }
+
+    // How often a queued request re-checks the headroom
+    private static final long QUEUE_POLL_MILLIS = 250;
+
+    private final DomainInventory inventory;
+    private final double memoryOvercommit;
+    private final double cpuOvercommit;
+    private final double diskOvercommit;
+    private final long hostReservedKiB;
+    private final long queueTimeoutMillis;
+
+    // Keyed by hypervisor host ID; a host appears once its connection has been opened
+    private final Map<String, HostCapacity> hosts = new ConcurrentHashMap<>();
+    // Start reservations waiting for their domain to appear as running
+    private final Map<String, Reservation> awaitingStart = new ConcurrentHashMap<>();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong waiting = new AtomicLong();
+
+    public CapacityTracker(DomainInventory inventory,
+                           @Value("${kvm.capacity.memory-overcommit:1.0}") double memoryOvercommit,
+                           @Value("${kvm.capacity.cpu-overcommit:4.0}") double cpuOvercommit,
+                           @Value("${kvm.capacity.disk-overcommit:1.0}") double diskOvercommit,
+                           @Value("${kvm.capacity.host-reserved-mb:2048}") long hostReservedMB,
+                           @Value("${kvm.capacity.queue-timeout-seconds:120}") long queueTimeoutSeconds) {
+        this.inventory = inventory;
+        this.memoryOvercommit = memoryOvercommit;
+        this.cpuOvercommit = cpuOvercommit;
+        this.diskOvercommit = diskOvercommit;
+        this.hostReservedKiB = hostReservedMB * 1024;
+        this.queueTimeoutMillis = TimeUnit.SECONDS.toMillis(queueTimeoutSeconds);
+    }
+
+    /*
+     * Records a host's size. Called whenever its connection is (re)opened.
+     */
+    public void setHostCapacity(String host, NodeInfo nodeInfo) {
+        hosts.computeIfAbsent(host, key -> new HostCapacity()).setSize(nodeInfo.memory, nodeInfo.cpus);
+        refresh();
+    }
+
+    /*
+     * Checks a request against a host's current headroom without reserving anything.
+     * Hosts of unknown size admit everything.
+     */
+    public Decision evaluate(String host, long memoryKiB, int vcpus, long diskBytes, String diskPath) {
+        HostCapacity capacity = hosts.get(host);
+        if (capacity == null || capacity.cpus == 0) {
+            return Decision.ADMIT;
+        }
+        if (memoryKiB > capacity.memoryLimitKiB() || vcpus > capacity.cpuLimit() || diskBytes > diskLimit(diskPath)) {
+            return Decision.REJECT;
+        }
+        return capacity.fits(new Usage(memoryKiB, vcpus, diskBytes), capacity.reserved.get(), diskPath)
+                ? Decision.ADMIT : Decision.QUEUE;
+    }
+
+    /*
+     * Memory a host can still take right now, in KiB (negative when overcommitted).
+     */
+    public long getFreeMemoryKiB(String host) {
+        HostCapacity capacity = hosts.get(host);
+        if (capacity == null) {
+            return 0;
+        }
+        return capacity.memoryLimitKiB() - capacity.committed.get().memoryKiB - capacity.reserved.get().memoryKiB;
+    }
+
+    public long getMemoryLimitKiB(String host) {
+        HostCapacity capacity = hosts.get(host);
+        return capacity == null ? 0 : capacity.memoryLimitKiB();
+    }
+
+    /*
+     * Reserves capacity on a host for an operation, waiting while the request is
+     * queued. Memory and vCPUs count against running domains; pass 0 for
+     * operations that only define a domain. The caller must close the
+     * reservation, or hand it to releaseWhenRunning for starts.
+     */
+    public Reservation reserve(String host, long memoryKiB, int vcpus, long diskBytes, String diskPath,
+                               JobProgress progress) throws InsufficientCapacityException, InterruptedException {
+        Usage request = new Usage(memoryKiB, vcpus, diskBytes);
+        if (evaluate(host, memoryKiB, vcpus, diskBytes, diskPath) == Decision.REJECT) {
+            rejected.incrementAndGet();
+            throw new InsufficientCapacityException("Request for " + (memoryKiB / 1024) + " MiB, " + vcpus
+                    + " vCPUs, " + (diskBytes >> 30) + " GiB exceeds the capacity of host " + host);
+        }
+        HostCapacity capacity = hosts.computeIfAbsent(host, key -> new HostCapacity());
+
+        Reservation reservation = capacity.tryReserve(request, diskPath);
+        if (reservation != null) {
+            admitted.incrementAndGet();
+            return reservation;
+        }
+
+        queued.incrementAndGet();
+        waiting.incrementAndGet();
+        try {
+            progress.update(5, "Waiting for host capacity");
+            long deadline = System.currentTimeMillis() + queueTimeoutMillis;
+            while (System.currentTimeMillis() < deadline) {
+                Thread.sleep(QUEUE_POLL_MILLIS);
+                reservation = capacity.tryReserve(request, diskPath);
+                if (reservation != null) {
+                    admitted.incrementAndGet();
+                    return reservation;
+                }
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+        rejected.incrementAndGet();
+        throw new InsufficientCapacityException("Timed out waiting for capacity on host " + host + " for "
+                + (memoryKiB / 1024) + " MiB, " + vcpus + " vCPUs");
+    }
+
+    /*
+     * Keeps a start reservation until the inventory shows the domain running,
+     * at which point its usage is part of the committed total.
+     */
+    public void releaseWhenRunning(String name, Reservation reservation) {
+        releaseWhenRunning(name, reservation, Long.MAX_VALUE);
+    }
+
+    /*
+     * As above, but gives up after timeoutMillis: for starts whose libvirt call
+     * timed out, where the domain may or may not come up.
+     */
+    public void releaseWhenRunning(String name, Reservation reservation, long timeoutMillis) {
+        reservation.expiresAt = timeoutMillis == Long.MAX_VALUE ? Long.MAX_VALUE
+                : System.currentTimeMillis() + timeoutMillis;
+        VmInfo vm = inventory.get(name);
+        if (vm != null && vm.isRunning()) {
+            reservation.close();
+            return;
+        }
+        Reservation previous = awaitingStart.put(name, reservation);
+        if (previous != null) {
+            previous.close();
+        }
+        // The event may have arrived between the check and the put
+        vm = inventory.get(name);
+        if (vm != null && vm.isRunning() && awaitingStart.remove(name, reservation)) {
+            reservation.close();
+        }
+    }
+
+    @EventListener
+    public void onDomainChanged(DomainChangedEvent event) {
+        refresh();
+        VmInfo current = event.getCurrent();
+        if (current == null || current.isRunning()) {
+            Reservation reservation = awaitingStart.remove(event.getName());
+            if (reservation != null) {
+                reservation.close();
+            }
+        }
+    }
+
+    /*
+     * Closes start reservations whose deadline passed without the domain running.
+     */
+    @Scheduled(fixedDelay = 5000)
+    public void expireStartReservations() {
+        long now = System.currentTimeMillis();
+        awaitingStart.forEach((name, reservation) -> {
+            if (reservation.expiresAt <= now && awaitingStart.remove(name, reservation)) {
+                reservation.close();
+            }
+        });
+    }
+
+    /*
+     * Recomputes the committed usage of every host from the inventory. Runs on
+     * the libvirt event thread and on health-check threads; synchronized so an
+     * older snapshot cannot overwrite a newer one. Admission never waits on it.
+     */
+    public synchronized void refresh() {
+        Map<String, Usage> running = new HashMap<>();
+        for (VmInfo vm : inventory.getAll()) {
+            if (vm.isRunning()) {
+                running.merge(vm.getHost(), new Usage(vm.getMaxMemoryKiB(), vm.getVcpus(), 0), Usage::plus);
+            }
+        }
+        for (Map.Entry<String, HostCapacity> host : hosts.entrySet()) {
+            host.getValue().committed.set(running.getOrDefault(host.getKey(), Usage.ZERO));
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> perHost = new LinkedHashMap<>();
+        for (Map.Entry<String, HostCapacity> host : hosts.entrySet()) {
+            perHost.put(host.getKey(), host.getValue().stats());
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hosts", perHost);
+        stats.put("admitted", admitted.get());
+        stats.put("queued", queued.get());
+        stats.put("rejected", rejected.get());
+        stats.put("waiting", waiting.get());
+        return stats;
+    }
+
+    /*
+     * Space new images may take on the filesystem holding diskPath. qcow2 images
+     * are thin, so a ratio above 1 allows promising more than is free.
+     */
+    private long diskLimit(String diskPath) {
+        if (diskPath == null) {
+            return Long.MAX_VALUE;
+        }
+        try {
+            Path path = Paths.get(diskPath);
+            while (path != null && !Files.exists(path)) {
+                path = path.getParent();
+            }
+            if (path == null) {
+                return Long.MAX_VALUE;
+            }
+            return (long) (Files.getFileStore(path).getUsableSpace() * diskOvercommit);
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /*
+     * Size and usage of one host.
+     */
+    private final class HostCapacity {
+
+        // From virNodeGetInfo
+        volatile long memoryKiB;
+        volatile int cpus;
+        // Running domains, and reservations of operations in flight
+        final AtomicReference<Usage> committed = new AtomicReference<>(Usage.ZERO);
+        final AtomicReference<Usage> reserved = new AtomicReference<>(Usage.ZERO);
+
+        void setSize(long memoryKiB, int cpus) {
+            this.memoryKiB = memoryKiB;
+            this.cpus = cpus;
+        }
+
+        long memoryLimitKiB() {
+            return (long) ((memoryKiB - hostReservedKiB) * memoryOvercommit);
+        }
+
+        int cpuLimit() {
+            return (int) (cpus * cpuOvercommit);
+        }
+
+        Reservation tryReserve(Usage request, String diskPath) {
+            while (true) {
+                Usage current = reserved.get();
+                if (!fits(request, current, diskPath)) {
+                    return null;
+                }
+                if (reserved.compareAndSet(current, current.plus(request))) {
+                    return new Reservation(this, request);
+                }
+            }
+        }
+
+        boolean fits(Usage request, Usage pending, String diskPath) {
+            Usage used = committed.get();
+            return used.memoryKiB + pending.memoryKiB + request.memoryKiB <= memoryLimitKiB()
+                    && used.vcpus + pending.vcpus + request.vcpus <= cpuLimit()
+                    && (request.diskBytes == 0 || pending.diskBytes + request.diskBytes <= diskLimit(diskPath));
+        }
+
+        Map<String, Object> stats() {
+            Usage used = committed.get();
+            Usage pending = reserved.get();
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("hostMemoryKiB", memoryKiB);
+            stats.put("hostCpus", cpus);
+            stats.put("memoryLimitKiB", memoryLimitKiB());
+            stats.put("cpuLimit", cpuLimit());
+            stats.put("committedMemoryKiB", used.memoryKiB);
+            stats.put("committedVcpus", used.vcpus);
+            stats.put("reservedMemoryKiB", pending.memoryKiB);
+            stats.put("reservedVcpus", pending.vcpus);
+            stats.put("reservedDiskBytes", pending.diskBytes);
+            return stats;
+        }
+    }
+
+    /*
+     * Capacity held by one operation; closing it more than once is harmless.
+     */
+    public static final class Reservation implements AutoCloseable {
+
+        private final HostCapacity host;
+        private final Usage usage;
+        private final AtomicBoolean released = new AtomicBoolean();
+        // Set by releaseWhenRunning; closed by the sweep once passed
+        private volatile long expiresAt = Long.MAX_VALUE;
+
+        private Reservation(HostCapacity host, Usage usage) {
+            this.host = host;
+            this.usage = usage;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                host.reserved.accumulateAndGet(usage, Usage::minus);
+            }
+        }
+    }
+
+    private static final class Usage {
+
+        static final Usage ZERO = new Usage(0, 0, 0);
+
+        final long memoryKiB;
+        final int vcpus;
+        final long diskBytes;
+
+        Usage(long memoryKiB, int vcpus, long diskBytes) {
+            this.memoryKiB = memoryKiB;
+            this.vcpus = vcpus;
+            this.diskBytes = diskBytes;
+        }
+
+        Usage plus(Usage other) {
+            return new Usage(memoryKiB + other.memoryKiB, vcpus + other.vcpus, diskBytes + other.diskBytes);
+        }
+
+        Usage minus(Usage other) {
+            return new Usage(memoryKiB - other.memoryKiB, vcpus - other.vcpus, diskBytes - other.diskBytes);
+        }
+    }
+}
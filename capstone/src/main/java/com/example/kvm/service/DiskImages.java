@@ -0,0 +1,121 @@
+package com.example.kvm.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Thin wrappers around the host tools used to prepare VM disks:
+ * qemu-img for images, overlays and conversions, genisoimage for cloud-init seeds.
+ *
+ * Tool diagnostics go to the server's stderr; a non-zero exit becomes an IOException.
+ */
+final class DiskImages {
+
+    private static final Logger log = LoggerFactory.getLogger(DiskImages.class);
+
+    // Volume label cloud-init looks for on NoCloud seed images
+    private static final String SEED_VOLUME_LABEL = "cidata";
+
+    private DiskImages() {
+    }
+
+    /*
+     * Creates an empty qcow2 image.
+     */
+    static void create(String path, int sizeGB) throws IOException {
+        run("qemu-img", "create", "-f", "qcow2", path, sizeGB + "G");
+    }
+
+    /*
+     * Creates a qcow2 overlay on a backing image. Only metadata is written, so this
+     * takes milliseconds regardless of the image size; unless sizeGB is given the
+     * overlay has the backing image's virtual size.
+     */
+    static void createOverlay(String path, String backingPath, String backingFormat, Integer sizeGB)
+            throws IOException {
+        List<String> command = new ArrayList<>(List.of(
+                "qemu-img", "create", "-f", "qcow2", "-b", backingPath, "-F", backingFormat, path));
+        if (sizeGB != null) {
+            command.add(sizeGB + "G");
+        }
+        run(command.toArray(new String[0]));
+    }
+
+    /*
+     * Copies an image into a new file of another format, skipping zero blocks.
+     */
+    static void convert(String sourcePath, String sourceFormat, String targetPath, String targetFormat)
+            throws IOException {
+        run("qemu-img", "convert", "-f", sourceFormat, "-O", targetFormat, sourcePath, targetPath);
+    }
+
+    /*
+     * Returns the JSON document printed by "qemu-img info".
+     */
+    static String info(String path) throws IOException {
+        return run("qemu-img", "info", "--output=json", path);
+    }
+
+    /*
+     * Writes a NoCloud seed image holding the given meta-data and user-data.
+     */
+    static void createSeed(String isoPath, String metaData, String userData) throws IOException {
+        Path dir = Files.createTempDirectory("kvm-seed-");
+        try {
+            Path metaFile = Files.writeString(dir.resolve("meta-data"), metaData, StandardCharsets.UTF_8);
+            Path userFile = Files.writeString(dir.resolve("user-data"), userData, StandardCharsets.UTF_8);
+            run("genisoimage", "-output", isoPath, "-volid", SEED_VOLUME_LABEL, "-joliet", "-rock",
+                    metaFile.toString(), userFile.toString());
+        } finally {
+            Files.deleteIfExists(dir.resolve("meta-data"));
+            Files.deleteIfExists(dir.resolve("user-data"));
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    /*
+     * Makes an image accessible to QEMU. Best effort: without sudo rights the
+     * image keeps its owner, which is fine when the manager runs as qemu.
+     */
+    static void fixOwnership(String path) {
+        try {
+            ProcessBuilder pb = new ProcessBuilder("sudo", "chown", "qemu:kvm", path);
+            pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            pb.start().waitFor();
+            log.debug("Set permissions on disk image: {}", path);
+        } catch (IOException e) {
+            log.warn("Could not set permissions on disk image: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Runs a command and returns its standard output.
+     */
+    private static String run(String... command) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process process = pb.start();
+        try {
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new IOException(command[0] + " " + command[1] + " exited with code " + exitCode);
+            }
+            return output;
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running " + command[0], e);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.kvm.service;
+
+import org.libvirt.event.DomainEventType;
+
+import com.example.kvm.model.VmInfo;
+
+/*
+ * Spring application event published by the DomainInventory after it has
+ * applied a libvirt lifecycle event. Listeners run on the libvirt event loop
+ * thread, so they must not block.
+ */
+public class DomainChangedEvent {
+
+    private final String name;
+    private final DomainEventType type;
+    // Inventory entry after the change, null once the domain is gone
+    private final VmInfo current;
+
+    public DomainChangedEvent(String name, DomainEventType type, VmInfo current) {
+        this.name = name;
+        this.type = type;
+        this.current = current;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public DomainEventType getType() {
+        return type;
+    }
+
+    public VmInfo getCurrent() {
+        return current;
+    }
+}
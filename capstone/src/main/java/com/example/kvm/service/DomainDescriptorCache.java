@@ -0,0 +1,74 @@
+package com.example.kvm.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.libvirt.LibvirtException;
+import org.libvirt.event.DomainEventType;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.example.kvm.model.DomainDescriptor;
+
+/*
+ * Per-domain cache of parsed domain descriptors.
+ *
+ * Entries are loaded on first use and dropped whenever a lifecycle event may have
+ * changed the XML (define, undefine, start, stop) - a start in particular is what
+ * assigns the live VNC port.
+ */
+@Component
+public class DomainDescriptorCache {
+
+    /*
+     * Supplies the current domain XML on a cache miss.
+     */
+    @FunctionalInterface
+    public interface XmlSource {
+        String fetch() throws LibvirtException;
+    }
+
+    private final Map<String, DomainDescriptor> descriptors = new ConcurrentHashMap<>();
+
+    // Bumped on every invalidation so loads racing with an event are not cached
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /*
+     * Returns the cached descriptor for a domain, fetching and parsing the XML on a miss.
+     */
+    public DomainDescriptor get(String name, XmlSource source) throws LibvirtException, XMLStreamException {
+        DomainDescriptor cached = descriptors.get(name);
+        if (cached != null) {
+            return cached;
+        }
+
+        long generation = invalidations.get();
+        DomainDescriptor loaded = DomainDescriptorParser.parse(source.fetch());
+
+        // Only publish the entry if no event arrived while we were loading it
+        if (invalidations.get() == generation) {
+            descriptors.putIfAbsent(name, loaded);
+        }
+        return loaded;
+    }
+
+    public void invalidate(String name) {
+        invalidations.incrementAndGet();
+        descriptors.remove(name);
+    }
+
+    @EventListener
+    public void onDomainChanged(DomainChangedEvent event) {
+        DomainEventType type = event.getType();
+        if (type == DomainEventType.DEFINED
+                || type == DomainEventType.UNDEFINED
+                || type == DomainEventType.STARTED
+                || type == DomainEventType.STOPPED
+                || type == DomainEventType.CRASHED) {
+            invalidate(event.getName());
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.example.kvm.service;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.example.kvm.model.DomainDescriptor;
+
+/*
+ * Single-pass StAX parser turning libvirt domain XML into a DomainDescriptor.
+ * Only the elements the manager needs are materialized; everything else is skipped.
+ */
+public final class DomainDescriptorParser {
+
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    private DomainDescriptorParser() {
+    }
+
+    public static DomainDescriptor parse(String xml) throws XMLStreamException {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(new StringReader(xml));
+        try {
+            String name = null;
+            String uuid = null;
+            int id = -1;
+            List<DomainDescriptor.Graphics> graphics = new ArrayList<>();
+            List<DomainDescriptor.Disk> disks = new ArrayList<>();
+            List<DomainDescriptor.Interface> interfaces = new ArrayList<>();
+            Map<String, String> labels = new HashMap<>();
+            List<Integer> pinnedCpus = new ArrayList<>();
+
+            // Depth of the current element: 1 = <domain>, 2 = its children, 3 = devices
+            int depth = 0;
+            boolean inDevices = false;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String element = reader.getLocalName();
+
+                    if (depth == 1) {
+                        id = parseInt(reader.getAttributeValue(null, "id"), -1);
+                    } else if (depth == 2) {
+                        switch (element) {
+                            case "name" -> {
+                                name = reader.getElementText().trim();
+                                depth--;
+                            }
+                            case "uuid" -> {
+                                uuid = reader.getElementText().trim();
+                                depth--;
+                            }
+                            case "devices" -> inDevices = true;
+                            case "metadata" -> {
+                                readLabels(reader, labels);
+                                depth--;
+                            }
+                            case "cputune" -> {
+                                readVcpuPins(reader, pinnedCpus);
+                                depth--;
+                            }
+                            default -> {
+                                skipElement(reader);
+                                depth--;
+                            }
+                        }
+                    } else if (depth == 3 && inDevices) {
+                        switch (element) {
+                            case "graphics" -> graphics.add(readGraphics(reader));
+                            case "disk" -> disks.add(readDisk(reader));
+                            case "interface" -> interfaces.add(readInterface(reader));
+                            default -> skipElement(reader);
+                        }
+                        depth--;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (depth == 2 && "devices".equals(reader.getLocalName())) {
+                        inDevices = false;
+                    }
+                    depth--;
+                }
+            }
+
+            return new DomainDescriptor(name, uuid, id, graphics, disks, interfaces, labels, pinnedCpus);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * <graphics type='vnc' port='5901' autoport='yes' listen='127.0.0.1'>
+     *   <listen type='address' address='127.0.0.1'/>
+     * </graphics>
+     */
+    private static DomainDescriptor.Graphics readGraphics(XMLStreamReader reader) throws XMLStreamException {
+        String type = reader.getAttributeValue(null, "type");
+        int port = parseInt(reader.getAttributeValue(null, "port"), -1);
+        boolean autoport = "yes".equals(reader.getAttributeValue(null, "autoport"));
+        String listen = reader.getAttributeValue(null, "listen");
+
+        int level = 1;
+        while (level > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                level++;
+                if (level == 2 && listen == null && "listen".equals(reader.getLocalName())) {
+                    listen = reader.getAttributeValue(null, "address");
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                level--;
+            }
+        }
+        return new DomainDescriptor.Graphics(type, port, autoport, listen);
+    }
+
+    /*
+     * <disk type='file' device='disk'>
+     *   <driver name='qemu' type='qcow2'/>
+     *   <source file='/var/lib/libvirt/images/vm.qcow2'/>
+     *   <target dev='vda' bus='virtio'/>
+     * </disk>
+     */
+    private static DomainDescriptor.Disk readDisk(XMLStreamReader reader) throws XMLStreamException {
+        String type = reader.getAttributeValue(null, "type");
+        String device = reader.getAttributeValue(null, "device");
+        String driverType = null;
+        String source = null;
+        String targetDev = null;
+        String targetBus = null;
+        boolean readOnly = false;
+
+        int level = 1;
+        while (level > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                level++;
+                if (level == 2) {
+                    switch (reader.getLocalName()) {
+                        case "driver" -> driverType = reader.getAttributeValue(null, "type");
+                        case "source" -> source = readDiskSource(reader);
+                        case "target" -> {
+                            targetDev = reader.getAttributeValue(null, "dev");
+                            targetBus = reader.getAttributeValue(null, "bus");
+                        }
+                        case "readonly" -> readOnly = true;
+                        default -> {
+                        }
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                level--;
+            }
+        }
+        return new DomainDescriptor.Disk(type, device, driverType, source, targetDev, targetBus, readOnly);
+    }
+
+    private static String readDiskSource(XMLStreamReader reader) {
+        String file = reader.getAttributeValue(null, "file");
+        if (file != null) {
+            return file;
+        }
+        String dev = reader.getAttributeValue(null, "dev");
+        if (dev != null) {
+            return dev;
+        }
+        String volume = reader.getAttributeValue(null, "volume");
+        if (volume != null) {
+            return reader.getAttributeValue(null, "pool") + "/" + volume;
+        }
+        return reader.getAttributeValue(null, "name");
+    }
+
+    /*
+     * <interface type='network'>
+     *   <mac address='52:54:00:12:34:56'/>
+     *   <source network='default'/>
+     *   <model type='virtio'/>
+     *   <target dev='vnet0'/>
+     * </interface>
+     */
+    private static DomainDescriptor.Interface readInterface(XMLStreamReader reader) throws XMLStreamException {
+        String type = reader.getAttributeValue(null, "type");
+        String mac = null;
+        String source = null;
+        String model = null;
+        String targetDev = null;
+
+        int level = 1;
+        while (level > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                level++;
+                if (level == 2) {
+                    switch (reader.getLocalName()) {
+                        case "mac" -> mac = reader.getAttributeValue(null, "address");
+                        case "source" -> source = firstNonNull(
+                                reader.getAttributeValue(null, "network"),
+                                reader.getAttributeValue(null, "bridge"),
+                                reader.getAttributeValue(null, "dev"));
+                        case "model" -> model = reader.getAttributeValue(null, "type");
+                        case "target" -> targetDev = reader.getAttributeValue(null, "dev");
+                        default -> {
+                        }
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                level--;
+            }
+        }
+        return new DomainDescriptor.Interface(type, mac, source, model, targetDev);
+    }
+
+    /*
+     * <metadata>
+     *   <kvm:labels xmlns:kvm='urn:kvm-manager:labels'>
+     *     <kvm:label key='env' value='lab'/>
+     *   </kvm:labels>
+     * </metadata>
+     * Metadata of other applications is skipped.
+     */
+    private static void readLabels(XMLStreamReader reader, Map<String, String> labels) throws XMLStreamException {
+        int level = 1;
+        while (level > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                level++;
+                if (level == 3 && "label".equals(reader.getLocalName())
+                        && DomainDescriptor.LABELS_NAMESPACE.equals(reader.getNamespaceURI())) {
+                    String key = reader.getAttributeValue(null, "key");
+                    if (key != null) {
+                        labels.put(key, firstNonNull(reader.getAttributeValue(null, "value"), ""));
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                level--;
+            }
+        }
+    }
+
+    /*
+     * <cputune>
+     *   <vcpupin vcpu='0' cpuset='2'/>
+     *   <emulatorpin cpuset='0,4'/>
+     * </cputune>
+     * Only vCPU pins are read; the emulator shares the cell's housekeeping core.
+     */
+    private static void readVcpuPins(XMLStreamReader reader, List<Integer> pinnedCpus) throws XMLStreamException {
+        int level = 1;
+        while (level > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                level++;
+                if (level == 2 && "vcpupin".equals(reader.getLocalName())) {
+                    addCpuset(reader.getAttributeValue(null, "cpuset"), pinnedCpus);
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                level--;
+            }
+        }
+    }
+
+    /*
+     * libvirt cpuset syntax: "2", "0-3", "0-3,^2,8". Malformed parts are ignored.
+     */
+    private static void addCpuset(String cpuset, List<Integer> cpus) {
+        if (cpuset == null) {
+            return;
+        }
+        List<Integer> included = new ArrayList<>();
+        List<Integer> excluded = new ArrayList<>();
+        for (String part : cpuset.split(",")) {
+            part = part.trim();
+            List<Integer> target = part.startsWith("^") ? excluded : included;
+            part = part.startsWith("^") ? part.substring(1) : part;
+            int dash = part.indexOf('-');
+            int from = parseInt(dash < 0 ? part : part.substring(0, dash), -1);
+            int to = dash < 0 ? from : parseInt(part.substring(dash + 1), -1);
+            for (int cpu = from; cpu >= 0 && cpu <= to; cpu++) {
+                target.add(cpu);
+            }
+        }
+        included.removeAll(excluded);
+        cpus.addAll(included);
+    }
+
+    /*
+     * Skips the current element including all of its children.
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int level = 1;
+        while (level > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                level++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                level--;
+            }
+        }
+    }
+
+    private static String firstNonNull(String... values) {
+        for (String value : values) {
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static int parseInt(String value, int fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // Domain XML never needs DTDs; keep the parser closed to external entities
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+}
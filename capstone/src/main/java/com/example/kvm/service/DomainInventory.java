@@ -0,0 +1,233 @@
+package com.example.kvm.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.DomainInfo;
+import org.libvirt.LibvirtException;
+import org.libvirt.event.DomainEvent;
+import org.libvirt.event.DomainEventType;
+import org.libvirt.event.LifecycleListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+
+import com.example.kvm.model.VmInfo;
+
+/*
+ * In-memory inventory of all domains known to the hypervisor pool.
+ *
+ * Each host's part is filled when its connection is opened and is then kept
+ * current by that connection's lifecycle events, so readers never have to talk
+ * to libvirtd. The listener is registered before the scan, so nothing changing
+ * in between is missed; domains an event touched during the scan keep the
+ * state the event read, which is newer than the scan's. Domain names are
+ * unique across the pool; every entry records the host that owns it.
+ *
+ * Readers get a pre-built immutable snapshot; it is rebuilt on every change,
+ * which is cheap because lifecycle events are rare compared to page views.
+ * Every applied change is re-published as a DomainChangedEvent.
+ */
+@Component
+public class DomainInventory {
+
+    private static final Logger log = LoggerFactory.getLogger(DomainInventory.class);
+
+    // Ordering used by the VM list: running VMs first, then alphabetical
+    private static final Comparator<VmInfo> LIST_ORDER =
+            Comparator.comparing((VmInfo vm) -> !vm.isRunning()).thenComparing(VmInfo::getName);
+
+    // Current view of every domain, keyed by domain name
+    private final Map<String, VmInfo> domains = new ConcurrentHashMap<>();
+
+    // Pre-built snapshots handed out to readers
+    private volatile List<VmInfo> snapshot = Collections.emptyList();
+    private volatile List<String> displayNames = Collections.emptyList();
+
+    // Per host being scanned, the domains lifecycle events changed since the scan began
+    private final Map<String, Set<String>> changedWhileLoading = new ConcurrentHashMap<>();
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    public DomainInventory(ApplicationEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    /*
+     * Performs the full scan of running and defined domains on one host,
+     * replacing whatever was known about that host before. The host's lifecycle
+     * listener must already be registered.
+     */
+    public void load(String host, Connect connect) throws LibvirtException {
+        Set<String> changed = ConcurrentHashMap.newKeySet();
+        changedWhileLoading.put(host, changed);
+        Map<String, VmInfo> loaded = new HashMap<>();
+        try {
+            // Running domains are only reachable by their numeric ID
+            for (int id : connect.listDomains()) {
+                VmInfo vm = describeIfPresent(host, () -> connect.domainLookupByID(id));
+                if (vm != null) {
+                    loaded.put(vm.getName(), vm);
+                }
+            }
+
+            // Defined but inactive domains are listed by name
+            for (String name : connect.listDefinedDomains()) {
+                VmInfo vm = describeIfPresent(host, () -> connect.domainLookupByName(name));
+                if (vm != null) {
+                    loaded.put(vm.getName(), vm);
+                }
+            }
+
+            // Events applied during the scan saw a newer state than the scan did
+            synchronized (this) {
+                domains.values().removeIf(vm -> host.equals(vm.getHost()) && !loaded.containsKey(vm.getName())
+                        && !changed.contains(vm.getName()));
+                for (VmInfo vm : loaded.values()) {
+                    if (!changed.contains(vm.getName())) {
+                        domains.put(vm.getName(), vm);
+                    }
+                }
+                rebuildSnapshot();
+            }
+        } finally {
+            changedWhileLoading.remove(host, changed);
+        }
+        log.atInfo().addKeyValue("host", host).log("Domain inventory loaded for {}: {} domains", host, loaded.size());
+    }
+
+    /*
+     * Returns the listener to register on a host's connection.
+     */
+    public LifecycleListener listenerFor(String host) {
+        return (domain, event) -> onLifecycleChange(host, domain, event);
+    }
+
+    /*
+     * Called by the libvirt event loop thread whenever a domain changes state.
+     */
+    private int onLifecycleChange(String host, Domain domain, DomainEvent event) {
+        String name = domainName(domain);
+        if (name == null) {
+            return 0;
+        }
+
+        // The domain is re-read, so the entry reflects its state now rather than the event's
+        VmInfo current = null;
+        if (event.getType() != DomainEventType.UNDEFINED) {
+            try {
+                current = describe(host, domain);
+            } catch (LibvirtException e) {
+                // Transient domains vanish once stopped - drop them from the inventory
+            }
+        }
+        synchronized (this) {
+            Set<String> changed = changedWhileLoading.get(host);
+            if (changed != null) {
+                changed.add(name);
+            }
+            if (current == null) {
+                removeDomain(host, name);
+            } else {
+                domains.put(name, current);
+            }
+            rebuildSnapshot();
+        }
+
+        eventPublisher.publishEvent(new DomainChangedEvent(name, event.getType(), current));
+        return 0;
+    }
+
+    /*
+     * Returns all domains in list order. The returned list is immutable.
+     */
+    public List<VmInfo> getAll() {
+        return snapshot;
+    }
+
+    /*
+     * Returns the names shown in the VM list, with "(stopped)" suffixes already applied.
+     */
+    public List<String> getDisplayNames() {
+        return displayNames;
+    }
+
+    /*
+     * Looks up a single domain by name, or returns null if it is unknown.
+     */
+    public VmInfo get(String name) {
+        return domains.get(name);
+    }
+
+    public int size() {
+        return domains.size();
+    }
+
+    /*
+     * Removes a domain unless the name now belongs to another host.
+     */
+    private void removeDomain(String host, String name) {
+        domains.computeIfPresent(name, (key, vm) -> host.equals(vm.getHost()) ? null : vm);
+    }
+
+    /*
+     * Describes a domain found by the scan, or returns null if it went away since it was listed.
+     */
+    private VmInfo describeIfPresent(String host, DomainLookup lookup) {
+        try {
+            return describe(host, lookup.lookup());
+        } catch (LibvirtException e) {
+            // Stopped transient or undefined domain; its event is handled by the listener
+            return null;
+        }
+    }
+
+    @FunctionalInterface
+    private interface DomainLookup {
+        Domain lookup() throws LibvirtException;
+    }
+
+    private VmInfo describe(String host, Domain domain) throws LibvirtException {
+        DomainInfo info = domain.getInfo();
+        return new VmInfo(
+                host,
+                domain.getName(),
+                domain.getUUIDString(),
+                info.state,
+                domain.getID(),
+                info.nrVirtCpu,
+                info.memory,
+                info.maxMem);
+    }
+
+    private String domainName(Domain domain) {
+        try {
+            return domain.getName();
+        } catch (LibvirtException e) {
+            log.warn("Failed to resolve domain name from lifecycle event: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private synchronized void rebuildSnapshot() {
+        List<VmInfo> all = new ArrayList<>(domains.values());
+        all.sort(LIST_ORDER);
+
+        List<String> names = new ArrayList<>(all.size());
+        for (VmInfo vm : all) {
+            names.add(vm.getDisplayName());
+        }
+
+        snapshot = Collections.unmodifiableList(all);
+        displayNames = Collections.unmodifiableList(names);
+    }
+}
@@ -0,0 +1,320 @@
+package com.example.kvm.service;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.example.kvm.model.DomainDescriptor;
+import com.example.kvm.model.DomainProfile;
+
+/*
+ * Builds the XML of new domains with StAX, so names and paths are always
+ * escaped, and applies the tuning of a DomainProfile.
+ *
+ * Pinned profiles need a NumaPlacer placement; the builder itself never
+ * talks to libvirt.
+ */
+final class DomainXmlBuilder {
+
+    private static final XMLOutputFactory FACTORY = XMLOutputFactory.newInstance();
+
+    // The IOThread disks are attached to when the profile asks for one
+    private static final int DISK_IOTHREAD = 1;
+    // QEMU's limit for virtio-net queue pairs is far higher; more than 8 rarely helps
+    private static final int MAX_NET_QUEUES = 8;
+    // How often the guest's balloon driver reports its memory use (see MemoryBalancer)
+    static final int MEMORY_STATS_PERIOD_SECONDS = 10;
+
+    private final String name;
+    private int memoryMB = 1024;
+    private int vcpus = 1;
+    private DomainProfile profile = DomainProfile.STANDARD;
+    private NumaPlacer.Placement placement;
+    private final List<String> disks = new ArrayList<>();
+    private final List<String> cdroms = new ArrayList<>();
+    private boolean bootFromCdrom;
+    private String network = "default";
+    private final Map<String, String> labels = new LinkedHashMap<>();
+
+    DomainXmlBuilder(String name) {
+        this.name = name;
+    }
+
+    DomainXmlBuilder memoryMB(int memoryMB) {
+        this.memoryMB = memoryMB;
+        return this;
+    }
+
+    DomainXmlBuilder vcpus(int vcpus) {
+        this.vcpus = vcpus;
+        return this;
+    }
+
+    DomainXmlBuilder profile(DomainProfile profile, NumaPlacer.Placement placement) {
+        if (profile.isPinned() && placement == null) {
+            throw new IllegalArgumentException("Profile " + profile + " needs a NUMA placement");
+        }
+        this.profile = profile;
+        this.placement = placement;
+        return this;
+    }
+
+    /*
+     * Adds a qcow2 disk; disks are attached as vda, vdb, ...
+     */
+    DomainXmlBuilder disk(String path) {
+        disks.add(path);
+        return this;
+    }
+
+    /*
+     * Adds a read-only cdrom on SATA. The first one becomes the boot device if bootFromCdrom is set.
+     */
+    DomainXmlBuilder cdrom(String path) {
+        cdroms.add(path);
+        return this;
+    }
+
+    DomainXmlBuilder bootFromCdrom(boolean bootFromCdrom) {
+        this.bootFromCdrom = bootFromCdrom;
+        return this;
+    }
+
+    DomainXmlBuilder network(String network) {
+        this.network = network;
+        return this;
+    }
+
+    DomainXmlBuilder labels(Map<String, String> labels) {
+        this.labels.putAll(labels);
+        return this;
+    }
+
+    String build() throws XMLStreamException {
+        StringWriter out = new StringWriter();
+        XMLStreamWriter xml = FACTORY.createXMLStreamWriter(out);
+        try {
+            xml.writeStartElement("domain");
+            xml.writeAttribute("type", "kvm");
+            text(xml, "name", name);
+            writeMetadata(xml);
+
+            xml.writeStartElement("memory");
+            xml.writeAttribute("unit", "MiB");
+            xml.writeCharacters(Integer.toString(memoryMB));
+            xml.writeEndElement();
+            writeMemoryBacking(xml);
+
+            xml.writeStartElement("vcpu");
+            xml.writeAttribute("placement", "static");
+            xml.writeCharacters(Integer.toString(vcpus));
+            xml.writeEndElement();
+            if (profile.isDirectIo()) {
+                text(xml, "iothreads", Integer.toString(DISK_IOTHREAD));
+            }
+            writeCpuTune(xml);
+
+            xml.writeStartElement("os");
+            xml.writeStartElement("type");
+            xml.writeAttribute("arch", "x86_64");
+            xml.writeAttribute("machine", "q35");
+            xml.writeCharacters("hvm");
+            xml.writeEndElement();
+            if (bootFromCdrom) {
+                empty(xml, "boot", "dev", "cdrom");
+            }
+            empty(xml, "boot", "dev", "hd");
+            xml.writeEndElement();
+
+            // ACPI lets shutdown() reach the guest
+            xml.writeStartElement("features");
+            xml.writeEmptyElement("acpi");
+            xml.writeEmptyElement("apic");
+            xml.writeEndElement();
+            writeCpu(xml);
+
+            xml.writeStartElement("devices");
+            writeDisks(xml);
+            writeInterface(xml);
+            xml.writeEmptyElement("graphics");
+            xml.writeAttribute("type", "vnc");
+            xml.writeAttribute("port", "-1");
+            xml.writeAttribute("autoport", "yes");
+            xml.writeStartElement("memballoon");
+            xml.writeAttribute("model", "virtio");
+            empty(xml, "stats", "period", Integer.toString(MEMORY_STATS_PERIOD_SECONDS));
+            xml.writeEndElement();
+            xml.writeEndElement();
+
+            xml.writeEndElement();
+            xml.writeEndDocument();
+        } finally {
+            xml.close();
+        }
+        return out.toString();
+    }
+
+    private void writeMetadata(XMLStreamWriter xml) throws XMLStreamException {
+        if (labels.isEmpty()) {
+            return;
+        }
+        xml.writeStartElement("metadata");
+        xml.writeStartElement("kvm", "labels", DomainDescriptor.LABELS_NAMESPACE);
+        xml.writeNamespace("kvm", DomainDescriptor.LABELS_NAMESPACE);
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            xml.writeEmptyElement("kvm", "label", DomainDescriptor.LABELS_NAMESPACE);
+            xml.writeAttribute("key", label.getKey());
+            xml.writeAttribute("value", label.getValue());
+        }
+        xml.writeEndElement();
+        xml.writeEndElement();
+    }
+
+    /*
+     * Labels element for virDomainSetMetadata of an existing domain, which adds
+     * prefix and namespace itself. Keys and values are escaped by the writer.
+     */
+    static String labelsMetadata(Map<String, String> labels) throws XMLStreamException {
+        StringWriter out = new StringWriter();
+        XMLStreamWriter xml = FACTORY.createXMLStreamWriter(out);
+        try {
+            xml.writeStartElement("labels");
+            for (Map.Entry<String, String> label : labels.entrySet()) {
+                xml.writeEmptyElement("label");
+                xml.writeAttribute("key", label.getKey());
+                xml.writeAttribute("value", label.getValue());
+            }
+            xml.writeEndElement();
+        } finally {
+            xml.close();
+        }
+        return out.toString();
+    }
+
+    /*
+     * <memoryBacking><hugepages><page size='2048' unit='KiB'/></hugepages></memoryBacking>
+     */
+    private void writeMemoryBacking(XMLStreamWriter xml) throws XMLStreamException {
+        if (!profile.isHugepages() || placement == null || placement.hugepageKiB == 0) {
+            return;
+        }
+        xml.writeStartElement("memoryBacking");
+        xml.writeStartElement("hugepages");
+        xml.writeEmptyElement("page");
+        xml.writeAttribute("size", Long.toString(placement.hugepageKiB));
+        xml.writeAttribute("unit", "KiB");
+        xml.writeEndElement();
+        xml.writeEndElement();
+    }
+
+    /*
+     * 1:1 vCPU pins, emulator and IOThread on the cell's housekeeping core,
+     * and memory bound to the same cell.
+     */
+    private void writeCpuTune(XMLStreamWriter xml) throws XMLStreamException {
+        if (!profile.isPinned()) {
+            return;
+        }
+        xml.writeStartElement("cputune");
+        for (int vcpu = 0; vcpu < placement.vcpuCpus.length; vcpu++) {
+            xml.writeEmptyElement("vcpupin");
+            xml.writeAttribute("vcpu", Integer.toString(vcpu));
+            xml.writeAttribute("cpuset", Integer.toString(placement.vcpuCpus[vcpu]));
+        }
+        empty(xml, "emulatorpin", "cpuset", placement.emulatorCpuset);
+        if (profile.isDirectIo()) {
+            xml.writeEmptyElement("iothreadpin");
+            xml.writeAttribute("iothread", Integer.toString(DISK_IOTHREAD));
+            xml.writeAttribute("cpuset", placement.emulatorCpuset);
+        }
+        xml.writeEndElement();
+
+        xml.writeStartElement("numatune");
+        xml.writeEmptyElement("memory");
+        xml.writeAttribute("mode", "strict");
+        xml.writeAttribute("nodeset", Integer.toString(placement.cell));
+        xml.writeEndElement();
+    }
+
+    private void writeCpu(XMLStreamWriter xml) throws XMLStreamException {
+        if (!profile.isHostPassthrough()) {
+            return;
+        }
+        xml.writeStartElement("cpu");
+        xml.writeAttribute("mode", "host-passthrough");
+        xml.writeAttribute("check", "none");
+        // One socket keeps the guest scheduler from assuming a cross-socket layout
+        xml.writeEmptyElement("topology");
+        xml.writeAttribute("sockets", "1");
+        xml.writeAttribute("cores", Integer.toString(vcpus));
+        xml.writeAttribute("threads", "1");
+        xml.writeEndElement();
+    }
+
+    private void writeDisks(XMLStreamWriter xml) throws XMLStreamException {
+        for (int i = 0; i < disks.size(); i++) {
+            xml.writeStartElement("disk");
+            xml.writeAttribute("type", "file");
+            xml.writeAttribute("device", "disk");
+            xml.writeEmptyElement("driver");
+            xml.writeAttribute("name", "qemu");
+            xml.writeAttribute("type", "qcow2");
+            if (profile.isDirectIo()) {
+                // Bypass the host page cache; native AIO needs O_DIRECT
+                xml.writeAttribute("cache", "none");
+                xml.writeAttribute("io", "native");
+                xml.writeAttribute("iothread", Integer.toString(DISK_IOTHREAD));
+            }
+            empty(xml, "source", "file", disks.get(i));
+            xml.writeEmptyElement("target");
+            xml.writeAttribute("dev", "vd" + (char) ('a' + i));
+            xml.writeAttribute("bus", "virtio");
+            xml.writeEndElement();
+        }
+        for (int i = 0; i < cdroms.size(); i++) {
+            xml.writeStartElement("disk");
+            xml.writeAttribute("type", "file");
+            xml.writeAttribute("device", "cdrom");
+            xml.writeEmptyElement("driver");
+            xml.writeAttribute("name", "qemu");
+            xml.writeAttribute("type", "raw");
+            empty(xml, "source", "file", cdroms.get(i));
+            xml.writeEmptyElement("target");
+            xml.writeAttribute("dev", "sd" + (char) ('a' + i));
+            xml.writeAttribute("bus", "sata");
+            xml.writeEmptyElement("readonly");
+            xml.writeEndElement();
+        }
+    }
+
+    private void writeInterface(XMLStreamWriter xml) throws XMLStreamException {
+        xml.writeStartElement("interface");
+        xml.writeAttribute("type", "network");
+        empty(xml, "source", "network", network);
+        empty(xml, "model", "type", "virtio");
+        if (profile.isMultiqueue() && vcpus > 1) {
+            xml.writeEmptyElement("driver");
+            xml.writeAttribute("name", "vhost");
+            xml.writeAttribute("queues", Integer.toString(Math.min(vcpus, MAX_NET_QUEUES)));
+        }
+        xml.writeEndElement();
+    }
+
+    private static void text(XMLStreamWriter xml, String element, String value) throws XMLStreamException {
+        xml.writeStartElement(element);
+        xml.writeCharacters(value);
+        xml.writeEndElement();
+    }
+
+    private static void empty(XMLStreamWriter xml, String element, String attribute, String value)
+            throws XMLStreamException {
+        xml.writeEmptyElement(element);
+        xml.writeAttribute(attribute, value);
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.kvm.service;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.example.kvm.model.HostTopology;
+
+/*
+ * StAX parser extracting the NUMA topology from virConnectGetCapabilities XML:
+ * <capabilities><host><topology><cells><cell>...</cell></cells></topology></host></capabilities>
+ * Everything outside the cells is skipped.
+ */
+public final class HostCapabilitiesParser {
+
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    private HostCapabilitiesParser() {
+    }
+
+    public static HostTopology parse(String xml) throws XMLStreamException {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(new StringReader(xml));
+        try {
+            List<HostTopology.Cell> cells = new ArrayList<>();
+            // Element names from <capabilities> down to the current element
+            List<String> path = new ArrayList<>();
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    path.add(reader.getLocalName());
+                    if (path.equals(List.of("capabilities", "host", "topology", "cells", "cell"))) {
+                        cells.add(readCell(reader));
+                        path.remove(path.size() - 1);
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    path.remove(path.size() - 1);
+                }
+            }
+            return new HostTopology(cells);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static HostTopology.Cell readCell(XMLStreamReader reader) throws XMLStreamException {
+        int id = parseInt(reader.getAttributeValue(null, "id"), 0);
+        long memoryKiB = 0;
+        Map<Long, Long> pages = new HashMap<>();
+        List<HostTopology.Cpu> cpus = new ArrayList<>();
+
+        int level = 1;
+        while (level > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                level++;
+                String element = reader.getLocalName();
+                // Attributes have to be read before getElementText moves past the start tag
+                if (level == 2 && "memory".equals(element)) {
+                    String unit = reader.getAttributeValue(null, "unit");
+                    memoryKiB = toKiB(Long.parseLong(reader.getElementText().trim()), unit);
+                    level--;
+                } else if (level == 2 && "pages".equals(element)) {
+                    long size = toKiB(Long.parseLong(reader.getAttributeValue(null, "size")),
+                            reader.getAttributeValue(null, "unit"));
+                    pages.put(size, Long.parseLong(reader.getElementText().trim()));
+                    level--;
+                } else if (level == 3 && "cpu".equals(element)) {
+                    cpus.add(new HostTopology.Cpu(
+                            parseInt(reader.getAttributeValue(null, "id"), 0),
+                            parseInt(reader.getAttributeValue(null, "socket_id"), 0),
+                            parseInt(reader.getAttributeValue(null, "core_id"), 0)));
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                level--;
+            }
+        }
+        return new HostTopology.Cell(id, memoryKiB, pages, cpus);
+    }
+
+    private static long toKiB(long value, String unit) {
+        if (unit == null) {
+            return value;
+        }
+        return switch (unit) {
+            case "b", "bytes" -> value / 1024;
+            case "MiB", "M" -> value * 1024;
+            case "GiB", "G" -> value * 1024 * 1024;
+            default -> value;
+        };
+    }
+
+    private static int parseInt(String value, int fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+}
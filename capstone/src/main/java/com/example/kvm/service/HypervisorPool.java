@@ -0,0 +1,454 @@
+package com.example.kvm.service;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.libvirt.Connect;
+import org.libvirt.Library;
+import org.libvirt.LibvirtException;
+import org.libvirt.event.LifecycleListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import com.example.kvm.model.VmInfo;
+
+import jakarta.annotation.PreDestroy;
+
+/*
+ * The hypervisor hosts this manager drives, one libvirt connection each.
+ *
+ * Hosts are configured as kvm.hypervisors=id=uri,... (qemu:///system,
+ * qemu+ssh://root@node2/system, test:///default, ...). Every connection feeds
+ * the shared DomainInventory and CapacityTracker under its host ID, and is
+ * probed by a health check: a dead connection marks the host DOWN and is
+ * reopened with exponential backoff, after which the host's part of the
+ * inventory is reloaded. Operations on a DOWN host fail fast with
+ * HypervisorUnavailableException instead of hanging on a broken socket.
+ *
+ * Nothing is connected while the application starts: every host starts DOWN
+ * and is connected by its own health check thread once the application is
+ * ready, so an unreachable or slow hypervisor neither delays startup nor
+ * holds up the checks of the other hosts.
+ *
+ * Disk images are created by local tools (qemu-img, genisoimage), so new VMs
+ * are only placed on local hosts and on remote hosts flagged with
+ * kvm.hypervisors.<id>.shared-storage, where the image paths are shared.
+ */
+@Component
+public class HypervisorPool {
+
+    public enum State { UP, DOWN }
+
+    /*
+     * How new VMs are spread: LEAST_LOADED picks the host with the largest share
+     * of free memory, BIN_PACKING the fullest host that still fits the VM.
+     */
+    public enum PlacementStrategy { LEAST_LOADED, BIN_PACKING }
+
+    // Reconnect backoff bounds
+    private static final long MIN_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+    // libvirt keepalive: probe every interval seconds, give up after count missed replies
+    private static final int KEEPALIVE_INTERVAL_SECONDS = 5;
+    private static final int KEEPALIVE_COUNT = 3;
+
+    private static final Logger log = LoggerFactory.getLogger(HypervisorPool.class);
+
+    private final DomainInventory inventory;
+    private final CapacityTracker capacityTracker;
+    private final LibvirtExecutor libvirt;
+    private final PlacementStrategy placement;
+    private final long healthCheckIntervalMillis;
+
+    // Configuration order; the first host owns names unknown to the inventory
+    private final Map<String, Host> hosts = new LinkedHashMap<>();
+    private final String defaultHost;
+
+    // Thread dispatching libvirt events (lifecycle callbacks, keepalives) for all connections
+    private Thread eventLoopThread = null;
+    // One health check thread per host, created by start()
+    private ScheduledExecutorService healthChecks = null;
+
+    public HypervisorPool(DomainInventory inventory, CapacityTracker capacityTracker, LibvirtExecutor libvirt,
+                          Environment environment,
+                          @Value("${kvm.hypervisors:local=qemu:///system}") String hypervisors,
+                          @Value("${kvm.hypervisors.placement:LEAST_LOADED}") PlacementStrategy placement,
+                          @Value("${kvm.console.vnc-host:localhost}") String localConsoleHost,
+                          @Value("${kvm.hypervisors.health-check-interval-ms:5000}") long healthCheckIntervalMillis) {
+        this.inventory = inventory;
+        this.capacityTracker = capacityTracker;
+        this.libvirt = libvirt;
+        this.placement = placement;
+        this.healthCheckIntervalMillis = Math.max(100, healthCheckIntervalMillis);
+
+        for (String entry : hypervisors.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int separator = entry.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Hypervisor entries must be id=uri: " + entry);
+            }
+            String id = entry.substring(0, separator).trim();
+            String uri = entry.substring(separator + 1).trim();
+            String remoteHost = URI.create(uri).getHost();
+            boolean local = remoteHost == null || remoteHost.isEmpty();
+            String key = "kvm.hypervisors." + id + ".";
+            boolean sharedStorage = environment.getProperty(key + "shared-storage", Boolean.class, local);
+            String consoleHost = environment.getProperty(key + "console-host", local ? localConsoleHost : remoteHost);
+            hosts.put(id, new Host(id, uri, local, sharedStorage, consoleHost));
+        }
+        if (hosts.isEmpty()) {
+            throw new IllegalArgumentException("No hypervisors configured in kvm.hypervisors");
+        }
+        this.defaultHost = hosts.keySet().iterator().next();
+
+        try {
+            // The event loop must be registered before any connection is opened,
+            // otherwise libvirt will not deliver domain events on it
+            startEventLoop();
+        } catch (LibvirtException e) {
+            log.error("Failed to start the libvirt event loop: {}", e.getMessage());
+        }
+    }
+
+    /*
+     * Starts the health checks, which open the connections right away.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (healthChecks != null) {
+            return;
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        healthChecks = Executors.newScheduledThreadPool(hosts.size(), runnable -> {
+            Thread thread = new Thread(runnable, "hypervisor-health-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (Host host : hosts.values()) {
+            healthChecks.scheduleWithFixedDelay(() -> checkHealth(host), 0, healthCheckIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+     * Registers the default libvirt event loop and runs it on a daemon thread.
+     */
+    private void startEventLoop() throws LibvirtException {
+        Library.initEventLoop();
+        eventLoopThread = new Thread(() -> {
+            try {
+                Library.runEventLoop();
+            } catch (LibvirtException e) {
+                log.error("libvirt event loop failed: {}", e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "libvirt-event-loop");
+        eventLoopThread.setDaemon(true);
+        eventLoopThread.start();
+    }
+
+    /*
+     * Returns the open connection to a host.
+     */
+    public Connect connection(String hostId) {
+        Host host = hosts.get(hostId);
+        if (host == null) {
+            throw new IllegalArgumentException("Unknown hypervisor host: " + hostId);
+        }
+        Connect connect = host.connect;
+        if (connect == null || host.closed) {
+            throw new HypervisorUnavailableException("Hypervisor host " + hostId + " is unavailable"
+                    + (host.lastError != null ? ": " + host.lastError : ""));
+        }
+        return connect;
+    }
+
+    /*
+     * Returns the host owning a domain. Names the inventory does not know
+     * (e.g. a VM being defined right now) belong to the first configured host.
+     */
+    public String hostOf(String domainName) {
+        VmInfo vm = inventory.get(domainName);
+        return vm != null && hosts.containsKey(vm.getHost()) ? vm.getHost() : defaultHost;
+    }
+
+    /*
+     * The first configured host, used when a request names none.
+     */
+    public String getDefaultHost() {
+        return defaultHost;
+    }
+
+    /*
+     * Whether a host's libvirtd runs on this node, so files and sockets it
+     * creates are reachable here.
+     */
+    public boolean isLocal(String hostId) {
+        Host host = hosts.get(hostId);
+        return host != null && host.local;
+    }
+
+    /*
+     * Address browsers' consoles are proxied to for VMs on this host.
+     */
+    public String getConsoleHost(String hostId) {
+        Host host = hosts.get(hostId);
+        return host != null ? host.consoleHost : hosts.get(defaultHost).consoleHost;
+    }
+
+    /*
+     * IDs of the hosts whose connection is currently up.
+     */
+    public List<String> getUpHosts() {
+        List<String> up = new ArrayList<>(hosts.size());
+        for (Host host : hosts.values()) {
+            if (host.state() == State.UP) {
+                up.add(host.id);
+            }
+        }
+        return up;
+    }
+
+    /*
+     * Picks the host a new VM is defined on. Hosts with headroom right now are
+     * preferred over hosts where the VM would have to queue; if no host could
+     * ever run it, the least loaded is returned and the capacity check rejects it.
+     */
+    public String place(long memoryKiB, int vcpus) {
+        String best = null;
+        CapacityTracker.Decision bestDecision = null;
+        double bestScore = 0;
+        for (Host host : hosts.values()) {
+            if (host.state() != State.UP || !host.sharedStorage) {
+                continue;
+            }
+            CapacityTracker.Decision decision = capacityTracker.evaluate(host.id, memoryKiB, vcpus, 0, null);
+            long limit = capacityTracker.getMemoryLimitKiB(host.id);
+            double freeShare = limit <= 0 ? 0 : (double) capacityTracker.getFreeMemoryKiB(host.id) / limit;
+            // Bin packing only applies among hosts the VM fits on right now
+            double score = placement == PlacementStrategy.BIN_PACKING && decision == CapacityTracker.Decision.ADMIT
+                    ? -freeShare : freeShare;
+            if (best == null || decision.ordinal() < bestDecision.ordinal()
+                    || (decision == bestDecision && score > bestScore)) {
+                best = host.id;
+                bestDecision = decision;
+                bestScore = score;
+            }
+        }
+        if (best == null) {
+            throw new HypervisorUnavailableException("No hypervisor host is available for new VMs");
+        }
+        return best;
+    }
+
+    /*
+     * Runs one health check round over all hosts on the calling thread. For
+     * callers that use the pool without starting it, such as benchmarks.
+     */
+    public void checkHealth() {
+        for (Host host : hosts.values()) {
+            checkHealth(host);
+        }
+    }
+
+    /*
+     * Probes a host's connection, or reopens it once its backoff has passed.
+     */
+    private void checkHealth(Host host) {
+        try {
+            if (host.connect != null) {
+                String failure = host.closed ? "connection closed" : probe(host);
+                if (failure != null) {
+                    markDown(host, failure);
+                }
+            } else if (System.currentTimeMillis() >= host.nextAttemptMillis) {
+                connect(host);
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel the host's scheduled checks for good
+            log.atError().addKeyValue("host", host.id).setCause(e).log("Health check of hypervisor {} failed", host.id);
+        }
+    }
+
+    private String probe(Host host) {
+        Connect connect = host.connect;
+        try {
+            return libvirt.direct("isAlive", host.id, connect::isAlive) ? null : "connection is not alive";
+        } catch (LibvirtException e) {
+            return e.getMessage();
+        }
+    }
+
+    /*
+     * Opens a host's connection and loads its domains. Runs on the host's
+     * health check thread only, so a host is never connected twice at once.
+     */
+    private void connect(Host host) {
+        Connect connect = null;
+        try {
+            connect = libvirt.direct("connect", host.id, () -> new Connect(host.uri, false));
+            // Remote connections would otherwise only notice a dead peer on the next call
+            if (!host.uri.startsWith("test:")) {
+                connect.setKeepAlive(KEEPALIVE_INTERVAL_SECONDS, KEEPALIVE_COUNT);
+            }
+            connect.registerCloseListener((closed, reason) -> {
+                host.closed = true;
+                log.atWarn().addKeyValue("host", host.id).log("Connection to hypervisor {} closed: {}", host.id, reason);
+            });
+
+            // Listen first, then fill the host's part of the inventory: a domain changing
+            // during the scan is picked up by its event instead of being missed
+            host.closed = false;
+            connect.addLifecycleListener(host.listener);
+            inventory.load(host.id, connect);
+            Connect opened = connect;
+            capacityTracker.setHostCapacity(host.id, libvirt.direct("nodeInfo", host.id, opened::nodeInfo));
+
+            host.connect = connect;
+            host.connectedSince = System.currentTimeMillis();
+            host.lastError = null;
+            host.backoffMillis = MIN_BACKOFF_MILLIS;
+            log.atInfo().addKeyValue("host", host.id).log("Connected to hypervisor {}: {}", host.id, host.uri);
+        } catch (LibvirtException e) {
+            log.atError().addKeyValue("host", host.id)
+                    .log("Failed to connect to hypervisor {} ({}): {}", host.id, host.uri, e.getMessage());
+            closeQuietly(host, connect);
+            host.lastError = e.getMessage();
+            host.nextAttemptMillis = System.currentTimeMillis() + host.backoffMillis;
+            host.backoffMillis = Math.min(host.backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    private void markDown(Host host, String reason) {
+        log.atWarn().addKeyValue("host", host.id).log("Hypervisor {} is down: {}", host.id, reason);
+        Connect connect = host.connect;
+        host.connect = null;
+        host.lastError = reason;
+        host.nextAttemptMillis = System.currentTimeMillis() + host.backoffMillis;
+        closeQuietly(host, connect);
+    }
+
+    private static void closeQuietly(Host host, Connect connect) {
+        if (connect == null) {
+            return;
+        }
+        try {
+            connect.removeLifecycleListener(host.listener);
+        } catch (LibvirtException e) {
+            // The listener was never registered or the connection is already broken
+        }
+        try {
+            connect.unregisterCloseListener();
+        } catch (LibvirtException e) {
+            // Same as above
+        }
+        try {
+            connect.close();
+        } catch (LibvirtException e) {
+            log.warn("Failed to close connection to hypervisor {}: {}", host.id, e.getMessage());
+        }
+    }
+
+    /*
+     * Returns the state of every host for the status API.
+     */
+    public List<Map<String, Object>> getStatus() {
+        Map<String, Integer> domainCounts = new LinkedHashMap<>();
+        for (VmInfo vm : inventory.getAll()) {
+            domainCounts.merge(vm.getHost(), 1, Integer::sum);
+        }
+        List<Map<String, Object>> status = new ArrayList<>(hosts.size());
+        for (Host host : hosts.values()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("id", host.id);
+            entry.put("uri", host.uri);
+            entry.put("state", host.state());
+            entry.put("sharedStorage", host.sharedStorage);
+            entry.put("consoleHost", host.consoleHost);
+            entry.put("domains", domainCounts.getOrDefault(host.id, 0));
+            if (host.state() == State.UP) {
+                entry.put("connectedSince", host.connectedSince);
+            } else {
+                entry.put("lastError", host.lastError);
+                entry.put("nextAttempt", host.nextAttemptMillis);
+            }
+            status.add(entry);
+        }
+        return Collections.unmodifiableList(status);
+    }
+
+    public PlacementStrategy getPlacement() {
+        return placement;
+    }
+
+    @PreDestroy
+    public void close() throws LibvirtException {
+        synchronized (this) {
+            if (healthChecks != null) {
+                healthChecks.shutdownNow();
+            }
+        }
+        for (Host host : hosts.values()) {
+            closeQuietly(host, host.connect);
+            host.connect = null;
+        }
+        // Stop dispatching events once nothing is listening anymore
+        if (eventLoopThread != null) {
+            Library.stopEventLoop();
+        }
+    }
+
+    /*
+     * One configured hypervisor and its connection.
+     */
+    private final class Host {
+
+        final String id;
+        final String uri;
+        // The URI names no remote host: libvirtd runs on this node
+        final boolean local;
+        final boolean sharedStorage;
+        final String consoleHost;
+        final LifecycleListener listener;
+
+        // Null while the host is down
+        volatile Connect connect;
+        // Set by libvirt's close callback; the health check tears the connection down
+        volatile boolean closed;
+        volatile String lastError;
+        volatile long connectedSince;
+        volatile long nextAttemptMillis;
+        // Only touched by connect(), see there
+        long backoffMillis = MIN_BACKOFF_MILLIS;
+
+        Host(String id, String uri, boolean local, boolean sharedStorage, String consoleHost) {
+            this.id = id;
+            this.uri = uri;
+            this.local = local;
+            this.sharedStorage = sharedStorage;
+            this.consoleHost = consoleHost;
+            this.listener = inventory.listenerFor(id);
+        }
+
+        State state() {
+            return connect != null && !closed ? State.UP : State.DOWN;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.example.kvm.service;
+
+/*
+ * Raised when an operation needs a hypervisor host whose connection is down,
+ * when no host is up to place a new VM on, or when a libvirt call could not
+ * get into its bulkhead or did not return in time (see LibvirtExecutor).
+ * Retrying later may succeed once the health check has reconnected or the
+ * backlog has drained.
+ */
+public class HypervisorUnavailableException extends RuntimeException {
+
+    // Retry-After the REST API sends with its 503s, about one health check interval
+    public static final String RETRY_AFTER_SECONDS = "5";
+
+    public HypervisorUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,12 @@
+package com.example.kvm.service;
+
+/*
+ * Raised when the host cannot take on a VM within the configured overcommit
+ * ratios, either outright or after waiting kvm.capacity.queue-timeout-seconds.
+ */
+public class InsufficientCapacityException extends Exception {
+
+    public InsufficientCapacityException(String message) {
+        super(message);
+    }
+}
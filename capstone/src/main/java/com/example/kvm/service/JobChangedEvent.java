@@ -0,0 +1,21 @@
+package com.example.kvm.service;
+
+import com.example.kvm.model.Job;
+
+/*
+ * Spring application event published by the JobService when a job is queued,
+ * starts, reports progress or finishes. Listeners run on the job's worker
+ * thread, so they must not block.
+ */
+public class JobChangedEvent {
+
+    private final Job job;
+
+    public JobChangedEvent(Job job) {
+        this.job = job;
+    }
+
+    public Job getJob() {
+        return job;
+    }
+}
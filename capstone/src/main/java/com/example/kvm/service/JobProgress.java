@@ -0,0 +1,13 @@
+package com.example.kvm.service;
+
+/*
+ * Receives progress reports from a long-running operation.
+ */
+@FunctionalInterface
+public interface JobProgress {
+
+    // For callers that do not run as a job
+    JobProgress NONE = (percent, step) -> { };
+
+    void update(int percent, String step);
+}
@@ -0,0 +1,289 @@
+package com.example.kvm.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.example.kvm.model.Job;
+import com.example.kvm.model.JobType;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import jakarta.annotation.PreDestroy;
+
+/*
+ * Runs VM operations asynchronously so request threads return immediately.
+ *
+ * Each job type has its own lane with a concurrency limit; jobs beyond the limit
+ * wait in the lane instead of occupying a worker thread, so a burst of slow
+ * creations cannot starve start/stop requests. The worker pool is bounded and
+ * sized to the sum of the lane limits, and the number of waiting jobs is capped.
+ * Finished jobs are kept for kvm.jobs.retention-minutes so clients can poll them.
+ * Every state or progress change is also published as a JobChangedEvent.
+ */
+@Service
+public class JobService {
+
+    private static final Logger log = LoggerFactory.getLogger(JobService.class);
+
+    /*
+     * The work of one job. Exceptions mark the job as failed.
+     */
+    @FunctionalInterface
+    public interface JobTask {
+        void run(JobProgress progress) throws Exception;
+    }
+
+    /*
+     * A job producing a result object, exposed as Job.result.
+     */
+    @FunctionalInterface
+    public interface ResultTask {
+        Object run(JobProgress progress) throws Exception;
+    }
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final Map<JobType, Lane> lanes = new EnumMap<>(JobType.class);
+    private final ThreadPoolExecutor executor;
+
+    // Jobs accepted but not yet started, capped by maxPending
+    private final AtomicInteger pending = new AtomicInteger();
+    private final int maxPending;
+    private final long retentionMillis;
+    private final ApplicationEventPublisher eventPublisher;
+    private final MeterRegistry registry;
+
+    public JobService(Environment environment, ApplicationEventPublisher eventPublisher, MeterRegistry registry,
+                      @Value("${kvm.jobs.max-pending:500}") int maxPending,
+                      @Value("${kvm.jobs.retention-minutes:60}") long retentionMinutes) {
+        this.maxPending = maxPending;
+        this.retentionMillis = TimeUnit.MINUTES.toMillis(retentionMinutes);
+        this.eventPublisher = eventPublisher;
+        this.registry = registry;
+
+        int workers = 0;
+        for (JobType type : JobType.values()) {
+            int limit = environment.getProperty("kvm.jobs.limits." + type.getKey(), Integer.class, type.getDefaultLimit());
+            Lane lane = new Lane(Math.max(1, limit));
+            lanes.put(type, lane);
+            workers += Math.max(1, limit);
+            Gauge.builder("kvm.jobs.running", lane, Lane::running)
+                    .description("Jobs of a type currently on a worker")
+                    .tag("type", type.getKey())
+                    .register(registry);
+            Gauge.builder("kvm.jobs.waiting", lane, Lane::waiting)
+                    .description("Jobs of a type waiting for their lane")
+                    .tag("type", type.getKey())
+                    .register(registry);
+        }
+        Gauge.builder("kvm.jobs.pending", pending, AtomicInteger::get)
+                .description("Jobs accepted but not started yet")
+                .register(registry);
+
+        // Lanes never hand over more work than there are workers, so the queue only absorbs hand-over races
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(workers), runnable -> {
+                    Thread thread = new Thread(runnable, "kvm-job-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+        new ExecutorServiceMetrics(executor, "kvm.jobs", Tags.empty()).bindTo(registry);
+    }
+
+    /*
+     * Queues a job and returns it immediately.
+     * Throws RejectedExecutionException if too many jobs are already waiting.
+     */
+    public Job submit(JobType type, String target, JobTask task) {
+        Job job = register(type, target);
+        lanes.get(type).submit(() -> run(job, task));
+        return job;
+    }
+
+    /*
+     * Like submit, for tasks whose return value becomes the job's result.
+     */
+    public Job submitForResult(JobType type, String target, ResultTask task) {
+        Job job = register(type, target);
+        lanes.get(type).submit(() -> run(job, progress -> job.setResult(task.run(progress))));
+        return job;
+    }
+
+    public Job get(String id) {
+        return jobs.get(id);
+    }
+
+    /*
+     * Returns jobs newest first, optionally only those not finished yet.
+     */
+    public List<Job> list(boolean activeOnly, int limit) {
+        List<Job> result = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            if (!activeOnly || !job.getStatus().isFinished()) {
+                result.add(job);
+            }
+        }
+        result.sort(Comparator.comparingLong(Job::getCreatedAt).reversed());
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    /*
+     * Running and waiting job counts per type.
+     */
+    public Map<String, Map<String, Integer>> getLaneStats() {
+        Map<String, Map<String, Integer>> stats = new LinkedHashMap<>();
+        for (Map.Entry<JobType, Lane> entry : lanes.entrySet()) {
+            stats.put(entry.getKey().getKey(), entry.getValue().stats());
+        }
+        return stats;
+    }
+
+    /*
+     * Drops finished jobs older than the retention period.
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void evictFinishedJobs() {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        jobs.values().removeIf(job -> job.getStatus().isFinished() && job.getFinishedAt() < cutoff);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private Job register(JobType type, String target) {
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            throw new RejectedExecutionException("Too many queued jobs (" + maxPending + "), try again later");
+        }
+        Job job = new Job(UUID.randomUUID().toString(), type, target);
+        jobs.put(job.getId(), job);
+        eventPublisher.publishEvent(new JobChangedEvent(job));
+        return job;
+    }
+
+    private void run(Job job, JobTask task) {
+        pending.decrementAndGet();
+        job.markRunning();
+        eventPublisher.publishEvent(new JobChangedEvent(job));
+        long started = System.currentTimeMillis();
+        Timer.builder("kvm.job.wait")
+                .description("Time jobs spent queued before running")
+                .tag("type", job.getType().getKey())
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(Math.max(0, started - job.getCreatedAt()), TimeUnit.MILLISECONDS);
+        try {
+            task.run((percent, step) -> {
+                job.updateProgress(percent, step);
+                eventPublisher.publishEvent(new JobChangedEvent(job));
+            });
+            job.markSucceeded();
+        } catch (Exception | LinkageError e) {
+            // LinkageError: a missing native libvirt function (JNA) fails the job, not the worker
+            String message = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            log.atWarn().addKeyValue("job", job.getId()).addKeyValue("target", job.getTarget())
+                    .log("Job {} ({} {}) failed: {}", job.getId(), job.getType(), job.getTarget(), message);
+            job.markFailed(message);
+        } finally {
+            // Any other Error still propagates, but the job must not stay RUNNING forever
+            if (!job.getStatus().isFinished()) {
+                job.markFailed("Internal error");
+            }
+            Timer.builder("kvm.job")
+                    .description("Job run time")
+                    .tag("type", job.getType().getKey())
+                    .tag("status", job.getStatus().name().toLowerCase())
+                    .publishPercentileHistogram()
+                    .register(registry)
+                    .record(System.currentTimeMillis() - started, TimeUnit.MILLISECONDS);
+            eventPublisher.publishEvent(new JobChangedEvent(job));
+        }
+    }
+
+    /*
+     * Per-type queue that keeps at most limit jobs on the executor at a time.
+     */
+    private final class Lane {
+        private final int limit;
+        // Guarded by this
+        private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+        private int running = 0;
+
+        Lane(int limit) {
+            this.limit = limit;
+        }
+
+        synchronized void submit(Runnable work) {
+            if (running < limit) {
+                running++;
+                executor.execute(wrap(work));
+            } else {
+                waiting.add(work);
+            }
+        }
+
+        private Runnable wrap(Runnable work) {
+            return () -> {
+                try {
+                    work.run();
+                } finally {
+                    next();
+                }
+            };
+        }
+
+        private void next() {
+            Runnable work;
+            synchronized (this) {
+                work = waiting.poll();
+                if (work == null) {
+                    running--;
+                    return;
+                }
+            }
+            executor.execute(wrap(work));
+        }
+
+        synchronized int running() {
+            return running;
+        }
+
+        synchronized int waiting() {
+            return waiting.size();
+        }
+
+        synchronized Map<String, Integer> stats() {
+            Map<String, Integer> stats = new LinkedHashMap<>();
+            stats.put("limit", limit);
+            stats.put("running", running);
+            stats.put("waiting", waiting.size());
+            return stats;
+        }
+    }
+}
@@ -1,117 +1,315 @@
 package com.example.kvm.service;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.regex.Matcher;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
+import javax.xml.stream.XMLStreamException;
+
 import org.libvirt.Connect;
 import org.libvirt.Domain;
 import org.libvirt.LibvirtException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import jakarta.annotation.PreDestroy;
+import com.example.kvm.libvirt.BulkDomainStats;
+import com.example.kvm.libvirt.DomainConfig;
+import com.example.kvm.libvirt.DomainScreenshot;
+import com.example.kvm.libvirt.LibvirtNativeException;
+import com.example.kvm.model.BatchRequest;
+import com.example.kvm.model.BatchResult;
+import com.example.kvm.model.CloudInitConfig;
+import com.example.kvm.model.DomainDescriptor;
+import com.example.kvm.model.DomainProfile;
+import com.example.kvm.model.DomainStats;
+import com.example.kvm.model.HostTopology;
+import com.example.kvm.model.VmInfo;
+import com.example.kvm.model.VmTemplate;
+
+import io.micrometer.core.annotation.Timed;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 
 /*
  * KvmService is the logic layer that manages virtual machine operations.
+ *
+ * Operations are timed in kvm.operation, tagged with the operation. @Timed only
+ * sees calls that come through the Spring proxy, not calls from one method of
+ * this class to another, so operations that are also called internally
+ * (starting and stopping from a batch, describing a domain) record their timer
+ * explicitly via recordOperation and carry no @Timed. A new operation called
+ * from inside this class must do the same.
  */
 @Service
 public class KvmService {
 
-    // Connection object to the KVM hypervisor - maintains the link to libvirtd
-    private Connect connect = null;
+    private static final Logger log = LoggerFactory.getLogger(KvmService.class);
+
+    // Connections to the hypervisor hosts; every domain operation goes to the host owning it
+    private final HypervisorPool hypervisors;
+
+    // Runs every libvirt call in its bulkhead and times it
+    private final LibvirtExecutor libvirt;
+
+    // Event-driven cache of all domains, served to readers without touching libvirtd
+    private final DomainInventory inventory;
+
+    // Parsed domain XML, invalidated by lifecycle events
+    private final DomainDescriptorCache descriptorCache;
+
+    // Admission control for creates and starts
+    private final CapacityTracker capacityTracker;
+
+    // Storage pool volumes for ISO images and disks
+    private final StorageService storageService;
+
+    // Upper bound for the parallelism of batch operations
+    private final int maxBatchParallelism;
+
+    // Tuning for new domains when the request names none
+    private final DomainProfile defaultProfile;
+
+    // Per host, read from the capabilities on first use
+    private final Map<String, HostTopology> hostTopologies = new HashMap<>();
+    private final Map<String, NumaPlacer> numaPlacers = new HashMap<>();
+
+    // How often a batch shutdown checks whether the guest has powered off
+    private static final long SHUTDOWN_POLL_MILLIS = 500;
+
+    // How long a start whose libvirt call timed out keeps its capacity reserved
+    private static final long START_TIMEOUT_GRACE_MILLIS = 5 * 60 * 1000;
+
+    // Label recording which template a VM was cloned from
+    private static final String TEMPLATE_LABEL = "template";
+
+    // Label marking unclaimed warm pool domains with their size class
+    private static final String WARM_POOL_LABEL = "warm-pool";
+    private static final String WARM_POOL_PREFIX = "warm-pool-";
+    private static final String LABELS_PREFIX = "kvm";
+
+    private static final long BYTES_PER_GIB = 1024L * 1024 * 1024;
+
+    private final MeterRegistry registry;
+
+    public KvmService(HypervisorPool hypervisors, LibvirtExecutor libvirt, DomainInventory inventory,
+                      DomainDescriptorCache descriptorCache, CapacityTracker capacityTracker,
+                      StorageService storageService, MeterRegistry registry,
+                      @Value("${kvm.batch.max-parallelism:32}") int maxBatchParallelism,
+                      @Value("${kvm.domain.default-profile:STANDARD}") DomainProfile defaultProfile) {
+        this.hypervisors = hypervisors;
+        this.libvirt = libvirt;
+        this.inventory = inventory;
+        this.descriptorCache = descriptorCache;
+        this.capacityTracker = capacityTracker;
+        this.storageService = storageService;
+        this.registry = registry;
+        this.maxBatchParallelism = maxBatchParallelism;
+        this.defaultProfile = defaultProfile;
+    }
 
     /*
-     * Constructor - initializes the connection to the KVM hypervisor when the service is created.
-     * Spring calls this automatically during application startup.
+     * Stops an operation's kvm.operation sample with the tags TimedAspect gives
+     * @Timed methods, so both kinds of operations form one set of series.
      */
-    public KvmService() {
-        initializeConnection();
+    private void recordOperation(Timer.Sample sample, String operation, String method, Exception failure) {
+        sample.stop(Timer.builder("kvm.operation")
+                .tag("operation", operation)
+                .tag("class", KvmService.class.getName())
+                .tag("method", method)
+                .tag("exception", failure == null ? "none" : failure.getClass().getSimpleName())
+                .publishPercentileHistogram()
+                .register(registry));
     }
 
     /*
-     * Establishes a connection to the local KVM hypervisor using libvirt.
+     * Connection to the host owning a domain.
      */
-    private void initializeConnection() {
-        try {
-            // Connect to local KVM hypervisor
-            // Second parameter (false) means if it is a read-only connection
-            connect = new Connect("qemu:///system", false);
-            System.out.println("Connection successful: " + connect.getURI());
-        } catch (LibvirtException e) {
-            // Log error if connection fails
-            System.err.println("Failed to connect to qemu:///system: " + e.getMessage());
-            e.printStackTrace();
-        }
+    private Connect connectionFor(String name) {
+        return hypervisors.connection(hypervisors.hostOf(name));
+    }
+
+    /*
+     * Looks up a domain on the host owning it.
+     */
+    private Domain lookup(String name) throws LibvirtException {
+        String host = hypervisors.hostOf(name);
+        Connect connect = hypervisors.connection(host);
+        return libvirt.time("domainLookupByName", host, () -> connect.domainLookupByName(name));
+    }
+
+    /*
+     * Throws HypervisorUnavailableException if the host owning a domain is down.
+     */
+    public void checkHostAvailable(String name) {
+        connectionFor(name);
     }
 
     /*
      * Retrieves all virtual machines available on the hypervisor.
+     * Served from the inventory snapshot - running VMs first, stopped VMs with a "(stopped)" suffix.
+     */
+    public List<String> listVMs() {
+        List<String> names = inventory.getDisplayNames();
+        // Unclaimed warm pool domains are not VMs yet
+        if (names.stream().anyMatch(KvmService::isWarmPoolName)) {
+            names = names.stream().filter(name -> !isWarmPoolName(name)).toList();
+        }
+        return names;
+    }
+
+    /*
+     * Retrieves the full inventory entries (state, ID, vCPUs, memory) for all VMs.
      */
-    public List<String> listVMs() throws LibvirtException {
-        List<String> vms = new ArrayList<>();
+    public List<VmInfo> listVMInfo() {
+        return inventory.getAll();
+    }
 
-        // Iterate through all currently running VMs and add them to the list
-        for (int id : connect.listDomains()) {
-            // Look up the Domain object using its numeric ID
-            Domain domain = connect.domainLookupByID(id);
-            // Add the VM name to the list (running VMs have no status suffix)
-            vms.add(domain.getName());
+    /*
+     * Retrieves state, CPU time, balloon memory, block and network counters for every VM
+     * in a single libvirt round-trip (virConnectGetAllDomainStats) per host that is up.
+     */
+    @Timed(value = "kvm.operation", extraTags = {"operation", "domain-stats"}, histogram = true)
+    public List<DomainStats> getAllDomainStats() throws LibvirtNativeException {
+        List<DomainStats> all = new ArrayList<>();
+        for (String host : hypervisors.getUpHosts()) {
+            Connect connect = hypervisors.connection(host);
+            List<DomainStats> stats = libvirt.time("getAllDomainStats", host,
+                    () -> BulkDomainStats.query(connect, BulkDomainStats.STATS_DEFAULT));
+            for (DomainStats entry : stats) {
+                entry.setHost(host);
+            }
+            all.addAll(stats);
         }
+        return all;
+    }
 
-        // Iterate through all defined but stopped VMs and add them to the list
-        for (String name : connect.listDefinedDomains()) {
-            // Add the VM name with a "(stopped)" suffix to indicate it's not running
-            vms.add(name + " (stopped)");
+    /*
+     * Starts a stopped virtual machine once the host has room for it.
+     */
+    public void startVM(String name) throws LibvirtException, InsufficientCapacityException, InterruptedException {
+        startVM(name, JobProgress.NONE);
+    }
+
+    public void startVM(String name, JobProgress progress)
+            throws LibvirtException, InsufficientCapacityException, InterruptedException {
+        Timer.Sample sample = Timer.start(registry);
+        Exception failure = null;
+        try {
+            // Look up the Domain object by its configured name
+            Domain domain = lookup(name);
+
+            // Hold the VM's memory and vCPUs until the inventory sees it running
+            VmInfo vm = inventory.get(name);
+            CapacityTracker.Reservation reservation = vm == null || vm.isRunning() ? null
+                    : capacityTracker.reserve(vm.getHost(), vm.getMaxMemoryKiB(), vm.getVcpus(), 0, null, progress);
+            try {
+                // Trigger the VM to start
+                libvirt.time("create", vm != null ? vm.getHost() : hypervisors.hostOf(name), domain::create);
+            } catch (LibvirtCallTimeoutException e) {
+                // The domain may still come up; hold its capacity for a while longer
+                if (reservation != null) {
+                    capacityTracker.releaseWhenRunning(name, reservation, START_TIMEOUT_GRACE_MILLIS);
+                }
+                throw e;
+            } catch (LibvirtException | RuntimeException e) {
+                if (reservation != null) {
+                    reservation.close();
+                }
+                throw e;
+            }
+            if (reservation != null) {
+                capacityTracker.releaseWhenRunning(name, reservation);
+            }
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            recordOperation(sample, "start", "startVM", failure);
         }
+    }
 
-        return vms;
+    /*
+     * Admission decision for starting a VM, without reserving anything.
+     */
+    public CapacityTracker.Decision evaluateStart(String name) {
+        VmInfo vm = inventory.get(name);
+        if (vm == null || vm.isRunning()) {
+            return CapacityTracker.Decision.ADMIT;
+        }
+        return capacityTracker.evaluate(vm.getHost(), vm.getMaxMemoryKiB(), vm.getVcpus(), 0, null);
     }
 
     /*
-     * Starts a stopped virtual machine.
+     * Returns the parsed description (graphics, disks, interfaces) of a VM.
+     * Served from the descriptor cache; the XML is only fetched after a lifecycle change.
      */
-    public void startVM(String name) throws LibvirtException {
-        // Look up the Domain object by its configured name
-        Domain domain = connect.domainLookupByName(name);
-        // Trigger the VM to start
-        domain.create();
+    public DomainDescriptor getDomainDescriptor(String name) throws LibvirtException, XMLStreamException {
+        Timer.Sample sample = Timer.start(registry);
+        Exception failure = null;
+        try {
+            return descriptorCache.get(name, () -> {
+                Domain domain = lookup(name);
+                return libvirt.time("getXMLDesc", hypervisors.hostOf(name), () -> domain.getXMLDesc(0));
+            });
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            recordOperation(sample, "describe", "getDomainDescriptor", failure);
+        }
     }
 
     /*
      * Retrieves VNC connection information for a virtual machine.
      */
-    public String getVNCConnectionInfo(String name) throws LibvirtException {
-        // Look up the Domain object by its configured name
-        Domain domain = connect.domainLookupByName(name);
-        // Get the VM's XML configuration
-        String xmlDesc = domain.getXMLDesc(0);
-        
-        // Use regex to find the VNC port
-        Pattern pattern = Pattern.compile("<graphics type='vnc'[^>]*port='(\\d+)'");
-        Matcher matcher = pattern.matcher(xmlDesc);
-        
-        if (matcher.find()) {
-            String portStr = matcher.group(1);
-            int port = Integer.parseInt(portStr);
-            
-            // If port is -1, it means auto-assigned
-            if (port == -1) {
-                // For running VMs, try to get from domain ID
-                try {
-                    port = 5900 + domain.getID();
-                } catch (Exception e) {
-                    return "VNC port auto-assigned but VM not running";
-                }
+    public String getVNCConnectionInfo(String name) throws LibvirtException, XMLStreamException {
+        DomainDescriptor descriptor = getDomainDescriptor(name);
+
+        if (descriptor.getVncGraphics() == null) {
+            return "No VNC graphics configured for this VM";
+        }
+
+        int port = descriptor.getVncPort();
+
+        // If port is -1, it means auto-assigned
+        if (port == -1) {
+            // For running VMs, fall back to the port derived from the domain ID
+            if (descriptor.getId() < 0) {
+                return "VNC port auto-assigned but VM not running";
             }
-            
-            return "localhost:" + port;
+            port = 5900 + descriptor.getId();
         }
-        
-        return "No VNC graphics configured for this VM";
+
+        return getVncHost(name) + ":" + port;
+    }
+
+    /*
+     * Captures the screen of a running VM (see ThumbnailService).
+     */
+    @Timed(value = "kvm.operation", extraTags = {"operation", "screenshot"}, histogram = true)
+    public DomainScreenshot captureScreenshot(String name) throws LibvirtException {
+        String host = hypervisors.hostOf(name);
+        Connect connect = hypervisors.connection(host);
+        Domain domain = lookup(name);
+        return libvirt.time("screenshot", host, () -> DomainScreenshot.capture(connect, domain));
     }
 
-    public void connectToVM(String name) throws LibvirtException {
+    public void connectToVM(String name) throws LibvirtException, XMLStreamException {
         // This method is kept for backward compatibility
         // The actual connection info retrieval is in getVNCConnectionInfo()
         getVNCConnectionInfo(name);
@@ -121,158 +319,697 @@ public class KvmService {
      * Gracefully shuts down a running virtual machine.
      */
     public void stopVM(String name) throws LibvirtException {
-        // Look up the Domain object by its configured name
-        Domain domain = connect.domainLookupByName(name);
-        // Send graceful shutdown signal to the VM's operating system
-        domain.shutdown();
+        Timer.Sample sample = Timer.start(registry);
+        Exception failure = null;
+        try {
+            // Look up the Domain object by its configured name
+            Domain domain = lookup(name);
+            // Send graceful shutdown signal to the VM's operating system
+            libvirt.run("shutdown", hypervisors.hostOf(name), domain::shutdown);
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            recordOperation(sample, "shutdown", "stopVM", failure);
+        }
     }
 
     /*
      * Forcefully terminates a virtual machine immediately.
      */
     public void forceStopVM(String name) throws LibvirtException {
+        Timer.Sample sample = Timer.start(registry);
+        Exception failure = null;
+        try {
+            // Look up the Domain object by its configured name
+            Domain domain = lookup(name);
+            // Immediately terminate the VM (equivalent to pulling the power cord)
+            libvirt.run("destroy", hypervisors.hostOf(name), domain::destroy);
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            recordOperation(sample, "force-shutdown", "forceStopVM", failure);
+        }
+    }
+
+    /*
+     * Deletes a virtual machine from the hypervisor.
+     */
+    @Timed(value = "kvm.operation", extraTags = {"operation", "delete"}, histogram = true)
+    public void deleteVM(String name) throws LibvirtException {
         // Look up the Domain object by its configured name
-        Domain domain = connect.domainLookupByName(name);
-        // Immediately terminate the VM (equivalent to pulling the power cord)
-        domain.destroy();
+        Domain domain = lookup(name);
+        // Undefine (delete) the VM from the hypervisor
+        libvirt.run("undefine", hypervisors.hostOf(name), domain::undefine);
     }
 
     /*
-     * Cleanup method called when the Spring bean is destroyed (application shutdown).
+     * Resolves the VMs a batch request applies to. A VM must match every selector
+     * given (names, glob pattern, label); requested names unknown to the inventory
+     * are kept so they show up as failures in the result.
      */
-    @PreDestroy
-    public void close() throws LibvirtException {
-        // Safely close the connection to the hypervisor if it was established
-        if (connect != null) {
-            connect.close();
+    public List<String> resolveBatchTargets(BatchRequest request) throws LibvirtException, XMLStreamException {
+        Set<String> names = request.getNames() == null ? null : new LinkedHashSet<>(request.getNames());
+        Pattern pattern = request.getPattern() == null ? null : globPattern(request.getPattern());
+        String label = request.getLabel();
+        if (names == null && pattern == null && label == null) {
+            throw new IllegalArgumentException("Select VMs by names, pattern or label");
+        }
+
+        List<String> targets = new ArrayList<>();
+        for (VmInfo vm : inventory.getAll()) {
+            String name = vm.getName();
+            if (isWarmPoolName(name)
+                    || (names != null && !names.contains(name))
+                    || (pattern != null && !pattern.matcher(name).matches())
+                    || (label != null && !hasLabel(name, label))) {
+                continue;
+            }
+            targets.add(name);
+        }
+        if (names != null) {
+            for (String name : names) {
+                if (inventory.get(name) == null) {
+                    targets.add(name);
+                }
+            }
         }
+        return targets;
     }
-    
+
     /*
-     * Deletes a virtual machine from the hypervisor.
+     * Applies a lifecycle action to many VMs in parallel and reports the outcome per VM.
+     * Runs on its own short-lived workers, at most kvm.batch.max-parallelism at a time.
      */
-    public void deleteVM(String name) throws LibvirtException {
-        // Look up the Domain object by its configured name
-        Domain domain = connect.domainLookupByName(name);
-        // Undefine (delete) the VM from the hypervisor
-        domain.undefine();
+    @Timed(value = "kvm.operation", extraTags = {"operation", "batch"}, histogram = true)
+    public BatchResult runBatch(BatchRequest request, JobProgress progress)
+            throws LibvirtException, XMLStreamException, InterruptedException {
+        BatchRequest.Action action = request.getAction();
+        List<String> targets = resolveBatchTargets(request);
+        if (targets.isEmpty()) {
+            return new BatchResult(action, List.of());
+        }
+
+        int parallelism = Math.max(1, Math.min(request.getParallelism(), maxBatchParallelism));
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(parallelism, targets.size()), runnable -> {
+            Thread thread = new Thread(runnable, "kvm-batch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        AtomicInteger completed = new AtomicInteger();
+        progress.update(0, "0/" + targets.size() + " VMs done");
+        try {
+            List<Future<BatchResult.Entry>> futures = new ArrayList<>(targets.size());
+            for (String name : targets) {
+                futures.add(workers.submit(() -> {
+                    BatchResult.Entry entry = applyBatchAction(name, action, request.getEscalateAfterSeconds());
+                    int done = completed.incrementAndGet();
+                    progress.update(done * 100 / targets.size(), done + "/" + targets.size() + " VMs done");
+                    return entry;
+                }));
+            }
+
+            List<BatchResult.Entry> entries = new ArrayList<>(targets.size());
+            for (Future<BatchResult.Entry> future : futures) {
+                try {
+                    entries.add(future.get());
+                } catch (ExecutionException e) {
+                    // applyBatchAction reports failures itself; this only covers unexpected errors
+                    entries.add(new BatchResult.Entry(targets.get(entries.size()), BatchResult.Outcome.FAILED,
+                            String.valueOf(e.getCause()), 0));
+                }
+            }
+            return new BatchResult(action, entries);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /*
+     * Applies one batch action to one VM. Never throws: failures become FAILED entries.
+     */
+    private BatchResult.Entry applyBatchAction(String name, BatchRequest.Action action, int escalateAfterSeconds) {
+        long started = System.currentTimeMillis();
+        BatchResult.Outcome outcome;
+        String message;
+        try {
+            VmInfo vm = inventory.get(name);
+            if (vm == null) {
+                outcome = BatchResult.Outcome.FAILED;
+                message = "Unknown VM";
+            } else if (action == BatchRequest.Action.START) {
+                if (vm.isRunning()) {
+                    outcome = BatchResult.Outcome.SKIPPED;
+                    message = "Already running";
+                } else {
+                    startVM(name);
+                    outcome = BatchResult.Outcome.SUCCEEDED;
+                    message = "Started";
+                }
+            } else if (!vm.isRunning()) {
+                outcome = BatchResult.Outcome.SKIPPED;
+                message = "Not running";
+            } else if (action == BatchRequest.Action.FORCE_SHUTDOWN) {
+                forceStopVM(name);
+                outcome = BatchResult.Outcome.SUCCEEDED;
+                message = "Destroyed";
+            } else {
+                stopVM(name);
+                if (escalateAfterSeconds <= 0) {
+                    outcome = BatchResult.Outcome.SUCCEEDED;
+                    message = "Shutdown requested";
+                } else if (waitForShutdown(name, escalateAfterSeconds * 1000L)) {
+                    outcome = BatchResult.Outcome.SUCCEEDED;
+                    message = "Shut down";
+                } else {
+                    // The guest ignored ACPI shutdown - escalate to destroy
+                    forceStopVM(name);
+                    outcome = BatchResult.Outcome.ESCALATED;
+                    message = "Destroyed after " + escalateAfterSeconds + "s shutdown timeout";
+                }
+            }
+        } catch (LibvirtException | InsufficientCapacityException e) {
+            outcome = BatchResult.Outcome.FAILED;
+            message = e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            outcome = BatchResult.Outcome.FAILED;
+            message = "Interrupted";
+        }
+        return new BatchResult.Entry(name, outcome, message, System.currentTimeMillis() - started);
+    }
+
+    /*
+     * Waits until the inventory (kept current by lifecycle events) reports the VM as stopped.
+     */
+    private boolean waitForShutdown(String name, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            VmInfo vm = inventory.get(name);
+            if (vm == null || !vm.isRunning()) {
+                return true;
+            }
+            Thread.sleep(SHUTDOWN_POLL_MILLIS);
+        }
+        return false;
+    }
+
+    private boolean hasLabel(String name, String selector) throws LibvirtException, XMLStreamException {
+        Map<String, String> labels = getDomainDescriptor(name).getLabels();
+        int separator = selector.indexOf('=');
+        if (separator < 0) {
+            return labels.containsKey(selector);
+        }
+        return selector.substring(separator + 1).equals(labels.get(selector.substring(0, separator)));
+    }
+
+    /*
+     * Converts a glob ("lab-*", "web-?") into a regular expression.
+     */
+    private static Pattern globPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (String part : glob.split("(?=[*?])|(?<=[*?])")) {
+            switch (part) {
+                case "*" -> regex.append(".*");
+                case "?" -> regex.append('.');
+                default -> regex.append(Pattern.quote(part));
+            }
+        }
+        return Pattern.compile(regex.toString());
     }
 
     /*
      * Creates a new virtual machine from an ISO image with specified resources.
+     * Progress is reported per step, since disk creation can take a while.
+     * The ISO is a path on the host or a pool/volume reference; the disk becomes a
+     * qcow2 volume in pool, or (without a pool) an image file in localPath.
+     * A null profile means kvm.domain.default-profile.
      */
-    public void createVMFromISO(String name, int memoryMB, int vcpus, String isoPath, Integer diskSize, String localPath)
-        throws LibvirtException {
-
-    // Create the disk image file at the specified location
-    String diskPath = localPath + "/" + name + ".qcow2";
-    createDiskImage(diskPath, diskSize);
-
-    String xml =
-        "<domain type='kvm'>" +
-        "  <name>" + name + "</name>" +
-        "  <memory unit='MiB'>" + memoryMB + "</memory>" +
-        "  <vcpu>" + vcpus + "</vcpu>" +
-        "  <os>" +
-        "    <type arch='x86_64'>hvm</type>" +
-        "    <boot dev='cdrom'/>" +
-        "  </os>" +
-        "  <devices>" +
-        "    <disk type='file' device='cdrom'>" +
-        "      <driver name='qemu' type='raw'/>" +
-        "      <source file='" + isoPath + "'/>" +
-        "      <target dev='hdc' bus='ide'/>" +
-        "      <readonly/>" +
-        "    </disk>" +
-        "    <disk type='file' device='disk'>" +
-        "      <driver name='qemu' type='qcow2'/>" +
-        "      <source file='" + diskPath + "'/>" +
-        "      <target dev='vda' bus='virtio'/>" +
-        "    </disk>" +
-        "    <interface type='network'>" +
-        "      <source network='default'/>" +
-        "      <model type='virtio'/>" +
-        "    </interface>" +
-        "    <graphics type='vnc' port='-1' autoport='yes'/>" +
-        "  </devices>" +
-        "</domain>";
-
-    connect.domainDefineXML(xml);
+    @Timed(value = "kvm.operation", extraTags = {"operation", "create-iso"}, histogram = true)
+    public void createVMFromISO(String name, int memoryMB, int vcpus, String isoPath, Integer diskSize, String localPath,
+                                String pool, DomainProfile profile, JobProgress progress)
+            throws LibvirtException, IOException, XMLStreamException, InsufficientCapacityException,
+                   InterruptedException {
+        boolean inPool = pool != null && !pool.isBlank();
+        if (!inPool && (localPath == null || localPath.isBlank())) {
+            throw new IllegalArgumentException("A storage pool or a local path is needed for the disk of " + name);
+        }
+        String host = placeNew(name, memoryMB, vcpus);
+        String isoSource = isoPath.startsWith("/") ? isoPath : storageService.resolvePath(host, isoPath);
+        DomainXmlBuilder domain = domainBuilder(host, name, memoryMB, vcpus, profile)
+                .cdrom(isoSource)
+                .bootFromCdrom(true);
+
+        // Create the disk; the full size counts against the filesystem until the image exists
+        String diskPath = inPool ? storageService.getPoolPath(host, pool) + "/" + name + ".qcow2"
+                : localPath + "/" + name + ".qcow2";
+        CapacityTracker.Reservation reservation = capacityTracker.reserve(host, 0, 0,
+                diskSize * BYTES_PER_GIB, diskPath, progress);
+        try {
+            if (inPool) {
+                // libvirtd creates the volume with the ownership QEMU needs
+                progress.update(10, "Creating " + diskSize + "G volume in pool " + pool);
+                diskPath = storageService.createDisk(host, pool, name + ".qcow2", diskSize * BYTES_PER_GIB);
+            } else {
+                progress.update(10, "Creating " + diskSize + "G disk image");
+                createDiskImage(diskPath, diskSize, progress);
+            }
+        } finally {
+            reservation.close();
+        }
+
+        progress.update(80, "Defining domain on " + host);
+        try {
+            defineXML(host, domain.disk(diskPath).build());
+        } catch (Exception e) {
+            // Left behind, the disk would make every retry under the same name fail
+            if (inPool) {
+                try {
+                    storageService.deleteVolume(host, pool, name + ".qcow2");
+                } catch (LibvirtException | RuntimeException cleanup) {
+                    e.addSuppressed(cleanup);
+                }
+            } else {
+                deleteImages(e, diskPath);
+            }
+            throw e;
+        }
+    }
+
+    private void defineXML(String host, String xml) throws LibvirtException {
+        Connect connect = hypervisors.connection(host);
+        libvirt.time("domainDefineXML", host, () -> connect.domainDefineXML(xml));
     }
 
     /*
      * Creates a qcow2 disk image file using qemu-img command.
+     * Failures are reported to the caller; only the permission fix-up is best effort.
      */
-    private void createDiskImage(String diskPath, Integer diskSize) throws LibvirtException {
+    private void createDiskImage(String diskPath, Integer diskSize, JobProgress progress) throws IOException {
+        DiskImages.create(diskPath, diskSize);
+
+        // Fix permissions so QEMU can access the disk
+        progress.update(60, "Setting disk image permissions");
+        DiskImages.fixOwnership(diskPath);
+    }
+
+    /*
+     * Creates a new virtual machine as a linked clone of a template: its disk is a
+     * qcow2 overlay backed by the template image, so no OS install is needed and
+     * clones share the base image's blocks in the host page cache. Memory, vCPUs
+     * and disk size default to the template's; a disk size above the template's
+     * grows the overlay (the guest grows its filesystem on first boot).
+     */
+    @Timed(value = "kvm.operation", extraTags = {"operation", "create-template"}, histogram = true)
+    public void createVMFromTemplate(String name, VmTemplate template, Integer memoryMB, Integer vcpus,
+                                     Integer diskSize, String localPath, CloudInitConfig cloudInit,
+                                     DomainProfile profile, JobProgress progress)
+            throws LibvirtException, IOException, XMLStreamException, InsufficientCapacityException {
+        int memory = memoryMB != null ? memoryMB : template.getMemoryMB();
+        int cpus = vcpus != null ? vcpus : template.getVcpus();
+        // Overlays are thin and start out tiny, so they do not reserve disk space
+        String host = placeNew(name, memory, cpus);
+        Integer overlaySize = null;
+        if (diskSize != null) {
+            long requested = diskSize * BYTES_PER_GIB;
+            if (requested < template.getVirtualSizeBytes()) {
+                throw new IllegalArgumentException("Disk size " + diskSize + "G is smaller than template "
+                        + template.getName());
+            }
+            if (requested > template.getVirtualSizeBytes()) {
+                overlaySize = diskSize;
+            }
+        }
+
+        String diskPath = localPath + "/" + name + ".qcow2";
+        if (Files.exists(Paths.get(diskPath))) {
+            throw new IOException("Disk image already exists: " + diskPath);
+        }
+        DomainXmlBuilder domain = domainBuilder(host, name, memory, cpus, profile)
+                .labels(Map.of(TEMPLATE_LABEL, template.getName()));
+        progress.update(10, "Creating overlay on template " + template.getName());
+        String seedPath = null;
         try {
-            // Use ProcessBuilder for safer command execution
-            ProcessBuilder pb = new ProcessBuilder(
-                "qemu-img", "create", "-f", "qcow2", diskPath, diskSize + "G"
-            );
-            Process process = pb.start();
-            
-            // Drain the output streams to prevent deadlock
-            process.getInputStream().transferTo(java.io.OutputStream.nullOutputStream());
-            process.getErrorStream().transferTo(System.err);
-            
-            int exitCode = process.waitFor();
-            if (exitCode != 0) {
-                throw new Exception("Failed to create disk image: qemu-img exited with code " + exitCode);
+            DiskImages.createOverlay(diskPath, template.getImagePath(), template.getFormat(), overlaySize);
+            DiskImages.fixOwnership(diskPath);
+
+            if (cloudInit != null && !cloudInit.isEmpty()) {
+                progress.update(40, "Writing cloud-init seed");
+                seedPath = localPath + "/" + name + "-seed.iso";
+                DiskImages.createSeed(seedPath, cloudInitMetaData(name, cloudInit), cloudInitUserData(cloudInit));
+                DiskImages.fixOwnership(seedPath);
+            }
+
+            progress.update(80, "Defining domain on " + host);
+            if (seedPath != null) {
+                domain.cdrom(seedPath);
+            }
+            defineXML(host, domain.disk(diskPath).build());
+        } catch (Exception e) {
+            // Left behind, the files would make every retry under the same name fail
+            deleteImages(e, diskPath, seedPath);
+            throw e;
+        }
+    }
+
+    /*
+     * Removes the images of a domain that failed to be created. Failures to
+     * delete are attached to the original error rather than replacing it.
+     */
+    private static void deleteImages(Exception cause, String... paths) {
+        for (String path : paths) {
+            if (path == null) {
+                continue;
             }
-            
-            // Fix permissions so QEMU can access the disk
             try {
-                ProcessBuilder chownPb = new ProcessBuilder(
-                    "sudo", "chown", "qemu:kvm", diskPath
-                );
-                Process chownProcess = chownPb.start();
-                chownProcess.getInputStream().transferTo(java.io.OutputStream.nullOutputStream());
-                chownProcess.getErrorStream().transferTo(System.err);
-                chownProcess.waitFor();
-                System.out.println("Set permissions on disk image: " + diskPath);
-            } catch (Exception e) {
-                System.err.println("Warning: Could not set permissions on disk image: " + e.getMessage());
+                Files.deleteIfExists(Paths.get(path));
+            } catch (IOException e) {
+                cause.addSuppressed(e);
             }
-            
-        } catch (Exception e) {}
+        }
+    }
+
+    /*
+     * Picks the host for a new domain. Rejects names already used anywhere in the
+     * pool (libvirt only checks its own host) and domains that could not start
+     * even on an otherwise idle host. Defining them only commits disk; memory and
+     * vCPUs are checked again on start.
+     */
+    private String placeNew(String name, int memoryMB, int vcpus) throws InsufficientCapacityException {
+        checkNameAvailable(name);
+        String host = hypervisors.place(memoryMB * 1024L, vcpus);
+        if (capacityTracker.evaluate(host, memoryMB * 1024L, vcpus, 0, null) == CapacityTracker.Decision.REJECT) {
+            throw new InsufficientCapacityException(name + " (" + memoryMB + " MiB, " + vcpus
+                    + " vCPUs) exceeds the capacity of every host");
+        }
+        return host;
+    }
+
+    public void checkNameAvailable(String name) {
+        if (inventory.get(name) != null) {
+            throw new IllegalArgumentException("A VM named " + name + " already exists");
+        }
+    }
+
+    /*
+     * Admission decision for creating a VM on the host it would be placed on,
+     * without reserving anything. The disk goes to pool if given, else to localPath.
+     */
+    public CapacityTracker.Decision evaluateCreate(int memoryMB, int vcpus, Integer diskSize, String localPath,
+                                                   String pool) {
+        String host = hypervisors.place(memoryMB * 1024L, vcpus);
+        if (capacityTracker.evaluate(host, memoryMB * 1024L, vcpus, 0, null) == CapacityTracker.Decision.REJECT) {
+            return CapacityTracker.Decision.REJECT;
+        }
+        String diskDirectory = localPath;
+        if (pool != null && !pool.isBlank()) {
+            try {
+                diskDirectory = storageService.getPoolPath(host, pool);
+            } catch (LibvirtException | XMLStreamException | StorageNotFoundException e) {
+                // Checked again by the job, which reports the error
+                diskDirectory = null;
+            }
+        }
+        long diskBytes = diskSize == null ? 0 : diskSize * BYTES_PER_GIB;
+        return capacityTracker.evaluate(host, 0, 0, diskBytes, diskDirectory);
+    }
+
+    public Map<String, Object> getCapacityStats() {
+        return capacityTracker.getStats();
+    }
+
+    /*
+     * Pre-provisions a stopped clone of a template for the warm pool: the overlay
+     * is created and the domain defined under a pool name, so handing it out later
+     * only takes a rename (see claimWarmDomain).
+     */
+    @Timed(value = "kvm.operation", extraTags = {"operation", "provision-warm"}, histogram = true)
+    public void provisionWarmDomain(String poolName, VmTemplate template, int memoryMB, int vcpus,
+                                    String localPath, String sizeClass)
+            throws LibvirtException, IOException, XMLStreamException {
+        String host = hypervisors.place(memoryMB * 1024L, vcpus);
+        // Pooled domains are never pinned: their placement would be stale by the time they are claimed
+        DomainXmlBuilder domain = domainBuilder(host, poolName, memoryMB, vcpus,
+                defaultProfile.isPinned() ? DomainProfile.THROUGHPUT : defaultProfile)
+                .labels(Map.of(TEMPLATE_LABEL, template.getName(), WARM_POOL_LABEL, sizeClass));
+        String diskPath = localPath + "/" + poolName + ".qcow2";
+        try {
+            DiskImages.createOverlay(diskPath, template.getImagePath(), template.getFormat(), null);
+            DiskImages.fixOwnership(diskPath);
+            defineXML(host, domain.disk(diskPath).build());
+        } catch (Exception e) {
+            // Each refill picks a new pool name, so a lasting failure would leave an overlay per attempt
+            deleteImages(e, diskPath);
+            throw e;
+        }
+    }
+
+    /*
+     * Hands a pooled domain out under its final name and drops its pool label.
+     * The disk keeps its pool file name; the domain XML is what ties them together.
+     */
+    @Timed(value = "kvm.operation", extraTags = {"operation", "claim-warm"}, histogram = true)
+    public void claimWarmDomain(String poolName, String name, String templateName)
+            throws LibvirtException, LibvirtNativeException, XMLStreamException {
+        try {
+            String host = hypervisors.hostOf(poolName);
+            Domain pooled = lookup(poolName);
+            libvirt.run("rename", host, () -> DomainConfig.rename(pooled, name));
+            Connect connect = hypervisors.connection(host);
+            Domain claimed = libvirt.time("domainLookupByName", host, () -> connect.domainLookupByName(name));
+            String metadata = DomainXmlBuilder.labelsMetadata(Map.of(TEMPLATE_LABEL, templateName));
+            libvirt.run("setMetadata", host, () -> DomainConfig.setMetadata(claimed, metadata, LABELS_PREFIX,
+                    DomainDescriptor.LABELS_NAMESPACE));
+        } finally {
+            // Metadata changes raise no lifecycle event
+            descriptorCache.invalidate(poolName);
+            descriptorCache.invalidate(name);
+        }
+    }
+
+    /*
+     * Returns the pooled (unclaimed) domains, by name, with their size class.
+     */
+    public Map<String, String> getWarmDomains() throws LibvirtException, XMLStreamException {
+        Map<String, String> pooled = new LinkedHashMap<>();
+        for (VmInfo vm : inventory.getAll()) {
+            if (isWarmPoolName(vm.getName())) {
+                String sizeClass = getDomainDescriptor(vm.getName()).getLabels().get(WARM_POOL_LABEL);
+                if (sizeClass != null) {
+                    pooled.put(vm.getName(), sizeClass);
+                }
+            }
+        }
+        return pooled;
+    }
+
+    public static boolean isWarmPoolName(String name) {
+        return name.startsWith(WARM_POOL_PREFIX);
+    }
+
+    /*
+     * Sets one of a VM's labels, or removes it when value is null, keeping the others.
+     * A running VM's live XML changes too, so the label takes effect right away.
+     */
+    public void setLabel(String name, String key, String value)
+            throws LibvirtException, LibvirtNativeException, XMLStreamException {
+        if (TEMPLATE_LABEL.equals(key) || WARM_POOL_LABEL.equals(key)) {
+            throw new IllegalArgumentException("Label " + key + " is managed by the server");
+        }
+        VmInfo vm = inventory.get(name);
+        if (vm == null) {
+            throw new IllegalArgumentException("Unknown VM: " + name);
+        }
+        Map<String, String> labels = new LinkedHashMap<>(getDomainDescriptor(name).getLabels());
+        if (value == null) {
+            labels.remove(key);
+        } else {
+            labels.put(key, value);
+        }
+        String metadata = labels.isEmpty() ? null : DomainXmlBuilder.labelsMetadata(labels);
+        try {
+            Domain domain = lookup(name);
+            libvirt.run("setMetadata", vm.getHost(), () -> DomainConfig.setMetadata(domain, metadata, LABELS_PREFIX,
+                    DomainDescriptor.LABELS_NAMESPACE, vm.isRunning()));
+        } finally {
+            // Metadata changes raise no lifecycle event
+            descriptorCache.invalidate(name);
+        }
+    }
+
+    /*
+     * Sets a running VM's balloon size in KiB, up to its maximum memory. Only the
+     * live domain changes; it starts with its full memory again.
+     */
+    public void setMemory(String name, long memoryKiB) throws LibvirtException {
+        Domain domain = lookup(name);
+        libvirt.run("setMemory", hypervisors.hostOf(name), () -> domain.setMemory(memoryKiB));
+    }
+
+    /*
+     * Makes a running VM's balloon driver report guest memory use every given number of seconds.
+     */
+    public void setMemoryStatsPeriod(String name, int seconds) throws LibvirtException, LibvirtNativeException {
+        Domain domain = lookup(name);
+        libvirt.run("setMemoryStatsPeriod", hypervisors.hostOf(name),
+                () -> DomainConfig.setMemoryStatsPeriod(domain, seconds));
+    }
+
+    /*
+     * Memory of a host not used by anything, guests included, in KiB.
+     */
+    public long getFreeMemoryKiB(String host) throws LibvirtException {
+        Connect connect = hypervisors.connection(host);
+        return libvirt.time("getFreeMemory", host, connect::getFreeMemory) / 1024;
+    }
+
+    /*
+     * Starts the XML of a new domain with the profile's tuning applied. Pinned
+     * profiles are placed on a NUMA cell here, before any disk is created, so a
+     * host that cannot fit the guest fails the job early.
+     */
+    private DomainXmlBuilder domainBuilder(String host, String name, int memoryMB, int vcpus, DomainProfile profile)
+            throws LibvirtException, XMLStreamException {
+        DomainProfile effective = profile != null ? profile : defaultProfile;
+        NumaPlacer.Placement placement = null;
+        if (effective.isPinned()) {
+            placement = numaPlacer(host).place(name, vcpus, memoryMB * 1024L, effective.isHugepages(),
+                    pinnedCpus(host));
+            if (effective.isHugepages() && placement.hugepageKiB == 0) {
+                log.warn("No hugepages reserved for {}, using regular pages", name);
+            }
+        }
+        return new DomainXmlBuilder(name)
+                .memoryMB(memoryMB)
+                .vcpus(vcpus)
+                .profile(effective, placement);
+    }
+
+    /*
+     * Reads a host's NUMA topology from the libvirt capabilities.
+     * The topology does not change while libvirtd runs, so it is read once per host.
+     */
+    public synchronized HostTopology getHostTopology(String host) throws LibvirtException, XMLStreamException {
+        HostTopology topology = hostTopologies.get(host);
+        if (topology == null) {
+            Connect connect = hypervisors.connection(host);
+            topology = HostCapabilitiesParser.parse(libvirt.time("getCapabilities", host, connect::getCapabilities));
+            hostTopologies.put(host, topology);
+        }
+        return topology;
+    }
+
+    /*
+     * vCPU pins of the domains defined on a host, by name, from their (cached)
+     * descriptors. A domain that disappears meanwhile is left out.
+     */
+    private Map<String, List<Integer>> pinnedCpus(String host) throws XMLStreamException {
+        Map<String, List<Integer>> pinned = new HashMap<>();
+        for (VmInfo vm : inventory.getAll()) {
+            if (!host.equals(vm.getHost())) {
+                continue;
+            }
+            try {
+                pinned.put(vm.getName(), getDomainDescriptor(vm.getName()).getPinnedCpus());
+            } catch (LibvirtException e) {
+                log.debug("Skipping pins of {}: {}", vm.getName(), e.getMessage());
+            }
+        }
+        return pinned;
+    }
+
+    private synchronized NumaPlacer numaPlacer(String host) throws LibvirtException, XMLStreamException {
+        NumaPlacer placer = numaPlacers.get(host);
+        if (placer == null) {
+            placer = new NumaPlacer(getHostTopology(host));
+            numaPlacers.put(host, placer);
+        }
+        return placer;
+    }
+
+
+    /*
+     * Returns the VMs cloned from a template, i.e. those whose disks depend on its image.
+     */
+    public List<String> getVMsUsingTemplate(String templateName) throws LibvirtException, XMLStreamException {
+        List<String> names = new ArrayList<>();
+        for (VmInfo vm : inventory.getAll()) {
+            if (templateName.equals(getDomainDescriptor(vm.getName()).getLabels().get(TEMPLATE_LABEL))) {
+                names.add(vm.getName());
+            }
+        }
+        return names;
+    }
+
+    private static String cloudInitMetaData(String name, CloudInitConfig cloudInit) {
+        String hostname = cloudInit.getHostname() != null && !cloudInit.getHostname().isBlank()
+                ? cloudInit.getHostname() : name;
+        return "instance-id: " + yamlString(name) + "\n"
+                + "local-hostname: " + yamlString(hostname) + "\n";
+    }
+
+    private static String cloudInitUserData(CloudInitConfig cloudInit) {
+        if (cloudInit.getUserData() != null && !cloudInit.getUserData().isBlank()) {
+            return cloudInit.getUserData();
+        }
+        StringBuilder userData = new StringBuilder("#cloud-config\n");
+        if (cloudInit.getHostname() != null && !cloudInit.getHostname().isBlank()) {
+            userData.append("hostname: ").append(yamlString(cloudInit.getHostname())).append('\n');
+        }
+        if (cloudInit.getSshAuthorizedKeys() != null && !cloudInit.getSshAuthorizedKeys().isEmpty()) {
+            userData.append("ssh_authorized_keys:\n");
+            for (String key : cloudInit.getSshAuthorizedKeys()) {
+                userData.append("  - ").append(yamlString(key.trim())).append('\n');
+            }
+        }
+        return userData.toString();
+    }
+
+    /*
+     * Double-quoted YAML scalar, safe for any single-line value.
+     */
+    private static String yamlString(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    /*
+     * Address the VM's VNC server is reached at: the console host of the hypervisor owning it.
+     */
+    public String getVncHost(String vmName) {
+        return hypervisors.getConsoleHost(hypervisors.hostOf(vmName));
+    }
+
+    public List<Map<String, Object>> getHypervisorStatus() {
+        return hypervisors.getStatus();
     }
 
     /*
      * Retrieves the VNC port number for a given VM by its name.
-     * FIXED: Now properly parses the port number from XML using regex.
+     * Read from the cached domain descriptor, so repeated lookups (details page,
+     * WebSocket handshakes) do not fetch the domain XML again.
      */
     public int getVNCPortByName(String vmName) throws Exception {
-        // Look up the Domain object by its configured name
-        Domain domain = connect.domainLookupByName(vmName);
-        
-        // Get the VM's XML configuration
-        String xmlDesc = domain.getXMLDesc(0);
-        
-        // Use regex to extract the VNC port from the graphics tag
-        // Pattern matches: <graphics type='vnc' ... port='5901' ...>
-        Pattern pattern = Pattern.compile("<graphics type='vnc'[^>]*port='(\\d+)'");
-        Matcher matcher = pattern.matcher(xmlDesc);
-        
-        if (matcher.find()) {
-            String portStr = matcher.group(1);
-            int port = Integer.parseInt(portStr);
-            
-            System.out.println("Found VNC port for " + vmName + ": " + port);
-            
-            // If port is -1, it means auto-assigned
-            if (port == -1) {
-                // For running VMs, calculate from domain ID
-                try {
-                    port = 5900 + domain.getID();
-                    System.out.println("Auto-assigned port calculated as: " + port);
-                } catch (Exception e) {
-                    throw new Exception("VNC port auto-assigned but VM not running");
-                }
+        DomainDescriptor descriptor = getDomainDescriptor(vmName);
+
+        if (descriptor.getVncGraphics() == null) {
+            throw new Exception("Unable to determine VNC port for VM: " + vmName);
+        }
+
+        int port = descriptor.getVncPort();
+
+        // If port is -1, it means auto-assigned
+        if (port == -1) {
+            // For running VMs, calculate from domain ID
+            if (descriptor.getId() < 0) {
+                throw new Exception("VNC port auto-assigned but VM not running");
             }
-            
-            return port;
+            port = 5900 + descriptor.getId();
+            log.debug("Auto-assigned VNC port of {} calculated as {}", vmName, port);
         }
-        
-        throw new Exception("Unable to determine VNC port for VM: " + vmName);
+
+        return port;
     }
 }
@@ -0,0 +1,14 @@
+package com.example.kvm.service;
+
+/*
+ * Raised when a libvirt call was handed to its bulkhead but did not return
+ * in time. Unlike a call rejected for a busy bulkhead, it may still complete
+ * in the background, so callers holding state for it (such as a start
+ * reservation) cannot assume it had no effect.
+ */
+public class LibvirtCallTimeoutException extends HypervisorUnavailableException {
+
+    public LibvirtCallTimeoutException(String message) {
+        super(message);
+    }
+}
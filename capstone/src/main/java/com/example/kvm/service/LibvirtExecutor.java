@@ -0,0 +1,275 @@
+package com.example.kvm.service;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import jakarta.annotation.PreDestroy;
+
+/*
+ * Runs libvirt calls behind bulkheads and records their latency.
+ *
+ * Calls are split into classes - reads, mutations and bulk data transfers -
+ * each with its own bounded set of worker threads (kvm.libvirt.<class>.max-concurrent),
+ * so a burst of slow mutations cannot take every thread that reads need, and
+ * the number of threads inside libvirt at once is bounded no matter how many
+ * requests arrive. A caller that finds its bulkhead full for longer than
+ * kvm.libvirt.queue-timeout-ms, or whose call runs past the class's timeout,
+ * gets a HypervisorUnavailableException (HTTP 503) instead of a hung thread.
+ * A timed-out call keeps its worker until libvirt returns, as libvirt calls
+ * cannot be interrupted; that is what keeps the bound honest.
+ *
+ * Latency is the libvirt.call timer tagged with the call, the hypervisor host
+ * and whether it failed, measured on the worker, so it separates time spent in
+ * libvirtd from bulkhead queueing, the manager's own work (kvm.operation) and
+ * the console proxy.
+ */
+@Component
+public class LibvirtExecutor {
+
+    /*
+     * Bulkhead a call runs in, with the defaults for its limit and timeout
+     * (seconds, 0 for none).
+     */
+    public enum CallClass {
+        READ(16, 30),
+        MUTATION(8, 120),
+        // Calls that copy whole volumes; they take as long as the data takes
+        TRANSFER(4, 0);
+
+        private final int defaultLimit;
+        private final int defaultTimeoutSeconds;
+
+        CallClass(int defaultLimit, int defaultTimeoutSeconds) {
+            this.defaultLimit = defaultLimit;
+            this.defaultTimeoutSeconds = defaultTimeoutSeconds;
+        }
+
+        public String getKey() {
+            return name().toLowerCase();
+        }
+    }
+
+    /*
+     * One libvirt call; E is the checked exception it throws.
+     */
+    @FunctionalInterface
+    public interface Call<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    /*
+     * A libvirt call without a result.
+     */
+    @FunctionalInterface
+    public interface VoidCall<E extends Exception> {
+        void run() throws E;
+    }
+
+    // Calls not listed here are reads
+    private static final Map<String, CallClass> CALL_CLASSES = Map.ofEntries(
+            Map.entry("create", CallClass.MUTATION),
+            Map.entry("shutdown", CallClass.MUTATION),
+            Map.entry("destroy", CallClass.MUTATION),
+            Map.entry("undefine", CallClass.MUTATION),
+            Map.entry("domainDefineXML", CallClass.MUTATION),
+            Map.entry("rename", CallClass.MUTATION),
+            Map.entry("setMetadata", CallClass.MUTATION),
+            Map.entry("setMemory", CallClass.MUTATION),
+            Map.entry("setMemoryStatsPeriod", CallClass.MUTATION),
+            Map.entry("backupBegin", CallClass.MUTATION),
+            Map.entry("abortJob", CallClass.MUTATION),
+            Map.entry("storagePoolRefresh", CallClass.MUTATION),
+            Map.entry("storageVolCreateXML", CallClass.MUTATION),
+            Map.entry("storageVolDelete", CallClass.MUTATION),
+            Map.entry("storageVolCreateXMLFrom", CallClass.TRANSFER));
+
+    // Set on bulkhead workers, whose nested calls run inline instead of waiting on their own bulkhead
+    private static final ThreadLocal<Boolean> IN_BULKHEAD = ThreadLocal.withInitial(() -> false);
+
+    private final MeterRegistry registry;
+    private final Map<CallClass, Bulkhead> bulkheads = new EnumMap<>(CallClass.class);
+    private final long queueTimeoutMillis;
+
+    public LibvirtExecutor(MeterRegistry registry, Environment environment,
+                           @Value("${kvm.libvirt.queue-timeout-ms:2000}") long queueTimeoutMillis) {
+        this.registry = registry;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        for (CallClass callClass : CallClass.values()) {
+            String key = "kvm.libvirt." + callClass.getKey() + ".";
+            int limit = Math.max(1, environment.getProperty(key + "max-concurrent", Integer.class,
+                    callClass.defaultLimit));
+            int timeoutSeconds = environment.getProperty(key + "timeout-seconds", Integer.class,
+                    callClass.defaultTimeoutSeconds);
+            Bulkhead bulkhead = new Bulkhead(callClass, limit, timeoutSeconds);
+            bulkheads.put(callClass, bulkhead);
+            Gauge.builder("libvirt.bulkhead.active", bulkhead, Bulkhead::active)
+                    .description("libvirt calls of a class holding a bulkhead slot, including timed-out ones")
+                    .tag("class", callClass.getKey())
+                    .register(registry);
+        }
+    }
+
+    public <E extends Exception> void run(String call, String host, VoidCall<E> work) throws E {
+        time(call, host, () -> {
+            work.run();
+            return null;
+        });
+    }
+
+    public <T, E extends Exception> T time(String call, String host, Call<T, E> work) throws E {
+        if (IN_BULKHEAD.get()) {
+            return record(call, host, work);
+        }
+        Bulkhead bulkhead = bulkheads.get(CALL_CLASSES.getOrDefault(call, CallClass.READ));
+        try {
+            if (!bulkhead.permits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw rejected(bulkhead, "busy", new HypervisorUnavailableException("Too many libvirt "
+                        + bulkhead.callClass.getKey() + " calls in progress; " + call + " on " + host
+                        + " was not started"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HypervisorUnavailableException("Interrupted while waiting to call " + call + " on " + host);
+        }
+
+        Future<T> future;
+        try {
+            future = bulkhead.executor.submit(() -> {
+                IN_BULKHEAD.set(true);
+                try {
+                    return record(call, host, work);
+                } finally {
+                    IN_BULKHEAD.set(false);
+                    bulkhead.permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            bulkhead.permits.release();
+            throw new HypervisorUnavailableException("libvirt executor is shut down");
+        }
+
+        try {
+            return bulkhead.timeoutSeconds > 0 ? future.get(bulkhead.timeoutSeconds, TimeUnit.SECONDS) : future.get();
+        } catch (ExecutionException e) {
+            throw LibvirtExecutor.<E>rethrow(e.getCause());
+        } catch (TimeoutException e) {
+            throw rejected(bulkhead, "timeout", new LibvirtCallTimeoutException("libvirt call " + call + " on "
+                    + host + " did not return within " + bulkhead.timeoutSeconds + "s"));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HypervisorUnavailableException("Interrupted while waiting for " + call + " on " + host);
+        }
+    }
+
+    /*
+     * Times a call on the calling thread, outside the bulkheads. Only for
+     * connection management (opening connections, liveness probes), which must
+     * keep working while the bulkheads are full - that is when a host is most
+     * likely in trouble.
+     */
+    public <T, E extends Exception> T direct(String call, String host, Call<T, E> work) throws E {
+        return record(call, host, work);
+    }
+
+    private <T, E extends Exception> T record(String call, String host, Call<T, E> work) throws E {
+        long started = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = work.run();
+            failed = false;
+            return result;
+        } finally {
+            Timer.builder("libvirt.call")
+                    .description("Latency of libvirt API calls")
+                    .tag("call", call)
+                    .tag("host", host)
+                    .tag("outcome", failed ? "error" : "success")
+                    .publishPercentileHistogram()
+                    .register(registry)
+                    .record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private HypervisorUnavailableException rejected(Bulkhead bulkhead, String reason,
+                                                    HypervisorUnavailableException exception) {
+        Counter.builder("libvirt.bulkhead.rejected")
+                .description("libvirt calls failed fast because their bulkhead was full or the call timed out")
+                .tag("class", bulkhead.callClass.getKey())
+                .tag("reason", reason)
+                .register(registry)
+                .increment();
+        return exception;
+    }
+
+    /*
+     * The worker only throws E or unchecked exceptions, so the cast holds.
+     */
+    @SuppressWarnings("unchecked")
+    private static <E extends Exception> E rethrow(Throwable cause) {
+        if (cause instanceof RuntimeException runtime) {
+            throw runtime;
+        }
+        if (cause instanceof Error error) {
+            throw error;
+        }
+        return (E) cause;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            bulkhead.executor.shutdown();
+        }
+    }
+
+    /*
+     * Worker threads of one call class. The semaphore admits at most as many
+     * calls as there are threads, so the queue never holds more than a hand-over.
+     */
+    private static final class Bulkhead {
+
+        final CallClass callClass;
+        final int limit;
+        final int timeoutSeconds;
+        final Semaphore permits;
+        final ThreadPoolExecutor executor;
+
+        Bulkhead(CallClass callClass, int limit, int timeoutSeconds) {
+            this.callClass = callClass;
+            this.limit = limit;
+            this.timeoutSeconds = timeoutSeconds;
+            this.permits = new Semaphore(limit);
+            AtomicInteger threadCount = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(limit, limit, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "libvirt-" + callClass.getKey() + "-"
+                                + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+
+        int active() {
+            return limit - permits.availablePermits();
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.example.kvm.service;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.example.kvm.model.Job;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import jakarta.annotation.PreDestroy;
+
+/*
+ * Pushes VM state and job changes to connected dashboards over Server-Sent Events.
+ *
+ * A new subscriber first gets a "snapshot" event (all VMs and recent jobs), then
+ * a "domain" event for every applied lifecycle change, a "job" event for every
+ * job update and a "thumbnail" event when a console preview has changed.
+ * Browsers reconnect on their own and are sent a fresh snapshot, so nothing is
+ * replayed.
+ *
+ * Events arrive on the libvirt event loop and job worker threads, which must not
+ * block, so they are only queued there: every subscriber has its own bounded
+ * outbox (kvm.events.buffer), drained by a small pool of sender threads. A
+ * subscriber whose outbox overflows, or whose send has been stuck for longer
+ * than kvm.events.send-timeout-ms, is dropped; it reconnects and starts over
+ * with a snapshot. One slow browser therefore costs at most one sender thread
+ * and its own buffer, never the other subscribers' updates or unbounded memory.
+ * Job updates are coalesced per job: a burst of progress reports becomes one
+ * event.
+ */
+@Component
+public class LiveEventHub {
+
+    // Jobs included in the snapshot, matching the index page
+    private static final int SNAPSHOT_JOBS = 10;
+
+    private static final Logger log = LoggerFactory.getLogger(LiveEventHub.class);
+
+    private final DomainInventory inventory;
+    private final JobService jobService;
+    private final ThumbnailService thumbnailService;
+    private final long timeoutMillis;
+    private final int bufferSize;
+    private final long sendTimeoutNanos;
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    // Runs subscriber drains and job flushes. A subscriber has at most one drain queued,
+    // so the queue bound only matters with more subscribers than it holds
+    private final ThreadPoolExecutor dispatcher;
+    private final Counter dropped;
+
+    // Jobs changed since the last flush, keyed by ID
+    private final Map<String, Job> changedJobs = new ConcurrentHashMap<>();
+    private final AtomicBoolean jobFlushQueued = new AtomicBoolean();
+
+    public LiveEventHub(DomainInventory inventory, JobService jobService, ThumbnailService thumbnailService,
+                        MeterRegistry registry,
+                        @Value("${kvm.events.timeout-minutes:30}") long timeoutMinutes,
+                        @Value("${kvm.events.senders:4}") int senders,
+                        @Value("${kvm.events.buffer:64}") int bufferSize,
+                        @Value("${kvm.events.send-timeout-ms:10000}") long sendTimeoutMillis,
+                        @Value("${kvm.events.max-pending:1024}") int maxPending) {
+        this.inventory = inventory;
+        this.jobService = jobService;
+        this.thumbnailService = thumbnailService;
+        this.timeoutMillis = TimeUnit.MINUTES.toMillis(timeoutMinutes);
+        this.bufferSize = Math.max(1, bufferSize);
+        this.sendTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeoutMillis);
+        int threads = Math.max(1, senders);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.dispatcher = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(Math.max(1, maxPending)), runnable -> {
+                    Thread thread = new Thread(runnable, "kvm-live-events-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        new ExecutorServiceMetrics(dispatcher, "kvm.live-events", Tags.empty()).bindTo(registry);
+        this.dropped = Counter.builder("kvm.live-events.dropped")
+                .description("Event stream subscribers dropped for falling behind")
+                .register(registry);
+    }
+
+    /*
+     * Opens a stream for one browser. It is closed after kvm.events.timeout-minutes
+     * (the browser reconnects), when a send fails or when the browser falls behind.
+     */
+    public SseEmitter subscribe() {
+        SseEmitter emitter = new SseEmitter(timeoutMillis);
+        Subscriber subscriber = new Subscriber(emitter, bufferSize);
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        emitter.onError(e -> subscribers.remove(subscriber));
+        subscribers.add(subscriber);
+        // The first drain sends the snapshot, ahead of anything queued meanwhile
+        schedule(subscriber);
+        return emitter;
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    @EventListener
+    public void onDomainChanged(DomainChangedEvent event) {
+        // Unclaimed warm pool domains are not shown as VMs
+        if (subscribers.isEmpty() || KvmService.isWarmPoolName(event.getName())) {
+            return;
+        }
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("name", event.getName());
+        data.put("event", event.getType());
+        data.put("vm", event.getCurrent());
+        broadcast(SseEmitter.event().name("domain").data(data));
+    }
+
+    @EventListener
+    public void onJobChanged(JobChangedEvent event) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        changedJobs.put(event.getJob().getId(), event.getJob());
+        if (jobFlushQueued.compareAndSet(false, true)) {
+            try {
+                dispatcher.execute(this::flushJobs);
+            } catch (RejectedExecutionException e) {
+                // The next job update tries again
+                jobFlushQueued.set(false);
+            }
+        }
+    }
+
+    @EventListener
+    public void onThumbnailChanged(ThumbnailChangedEvent event) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("name", event.getName());
+        data.put("etag", event.getEtag());
+        broadcast(SseEmitter.event().name("thumbnail").data(data));
+    }
+
+    /*
+     * Comment line keeping idle streams open through proxies, and noticing closed
+     * or stuck browsers.
+     */
+    @Scheduled(fixedDelayString = "${kvm.events.heartbeat-ms:15000}")
+    public void heartbeat() {
+        long now = System.nanoTime();
+        for (Subscriber subscriber : subscribers) {
+            long since = subscriber.sendingSince;
+            if (since != 0 && now - since > sendTimeoutNanos) {
+                drop(subscriber, "send timed out");
+            }
+        }
+        if (!subscribers.isEmpty()) {
+            broadcast(SseEmitter.event().comment("heartbeat"));
+        }
+    }
+
+    private void flushJobs() {
+        jobFlushQueued.set(false);
+        for (String id : changedJobs.keySet()) {
+            Job job = changedJobs.remove(id);
+            if (job != null) {
+                broadcast(SseEmitter.event().name("job").data(job));
+            }
+        }
+    }
+
+    private Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("vms", inventory.getAll().stream().filter(vm -> !KvmService.isWarmPoolName(vm.getName()))
+                .toList());
+        snapshot.put("jobs", jobService.list(false, SNAPSHOT_JOBS));
+        snapshot.put("thumbnails", thumbnailService.getEtags());
+        return snapshot;
+    }
+
+    /*
+     * Queues an event for every subscriber. Never blocks: a full outbox drops
+     * its subscriber instead.
+     */
+    private void broadcast(SseEmitter.SseEventBuilder builder) {
+        // Built once: a builder appends its terminator again on every build()
+        Set<ResponseBodyEmitter.DataWithMediaType> event = builder.build();
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.outbox.offer(event)) {
+                schedule(subscriber);
+            } else {
+                drop(subscriber, "buffer full");
+            }
+        }
+    }
+
+    private void schedule(Subscriber subscriber) {
+        if (subscriber.scheduled.compareAndSet(false, true)) {
+            try {
+                dispatcher.execute(() -> drain(subscriber));
+            } catch (RejectedExecutionException e) {
+                subscriber.scheduled.set(false);
+                drop(subscriber, "too many pending sends");
+            }
+        }
+    }
+
+    /*
+     * Sends a subscriber's queued events on a sender thread. At most one drain
+     * per subscriber runs at a time, which keeps its events in order.
+     */
+    private void drain(Subscriber subscriber) {
+        try {
+            if (!subscriber.snapshotSent) {
+                subscriber.snapshotSent = true;
+                send(subscriber, SseEmitter.event().name("snapshot").data(snapshot()).build());
+            }
+            Set<ResponseBodyEmitter.DataWithMediaType> event;
+            while (!subscriber.dropped && (event = subscriber.outbox.poll()) != null) {
+                send(subscriber, event);
+            }
+        } finally {
+            subscriber.scheduled.set(false);
+        }
+        // An event queued after the last poll but before the flag was cleared
+        if (!subscriber.dropped && !subscriber.outbox.isEmpty()) {
+            schedule(subscriber);
+        }
+    }
+
+    private void send(Subscriber subscriber, Set<ResponseBodyEmitter.DataWithMediaType> event) {
+        subscriber.sendingSince = System.nanoTime();
+        try {
+            subscriber.emitter.send(event);
+        } catch (IOException | IllegalStateException e) {
+            // The browser went away; completing the emitter removes it
+            subscribers.remove(subscriber);
+            subscriber.dropped = true;
+            subscriber.emitter.completeWithError(e);
+        } finally {
+            subscriber.sendingSince = 0;
+        }
+    }
+
+    /*
+     * Stops sending to a subscriber that fell behind. A send stuck in the
+     * servlet container holds the emitter's lock, so the emitter is only
+     * completed when nothing is being sent; otherwise the stuck send fails on
+     * its own once the container gives up on the connection.
+     */
+    private void drop(Subscriber subscriber, String reason) {
+        if (!subscribers.remove(subscriber)) {
+            return;
+        }
+        subscriber.dropped = true;
+        subscriber.outbox.clear();
+        dropped.increment();
+        log.debug("Dropping event stream subscriber: {}", reason);
+        if (subscriber.sendingSince == 0) {
+            subscriber.emitter.complete();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dispatcher.shutdownNow();
+        for (Subscriber subscriber : subscribers) {
+            subscriber.emitter.complete();
+        }
+    }
+
+    /*
+     * One connected browser and the events not yet sent to it.
+     */
+    private static final class Subscriber {
+
+        final SseEmitter emitter;
+        final BlockingQueue<Set<ResponseBodyEmitter.DataWithMediaType>> outbox;
+        // Set while a drain is queued or running
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        // Only touched by the drain, which runs on one thread at a time
+        boolean snapshotSent;
+        volatile boolean dropped;
+        // System.nanoTime() when the current send started, 0 when idle
+        volatile long sendingSince;
+
+        Subscriber(SseEmitter emitter, int bufferSize) {
+            this.emitter = emitter;
+            this.outbox = new ArrayBlockingQueue<>(bufferSize);
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package com.example.kvm.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.libvirt.DomainInfo.DomainState;
+import org.libvirt.LibvirtException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.example.kvm.libvirt.LibvirtNativeException;
+import com.example.kvm.model.BalloonAdjustment;
+import com.example.kvm.model.DomainStats;
+import com.example.kvm.model.VmInfo;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/*
+ * Right-sizes the memory of running VMs through their balloon drivers.
+ *
+ * Only VMs labelled balloon=auto take part. Every round reads the balloon and
+ * guest memory statistics of all VMs (one bulk stats call per host), takes the
+ * memory a guest actually uses - what it sees minus what it could use without
+ * swapping, page cache included - and aims its balloon at that plus
+ * kvm.balloon.headroom-percent, never below kvm.balloon.min-memory-mb nor
+ * above the VM's maximum memory. Targets within kvm.balloon.hysteresis-percent
+ * of the current size are left alone. Growing happens at once, as long as the
+ * host keeps kvm.balloon.host-free-target-mb free, hungriest guests first.
+ * Shrinking waits until a VM has been oversized for kvm.balloon.shrink-after
+ * rounds in a row and then gives back at most kvm.balloon.max-step-mb per
+ * round, so a guest that just freed its cache is not squeezed immediately;
+ * while a host is below its free-memory target, oversized VMs shrink without
+ * waiting.
+ *
+ * Changes are live only: a VM starts with its full memory again, and admission
+ * control still counts maximum memory (see CapacityTracker), so the balancer
+ * is what makes a kvm.capacity.memory-overcommit above 1 safe. In dry-run mode
+ * the same decisions are made and audited, but not applied. Every decision is
+ * appended to the audit log (JSON lines) and kept in memory for the REST API.
+ */
+@Service
+public class MemoryBalancer {
+
+    private static final Logger log = LoggerFactory.getLogger(MemoryBalancer.class);
+
+    // Label opting a VM in, with the value AUTO_VALUE
+    public static final String LABEL = "balloon";
+    public static final String AUTO_VALUE = "auto";
+
+    private static final long KIB_PER_MIB = 1024;
+
+    private final KvmService kvmService;
+    private final DomainInventory inventory;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry registry;
+    private final boolean enabled;
+    private final boolean dryRun;
+    private final int headroomPercent;
+    private final int hysteresisPercent;
+    private final long minMemoryKiB;
+    private final long maxStepKiB;
+    private final int shrinkAfter;
+    private final long hostFreeTargetKiB;
+    private final int statsPeriodSeconds;
+    private final Path auditFile;
+    private final int auditEntries;
+
+    // Most recent adjustments, newest first
+    private final ConcurrentLinkedDeque<BalloonAdjustment> recent = new ConcurrentLinkedDeque<>();
+
+    // Only touched by balance(), which is synchronized
+    private final Map<String, Integer> oversizedRounds = new HashMap<>();
+    private final Set<String> statsRequested = new HashSet<>();
+
+    private volatile Map<String, Object> lastRound = Map.of();
+
+    public MemoryBalancer(KvmService kvmService, DomainInventory inventory, ObjectMapper objectMapper,
+                          MeterRegistry registry,
+                          @Value("${kvm.balloon.enabled:false}") boolean enabled,
+                          @Value("${kvm.balloon.dry-run:true}") boolean dryRun,
+                          @Value("${kvm.balloon.headroom-percent:20}") int headroomPercent,
+                          @Value("${kvm.balloon.hysteresis-percent:10}") int hysteresisPercent,
+                          @Value("${kvm.balloon.min-memory-mb:512}") long minMemoryMB,
+                          @Value("${kvm.balloon.max-step-mb:1024}") long maxStepMB,
+                          @Value("${kvm.balloon.shrink-after:3}") int shrinkAfter,
+                          @Value("${kvm.balloon.host-free-target-mb:4096}") long hostFreeTargetMB,
+                          @Value("${kvm.balloon.stats-period-seconds:10}") int statsPeriodSeconds,
+                          @Value("${kvm.balloon.audit-file:balloon-audit.jsonl}") String auditFile,
+                          @Value("${kvm.balloon.audit-entries:200}") int auditEntries) {
+        this.kvmService = kvmService;
+        this.inventory = inventory;
+        this.objectMapper = objectMapper;
+        this.registry = registry;
+        this.enabled = enabled;
+        this.dryRun = dryRun;
+        this.headroomPercent = Math.max(0, headroomPercent);
+        this.hysteresisPercent = Math.max(0, hysteresisPercent);
+        this.minMemoryKiB = Math.max(1, minMemoryMB) * KIB_PER_MIB;
+        this.maxStepKiB = Math.max(1, maxStepMB) * KIB_PER_MIB;
+        this.shrinkAfter = Math.max(1, shrinkAfter);
+        this.hostFreeTargetKiB = Math.max(0, hostFreeTargetMB) * KIB_PER_MIB;
+        this.statsPeriodSeconds = Math.max(1, statsPeriodSeconds);
+        this.auditFile = Paths.get(auditFile);
+        this.auditEntries = Math.max(1, auditEntries);
+    }
+
+    @Scheduled(initialDelayString = "${kvm.balloon.interval-ms:30000}",
+               fixedDelayString = "${kvm.balloon.interval-ms:30000}")
+    public void scheduledRound() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            balance(dryRun);
+        } catch (Exception e) {
+            log.warn("Memory balancing round failed: {}", e.getMessage());
+        }
+    }
+
+    /*
+     * Runs one round over all hosts and returns the adjustments it made, or
+     * would have made in dry-run mode.
+     */
+    public synchronized List<BalloonAdjustment> balance(boolean dryRun) throws LibvirtNativeException {
+        long started = System.currentTimeMillis();
+        Map<String, List<Candidate>> byHost = new LinkedHashMap<>();
+        List<Map<String, Object>> vms = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (DomainStats stats : kvmService.getAllDomainStats()) {
+            if (stats.getState() != DomainState.VIR_DOMAIN_RUNNING || KvmService.isWarmPoolName(stats.getName())
+                    || !isManaged(stats.getName())) {
+                continue;
+            }
+            seen.add(stats.getName());
+            Candidate candidate = evaluate(stats, started);
+            vms.add(candidate.status);
+            if (candidate.usedKiB >= 0) {
+                byHost.computeIfAbsent(stats.getHost(), host -> new ArrayList<>()).add(candidate);
+            }
+        }
+        // Forget VMs that stopped or opted out, so they start over
+        oversizedRounds.keySet().retainAll(seen);
+        statsRequested.retainAll(seen);
+
+        List<BalloonAdjustment> adjustments = new ArrayList<>();
+        List<Map<String, Object>> hosts = new ArrayList<>();
+        for (Map.Entry<String, List<Candidate>> entry : byHost.entrySet()) {
+            hosts.add(balanceHost(entry.getKey(), entry.getValue(), dryRun, adjustments));
+        }
+
+        Map<String, Object> round = new LinkedHashMap<>();
+        round.put("time", started);
+        round.put("durationMillis", System.currentTimeMillis() - started);
+        round.put("dryRun", dryRun);
+        round.put("hosts", hosts);
+        round.put("vms", vms);
+        lastRound = round;
+        return adjustments;
+    }
+
+    /*
+     * Works out the balloon target of one VM from its latest statistics.
+     */
+    private Candidate evaluate(DomainStats stats, long now) {
+        Candidate candidate = new Candidate(stats);
+        long reclaimable = stats.getBalloonUsableKiB() > 0 ? stats.getBalloonUsableKiB() : stats.getBalloonUnusedKiB();
+        long ageSeconds = TimeUnit.MILLISECONDS.toSeconds(now) - stats.getBalloonLastUpdate();
+        if (stats.getBalloonAvailableKiB() <= 0 || reclaimable <= 0 || stats.getBalloonMaximumKiB() <= 0) {
+            requestStats(stats.getName());
+            candidate.hold("waiting for guest memory statistics (virtio balloon driver)");
+            return candidate;
+        }
+        if (stats.getBalloonLastUpdate() > 0 && ageSeconds > 3L * statsPeriodSeconds + 60) {
+            candidate.hold("guest memory statistics are " + ageSeconds + "s old");
+            return candidate;
+        }
+
+        long current = stats.getBalloonCurrentKiB();
+        long maximum = stats.getBalloonMaximumKiB();
+        long used = Math.max(0, stats.getBalloonAvailableKiB() - reclaimable);
+        long desired = roundUpToMiB(used + used * headroomPercent / 100);
+        desired = Math.min(maximum, Math.max(Math.min(minMemoryKiB, maximum), desired));
+        long band = current * hysteresisPercent / 100;
+
+        candidate.usedKiB = used;
+        candidate.desiredKiB = desired;
+        candidate.status.put("usedKiB", used);
+        candidate.status.put("desiredKiB", desired);
+        if (desired > current + band || (desired > current && current < minMemoryKiB)) {
+            oversizedRounds.remove(stats.getName());
+            candidate.grow = true;
+        } else if (desired < current - band) {
+            candidate.oversizedRounds = oversizedRounds.merge(stats.getName(), 1, Integer::sum);
+            candidate.shrink = true;
+        } else {
+            oversizedRounds.remove(stats.getName());
+            candidate.hold("within hysteresis");
+        }
+        return candidate;
+    }
+
+    /*
+     * Shrinks oversized VMs, then grows the starved ones as far as the host's
+     * free-memory target allows.
+     */
+    private Map<String, Object> balanceHost(String host, List<Candidate> candidates, boolean dryRun,
+                                            List<BalloonAdjustment> adjustments) {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("host", host);
+        status.put("freeTargetKiB", hostFreeTargetKiB);
+        long freeKiB;
+        try {
+            freeKiB = kvmService.getFreeMemoryKiB(host);
+        } catch (Exception e) {
+            log.warn("Cannot read free memory of hypervisor {}, not balancing it: {}", host, e.getMessage());
+            status.put("error", e.getMessage());
+            for (Candidate candidate : candidates) {
+                candidate.hold("host free memory unknown");
+            }
+            return status;
+        }
+        status.put("freeKiB", freeKiB);
+        boolean belowTarget = freeKiB < hostFreeTargetKiB;
+
+        for (Candidate candidate : candidates) {
+            if (!candidate.shrink) {
+                continue;
+            }
+            if (candidate.oversizedRounds < shrinkAfter && !belowTarget) {
+                candidate.hold("oversized for " + candidate.oversizedRounds + " of " + shrinkAfter + " rounds");
+                continue;
+            }
+            long target = Math.max(candidate.desiredKiB, candidate.currentKiB - maxStepKiB);
+            String reason = "guest uses " + candidate.usedKiB / KIB_PER_MIB + " MiB"
+                    + (belowTarget ? ", host below free-memory target" : "");
+            adjustments.add(adjust(host, candidate, target, reason, dryRun));
+            oversizedRounds.remove(candidate.name);
+        }
+
+        // Memory freed by shrinking only shows up once the guests have handed it back
+        long budget = freeKiB - hostFreeTargetKiB;
+        List<Candidate> growing = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            if (candidate.grow) {
+                growing.add(candidate);
+            }
+        }
+        growing.sort(Comparator.comparingDouble(Candidate::pressure).reversed());
+        for (Candidate candidate : growing) {
+            if (budget < KIB_PER_MIB) {
+                candidate.hold("host at its free-memory target");
+                continue;
+            }
+            long grant = Math.min(candidate.desiredKiB - candidate.currentKiB, budget);
+            long target = roundDownToMiB(candidate.currentKiB + grant);
+            if (target <= candidate.currentKiB) {
+                candidate.hold("host at its free-memory target");
+                continue;
+            }
+            budget -= target - candidate.currentKiB;
+            String reason = "guest uses " + candidate.usedKiB / KIB_PER_MIB + " MiB"
+                    + (target < candidate.desiredKiB ? ", limited by host free-memory target" : "");
+            adjustments.add(adjust(host, candidate, target, reason, dryRun));
+        }
+        return status;
+    }
+
+    private BalloonAdjustment adjust(String host, Candidate candidate, long targetKiB, String reason, boolean dryRun) {
+        BalloonAdjustment adjustment = new BalloonAdjustment();
+        adjustment.setTime(System.currentTimeMillis());
+        adjustment.setHost(host);
+        adjustment.setVm(candidate.name);
+        adjustment.setFromKiB(candidate.currentKiB);
+        adjustment.setToKiB(targetKiB);
+        adjustment.setUsedKiB(candidate.usedKiB);
+        adjustment.setMaximumKiB(candidate.maximumKiB);
+        adjustment.setReason(reason);
+        if (dryRun) {
+            adjustment.setOutcome(BalloonAdjustment.Outcome.DRY_RUN);
+        } else {
+            try {
+                kvmService.setMemory(candidate.name, targetKiB);
+                adjustment.setOutcome(BalloonAdjustment.Outcome.APPLIED);
+            } catch (Exception e) {
+                adjustment.setOutcome(BalloonAdjustment.Outcome.FAILED);
+                adjustment.setError(e.getMessage());
+            }
+        }
+        candidate.status.put("targetKiB", targetKiB);
+        candidate.status.put("decision", (targetKiB > candidate.currentKiB ? "grow" : "shrink")
+                + (dryRun ? " (dry run)" : ""));
+        audit(adjustment);
+        return adjustment;
+    }
+
+    /*
+     * Opts a VM in or out. A VM that opts out gets its full memory back right
+     * away (unless in dry-run mode), as nothing would grow its balloon anymore.
+     */
+    public void setManaged(String name, boolean managed)
+            throws LibvirtException, LibvirtNativeException, XMLStreamException {
+        kvmService.setLabel(name, LABEL, managed ? AUTO_VALUE : null);
+        VmInfo vm = inventory.get(name);
+        if (managed || vm == null || !vm.isRunning() || dryRun) {
+            return;
+        }
+        BalloonAdjustment adjustment = new BalloonAdjustment();
+        adjustment.setTime(System.currentTimeMillis());
+        adjustment.setHost(vm.getHost());
+        adjustment.setVm(name);
+        adjustment.setToKiB(vm.getMaxMemoryKiB());
+        adjustment.setMaximumKiB(vm.getMaxMemoryKiB());
+        adjustment.setReason("opted out, restoring maximum memory");
+        try {
+            kvmService.setMemory(name, vm.getMaxMemoryKiB());
+            adjustment.setOutcome(BalloonAdjustment.Outcome.APPLIED);
+        } catch (Exception e) {
+            adjustment.setOutcome(BalloonAdjustment.Outcome.FAILED);
+            adjustment.setError(e.getMessage());
+        }
+        audit(adjustment);
+    }
+
+    public boolean isManaged(String name) {
+        try {
+            return AUTO_VALUE.equals(kvmService.getDomainDescriptor(name).getLabels().get(LABEL));
+        } catch (Exception e) {
+            // Gone or its host is down; it is skipped this round
+            return false;
+        }
+    }
+
+    /*
+     * Turns on guest memory statistics for a VM defined without a stats period.
+     * Asked once per VM while it runs; guests without a balloon driver stay silent.
+     */
+    private void requestStats(String name) {
+        if (!statsRequested.add(name)) {
+            return;
+        }
+        try {
+            kvmService.setMemoryStatsPeriod(name, statsPeriodSeconds);
+            log.info("Enabled guest memory statistics of {} every {}s", name, statsPeriodSeconds);
+        } catch (Exception e) {
+            log.warn("Cannot enable guest memory statistics of {}: {}", name, e.getMessage());
+        }
+    }
+
+    /*
+     * Logs, counts and records an adjustment. Synchronized so audit lines are never interleaved.
+     */
+    private synchronized void audit(BalloonAdjustment adjustment) {
+        log.atInfo().addKeyValue("vm", adjustment.getVm()).addKeyValue("host", adjustment.getHost())
+                .log("Balloon of {}: {} -> {} MiB ({}): {}", adjustment.getVm(),
+                        adjustment.getFromKiB() / KIB_PER_MIB, adjustment.getToKiB() / KIB_PER_MIB,
+                        adjustment.getOutcome(), adjustment.getReason());
+        Counter.builder("kvm.balloon.adjustments")
+                .description("Balloon changes decided by the memory balancer")
+                .tag("direction", adjustment.getToKiB() > adjustment.getFromKiB() ? "grow" : "shrink")
+                .tag("outcome", adjustment.getOutcome().name().toLowerCase())
+                .register(registry)
+                .increment();
+
+        recent.addFirst(adjustment);
+        while (recent.size() > auditEntries) {
+            recent.pollLast();
+        }
+        try {
+            Path parent = auditFile.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Files.writeString(auditFile, objectMapper.writeValueAsString(adjustment) + "\n",
+                    StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            log.warn("Cannot append to balloon audit log {}: {}", auditFile, e.getMessage());
+        }
+    }
+
+    /*
+     * Settings, the last round's view of hosts and VMs, and the most recent adjustments.
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("enabled", enabled);
+        status.put("dryRun", dryRun);
+        status.put("headroomPercent", headroomPercent);
+        status.put("hysteresisPercent", hysteresisPercent);
+        status.put("minMemoryKiB", minMemoryKiB);
+        status.put("hostFreeTargetKiB", hostFreeTargetKiB);
+        status.put("lastRound", lastRound);
+        status.put("recent", new ArrayList<>(recent));
+        return status;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    private static long roundUpToMiB(long kib) {
+        return (kib + KIB_PER_MIB - 1) / KIB_PER_MIB * KIB_PER_MIB;
+    }
+
+    private static long roundDownToMiB(long kib) {
+        return kib / KIB_PER_MIB * KIB_PER_MIB;
+    }
+
+    /*
+     * One managed VM in a round.
+     */
+    private static final class Candidate {
+
+        final String name;
+        final long currentKiB;
+        final long maximumKiB;
+        final Map<String, Object> status = new LinkedHashMap<>();
+        // -1 while the guest reports no usable statistics
+        long usedKiB = -1;
+        long desiredKiB;
+        boolean grow;
+        boolean shrink;
+        int oversizedRounds;
+
+        Candidate(DomainStats stats) {
+            this.name = stats.getName();
+            this.currentKiB = stats.getBalloonCurrentKiB();
+            this.maximumKiB = stats.getBalloonMaximumKiB();
+            status.put("name", name);
+            status.put("host", stats.getHost());
+            status.put("currentKiB", currentKiB);
+            status.put("maximumKiB", maximumKiB);
+        }
+
+        void hold(String reason) {
+            status.put("decision", "hold");
+            status.put("reason", reason);
+        }
+
+        // How much of its balloon the guest needs; the hungriest grows first
+        double pressure() {
+            return currentKiB <= 0 ? Double.MAX_VALUE : (double) desiredKiB / currentKiB;
+        }
+    }
+}
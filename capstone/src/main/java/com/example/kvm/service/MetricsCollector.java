@@ -0,0 +1,286 @@
+package com.example.kvm.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.libvirt.DomainInfo.DomainState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.example.kvm.model.DomainStats;
+import com.example.kvm.model.Metric;
+import com.example.kvm.model.MetricSeries;
+import com.example.kvm.model.VmInfo;
+
+/*
+ * Samples CPU, memory, disk and network usage of every running domain at a
+ * fixed interval and keeps kvm.metrics.retention-hours of history in a
+ * MetricsStore, for range queries and for spotting noisy neighbours.
+ *
+ * Each tick is one bulk stats call per host (see KvmService.getAllDomainStats);
+ * cumulative counters are turned into rates against the previous tick here, so
+ * the store only holds plottable floats.
+ */
+@Service
+public class MetricsCollector {
+
+    private static final Logger log = LoggerFactory.getLogger(MetricsCollector.class);
+
+    /*
+     * How samples falling into one bucket of a downsampled series are combined.
+     */
+    public enum Aggregation { AVG, MAX }
+
+    private static final Metric[] METRICS = Metric.values();
+
+    private final KvmService kvmService;
+    private final DomainInventory inventory;
+    private final boolean enabled;
+    private final long intervalMillis;
+    private final int maxPoints;
+    private final MetricsStore store;
+
+    // Previous counters per domain, only touched by sample()
+    private final Map<String, Counters> previous = new HashMap<>();
+
+    private volatile long lastSampleMillis;
+    private volatile long lastSampleDurationMillis;
+    private volatile long failedSamples;
+    private volatile long droppedDomains;
+
+    public MetricsCollector(KvmService kvmService, DomainInventory inventory,
+                            @Value("${kvm.metrics.enabled:true}") boolean enabled,
+                            @Value("${kvm.metrics.interval-seconds:5}") int intervalSeconds,
+                            @Value("${kvm.metrics.retention-hours:24}") int retentionHours,
+                            @Value("${kvm.metrics.max-domains:500}") int maxDomains,
+                            @Value("${kvm.metrics.max-points:1000}") int maxPoints) {
+        this.kvmService = kvmService;
+        this.inventory = inventory;
+        this.enabled = enabled;
+        this.intervalMillis = TimeUnit.SECONDS.toMillis(Math.max(1, intervalSeconds));
+        this.maxPoints = Math.max(1, maxPoints);
+        int capacity = (int) (TimeUnit.HOURS.toMillis(Math.max(1, retentionHours)) / intervalMillis);
+        this.store = new MetricsStore(capacity, METRICS.length, Math.max(1, maxDomains));
+    }
+
+    @Scheduled(initialDelayString = "${kvm.metrics.interval-seconds:5}",
+               fixedDelayString = "${kvm.metrics.interval-seconds:5}", timeUnit = TimeUnit.SECONDS)
+    public void scheduledSample() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            sample();
+        } catch (Exception e) {
+            log.warn("Metrics sampling round failed: {}", e.getMessage());
+        }
+    }
+
+    /*
+     * Takes one sample of every domain. Runs on the scheduler thread.
+     */
+    void sample() {
+        long started = System.currentTimeMillis();
+        List<DomainStats> stats;
+        try {
+            stats = kvmService.getAllDomainStats();
+        } catch (Exception e) {
+            // Keep the tick so the gap shows up as missing data
+            failedSamples++;
+            log.warn("Metrics sample failed: {}", e.getMessage());
+            stats = List.of();
+        }
+
+        Map<String, float[]> samples = new HashMap<>();
+        for (DomainStats domain : stats) {
+            if (domain.getState() != DomainState.VIR_DOMAIN_RUNNING || KvmService.isWarmPoolName(domain.getName())) {
+                continue;
+            }
+            Counters counters = previous.computeIfAbsent(domain.getName(), name -> new Counters());
+            samples.put(domain.getName(), counters.update(started, domain));
+        }
+        // Stopped domains start over with no rate on their next sample
+        previous.keySet().retainAll(samples.keySet());
+
+        int dropped = store.append(started, samples);
+        if (dropped > 0 && droppedDomains == 0) {
+            log.warn("Metrics store full, not tracking {} domains (kvm.metrics.max-domains)", dropped);
+        }
+        droppedDomains = dropped;
+        lastSampleMillis = started;
+        lastSampleDurationMillis = System.currentTimeMillis() - started;
+    }
+
+    @EventListener
+    public void onDomainChanged(DomainChangedEvent event) {
+        if (event.getCurrent() == null) {
+            store.remove(event.getName());
+        }
+    }
+
+    /*
+     * Returns a domain's metrics for from <= t < to, downsampled to buckets of
+     * stepMillis. A step of 0 picks one that keeps the series within
+     * kvm.metrics.max-points; smaller steps are raised to that limit too.
+     * Returns null if the domain is not tracked.
+     */
+    public MetricSeries query(String name, long from, long to, long stepMillis, Aggregation aggregation) {
+        if (to <= from) {
+            throw new IllegalArgumentException("Empty time range");
+        }
+        long minStep = Math.max(intervalMillis, (to - from + maxPoints - 1) / maxPoints);
+        long step = Math.max(stepMillis, minStep);
+        int buckets = (int) ((to - from + step - 1) / step);
+
+        int metrics = METRICS.length;
+        double[] combined = new double[buckets * metrics];
+        int[] counts = new int[buckets * metrics];
+        boolean[] present = new boolean[buckets];
+        boolean tracked = store.scan(name, from, to, (time, values, offset) -> {
+            int bucket = (int) ((time - from) / step);
+            for (int m = 0; m < metrics; m++) {
+                float value = values[offset + m];
+                if (Float.isNaN(value)) {
+                    continue;
+                }
+                int index = bucket * metrics + m;
+                combined[index] = aggregation == Aggregation.MAX && counts[index] > 0
+                        ? Math.max(combined[index], value) : combined[index] + value;
+                counts[index]++;
+                present[bucket] = true;
+            }
+        });
+        if (!tracked) {
+            return null;
+        }
+
+        List<Long> timestamps = new ArrayList<>();
+        Map<String, List<Double>> values = new LinkedHashMap<>();
+        for (Metric metric : METRICS) {
+            values.put(metric.getKey(), new ArrayList<>());
+        }
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            if (!present[bucket]) {
+                continue;
+            }
+            timestamps.add(from + bucket * step);
+            for (int m = 0; m < metrics; m++) {
+                int index = bucket * metrics + m;
+                Double value = null;
+                if (counts[index] > 0) {
+                    value = aggregation == Aggregation.AVG ? combined[index] / counts[index] : combined[index];
+                }
+                values.get(METRICS[m].getKey()).add(value);
+            }
+        }
+        return new MetricSeries(name, from, to, step, aggregation.name(), timestamps, values);
+    }
+
+    /*
+     * Ranks domains by their average of one metric over the last windowMillis,
+     * highest first: the noisy neighbour view.
+     */
+    public List<Map<String, Object>> top(Metric metric, long windowMillis, int limit) {
+        long to = System.currentTimeMillis() + 1;
+        long from = to - windowMillis;
+        int m = metric.ordinal();
+        List<Map<String, Object>> ranking = new ArrayList<>();
+        for (String name : store.names()) {
+            double[] sum = new double[1];
+            int[] count = new int[1];
+            store.scan(name, from, to, (time, values, offset) -> {
+                float value = values[offset + m];
+                if (!Float.isNaN(value)) {
+                    sum[0] += value;
+                    count[0]++;
+                }
+            });
+            if (count[0] == 0) {
+                continue;
+            }
+            VmInfo vm = inventory.get(name);
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("name", name);
+            entry.put("host", vm != null ? vm.getHost() : null);
+            entry.put("value", sum[0] / count[0]);
+            entry.put("samples", count[0]);
+            ranking.add(entry);
+        }
+        ranking.sort((a, b) -> Double.compare((Double) b.get("value"), (Double) a.get("value")));
+        return ranking.size() > limit ? new ArrayList<>(ranking.subList(0, limit)) : ranking;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("intervalMillis", intervalMillis);
+        stats.put("capacity", store.getCapacity());
+        stats.put("domains", store.size());
+        stats.put("droppedDomains", droppedDomains);
+        stats.put("allocatedBytes", store.getAllocatedBytes());
+        stats.put("lastSampleMillis", lastSampleMillis);
+        stats.put("lastSampleDurationMillis", lastSampleDurationMillis);
+        stats.put("failedSamples", failedSamples);
+        Map<String, String> units = new LinkedHashMap<>();
+        for (Metric metric : METRICS) {
+            units.put(metric.getKey(), metric.getUnit());
+        }
+        stats.put("metrics", units);
+        return stats;
+    }
+
+    /*
+     * Cumulative counters of one domain at the previous tick, plus the sample
+     * array handed to the store (copied there, so it is reused).
+     */
+    private static final class Counters {
+
+        final float[] sample = new float[METRICS.length];
+        long time = -1;
+        long cpuTimeNs;
+        long blockReadBytes;
+        long blockWriteBytes;
+        long netRxBytes;
+        long netTxBytes;
+
+        float[] update(long now, DomainStats stats) {
+            Arrays.fill(sample, Float.NaN);
+            sample[Metric.MEMORY.ordinal()] = stats.getBalloonCurrentKiB();
+
+            // Counters reset when the domain restarts; skip the rate for that tick
+            if (time >= 0 && now > time && stats.getCpuTimeNs() >= cpuTimeNs) {
+                double seconds = (now - time) / 1000.0;
+                if (stats.getVcpus() > 0) {
+                    sample[Metric.CPU.ordinal()] = (float) Math.min(100.0,
+                            (stats.getCpuTimeNs() - cpuTimeNs) / (seconds * 1e9 * stats.getVcpus()) * 100);
+                }
+                sample[Metric.DISK_READ.ordinal()] = rate(stats.getBlockReadBytes(), blockReadBytes, seconds);
+                sample[Metric.DISK_WRITE.ordinal()] = rate(stats.getBlockWriteBytes(), blockWriteBytes, seconds);
+                sample[Metric.NET_RX.ordinal()] = rate(stats.getNetRxBytes(), netRxBytes, seconds);
+                sample[Metric.NET_TX.ordinal()] = rate(stats.getNetTxBytes(), netTxBytes, seconds);
+            }
+
+            time = now;
+            cpuTimeNs = stats.getCpuTimeNs();
+            blockReadBytes = stats.getBlockReadBytes();
+            blockWriteBytes = stats.getBlockWriteBytes();
+            netRxBytes = stats.getNetRxBytes();
+            netTxBytes = stats.getNetTxBytes();
+            return sample;
+        }
+
+        private static float rate(long current, long previous, double seconds) {
+            // Hot-unplugged devices make the sums drop
+            return current >= previous ? (float) ((current - previous) / seconds) : Float.NaN;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.kvm.service;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Fixed-size ring of samples for every tracked domain.
+ *
+ * All domains are sampled on the same tick, so the sample times live in one
+ * shared long[] ring and each domain only holds a float[] of capacity x metrics
+ * values, interleaved per slot. A slot where a domain has no sample (not running,
+ * host down) holds NaN. Arrays are allocated once per domain and recycled when a
+ * domain goes away, so the footprint is bounded by maxSeries x capacity x metrics
+ * x 4 bytes and stays flat once the ring has wrapped.
+ *
+ * One writer (the sampler) and a few readers; both hold the lock for at most one
+ * pass over a ring, so a single lock is enough.
+ */
+final class MetricsStore {
+
+    /*
+     * Receives the samples of one domain within a time range, oldest first.
+     * values is only valid during the call; offset is the first metric of the slot.
+     */
+    interface SampleVisitor {
+        void visit(long time, float[] values, int offset);
+    }
+
+    private final int capacity;
+    private final int metrics;
+    private final int maxSeries;
+
+    // Guarded by this
+    private final long[] times;
+    private long written;
+    private final Map<String, float[]> series = new HashMap<>();
+    private final ArrayDeque<float[]> recycled = new ArrayDeque<>();
+
+    MetricsStore(int capacity, int metrics, int maxSeries) {
+        this.capacity = capacity;
+        this.metrics = metrics;
+        this.maxSeries = maxSeries;
+        this.times = new long[capacity];
+    }
+
+    /*
+     * Appends one tick. Domains missing from samples get NaN for this slot;
+     * new domains beyond maxSeries are dropped. Returns the number dropped.
+     */
+    synchronized int append(long time, Map<String, float[]> samples) {
+        int slot = (int) (written % capacity);
+        int offset = slot * metrics;
+        times[slot] = time;
+
+        for (Map.Entry<String, float[]> entry : series.entrySet()) {
+            float[] sample = samples.get(entry.getKey());
+            if (sample != null) {
+                System.arraycopy(sample, 0, entry.getValue(), offset, metrics);
+            } else {
+                Arrays.fill(entry.getValue(), offset, offset + metrics, Float.NaN);
+            }
+        }
+
+        int dropped = 0;
+        for (Map.Entry<String, float[]> entry : samples.entrySet()) {
+            if (series.containsKey(entry.getKey())) {
+                continue;
+            }
+            if (series.size() >= maxSeries) {
+                dropped++;
+                continue;
+            }
+            float[] data = recycled.pollFirst();
+            if (data == null) {
+                data = new float[capacity * metrics];
+            }
+            // Slots before the domain appeared hold no data
+            Arrays.fill(data, Float.NaN);
+            System.arraycopy(entry.getValue(), 0, data, offset, metrics);
+            series.put(entry.getKey(), data);
+        }
+
+        written++;
+        return dropped;
+    }
+
+    /*
+     * Forgets a domain; its array is reused for the next new one.
+     */
+    synchronized void remove(String name) {
+        float[] data = series.remove(name);
+        if (data != null) {
+            recycled.addFirst(data);
+        }
+    }
+
+    synchronized boolean contains(String name) {
+        return series.containsKey(name);
+    }
+
+    synchronized String[] names() {
+        return series.keySet().toArray(new String[0]);
+    }
+
+    /*
+     * Calls the visitor for every sample of a domain with from <= time < to.
+     * Returns false if the domain is not tracked.
+     */
+    synchronized boolean scan(String name, long from, long to, SampleVisitor visitor) {
+        float[] data = series.get(name);
+        if (data == null) {
+            return false;
+        }
+        for (long tick = Math.max(0, written - capacity); tick < written; tick++) {
+            int slot = (int) (tick % capacity);
+            long time = times[slot];
+            if (time >= to) {
+                break;
+            }
+            if (time >= from) {
+                visitor.visit(time, data, slot * metrics);
+            }
+        }
+        return true;
+    }
+
+    synchronized int size() {
+        return series.size();
+    }
+
+    synchronized long getAllocatedBytes() {
+        return (long) (series.size() + recycled.size()) * capacity * metrics * Float.BYTES
+                + (long) capacity * Long.BYTES;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,361 @@
+package com.example.kvm.service;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Minimal NBD client for the disks a pull mode backup exports: fixed newstyle
+ * handshake, structured replies, NBD_CMD_READ and NBD_CMD_BLOCK_STATUS on one
+ * metadata context. Requests are sent one at a time.
+ *
+ * The metadata context is base:allocation (holes and zeros) for full backups
+ * and qemu:dirty-bitmap:<bitmap> (blocks changed since a checkpoint) for
+ * incremental ones; see https://github.com/NetworkBlockDevice/nbd/blob/master/doc/proto.md.
+ */
+final class NbdClient implements Closeable {
+
+    /*
+     * A run of blocks with the same status flags.
+     */
+    static final class Extent {
+        final long offset;
+        final long length;
+        final int flags;
+
+        Extent(long offset, long length, int flags) {
+            this.offset = offset;
+            this.length = length;
+            this.flags = flags;
+        }
+    }
+
+    // base:allocation flags
+    static final int STATE_HOLE = 1;
+    static final int STATE_ZERO = 2;
+    // qemu:dirty-bitmap flag
+    static final int STATE_DIRTY = 1;
+
+    // Largest request qemu's NBD server accepts
+    static final int MAX_READ = 32 * 1024 * 1024;
+    private static final long MAX_STATUS_LENGTH = 1L << 30;
+
+    private static final long NBD_MAGIC = 0x4e42444d41474943L;
+    private static final long IHAVEOPT = 0x49484156454f5054L;
+    private static final long OPTION_REPLY_MAGIC = 0x0003e889045565a9L;
+    private static final int REQUEST_MAGIC = 0x25609513;
+    private static final int SIMPLE_REPLY_MAGIC = 0x67446698;
+    private static final int STRUCTURED_REPLY_MAGIC = 0x668e33ef;
+
+    private static final int FLAG_FIXED_NEWSTYLE = 1;
+    private static final int FLAG_NO_ZEROES = 2;
+
+    private static final int OPT_GO = 7;
+    private static final int OPT_STRUCTURED_REPLY = 8;
+    private static final int OPT_SET_META_CONTEXT = 10;
+    private static final int REP_ACK = 1;
+    private static final int REP_INFO = 3;
+    private static final int REP_META_CONTEXT = 4;
+    private static final int REP_FLAG_ERROR = 1 << 31;
+    private static final int INFO_EXPORT = 0;
+
+    private static final short CMD_READ = 0;
+    private static final short CMD_DISC = 2;
+    private static final short CMD_BLOCK_STATUS = 7;
+
+    private static final int REPLY_FLAG_DONE = 1;
+    private static final int REPLY_TYPE_OFFSET_DATA = 1;
+    private static final int REPLY_TYPE_OFFSET_HOLE = 2;
+    private static final int REPLY_TYPE_BLOCK_STATUS = 5;
+    private static final int REPLY_TYPE_ERROR_BIT = 1 << 15;
+
+    private final SocketChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(32);
+    private long exportSize;
+    private int contextId = -1;
+    private long nextHandle = 1;
+
+    private NbdClient(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /*
+     * Connects to an export on a Unix socket and selects a metadata context.
+     */
+    static NbdClient connect(Path socket, String exportName, String metaContext) throws IOException {
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        NbdClient client = new NbdClient(channel);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(socket));
+            client.handshake(exportName, metaContext);
+            return client;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    long getExportSize() {
+        return exportSize;
+    }
+
+    private void handshake(String exportName, String metaContext) throws IOException {
+        ByteBuffer greeting = readFully(18);
+        if (greeting.getLong() != NBD_MAGIC || greeting.getLong() != IHAVEOPT) {
+            throw new IOException("Not a newstyle NBD server");
+        }
+        short serverFlags = greeting.getShort();
+        if ((serverFlags & FLAG_FIXED_NEWSTYLE) == 0) {
+            throw new IOException("NBD server does not support fixed newstyle negotiation");
+        }
+        write(ByteBuffer.allocate(4).putInt(FLAG_FIXED_NEWSTYLE | (serverFlags & FLAG_NO_ZEROES)).flip());
+
+        sendOption(OPT_STRUCTURED_REPLY, ByteBuffer.allocate(0));
+        expectAck(OPT_STRUCTURED_REPLY);
+
+        byte[] name = exportName.getBytes(StandardCharsets.UTF_8);
+        byte[] query = metaContext.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer context = ByteBuffer.allocate(12 + name.length + query.length)
+                .putInt(name.length).put(name).putInt(1).putInt(query.length).put(query);
+        sendOption(OPT_SET_META_CONTEXT, context.flip());
+        while (true) {
+            ByteBuffer reply = readOptionReply(OPT_SET_META_CONTEXT);
+            int type = reply.getInt(12);
+            if (type == REP_ACK) {
+                break;
+            }
+            if (type == REP_META_CONTEXT) {
+                contextId = reply.getInt(20);
+            }
+        }
+        if (contextId < 0) {
+            throw new IOException("NBD server does not offer metadata context " + metaContext);
+        }
+
+        ByteBuffer go = ByteBuffer.allocate(6 + name.length).putInt(name.length).put(name).putShort((short) 0);
+        sendOption(OPT_GO, go.flip());
+        while (true) {
+            ByteBuffer reply = readOptionReply(OPT_GO);
+            int type = reply.getInt(12);
+            if (type == REP_ACK) {
+                break;
+            }
+            if (type == REP_INFO && reply.getShort(20) == INFO_EXPORT) {
+                exportSize = reply.getLong(22);
+            }
+        }
+    }
+
+    private void sendOption(int option, ByteBuffer data) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(16 + data.remaining())
+                .putLong(IHAVEOPT).putInt(option).putInt(data.remaining()).put(data);
+        write(request.flip());
+    }
+
+    /*
+     * Reads one option reply: the 20 byte header followed by its data. Error
+     * replies are thrown.
+     */
+    private ByteBuffer readOptionReply(int option) throws IOException {
+        ByteBuffer head = readFully(20);
+        if (head.getLong(0) != OPTION_REPLY_MAGIC || head.getInt(8) != option) {
+            throw new IOException("Unexpected NBD option reply");
+        }
+        int type = head.getInt(12);
+        int length = head.getInt(16);
+        ByteBuffer reply = ByteBuffer.allocate(20 + length).put(head.rewind()).put(readFully(length));
+        if ((type & REP_FLAG_ERROR) != 0) {
+            String message = new String(reply.array(), 20, length, StandardCharsets.UTF_8);
+            throw new IOException("NBD option " + option + " refused (" + (type & ~REP_FLAG_ERROR) + ")"
+                    + (message.isEmpty() ? "" : ": " + message));
+        }
+        return reply;
+    }
+
+    private void expectAck(int option) throws IOException {
+        if (readOptionReply(option).getInt(12) != REP_ACK) {
+            throw new IOException("NBD option " + option + " not acknowledged");
+        }
+    }
+
+    /*
+     * Status of the blocks from offset on, as reported for the selected context.
+     * The server may describe less than length; at least one extent is returned.
+     */
+    List<Extent> blockStatus(long offset, long length) throws IOException {
+        long handle = sendRequest(CMD_BLOCK_STATUS, offset, Math.min(length, MAX_STATUS_LENGTH));
+        List<Extent> extents = new ArrayList<>();
+        boolean done = false;
+        while (!done) {
+            int flags = readReplyHeader(handle);
+            int type = header.getShort(6) & 0xffff;
+            int length32 = header.getInt(16);
+            ByteBuffer payload = readFully(length32);
+            if ((type & REPLY_TYPE_ERROR_BIT) != 0) {
+                throw replyError(payload);
+            }
+            if (type == REPLY_TYPE_BLOCK_STATUS && payload.getInt() == contextId) {
+                long position = offset;
+                while (payload.remaining() >= 8) {
+                    long extentLength = payload.getInt() & 0xffffffffL;
+                    int extentFlags = payload.getInt();
+                    extents.add(new Extent(position, extentLength, extentFlags));
+                    position += extentLength;
+                }
+            }
+            done = (flags & REPLY_FLAG_DONE) != 0;
+        }
+        if (extents.isEmpty()) {
+            throw new IOException("NBD server sent no block status at offset " + offset);
+        }
+        return extents;
+    }
+
+    /*
+     * Reads dest.remaining() bytes (at most MAX_READ) from offset into dest,
+     * leaving its position unchanged.
+     */
+    void read(long offset, ByteBuffer dest) throws IOException {
+        int length = dest.remaining();
+        int base = dest.position();
+        long handle = sendRequest(CMD_READ, offset, length);
+        boolean done = false;
+        while (!done) {
+            int magic = readReplyMagic();
+            if (magic == SIMPLE_REPLY_MAGIC) {
+                ByteBuffer simple = readFully(12);
+                int error = simple.getInt();
+                if (simple.getLong() != handle) {
+                    throw new IOException("NBD reply for an unknown request");
+                }
+                if (error != 0) {
+                    throw new IOException("NBD read at " + offset + " failed with error " + error);
+                }
+                readInto(dest.slice(base, length));
+                return;
+            }
+            if (magic != STRUCTURED_REPLY_MAGIC) {
+                throw new IOException("Bad NBD reply magic " + Integer.toHexString(magic));
+            }
+            int flags = readStructuredHeader(handle);
+            int type = header.getShort(6) & 0xffff;
+            int chunkLength = header.getInt(16);
+            if (type == REPLY_TYPE_OFFSET_DATA) {
+                long chunkOffset = readFully(8).getLong();
+                int dataLength = chunkLength - 8;
+                readInto(dest.slice(base + checkRange(offset, length, chunkOffset, dataLength), dataLength));
+            } else if (type == REPLY_TYPE_OFFSET_HOLE) {
+                ByteBuffer hole = readFully(12);
+                long holeOffset = hole.getLong();
+                int holeLength = hole.getInt();
+                int start = base + checkRange(offset, length, holeOffset, holeLength);
+                for (int i = 0; i < holeLength; i++) {
+                    dest.put(start + i, (byte) 0);
+                }
+            } else if ((type & REPLY_TYPE_ERROR_BIT) != 0) {
+                throw replyError(readFully(chunkLength));
+            } else {
+                readFully(chunkLength);
+            }
+            done = (flags & REPLY_FLAG_DONE) != 0;
+        }
+    }
+
+    private static int checkRange(long offset, int length, long chunkOffset, int chunkLength) throws IOException {
+        if (chunkOffset < offset || chunkOffset + chunkLength > offset + length) {
+            throw new IOException("NBD reply chunk outside the requested range");
+        }
+        return (int) (chunkOffset - offset);
+    }
+
+    private long sendRequest(short command, long offset, long length) throws IOException {
+        long handle = nextHandle++;
+        ByteBuffer request = ByteBuffer.allocate(28)
+                .putInt(REQUEST_MAGIC).putShort((short) 0).putShort(command)
+                .putLong(handle).putLong(offset).putInt((int) length);
+        write(request.flip());
+        return handle;
+    }
+
+    private int readReplyMagic() throws IOException {
+        header.clear().limit(4);
+        readInto(header);
+        return header.getInt(0);
+    }
+
+    /*
+     * Reads a structured reply header (after its magic) into header and returns its flags.
+     */
+    private int readStructuredHeader(long handle) throws IOException {
+        header.limit(20);
+        readInto(header);
+        if (header.getLong(8) != handle) {
+            throw new IOException("NBD reply for an unknown request");
+        }
+        return header.getShort(4) & 0xffff;
+    }
+
+    private int readReplyHeader(long handle) throws IOException {
+        int magic = readReplyMagic();
+        if (magic == SIMPLE_REPLY_MAGIC) {
+            ByteBuffer simple = readFully(12);
+            throw new IOException("NBD request failed with error " + simple.getInt());
+        }
+        if (magic != STRUCTURED_REPLY_MAGIC) {
+            throw new IOException("Bad NBD reply magic " + Integer.toHexString(magic));
+        }
+        return readStructuredHeader(handle);
+    }
+
+    private static IOException replyError(ByteBuffer payload) {
+        int error = payload.getInt();
+        int messageLength = payload.getShort() & 0xffff;
+        String message = new String(payload.array(), payload.position(),
+                Math.min(messageLength, payload.remaining()), StandardCharsets.UTF_8);
+        return new IOException("NBD error " + error + (message.isEmpty() ? "" : ": " + message));
+    }
+
+    private ByteBuffer readFully(int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readInto(buffer);
+        return buffer.flip();
+    }
+
+    private void readInto(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("NBD server closed the connection");
+            }
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /*
+     * Sends NBD_CMD_DISC and closes the connection.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (channel.isConnected()) {
+                sendRequest(CMD_DISC, 0, 0);
+            }
+        } catch (IOException e) {
+            // The server may already be gone once the backup job has ended
+        } finally {
+            channel.close();
+        }
+    }
+}
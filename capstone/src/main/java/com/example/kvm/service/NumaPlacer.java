@@ -0,0 +1,175 @@
+package com.example.kvm.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.example.kvm.model.HostTopology;
+
+/*
+ * Chooses host CPUs and a NUMA cell for pinned domains.
+ *
+ * A guest is kept within one cell so its vCPUs never reach across the
+ * interconnect for memory. The first core of every cell is left to the
+ * emulator threads and the host. Guests prefer the least used cores, where use
+ * is recomputed for every placement from the vCPU pins of the domains defined
+ * on the host, so it survives restarts and shrinks when domains go away. A
+ * placement counts as pending until its domain shows up among the defined ones
+ * (it is defined only after its disk is created), or until PENDING_MILLIS pass
+ * for a creation that failed. Use is a balancing hint, not a reservation.
+ */
+final class NumaPlacer {
+
+    // Hugepage sizes in KiB, largest first
+    private static final long[] HUGEPAGE_SIZES = { 1024 * 1024, 2048 };
+
+    // How long a placement whose domain was never defined still counts
+    private static final long PENDING_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /*
+     * Where one domain goes. hugepageKiB is 0 when memory is not hugepage backed.
+     */
+    static final class Placement {
+
+        final int cell;
+        final int[] vcpuCpus;
+        final String emulatorCpuset;
+        final long hugepageKiB;
+
+        Placement(int cell, int[] vcpuCpus, String emulatorCpuset, long hugepageKiB) {
+            this.cell = cell;
+            this.vcpuCpus = vcpuCpus;
+            this.emulatorCpuset = emulatorCpuset;
+            this.hugepageKiB = hugepageKiB;
+        }
+    }
+
+    private final HostTopology topology;
+    // Domain name -> placement not yet seen among the defined domains
+    private final Map<String, Pending> pending = new HashMap<>();
+
+    NumaPlacer(HostTopology topology) {
+        this.topology = topology;
+    }
+
+    /*
+     * Places a guest on the least used cell that can hold it. pinnedCpus holds
+     * the pinned host CPUs of every domain defined on the host, by name. Throws
+     * IllegalArgumentException if no cell has enough CPUs (or reserved
+     * hugepages, when requested).
+     */
+    synchronized Placement place(String name, int vcpus, long memoryKiB, boolean hugepages,
+                                 Map<String, List<Integer>> pinnedCpus) {
+        Map<Integer, Integer> usage = usage(pinnedCpus);
+        HostTopology.Cell best = null;
+        long bestPageSize = 0;
+        double bestLoad = Double.MAX_VALUE;
+        for (HostTopology.Cell cell : topology.getCells()) {
+            if (cell.getCpus().size() < vcpus) {
+                continue;
+            }
+            long pageSize = hugepages ? hugepageSize(cell, memoryKiB) : 0;
+            if (hugepages && pageSize == 0) {
+                continue;
+            }
+            double load = load(cell, usage);
+            if (load < bestLoad) {
+                best = cell;
+                bestPageSize = pageSize;
+                bestLoad = load;
+            }
+        }
+        if (best == null) {
+            throw new IllegalArgumentException("No NUMA cell has " + vcpus + " CPUs"
+                    + (hugepages ? " and " + (memoryKiB / 1024) + " MiB of hugepages" : ""));
+        }
+
+        List<HostTopology.Cpu> cpus = new ArrayList<>(best.getCpus());
+        cpus.sort(Comparator.comparingInt(HostTopology.Cpu::getSocketId)
+                .thenComparingInt(HostTopology.Cpu::getCoreId)
+                .thenComparingInt(HostTopology.Cpu::getId));
+
+        // Emulator threads share the cell's first core with the host
+        HostTopology.Cpu first = cpus.get(0);
+        StringBuilder emulator = new StringBuilder();
+        List<HostTopology.Cpu> guestCpus = new ArrayList<>();
+        for (HostTopology.Cpu cpu : cpus) {
+            if (cpu.getSocketId() == first.getSocketId() && cpu.getCoreId() == first.getCoreId()) {
+                emulator.append(emulator.length() == 0 ? "" : ",").append(cpu.getId());
+            } else {
+                guestCpus.add(cpu);
+            }
+        }
+        // Small cells: let vCPUs use the first core too rather than failing
+        if (guestCpus.size() < vcpus) {
+            guestCpus = cpus;
+        }
+
+        // Stable sort: least used first, sibling threads stay next to each other
+        guestCpus.sort(Comparator.comparingInt(cpu -> usage.getOrDefault(cpu.getId(), 0)));
+        int[] pins = new int[vcpus];
+        for (int i = 0; i < vcpus; i++) {
+            pins[i] = guestCpus.get(i).getId();
+        }
+        pending.put(name, new Pending(pins, System.currentTimeMillis()));
+        return new Placement(best.getId(), pins, emulator.toString(), bestPageSize);
+    }
+
+    /*
+     * Host CPU id -> vCPUs pinned to it by defined domains and pending placements.
+     * Pending placements whose domain is defined or that expired are dropped.
+     */
+    private Map<Integer, Integer> usage(Map<String, List<Integer>> pinnedCpus) {
+        Map<Integer, Integer> usage = new HashMap<>();
+        for (List<Integer> cpus : pinnedCpus.values()) {
+            for (int cpu : cpus) {
+                usage.merge(cpu, 1, Integer::sum);
+            }
+        }
+        long expired = System.currentTimeMillis() - PENDING_MILLIS;
+        pending.entrySet().removeIf(entry -> pinnedCpus.containsKey(entry.getKey())
+                || entry.getValue().placedMillis < expired);
+        for (Pending placement : pending.values()) {
+            for (int cpu : placement.cpus) {
+                usage.merge(cpu, 1, Integer::sum);
+            }
+        }
+        return usage;
+    }
+
+    private static double load(HostTopology.Cell cell, Map<Integer, Integer> usage) {
+        int placed = 0;
+        for (HostTopology.Cpu cpu : cell.getCpus()) {
+            placed += usage.getOrDefault(cpu.getId(), 0);
+        }
+        return (double) placed / cell.getCpus().size();
+    }
+
+    /*
+     * Largest hugepage size the cell has enough reserved pages of, or 0.
+     * Pages in use by running guests are not visible here; libvirt refuses
+     * to start the domain if they have run out.
+     */
+    private static long hugepageSize(HostTopology.Cell cell, long memoryKiB) {
+        for (long size : HUGEPAGE_SIZES) {
+            if (memoryKiB % size == 0 && cell.getHugepageKiB(size) >= memoryKiB) {
+                return size;
+            }
+        }
+        return 0;
+    }
+
+    private static final class Pending {
+
+        final int[] cpus;
+        final long placedMillis;
+
+        Pending(int[] cpus, long placedMillis) {
+            this.cpus = cpus;
+            this.placedMillis = placedMillis;
+        }
+    }
+}
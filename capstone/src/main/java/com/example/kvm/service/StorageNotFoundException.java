@@ -0,0 +1,12 @@
+package com.example.kvm.service;
+
+/*
+ * Raised when a storage pool or volume named in a request does not exist on
+ * the host it was looked up on.
+ */
+public class StorageNotFoundException extends RuntimeException {
+
+    public StorageNotFoundException(String message) {
+        super(message);
+    }
+}
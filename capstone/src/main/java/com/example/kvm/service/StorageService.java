@@ -0,0 +1,399 @@
+package com.example.kvm.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.libvirt.Connect;
+import org.libvirt.Error;
+import org.libvirt.LibvirtException;
+import org.libvirt.StoragePoolInfo;
+import org.libvirt.StorageVol;
+import org.libvirt.StorageVolInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.example.kvm.libvirt.LibvirtNativeException;
+import com.example.kvm.libvirt.VolumeUpload;
+import com.example.kvm.model.StoragePool;
+import com.example.kvm.model.StorageVolume;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/*
+ * ISO and disk images as volumes of libvirt storage pools, on any hypervisor host.
+ *
+ * Uploads are streamed from the HTTP request into the volume through libvirt
+ * (see VolumeUpload), so they work against remote hosts too and need no temp
+ * file, scp or chown: libvirtd creates the files with the ownership QEMU needs.
+ * Data is committed in segments of kvm.storage.upload.segment-mb; the offset
+ * reached by an interrupted upload is remembered and the client resumes from
+ * there. Offsets are kept in memory only, so after a restart of the manager an
+ * upload has to start over.
+ *
+ * At most kvm.storage.upload.max-concurrent uploads run at once, and only one
+ * per volume; each holds a request thread for its whole duration.
+ */
+@Service
+public class StorageService {
+
+    private static final Logger log = LoggerFactory.getLogger(StorageService.class);
+
+    // Names of volumes created through the API; no path separators
+    private static final Pattern VOLUME_NAME = Pattern.compile("[A-Za-z0-9._-]+");
+
+    // Formats new volumes can be created with
+    private static final Set<String> FORMATS = Set.of("raw", "qcow2", "iso");
+
+    private static final long BYTES_PER_MIB = 1024L * 1024;
+
+    private final HypervisorPool hypervisors;
+    private final LibvirtExecutor libvirt;
+    private final long segmentBytes;
+    private final int chunkBytes;
+    private final int maxConcurrentUploads;
+    private final Semaphore uploadPermits;
+
+    // Offset reached by each unfinished upload, keyed by host/pool/volume
+    private final ConcurrentMap<String, Long> committedOffsets = new ConcurrentHashMap<>();
+    // Volumes an upload is writing to right now, same keys
+    private final Set<String> activeUploads = ConcurrentHashMap.newKeySet();
+
+    private final Counter uploadedBytes;
+
+    public StorageService(HypervisorPool hypervisors, LibvirtExecutor libvirt, MeterRegistry registry,
+                          @Value("${kvm.storage.upload.segment-mb:64}") int segmentMB,
+                          @Value("${kvm.storage.upload.chunk-kb:256}") int chunkKB,
+                          @Value("${kvm.storage.upload.max-concurrent:4}") int maxConcurrentUploads) {
+        this.hypervisors = hypervisors;
+        this.libvirt = libvirt;
+        this.segmentBytes = Math.max(1, segmentMB) * BYTES_PER_MIB;
+        this.chunkBytes = Math.max(4, chunkKB) * 1024;
+        this.maxConcurrentUploads = Math.max(1, maxConcurrentUploads);
+        this.uploadPermits = new Semaphore(this.maxConcurrentUploads);
+
+        this.uploadedBytes = Counter.builder("kvm.storage.upload.bytes")
+                .description("Bytes written into storage volumes by uploads")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("kvm.storage.uploads.active", activeUploads, Set::size)
+                .description("Uploads currently streaming into a volume")
+                .register(registry);
+    }
+
+    /*
+     * The host a request addresses; the first configured host when it names none.
+     */
+    public String hostOrDefault(String host) {
+        return host == null || host.isBlank() ? hypervisors.getDefaultHost() : host;
+    }
+
+    /*
+     * Active and inactive pools of a host. Inactive pools report no volumes.
+     */
+    public List<StoragePool> listPools(String host) throws LibvirtException, XMLStreamException {
+        String hostId = hostOrDefault(host);
+        Connect connect = hypervisors.connection(hostId);
+        List<String> names = new ArrayList<>(List.of(
+                libvirt.time("listStoragePools", hostId, connect::listStoragePools)));
+        names.addAll(List.of(libvirt.time("listDefinedStoragePools", hostId, connect::listDefinedStoragePools)));
+
+        List<StoragePool> pools = new ArrayList<>(names.size());
+        for (String name : names) {
+            org.libvirt.StoragePool pool = lookupPool(hostId, connect, name);
+            StoragePoolInfo info = libvirt.time("storagePoolGetInfo", hostId, pool::getInfo);
+            boolean active = libvirt.time("storagePoolIsActive", hostId, pool::isActive) == 1;
+            String xml = libvirt.time("storagePoolGetXMLDesc", hostId, () -> pool.getXMLDesc(0));
+            int volumes = active ? libvirt.time("storagePoolNumOfVolumes", hostId, pool::numOfVolumes) : 0;
+            pools.add(new StoragePool(hostId, name, active, StorageXml.targetPath(xml),
+                    info.capacity, info.allocation, info.available, volumes));
+        }
+        return pools;
+    }
+
+    /*
+     * Volumes of a pool. The pool is refreshed first, so images copied into
+     * its directory by other means show up as well.
+     */
+    public List<StorageVolume> listVolumes(String host, String pool) throws LibvirtException, XMLStreamException {
+        String hostId = hostOrDefault(host);
+        org.libvirt.StoragePool storagePool = lookupPool(hostId, hypervisors.connection(hostId), pool);
+        libvirt.run("storagePoolRefresh", hostId, () -> storagePool.refresh(0));
+
+        String[] names = libvirt.time("storagePoolListVolumes", hostId, storagePool::listVolumes);
+        List<StorageVolume> volumes = new ArrayList<>(names.length);
+        for (String name : names) {
+            volumes.add(describe(hostId, pool, lookupVolume(hostId, storagePool, name)));
+        }
+        return volumes;
+    }
+
+    public StorageVolume getVolume(String host, String pool, String volume) throws LibvirtException, XMLStreamException {
+        String hostId = hostOrDefault(host);
+        org.libvirt.StoragePool storagePool = lookupPool(hostId, hypervisors.connection(hostId), pool);
+        return describe(hostId, pool, lookupVolume(hostId, storagePool, volume));
+    }
+
+    /*
+     * Creates an empty volume of capacity bytes (raw, qcow2 or iso).
+     */
+    public StorageVolume createVolume(String host, String pool, String name, long capacity, String format)
+            throws LibvirtException, XMLStreamException {
+        String hostId = hostOrDefault(host);
+        org.libvirt.StoragePool storagePool = lookupPool(hostId, hypervisors.connection(hostId), pool);
+        return describe(hostId, pool, create(hostId, storagePool, name, capacity, format));
+    }
+
+    /*
+     * Copies a volume into a new one, in the same pool or another pool of the
+     * same host. libvirt copies the data, converting the format if the target
+     * pool needs it; for multi-GB images this runs as a job.
+     */
+    public StorageVolume cloneVolume(String host, String pool, String source, String targetPool, String name,
+                                     JobProgress progress) throws LibvirtException, XMLStreamException {
+        checkVolumeName(name);
+        String hostId = hostOrDefault(host);
+        Connect connect = hypervisors.connection(hostId);
+        org.libvirt.StoragePool sourcePool = lookupPool(hostId, connect, pool);
+        StorageVol sourceVolume = lookupVolume(hostId, sourcePool, source);
+        String target = targetPool != null && !targetPool.isBlank() ? targetPool : pool;
+        org.libvirt.StoragePool destination = target.equals(pool) ? sourcePool : lookupPool(hostId, connect, target);
+
+        StorageVolInfo info = libvirt.time("storageVolGetInfo", hostId, sourceVolume::getInfo);
+        String format = StorageXml.targetFormat(
+                libvirt.time("storageVolGetXMLDesc", hostId, () -> sourceVolume.getXMLDesc(0)));
+        String xml = StorageXml.volume(name, info.capacity, format != null ? format : "raw");
+        progress.update(10, "Copying " + pool + "/" + source + " (" + info.capacity / BYTES_PER_MIB + " MiB)");
+        StorageVol clone = libvirt.time("storageVolCreateXMLFrom", hostId,
+                () -> destination.storageVolCreateXMLFrom(xml, sourceVolume, 0));
+        return describe(hostId, target, clone);
+    }
+
+    /*
+     * Deletes a volume and its data. Refused while an upload is writing to it.
+     */
+    public void deleteVolume(String host, String pool, String volume) throws LibvirtException {
+        String hostId = hostOrDefault(host);
+        String key = uploadKey(hostId, pool, volume);
+        if (!activeUploads.add(key)) {
+            throw new UploadConflictException("An upload into " + pool + "/" + volume + " is running",
+                    committedOffsets.getOrDefault(key, 0L));
+        }
+        try {
+            StorageVol storageVol = lookupVolume(hostId, lookupPool(hostId, hypervisors.connection(hostId), pool),
+                    volume);
+            libvirt.run("storageVolDelete", hostId, () -> storageVol.delete(0));
+            committedOffsets.remove(key);
+        } finally {
+            activeUploads.remove(key);
+        }
+    }
+
+    /*
+     * Streams body into a volume, starting at offset. Offset 0 (re)starts an
+     * upload and creates the volume if it does not exist, which needs capacity
+     * and format; any other offset resumes an interrupted upload and must equal
+     * the offset committed so far. The upload is complete when body ends.
+     *
+     * If body fails or ends early the committed offset stays at the end of the
+     * last finished segment, and the exception is passed on.
+     */
+    public StorageVolume upload(String host, String pool, String volume, long offset, Long capacity, String format,
+                                InputStream body)
+            throws LibvirtException, LibvirtNativeException, IOException, XMLStreamException {
+        String hostId = hostOrDefault(host);
+        String key = uploadKey(hostId, pool, volume);
+        if (!uploadPermits.tryAcquire()) {
+            throw new RejectedExecutionException("Too many uploads in progress (limit " + maxConcurrentUploads + ")");
+        }
+        try {
+            if (!activeUploads.add(key)) {
+                throw new UploadConflictException("An upload into " + pool + "/" + volume + " is already running",
+                        committedOffsets.getOrDefault(key, 0L));
+            }
+            try {
+                return write(hostId, pool, volume, key, offset, capacity, format, body);
+            } finally {
+                activeUploads.remove(key);
+            }
+        } finally {
+            uploadPermits.release();
+        }
+    }
+
+    /*
+     * Offset an interrupted upload into a volume has reached, or null if none is pending.
+     */
+    public Long getUploadOffset(String host, String pool, String volume) {
+        return committedOffsets.get(uploadKey(hostOrDefault(host), pool, volume));
+    }
+
+    private StorageVolume write(String host, String pool, String volume, String key, long offset, Long capacity,
+                                String format, InputStream body)
+            throws LibvirtException, LibvirtNativeException, IOException, XMLStreamException {
+        long committed = committedOffsets.getOrDefault(key, 0L);
+        if (offset != 0 && offset != committed) {
+            throw new UploadConflictException("Upload into " + pool + "/" + volume + " must resume at offset "
+                    + committed, committed);
+        }
+
+        Connect connect = hypervisors.connection(host);
+        org.libvirt.StoragePool storagePool = lookupPool(host, connect, pool);
+        StorageVol storageVol = offset == 0 ? findVolume(host, storagePool, volume) : null;
+        if (storageVol == null && offset == 0) {
+            if (capacity == null) {
+                throw new IllegalArgumentException("Volume " + pool + "/" + volume
+                        + " does not exist; its capacity is needed to create it");
+            }
+            storageVol = create(host, storagePool, volume, capacity, format != null ? format : "raw");
+        } else if (storageVol == null) {
+            storageVol = lookupVolume(host, storagePool, volume);
+        }
+
+        long limit = libvirt.time("storageVolGetInfo", host, storageVol::getInfo).capacity;
+        VolumeUpload upload = new VolumeUpload(connect, storageVol, chunkBytes);
+        long position = offset;
+        committedOffsets.put(key, position);
+        log.atInfo().addKeyValue("host", host).addKeyValue("volume", pool + "/" + volume)
+                .log("Upload into {}/{} started at offset {}", pool, volume, offset);
+        while (true) {
+            long room = limit - position;
+            if (room <= 0) {
+                if (body.read() != -1) {
+                    throw new IllegalArgumentException("Upload exceeds the capacity of " + pool + "/" + volume
+                            + " (" + limit + " bytes)");
+                }
+                break;
+            }
+            long length = Math.min(segmentBytes, room);
+            long written = upload.writeSegment(position, body, length);
+            position += written;
+            committedOffsets.put(key, position);
+            uploadedBytes.increment(written);
+            if (written < length) {
+                break;
+            }
+        }
+        committedOffsets.remove(key);
+        log.atInfo().addKeyValue("host", host).addKeyValue("volume", pool + "/" + volume)
+                .log("Upload into {}/{} finished at {} bytes", pool, volume, position);
+        return describe(host, pool, storageVol);
+    }
+
+    /*
+     * Path of a volume given as pool/volume, for attaching it to a domain.
+     */
+    public String resolvePath(String host, String reference) throws LibvirtException {
+        int separator = reference.indexOf('/');
+        if (separator <= 0 || separator == reference.length() - 1) {
+            throw new IllegalArgumentException("Volume references must be pool/volume: " + reference);
+        }
+        String hostId = hostOrDefault(host);
+        org.libvirt.StoragePool storagePool = lookupPool(hostId, hypervisors.connection(hostId),
+                reference.substring(0, separator));
+        StorageVol volume = lookupVolume(hostId, storagePool, reference.substring(separator + 1));
+        return libvirt.time("storageVolGetPath", hostId, volume::getPath);
+    }
+
+    /*
+     * Target directory of a pool, used to check free disk space against.
+     */
+    public String getPoolPath(String host, String pool) throws LibvirtException, XMLStreamException {
+        String hostId = hostOrDefault(host);
+        org.libvirt.StoragePool storagePool = lookupPool(hostId, hypervisors.connection(hostId), pool);
+        return StorageXml.targetPath(libvirt.time("storagePoolGetXMLDesc", hostId, () -> storagePool.getXMLDesc(0)));
+    }
+
+    /*
+     * Creates a qcow2 disk for a new domain and returns its path.
+     */
+    public String createDisk(String host, String pool, String name, long capacity)
+            throws LibvirtException, XMLStreamException {
+        org.libvirt.StoragePool storagePool = lookupPool(host, hypervisors.connection(host), pool);
+        StorageVol volume = create(host, storagePool, name, capacity, "qcow2");
+        return libvirt.time("storageVolGetPath", host, volume::getPath);
+    }
+
+    private StorageVol create(String host, org.libvirt.StoragePool pool, String name, long capacity, String format)
+            throws LibvirtException, XMLStreamException {
+        checkVolumeName(name);
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Volume capacity must be positive");
+        }
+        if (!FORMATS.contains(format)) {
+            throw new IllegalArgumentException("Unsupported volume format: " + format + " (use " + FORMATS + ")");
+        }
+        String xml = StorageXml.volume(name, capacity, format);
+        return libvirt.time("storageVolCreateXML", host, () -> pool.storageVolCreateXML(xml, 0));
+    }
+
+    private StorageVolume describe(String host, String pool, StorageVol volume)
+            throws LibvirtException, XMLStreamException {
+        StorageVolInfo info = libvirt.time("storageVolGetInfo", host, volume::getInfo);
+        String name = libvirt.time("storageVolGetName", host, volume::getName);
+        String path = libvirt.time("storageVolGetPath", host, volume::getPath);
+        String xml = libvirt.time("storageVolGetXMLDesc", host, () -> volume.getXMLDesc(0));
+        return new StorageVolume(host, pool, name, path, StorageXml.targetFormat(xml),
+                info.capacity, info.allocation, committedOffsets.get(uploadKey(host, pool, name)));
+    }
+
+    private org.libvirt.StoragePool lookupPool(String host, Connect connect, String name) throws LibvirtException {
+        try {
+            return libvirt.time("storagePoolLookupByName", host, () -> connect.storagePoolLookupByName(name));
+        } catch (LibvirtException e) {
+            if (isError(e, Error.ErrorNumber.VIR_ERR_NO_STORAGE_POOL)) {
+                throw new StorageNotFoundException("Unknown storage pool on " + host + ": " + name);
+            }
+            throw e;
+        }
+    }
+
+    private StorageVol lookupVolume(String host, org.libvirt.StoragePool pool, String name) throws LibvirtException {
+        StorageVol volume = findVolume(host, pool, name);
+        if (volume == null) {
+            throw new StorageNotFoundException("Unknown volume in pool " + pool.getName() + ": " + name);
+        }
+        return volume;
+    }
+
+    /*
+     * Looks up a volume, returning null if the pool has none of that name.
+     */
+    private StorageVol findVolume(String host, org.libvirt.StoragePool pool, String name) throws LibvirtException {
+        try {
+            return libvirt.time("storageVolLookupByName", host, () -> pool.storageVolLookupByName(name));
+        } catch (LibvirtException e) {
+            if (isError(e, Error.ErrorNumber.VIR_ERR_NO_STORAGE_VOL)) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    private static boolean isError(LibvirtException e, Error.ErrorNumber code) {
+        return e.getError() != null && e.getError().getCode() == code;
+    }
+
+    private static void checkVolumeName(String name) {
+        if (name == null || !VOLUME_NAME.matcher(name).matches() || name.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid volume name: " + name);
+        }
+    }
+
+    private static String uploadKey(String host, String pool, String volume) {
+        return host + "/" + pool + "/" + volume;
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.kvm.service;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/*
+ * Storage pool and volume XML: builds the XML of new volumes and reads the
+ * few fields the storage API reports from pool and volume descriptions.
+ */
+final class StorageXml {
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    private StorageXml() {
+    }
+
+    /*
+     * <volume>
+     *   <name>debian-12.iso</name>
+     *   <capacity unit='bytes'>658505728</capacity>
+     *   <allocation unit='bytes'>0</allocation>
+     *   <target><format type='raw'/></target>
+     * </volume>
+     * Nothing is preallocated; raw volumes start sparse and qcow2 ones hold metadata only.
+     */
+    static String volume(String name, long capacity, String format) throws XMLStreamException {
+        StringWriter out = new StringWriter();
+        XMLStreamWriter xml = OUTPUT_FACTORY.createXMLStreamWriter(out);
+        try {
+            xml.writeStartElement("volume");
+            xml.writeStartElement("name");
+            xml.writeCharacters(name);
+            xml.writeEndElement();
+            writeBytes(xml, "capacity", capacity);
+            writeBytes(xml, "allocation", 0);
+            xml.writeStartElement("target");
+            xml.writeEmptyElement("format");
+            xml.writeAttribute("type", format);
+            xml.writeEndElement();
+            xml.writeEndElement();
+            xml.writeEndDocument();
+        } finally {
+            xml.close();
+        }
+        return out.toString();
+    }
+
+    private static void writeBytes(XMLStreamWriter xml, String element, long bytes) throws XMLStreamException {
+        xml.writeStartElement(element);
+        xml.writeAttribute("unit", "bytes");
+        xml.writeCharacters(Long.toString(bytes));
+        xml.writeEndElement();
+    }
+
+    /*
+     * Text of <target><path> in pool or volume XML, or null.
+     */
+    static String targetPath(String xml) throws XMLStreamException {
+        XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(new StringReader(xml));
+        try {
+            return moveToTargetChild(reader, "path") ? reader.getElementText().trim() : null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * Type of <target><format> in volume XML, or null.
+     */
+    static String targetFormat(String xml) throws XMLStreamException {
+        XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(new StringReader(xml));
+        try {
+            return moveToTargetChild(reader, "format") ? reader.getAttributeValue(null, "type") : null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * Advances to the start of the given child of the root's <target> element.
+     * Returns false if there is none.
+     */
+    private static boolean moveToTargetChild(XMLStreamReader reader, String child) throws XMLStreamException {
+        int depth = 0;
+        boolean inTarget = false;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                if (depth == 2 && "target".equals(reader.getLocalName())) {
+                    inTarget = true;
+                } else if (depth == 3 && inTarget && child.equals(reader.getLocalName())) {
+                    return true;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (depth == 2) {
+                    inTarget = false;
+                }
+                depth--;
+            }
+        }
+        return false;
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.kvm.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.example.kvm.model.VmTemplate;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.annotation.PostConstruct;
+
+/*
+ * Registry of golden images VMs can be cloned from (see KvmService.createVMFromTemplate).
+ *
+ * The registry is small and changes rarely: it is kept in memory for lookups and
+ * rewritten as a whole to a JSON file on every change.
+ */
+@Service
+public class TemplateService {
+
+    private static final Logger log = LoggerFactory.getLogger(TemplateService.class);
+
+    // Template names end up in file names and domain metadata
+    private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]*");
+
+    private final ObjectMapper objectMapper;
+    private final Path registryFile;
+
+    private final Map<String, VmTemplate> templates = new ConcurrentHashMap<>();
+
+    public TemplateService(ObjectMapper objectMapper,
+                           @Value("${kvm.templates.registry-file:templates.json}") String registryFile) {
+        this.objectMapper = objectMapper;
+        this.registryFile = Paths.get(registryFile);
+    }
+
+    @PostConstruct
+    public void load() throws IOException {
+        if (!Files.exists(registryFile)) {
+            return;
+        }
+        List<VmTemplate> stored = objectMapper.readValue(registryFile.toFile(), new TypeReference<List<VmTemplate>>() { });
+        for (VmTemplate template : stored) {
+            templates.put(template.getName(), template);
+        }
+        log.info("Loaded {} VM templates from {}", templates.size(), registryFile);
+    }
+
+    public List<VmTemplate> list() {
+        List<VmTemplate> result = new ArrayList<>(templates.values());
+        result.sort(Comparator.comparing(VmTemplate::getName));
+        return result;
+    }
+
+    public VmTemplate get(String name) {
+        return templates.get(name);
+    }
+
+    /*
+     * Registers an existing image as a template. Format and size are read from
+     * the image itself; the image should not be written to afterwards.
+     */
+    public synchronized VmTemplate register(VmTemplate template) throws IOException {
+        String name = template.getName();
+        if (name == null || !VALID_NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid template name: " + name);
+        }
+        if (templates.containsKey(name)) {
+            throw new IllegalArgumentException("Template already exists: " + name);
+        }
+        if (template.getImagePath() == null || !Paths.get(template.getImagePath()).isAbsolute()) {
+            throw new IllegalArgumentException("Template image path must be absolute");
+        }
+        if (!Files.isReadable(Paths.get(template.getImagePath()))) {
+            throw new IllegalArgumentException("Template image not readable: " + template.getImagePath());
+        }
+
+        JsonNode info = objectMapper.readTree(DiskImages.info(template.getImagePath()));
+        template.setFormat(info.path("format").asText("raw"));
+        template.setVirtualSizeBytes(info.path("virtual-size").asLong());
+        template.setRegisteredAt(System.currentTimeMillis());
+
+        templates.put(name, template);
+        save();
+        return template;
+    }
+
+    /*
+     * Removes a template from the registry. The image file itself is left alone,
+     * since overlays created from it still depend on it.
+     */
+    public synchronized boolean unregister(String name) throws IOException {
+        if (templates.remove(name) == null) {
+            return false;
+        }
+        save();
+        return true;
+    }
+
+    private void save() throws IOException {
+        Path parent = registryFile.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        // Write a sibling file first so a crash never leaves a truncated registry
+        Path temp = Files.createTempFile(parent, registryFile.getFileName().toString(), ".tmp");
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(temp.toFile(), list());
+        Files.move(temp, registryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
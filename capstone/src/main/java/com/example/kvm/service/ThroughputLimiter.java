@@ -0,0 +1,44 @@
+package com.example.kvm.service;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Token bucket shared by all callers: acquire blocks until the requested bytes
+ * fit under the configured rate. At most one second's worth can be saved up.
+ * A rate of 0 or less disables the limit.
+ */
+final class ThroughputLimiter {
+
+    private final long bytesPerSecond;
+
+    // Guarded by this
+    private double available;
+    private long refilledAt = System.nanoTime();
+
+    ThroughputLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.available = bytesPerSecond;
+    }
+
+    void acquire(long bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            available = Math.min(bytesPerSecond, available + (now - refilledAt) * bytesPerSecond / 1e9);
+            refilledAt = now;
+            // Take the bytes now and sleep off the debt, so large requests are not starved by small ones
+            available -= bytes;
+            waitNanos = available >= 0 ? 0 : (long) (-available * 1e9 / bytesPerSecond);
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+}
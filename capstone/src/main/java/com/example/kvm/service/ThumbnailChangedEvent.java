@@ -0,0 +1,25 @@
+package com.example.kvm.service;
+
+/*
+ * Spring application event published by the ThumbnailService when the screen
+ * of a VM has changed and a new thumbnail is cached. Listeners run on a capture
+ * thread, so they must not block.
+ */
+public class ThumbnailChangedEvent {
+
+    private final String name;
+    private final String etag;
+
+    public ThumbnailChangedEvent(String name, String etag) {
+        this.name = name;
+        this.etag = etag;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.kvm.service;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/*
+ * Decoding, downscaling and JPEG encoding of domain screenshots.
+ * ImageIO has no PPM reader, so the binary PPM (P6) QEMU sends is parsed here.
+ */
+final class ThumbnailImages {
+
+    private ThumbnailImages() {
+    }
+
+    static BufferedImage decode(String mimeType, byte[] data) throws IOException {
+        if (data.length >= 2 && data[0] == 'P' && data[1] == '6') {
+            return decodePpm(data);
+        }
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+        if (image == null) {
+            throw new IOException("Unsupported screenshot format: " + mimeType);
+        }
+        return image;
+    }
+
+    /*
+     * Scales the image down to at most maxWidth pixels wide, keeping the aspect ratio.
+     */
+    static BufferedImage scale(BufferedImage image, int maxWidth) {
+        if (image.getWidth() <= maxWidth) {
+            return image;
+        }
+        int height = Math.max(1, (int) ((long) image.getHeight() * maxWidth / image.getWidth()));
+        BufferedImage scaled = new BufferedImage(maxWidth, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, maxWidth, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    static byte[] encodeJpeg(BufferedImage image, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream(16 * 1024);
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(jpeg)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return jpeg.toByteArray();
+    }
+
+    /*
+     * P6 <width> <height> <maxval> followed by RGB triplets; '#' starts a header comment.
+     */
+    private static BufferedImage decodePpm(byte[] data) throws IOException {
+        int[] position = {2};
+        int width = readHeaderNumber(data, position);
+        int height = readHeaderNumber(data, position);
+        int maxValue = readHeaderNumber(data, position);
+        // A single whitespace byte separates the header from the pixels
+        int offset = position[0] + 1;
+        int bytesPerSample = maxValue < 256 ? 1 : 2;
+        if (width <= 0 || height <= 0 || offset + (long) width * height * 3 * bytesPerSample > data.length) {
+            throw new IOException("Truncated PPM screenshot");
+        }
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[width];
+        int step = bytesPerSample;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = data[offset] & 0xFF;
+                int g = data[offset + step] & 0xFF;
+                int b = data[offset + 2 * step] & 0xFF;
+                row[x] = (r << 16) | (g << 8) | b;
+                offset += 3 * step;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    private static int readHeaderNumber(byte[] data, int[] position) throws IOException {
+        int i = position[0];
+        while (i < data.length) {
+            if (data[i] == '#') {
+                while (i < data.length && data[i] != '\n') {
+                    i++;
+                }
+            } else if (Character.isWhitespace(data[i])) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        int value = 0;
+        int digits = 0;
+        while (i < data.length && data[i] >= '0' && data[i] <= '9') {
+            value = value * 10 + (data[i] - '0');
+            i++;
+            digits++;
+        }
+        if (digits == 0) {
+            throw new IOException("Malformed PPM header");
+        }
+        position[0] = i;
+        return value;
+    }
+}
@@ -0,0 +1,323 @@
+package com.example.kvm.service;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.example.kvm.libvirt.DomainScreenshot;
+import com.example.kvm.model.VmInfo;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import jakarta.annotation.PreDestroy;
+
+/*
+ * Keeps small JPEG previews of the screens of running VMs, so a dashboard can
+ * show many consoles without opening a VNC session for each.
+ *
+ * Every kvm.thumbnails.interval-seconds the due VMs are captured in parallel
+ * through virDomainScreenshot. The raw screenshot is hashed first: an unchanged
+ * screen is not decoded or re-encoded, keeps its ETag and is checked less often
+ * (up to kvm.thumbnails.max-backoff rounds apart), so idle VMs cost one libvirt
+ * call now and then. Changed screens are scaled down, encoded and published as
+ * a ThumbnailChangedEvent.
+ *
+ * Encoded thumbnails live in an LRU cache bounded by kvm.thumbnails.cache-max-bytes.
+ */
+@Service
+public class ThumbnailService {
+
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailService.class);
+
+    /*
+     * One encoded preview. The ETag changes exactly when the screen does.
+     */
+    public static final class Thumbnail {
+
+        private final byte[] jpeg;
+        private final String etag;
+        private final int width;
+        private final int height;
+        private final long capturedAt;
+
+        Thumbnail(byte[] jpeg, String etag, int width, int height, long capturedAt) {
+            this.jpeg = jpeg;
+            this.etag = etag;
+            this.width = width;
+            this.height = height;
+            this.capturedAt = capturedAt;
+        }
+
+        public byte[] getJpeg() {
+            return jpeg;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public long getCapturedAt() {
+            return capturedAt;
+        }
+    }
+
+    private final KvmService kvmService;
+    private final ApplicationEventPublisher eventPublisher;
+    private final boolean enabled;
+    private final int width;
+    private final float quality;
+    private final int maxBackoff;
+    private final long cacheMaxBytes;
+
+    // Access-ordered LRU of encoded thumbnails, guarded by itself
+    private final LinkedHashMap<String, Thumbnail> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+
+    // Capture state per running VM, only touched by the capture threads (one task per VM per round)
+    private final Map<String, CaptureState> states = new ConcurrentHashMap<>();
+
+    private final ExecutorService capturers;
+
+    private final AtomicLong captures = new AtomicLong();
+    private final AtomicLong unchanged = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastRoundMillis;
+
+    public ThumbnailService(KvmService kvmService, ApplicationEventPublisher eventPublisher, MeterRegistry registry,
+                            @Value("${kvm.thumbnails.enabled:true}") boolean enabled,
+                            @Value("${kvm.thumbnails.max-backoff:8}") int maxBackoff,
+                            @Value("${kvm.thumbnails.width:320}") int width,
+                            @Value("${kvm.thumbnails.quality:0.7}") float quality,
+                            @Value("${kvm.thumbnails.cache-max-bytes:16777216}") long cacheMaxBytes,
+                            @Value("${kvm.thumbnails.parallelism:4}") int parallelism) {
+        this.kvmService = kvmService;
+        this.eventPublisher = eventPublisher;
+        this.enabled = enabled;
+        this.width = width;
+        this.quality = quality;
+        this.maxBackoff = Math.max(1, maxBackoff);
+        this.cacheMaxBytes = cacheMaxBytes;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.capturers = Executors.newFixedThreadPool(Math.max(1, parallelism), runnable -> {
+            Thread thread = new Thread(runnable, "kvm-thumbnail-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        new ExecutorServiceMetrics(capturers, "kvm.thumbnails", Tags.empty()).bindTo(registry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /*
+     * Returns the cached thumbnail of a VM, or null if there is none (yet).
+     */
+    public Thumbnail get(String name) {
+        synchronized (cache) {
+            return cache.get(name);
+        }
+    }
+
+    /*
+     * Current ETag per VM with a cached thumbnail.
+     */
+    public Map<String, String> getEtags() {
+        Map<String, String> etags = new HashMap<>();
+        synchronized (cache) {
+            for (Map.Entry<String, Thumbnail> entry : cache.entrySet()) {
+                etags.put(entry.getKey(), entry.getValue().getEtag());
+            }
+        }
+        return etags;
+    }
+
+    @Scheduled(initialDelayString = "${kvm.thumbnails.interval-seconds:10}",
+               fixedDelayString = "${kvm.thumbnails.interval-seconds:10}", timeUnit = TimeUnit.SECONDS)
+    public void scheduledRound() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            captureRound();
+        } catch (Exception e) {
+            log.warn("Thumbnail capture round failed: {}", e.getMessage());
+        }
+    }
+
+    /*
+     * Captures the VMs that are due, waiting for all of them. Runs on the scheduler thread.
+     */
+    void captureRound() {
+        long started = System.currentTimeMillis();
+        List<Callable<Void>> due = new ArrayList<>();
+        Map<String, Boolean> running = new HashMap<>();
+        for (VmInfo vm : kvmService.listVMInfo()) {
+            if (!vm.isRunning() || KvmService.isWarmPoolName(vm.getName())) {
+                continue;
+            }
+            running.put(vm.getName(), Boolean.TRUE);
+            CaptureState state = states.computeIfAbsent(vm.getName(), name -> new CaptureState());
+            if (--state.skipRounds <= 0) {
+                due.add(() -> {
+                    capture(vm.getName(), state);
+                    return null;
+                });
+            }
+        }
+
+        // Stopped VMs have no screen; drop what was kept for them
+        for (Iterator<String> names = states.keySet().iterator(); names.hasNext(); ) {
+            String name = names.next();
+            if (!running.containsKey(name)) {
+                names.remove();
+                evict(name);
+            }
+        }
+
+        try {
+            capturers.invokeAll(due);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lastRoundMillis = System.currentTimeMillis() - started;
+    }
+
+    private void capture(String name, CaptureState state) {
+        try {
+            DomainScreenshot screenshot = kvmService.captureScreenshot(name);
+            captures.incrementAndGet();
+            byte[] data = screenshot.getData();
+            CRC32C crc = new CRC32C();
+            crc.update(data);
+            String etag = "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(data.length) + "\"";
+
+            if (etag.equals(state.etag) && get(name) != null) {
+                // Same screen: back off exponentially up to maxBackoff rounds
+                unchanged.incrementAndGet();
+                state.backoff = Math.min(state.backoff * 2, maxBackoff);
+                state.skipRounds = state.backoff;
+                return;
+            }
+
+            BufferedImage image = ThumbnailImages.scale(
+                    ThumbnailImages.decode(screenshot.getMimeType(), data), width);
+            put(name, new Thumbnail(ThumbnailImages.encodeJpeg(image, quality), etag,
+                    image.getWidth(), image.getHeight(), System.currentTimeMillis()));
+            state.etag = etag;
+            state.backoff = 1;
+            state.skipRounds = 1;
+            eventPublisher.publishEvent(new ThumbnailChangedEvent(name, etag));
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            // Headless guests or VMs without graphics fail every time; do not retry them every round
+            state.backoff = Math.min(state.backoff * 2, maxBackoff);
+            state.skipRounds = state.backoff;
+            if (state.backoff < maxBackoff) {
+                log.atWarn().addKeyValue("vm", name).log("Screenshot of {} failed: {}", name, e.getMessage());
+            }
+        }
+    }
+
+    private void put(String name, Thumbnail thumbnail) {
+        synchronized (cache) {
+            Thumbnail previous = cache.put(name, thumbnail);
+            if (previous != null) {
+                cachedBytes -= previous.getJpeg().length;
+            }
+            cachedBytes += thumbnail.getJpeg().length;
+            Iterator<Map.Entry<String, Thumbnail>> eldest = cache.entrySet().iterator();
+            while (cachedBytes > cacheMaxBytes && eldest.hasNext()) {
+                Map.Entry<String, Thumbnail> entry = eldest.next();
+                if (entry.getKey().equals(name)) {
+                    continue;
+                }
+                cachedBytes -= entry.getValue().getJpeg().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    private void evict(String name) {
+        synchronized (cache) {
+            Thumbnail removed = cache.remove(name);
+            if (removed != null) {
+                cachedBytes -= removed.getJpeg().length;
+            }
+        }
+    }
+
+    @EventListener
+    public void onDomainChanged(DomainChangedEvent event) {
+        VmInfo current = event.getCurrent();
+        if (current == null || !current.isRunning()) {
+            states.remove(event.getName());
+            evict(event.getName());
+        } else {
+            // Booting or resumed: capture on the next round
+            CaptureState state = states.get(event.getName());
+            if (state != null) {
+                state.skipRounds = 0;
+                state.backoff = 1;
+            }
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        synchronized (cache) {
+            stats.put("cached", cache.size());
+            stats.put("cachedBytes", cachedBytes);
+        }
+        stats.put("cacheMaxBytes", cacheMaxBytes);
+        stats.put("captures", captures.get());
+        stats.put("unchanged", unchanged.get());
+        stats.put("failures", failures.get());
+        stats.put("lastRoundMillis", lastRoundMillis);
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        capturers.shutdownNow();
+    }
+
+    private static final class CaptureState {
+        volatile String etag;
+        // Rounds between captures, doubled while the screen does not change
+        volatile int backoff = 1;
+        // Rounds left until the next capture
+        volatile int skipRounds;
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.kvm.service;
+
+/*
+ * Raised when an upload cannot proceed at the requested offset: another upload
+ * into the same volume is running, or the client resumes from an offset other
+ * than the one committed so far. Carries that offset so the client can retry.
+ */
+public class UploadConflictException extends RuntimeException {
+
+    private final long committedOffset;
+
+    public UploadConflictException(String message, long committedOffset) {
+        super(message);
+        this.committedOffset = committedOffset;
+    }
+
+    public long getCommittedOffset() {
+        return committedOffset;
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.kvm.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.example.kvm.model.VmTemplate;
+
+import jakarta.annotation.PreDestroy;
+
+/*
+ * Keeps stopped, fully defined clones of the pool template ready per size class,
+ * so creating a VM only renames one of them instead of building it.
+ *
+ * Pooled domains are named "warm-pool-<class>-<id>" and carry a warm-pool label;
+ * they are hidden from the VM list and re-adopted after a restart. A single
+ * background thread tops every class up to its target size, after each claim and
+ * every kvm.warm-pool.check-interval-ms. When a class is empty the VM is built on
+ * demand, so a miss is only slower, never a failure.
+ */
+@Service
+public class WarmPoolService {
+
+    private static final Logger log = LoggerFactory.getLogger(WarmPoolService.class);
+
+    private final KvmService kvmService;
+    private final TemplateService templateService;
+    private final boolean enabled;
+    private final String templateName;
+    private final String path;
+    private final Map<String, SizeClass> classes = new LinkedHashMap<>();
+
+    private final ExecutorService refiller = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "kvm-warm-pool");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Coalesces refill requests while one is queued
+    private final AtomicBoolean refillQueued = new AtomicBoolean();
+    // Only touched by the refill thread
+    private boolean adopted;
+
+    public WarmPoolService(KvmService kvmService, TemplateService templateService, Environment environment,
+                           @Value("${kvm.warm-pool.enabled:false}") boolean enabled,
+                           @Value("${kvm.warm-pool.template:}") String templateName,
+                           @Value("${kvm.warm-pool.path:/var/lib/libvirt/vm}") String path,
+                           @Value("${kvm.warm-pool.classes:small,medium,large}") String[] classNames) {
+        this.kvmService = kvmService;
+        this.templateService = templateService;
+        this.enabled = enabled && !templateName.isBlank();
+        this.templateName = templateName;
+        this.path = path;
+
+        for (String name : classNames) {
+            String className = name.trim();
+            String key = "kvm.warm-pool.classes." + className + ".";
+            int memoryMB = environment.getProperty(key + "memory-mb", Integer.class, defaultMemoryMB(className));
+            int vcpus = environment.getProperty(key + "vcpus", Integer.class, defaultVcpus(className));
+            int target = environment.getProperty(key + "size", Integer.class, 2);
+            classes.put(className, new SizeClass(className, memoryMB, vcpus, Math.max(0, target)));
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public List<String> getClassNames() {
+        return new ArrayList<>(classes.keySet());
+    }
+
+    /*
+     * Creates a VM of the given size class, from the pool if one is ready.
+     */
+    public void create(String name, String sizeClass, JobProgress progress) throws Exception {
+        SizeClass pool = classes.get(sizeClass);
+        if (pool == null) {
+            throw new IllegalArgumentException("Unknown size class: " + sizeClass);
+        }
+        VmTemplate template = template();
+        // Fail before a pooled domain is used up on a name that cannot be taken
+        kvmService.checkNameAvailable(name);
+
+        String pooled;
+        while ((pooled = pool.ready.pollFirst()) != null) {
+            try {
+                progress.update(50, "Claiming pooled domain " + pooled);
+                kvmService.claimWarmDomain(pooled, name, template.getName());
+                pool.hits.incrementAndGet();
+                requestRefill();
+                return;
+            } catch (Exception e) {
+                // Removed behind our back or broken - try the next one
+                log.warn("Could not claim warm domain {}: {}", pooled, e.getMessage());
+            }
+        }
+
+        pool.misses.incrementAndGet();
+        requestRefill();
+        kvmService.createVMFromTemplate(name, template, pool.memoryMB, pool.vcpus, null, path, null, null, progress);
+    }
+
+    /*
+     * Hit rate, pool levels and refill latency per size class.
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("template", templateName);
+        Map<String, Object> perClass = new LinkedHashMap<>();
+        for (SizeClass pool : classes.values()) {
+            perClass.put(pool.name, pool.stats());
+        }
+        stats.put("classes", perClass);
+        return stats;
+    }
+
+    @Scheduled(initialDelayString = "${kvm.warm-pool.check-interval-ms:30000}",
+               fixedDelayString = "${kvm.warm-pool.check-interval-ms:30000}")
+    public void requestRefill() {
+        if (enabled && refillQueued.compareAndSet(false, true)) {
+            refiller.execute(this::refill);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refiller.shutdownNow();
+    }
+
+    /*
+     * Tops every class up to its target, one domain at a time. Runs on the refill thread.
+     */
+    private void refill() {
+        refillQueued.set(false);
+        try {
+            VmTemplate template = template();
+            if (!adopted) {
+                adopt();
+            }
+            for (SizeClass pool : classes.values()) {
+                while (pool.ready.size() < pool.target && !Thread.currentThread().isInterrupted()) {
+                    String poolName = "warm-pool-" + pool.name + "-" + UUID.randomUUID().toString().substring(0, 8);
+                    long started = System.nanoTime();
+                    try {
+                        kvmService.provisionWarmDomain(poolName, template, pool.memoryMB, pool.vcpus, path, pool.name);
+                    } catch (Exception e) {
+                        pool.refillFailures.incrementAndGet();
+                        log.atWarn().addKeyValue("pool", pool.name).log("Warm pool refill for {} failed: {}", pool.name, e.getMessage());
+                        break;
+                    }
+                    pool.recordRefill((System.nanoTime() - started) / 1_000_000);
+                    pool.ready.addLast(poolName);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Warm pool refill skipped: {}", e.getMessage());
+        }
+    }
+
+    /*
+     * Picks up domains pooled before a restart.
+     */
+    private void adopt() throws Exception {
+        for (Map.Entry<String, String> pooled : kvmService.getWarmDomains().entrySet()) {
+            SizeClass pool = classes.get(pooled.getValue());
+            if (pool != null && !pool.ready.contains(pooled.getKey())) {
+                pool.ready.addLast(pooled.getKey());
+            }
+        }
+        adopted = true;
+    }
+
+    private static int defaultMemoryMB(String sizeClass) {
+        return switch (sizeClass) {
+            case "small" -> 1024;
+            case "medium" -> 4096;
+            case "large" -> 8192;
+            default -> 2048;
+        };
+    }
+
+    private static int defaultVcpus(String sizeClass) {
+        return switch (sizeClass) {
+            case "small" -> 1;
+            case "medium" -> 2;
+            case "large" -> 4;
+            default -> 2;
+        };
+    }
+
+    private VmTemplate template() {
+        VmTemplate template = templateService.get(templateName);
+        if (template == null) {
+            throw new IllegalStateException("Warm pool template not registered: " + templateName);
+        }
+        return template;
+    }
+
+    private static final class SizeClass {
+
+        final String name;
+        final int memoryMB;
+        final int vcpus;
+        final int target;
+        // Unclaimed domains, oldest first
+        final ConcurrentLinkedDeque<String> ready = new ConcurrentLinkedDeque<>();
+
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong refillFailures = new AtomicLong();
+        // Refill latency, written by the refill thread only
+        volatile long refills;
+        volatile long totalRefillMillis;
+        volatile long maxRefillMillis;
+        volatile long lastRefillMillis;
+
+        SizeClass(String name, int memoryMB, int vcpus, int target) {
+            this.name = name;
+            this.memoryMB = memoryMB;
+            this.vcpus = vcpus;
+            this.target = target;
+        }
+
+        void recordRefill(long millis) {
+            refills++;
+            totalRefillMillis += millis;
+            maxRefillMillis = Math.max(maxRefillMillis, millis);
+            lastRefillMillis = millis;
+        }
+
+        Map<String, Object> stats() {
+            long hitCount = hits.get();
+            long missCount = misses.get();
+            long refillCount = refills;
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("memoryMB", memoryMB);
+            stats.put("vcpus", vcpus);
+            stats.put("target", target);
+            stats.put("ready", ready.size());
+            stats.put("hits", hitCount);
+            stats.put("misses", missCount);
+            stats.put("hitRate", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+            stats.put("refills", refillCount);
+            stats.put("refillFailures", refillFailures.get());
+            stats.put("avgRefillMillis", refillCount == 0 ? 0 : totalRefillMillis / refillCount);
+            stats.put("maxRefillMillis", maxRefillMillis);
+            stats.put("lastRefillMillis", lastRefillMillis);
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.kvm.websocket;
+
+/*
+ * Picks the read buffer size for a console based on recent reads: grows quickly
+ * while reads fill the buffer (full-screen updates), shrinks slowly once reads stay
+ * small (cursor moves, idle desktop). Not thread-safe; used on the selector thread.
+ */
+final class AdaptiveReadSize {
+
+    private static final int INITIAL_SIZE = 16 * 1024;
+
+    private int size = INITIAL_SIZE;
+    private boolean shrinkPending = false;
+
+    int next() {
+        return size;
+    }
+
+    void record(int bytesRead) {
+        if (bytesRead >= size) {
+            size = Math.min(size << 1, BufferPool.MAX_SIZE);
+            shrinkPending = false;
+        } else if (bytesRead <= size >> 2) {
+            // Require two small reads in a row before shrinking
+            if (shrinkPending) {
+                size = Math.max(size >> 1, BufferPool.MIN_SIZE);
+                shrinkPending = false;
+            } else {
+                shrinkPending = true;
+            }
+        } else {
+            shrinkPending = false;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package com.example.kvm.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+
+/*
+ * The single VNC upstream shared by all broadcast-mode viewers of one VM.
+ *
+ * The proxy itself is the RFB client here: it negotiates the connection once and
+ * forces one pixel format and a set of encodings that keep no decoder state, so
+ * every viewer can decode the stream from any message boundary. Framebuffer
+ * updates are read once and fanned out to all viewers as SharedFrames. A viewer
+ * that joins later starts at the next message boundary and triggers a full
+ * (non-incremental) update request to bring it up to date.
+ *
+ * Input is forwarded only from the controlling viewer, the oldest one; when it
+ * leaves, the next oldest takes over. Update requests from viewers are forwarded
+ * only while none is outstanding, so N viewers do not make QEMU encode N times.
+ *
+ * Hub state is confined to the selector thread; other threads go through
+ * VNCProxyEngine.execute.
+ */
+final class BroadcastHub implements UpstreamHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(BroadcastHub.class);
+
+    // Encodings that can be framed without decoder state, in order of preference
+    static final int[] SHARED_ENCODINGS = {
+            Rfb.ENCODING_HEXTILE,
+            Rfb.ENCODING_RRE,
+            Rfb.ENCODING_COPY_RECT,
+            Rfb.ENCODING_RAW,
+            Rfb.ENCODING_CURSOR,
+            Rfb.ENCODING_DESKTOP_SIZE,
+            Rfb.ENCODING_LAST_RECT
+    };
+
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int MAX_DESKTOP_NAME = 4096;
+
+    private enum State { VERSION, SECURITY_TYPES, SECURITY_RESULT, SERVER_INIT, STREAMING }
+
+    private final VNCProxyEngine engine;
+    private final ConsoleBroadcaster broadcaster;
+    private final String vmName;
+    private final RelayStats stats;
+    private final AdaptiveReadSize readSize = new AdaptiveReadSize();
+    private volatile UpstreamChannel upstream;
+    private volatile boolean closed = false;
+
+    // Every attached viewer, oldest first
+    private final List<BroadcastViewer> viewers = new CopyOnWriteArrayList<>();
+
+    // ---- Selector thread only ----
+
+    private State state = State.VERSION;
+    // Handshake bytes from the VNC server (write mode)
+    private ByteBuffer handshake = ByteBuffer.allocate(256);
+    private RfbServerMessageFramer framer;
+    private byte[] desktopName;
+
+    // Viewers receiving the stream, oldest first, and viewers waiting for a message boundary.
+    // Copy-on-write because closing a viewer can call back into detach while these are iterated.
+    private final List<BroadcastViewer> streaming = new CopyOnWriteArrayList<>();
+    private final List<BroadcastViewer> joining = new CopyOnWriteArrayList<>();
+    private BroadcastViewer controller;
+
+    // True while a framebuffer update request is outstanding at the VNC server
+    private boolean updateRequested = false;
+
+    // Where joining viewers start within the chunk being dispatched, -1 if not yet found
+    private int joinOffset;
+    private int joinWidth;
+    private int joinHeight;
+
+    BroadcastHub(VNCProxyEngine engine, ConsoleBroadcaster broadcaster, String vmName) {
+        this.engine = engine;
+        this.broadcaster = broadcaster;
+        this.vmName = vmName;
+        this.stats = new RelayStats("shared:" + vmName, vmName, engine.getRelayMeters());
+        this.stats.setReadSize(readSize.next());
+    }
+
+    void open(String host, int port) throws IOException {
+        this.upstream = engine.connect(host, port, this, stats);
+    }
+
+    String getVmName() {
+        return vmName;
+    }
+
+    RelayStats getStats() {
+        return stats;
+    }
+
+    int getViewerCount() {
+        return viewers.size();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void addViewer(BroadcastViewer viewer) {
+        viewers.add(viewer);
+    }
+
+    /*
+     * Detaches a viewer. Returns true if it was the last one.
+     */
+    boolean removeViewer(BroadcastViewer viewer) {
+        viewers.remove(viewer);
+        engine.execute(() -> detach(viewer));
+        return viewers.isEmpty();
+    }
+
+    /*
+     * Called once the viewer has completed its RFB handshake with the proxy.
+     */
+    void join(BroadcastViewer viewer) {
+        engine.execute(() -> {
+            if (closed || !viewers.contains(viewer)) {
+                return;
+            }
+            if (state == State.STREAMING && framer.isAtBoundary()) {
+                startViewer(viewer, framer.getFramebufferWidth(), framer.getFramebufferHeight());
+                requestFullUpdate();
+            } else {
+                joining.add(viewer);
+            }
+        });
+    }
+
+    /*
+     * Handles a complete client message from a viewer.
+     */
+    void submit(BroadcastViewer viewer, ByteBuffer message) {
+        engine.execute(() -> onViewerMessage(viewer, message));
+    }
+
+    void close() {
+        closed = true;
+        UpstreamChannel channel = upstream;
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    @Override
+    public void onConnected(UpstreamChannel channel) {
+        log.atInfo().addKeyValue("vm", vmName).log("Shared VNC upstream connected for VM: {}", vmName);
+    }
+
+    @Override
+    public void onReadable(UpstreamChannel channel) throws IOException {
+        if (state != State.STREAMING) {
+            readHandshake(channel);
+            return;
+        }
+
+        ByteBuffer buffer = channel.acquireBuffer(readSize.next());
+        int total = 0;
+        int bytesRead = 0;
+        while (buffer.hasRemaining() && (bytesRead = channel.read(buffer)) > 0) {
+            total += bytesRead;
+            stats.recordUpstreamRead();
+        }
+        readSize.record(total);
+        stats.setReadSize(readSize.next());
+
+        if (total == 0) {
+            channel.releaseBuffer(buffer);
+            if (bytesRead < 0) {
+                channel.close();
+            }
+            return;
+        }
+        buffer.flip();
+        dispatch(buffer);
+    }
+
+    @Override
+    public void onClosed(UpstreamChannel channel, IOException cause) {
+        closed = true;
+        if (cause != null) {
+            log.atWarn().addKeyValue("vm", vmName).log("Shared VNC upstream for VM {} failed: {}", vmName, cause.getMessage());
+        }
+        broadcaster.remove(this);
+        for (BroadcastViewer viewer : viewers) {
+            viewer.closeSession(cause == null ? CloseStatus.NORMAL : CloseStatus.SERVER_ERROR);
+        }
+    }
+
+    // ---- Handshake with the VNC server ----
+
+    private void readHandshake(UpstreamChannel channel) throws IOException {
+        int bytesRead;
+        do {
+            if (!handshake.hasRemaining()) {
+                handshake = ByteBuffer.allocate(handshake.capacity() * 2).put(handshake.flip());
+            }
+            bytesRead = channel.read(handshake);
+        } while (bytesRead > 0);
+
+        while (state != State.STREAMING && advanceHandshake(channel)) {
+            // Keep going while complete handshake fields are buffered
+        }
+        if (state == State.STREAMING && handshake.position() > 0) {
+            // The server may already have started sending updates
+            ByteBuffer leftover = channel.acquireBuffer(handshake.position());
+            leftover.put(handshake.flip()).flip();
+            handshake = null;
+            dispatch(leftover);
+        }
+        if (bytesRead < 0) {
+            channel.close();
+        }
+    }
+
+    /*
+     * Processes one handshake step. Returns false if more bytes are needed.
+     */
+    private boolean advanceHandshake(UpstreamChannel channel) throws IOException {
+        switch (state) {
+            case VERSION -> {
+                byte[] version = take(Rfb.VERSION_LENGTH);
+                if (version == null) {
+                    return false;
+                }
+                if (Rfb.parseMinorVersion(version) < 8) {
+                    throw new IOException("Shared consoles need an RFB 3.8 VNC server");
+                }
+                channel.write(Rfb.ascii(Rfb.VERSION_3_8));
+                state = State.SECURITY_TYPES;
+            }
+            case SECURITY_TYPES -> {
+                if (handshake.position() < 1) {
+                    return false;
+                }
+                int count = handshake.get(0) & 0xFF;
+                if (count == 0) {
+                    throw new IOException("VNC server refused the connection");
+                }
+                byte[] types = take(1 + count);
+                if (types == null) {
+                    return false;
+                }
+                boolean none = false;
+                for (int i = 1; i < types.length; i++) {
+                    none |= types[i] == Rfb.SECURITY_NONE;
+                }
+                if (!none) {
+                    throw new IOException("Shared consoles need a VNC server without authentication");
+                }
+                channel.write(Rfb.bytes(Rfb.SECURITY_NONE));
+                state = State.SECURITY_RESULT;
+            }
+            case SECURITY_RESULT -> {
+                byte[] result = take(4);
+                if (result == null) {
+                    return false;
+                }
+                if (ByteBuffer.wrap(result).getInt() != 0) {
+                    throw new IOException("VNC server rejected the security handshake");
+                }
+                // ClientInit with the shared flag set, so other clients of QEMU are not disconnected
+                channel.write(Rfb.bytes(1));
+                state = State.SERVER_INIT;
+            }
+            case SERVER_INIT -> {
+                if (handshake.position() < 24) {
+                    return false;
+                }
+                int nameLength = handshake.getInt(20);
+                if (nameLength < 0 || nameLength > MAX_DESKTOP_NAME) {
+                    throw new IOException("Invalid desktop name length " + nameLength);
+                }
+                byte[] serverInit = take(24 + nameLength);
+                if (serverInit == null) {
+                    return false;
+                }
+                ByteBuffer init = ByteBuffer.wrap(serverInit);
+                int width = init.getShort(0) & 0xFFFF;
+                int height = init.getShort(2) & 0xFFFF;
+                desktopName = Arrays.copyOfRange(serverInit, 24, serverInit.length);
+
+                framer = new RfbServerMessageFramer(BYTES_PER_PIXEL, width, height);
+                state = State.STREAMING;
+                channel.write(Rfb.setPixelFormat(Rfb.PIXEL_FORMAT_RGBX32));
+                channel.write(Rfb.setEncodings(SHARED_ENCODINGS));
+                log.info("Shared VNC session ready for VM {}: {}x{}", vmName, width, height);
+
+                for (BroadcastViewer viewer : joining) {
+                    startViewer(viewer, width, height);
+                }
+                joining.clear();
+                requestFullUpdate();
+            }
+            default -> throw new IllegalStateException("Unexpected handshake state " + state);
+        }
+        return true;
+    }
+
+    private byte[] take(int count) {
+        if (handshake.position() < count) {
+            return null;
+        }
+        byte[] result = new byte[count];
+        handshake.flip();
+        handshake.get(result);
+        handshake.compact();
+        return result;
+    }
+
+    // ---- Streaming ----
+
+    /*
+     * Fans one chunk of the server stream out to all viewers and starts joining
+     * viewers at the first message boundary in it. Takes ownership of buffer.
+     */
+    private void dispatch(ByteBuffer buffer) throws IOException {
+        SharedFrame frame = new SharedFrame(buffer, engine.getBufferPool());
+        try {
+            joinOffset = -1;
+            if (!joining.isEmpty() && framer.isAtBoundary()) {
+                markJoin(buffer.position());
+            }
+            framer.feed(buffer, this::onMessageEnd);
+
+            for (BroadcastViewer viewer : streaming) {
+                viewer.send(frame, buffer.position());
+            }
+
+            if (joinOffset >= 0) {
+                for (BroadcastViewer viewer : joining) {
+                    startViewer(viewer, joinWidth, joinHeight);
+                    if (joinOffset < buffer.limit()) {
+                        viewer.send(frame, joinOffset);
+                    }
+                }
+                joining.clear();
+                requestFullUpdate();
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void onMessageEnd(int offset, int messageType) {
+        if (messageType == Rfb.SERVER_FRAMEBUFFER_UPDATE) {
+            updateRequested = false;
+        }
+        if (joinOffset < 0 && !joining.isEmpty()) {
+            markJoin(offset);
+        }
+    }
+
+    private void markJoin(int offset) {
+        joinOffset = offset;
+        joinWidth = framer.getFramebufferWidth();
+        joinHeight = framer.getFramebufferHeight();
+    }
+
+    private void startViewer(BroadcastViewer viewer, int width, int height) {
+        viewer.start(width, height, desktopName);
+        streaming.add(viewer);
+        if (controller == null) {
+            controller = viewer;
+            log.info("Viewer {} controls the shared console of VM {}", viewer.getSessionId(), vmName);
+        }
+    }
+
+    private void detach(BroadcastViewer viewer) {
+        streaming.remove(viewer);
+        joining.remove(viewer);
+        if (controller == viewer) {
+            controller = streaming.isEmpty() ? null : streaming.get(0);
+            if (controller != null) {
+                log.info("Viewer {} now controls the shared console of VM {}", controller.getSessionId(), vmName);
+            }
+        }
+    }
+
+    private void onViewerMessage(BroadcastViewer viewer, ByteBuffer message) {
+        UpstreamChannel channel = upstream;
+        if (closed || channel == null || !streaming.contains(viewer)) {
+            return;
+        }
+        int type = message.get(0) & 0xFF;
+        switch (type) {
+            case Rfb.CLIENT_FRAMEBUFFER_UPDATE_REQUEST -> {
+                // One outstanding request serves every viewer
+                if (!updateRequested) {
+                    updateRequested = true;
+                    channel.write(message);
+                }
+            }
+            case Rfb.CLIENT_KEY_EVENT, Rfb.CLIENT_POINTER_EVENT, Rfb.CLIENT_CUT_TEXT -> {
+                if (viewer == controller) {
+                    channel.write(message);
+                }
+            }
+            default -> {
+                // Pixel format and encodings are owned by the hub
+            }
+        }
+    }
+
+    private void requestFullUpdate() {
+        UpstreamChannel channel = upstream;
+        if (channel != null) {
+            updateRequested = true;
+            channel.write(Rfb.framebufferUpdateRequest(false,
+                    framer.getFramebufferWidth(), framer.getFramebufferHeight()));
+        }
+    }
+}
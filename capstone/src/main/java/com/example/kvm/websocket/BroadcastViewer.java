@@ -0,0 +1,239 @@
+package com.example.kvm.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+/*
+ * One browser watching a VM through its BroadcastHub.
+ *
+ * The proxy plays the RFB server towards the browser: it answers the handshake
+ * itself (security type None - access control is done by the WebSocket endpoint)
+ * and sends a ServerInit describing the shared session once the hub lets the
+ * viewer in. After that the browser's messages are split into complete RFB
+ * messages and handed to the hub, which decides what reaches the VNC server.
+ *
+ * Viewers use the CLOSE overflow policy: a browser that cannot keep up is
+ * disconnected instead of pausing the upstream everyone else is watching.
+ */
+final class BroadcastViewer implements ConsoleSession {
+
+    private static final Logger log = LoggerFactory.getLogger(BroadcastViewer.class);
+
+    private enum State { VERSION, SECURITY, CLIENT_INIT, MESSAGES }
+
+    private static final SessionOutbound.FlowControl NO_FLOW_CONTROL = new SessionOutbound.FlowControl() {
+        @Override
+        public void pause() {
+        }
+
+        @Override
+        public void resume() {
+        }
+    };
+
+    // Pixel format fields that must match; the trailing three bytes are padding
+    private static final int PIXEL_FORMAT_SIGNIFICANT = 13;
+
+    private final WebSocketSession webSocketSession;
+    private final String vmName;
+    private final BroadcastHub hub;
+    private final ConsoleBroadcaster broadcaster;
+    private final RelayStats stats;
+    private final SessionOutbound outbound;
+
+    // Only touched by the container thread delivering this session's messages
+    private final RfbClientReader reader = new RfbClientReader();
+    private State state = State.VERSION;
+    private int minorVersion;
+
+    BroadcastViewer(WebSocketSession webSocketSession, String vmName, BroadcastHub hub,
+                    ConsoleBroadcaster broadcaster, VNCProxyEngine engine, OutboundPolicy policy) {
+        this.webSocketSession = webSocketSession;
+        this.vmName = vmName;
+        this.hub = hub;
+        this.broadcaster = broadcaster;
+        this.stats = new RelayStats(webSocketSession.getId(), vmName, engine.getRelayMeters());
+        this.outbound = new SessionOutbound(webSocketSession, policy.withOverflowPolicy(OverflowPolicy.CLOSE),
+                engine.getBufferPool(), stats, NO_FLOW_CONTROL);
+    }
+
+    /*
+     * Starts the RFB handshake by announcing the protocol version.
+     */
+    void greet() {
+        outbound.enqueue(Rfb.ascii(Rfb.VERSION_3_8));
+    }
+
+    String getSessionId() {
+        return webSocketSession.getId();
+    }
+
+    BroadcastHub getHub() {
+        return hub;
+    }
+
+    @Override
+    public String getVmName() {
+        return vmName;
+    }
+
+    @Override
+    public RelayStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public SessionOutbound getOutbound() {
+        return outbound;
+    }
+
+    @Override
+    public void handleBrowserMessage(ByteBuffer payload) {
+        stats.recordMessageFromBrowser(payload.remaining());
+        try {
+            reader.append(payload);
+            while (advance()) {
+                // Keep going while complete messages are buffered
+            }
+        } catch (IOException e) {
+            log.warn("Closing shared console viewer {}: {}", getSessionId(), e.getMessage());
+            closeSession(CloseStatus.PROTOCOL_ERROR.withReason(e.getMessage()));
+        }
+    }
+
+    /*
+     * Processes one handshake step or client message. Returns false if more bytes are needed.
+     */
+    private boolean advance() throws IOException {
+        switch (state) {
+            case VERSION -> {
+                byte[] version = reader.poll(Rfb.VERSION_LENGTH);
+                if (version == null) {
+                    return false;
+                }
+                minorVersion = Rfb.parseMinorVersion(version);
+                if (minorVersion < 3) {
+                    throw new IOException("Invalid RFB version");
+                }
+                if (minorVersion >= 7) {
+                    outbound.enqueue(Rfb.bytes(1, Rfb.SECURITY_NONE));
+                    state = State.SECURITY;
+                } else {
+                    // RFB 3.3: the server picks the security type
+                    outbound.enqueue(Rfb.u32(Rfb.SECURITY_NONE));
+                    state = State.CLIENT_INIT;
+                }
+            }
+            case SECURITY -> {
+                byte[] choice = reader.poll(1);
+                if (choice == null) {
+                    return false;
+                }
+                if (choice[0] != Rfb.SECURITY_NONE) {
+                    throw new IOException("Unsupported security type " + choice[0]);
+                }
+                if (minorVersion >= 8) {
+                    outbound.enqueue(Rfb.u32(0));
+                }
+                state = State.CLIENT_INIT;
+            }
+            case CLIENT_INIT -> {
+                // The shared flag is irrelevant: the proxy always shares
+                if (reader.poll(1) == null) {
+                    return false;
+                }
+                state = State.MESSAGES;
+                hub.join(this);
+            }
+            case MESSAGES -> {
+                ByteBuffer message = reader.pollMessage();
+                if (message == null) {
+                    return false;
+                }
+                if (accept(message)) {
+                    hub.submit(this, message);
+                }
+            }
+            default -> throw new IllegalStateException("Unexpected viewer state " + state);
+        }
+        return true;
+    }
+
+    /*
+     * Validates settings messages, which are answered by the hub's own choice
+     * rather than forwarded. Returns true if the message should go to the hub.
+     */
+    private boolean accept(ByteBuffer message) throws IOException {
+        switch (message.get(0) & 0xFF) {
+            case Rfb.CLIENT_SET_PIXEL_FORMAT -> {
+                byte[] format = new byte[PIXEL_FORMAT_SIGNIFICANT];
+                message.get(4, format);
+                if (!Arrays.equals(format, 0, PIXEL_FORMAT_SIGNIFICANT,
+                        Rfb.PIXEL_FORMAT_RGBX32, 0, PIXEL_FORMAT_SIGNIFICANT)) {
+                    throw new IOException("Shared consoles only support the default pixel format");
+                }
+                return false;
+            }
+            case Rfb.CLIENT_SET_ENCODINGS -> {
+                int count = message.getShort(2) & 0xFFFF;
+                for (int required : BroadcastHub.SHARED_ENCODINGS) {
+                    if (required != Rfb.ENCODING_RAW && !lists(message, count, required)) {
+                        throw new IOException("Viewer does not support encoding " + required);
+                    }
+                }
+                return false;
+            }
+            case Rfb.CLIENT_QEMU -> {
+                // QEMU extensions are not negotiated on the shared upstream
+                return false;
+            }
+            default -> {
+                return true;
+            }
+        }
+    }
+
+    private static boolean lists(ByteBuffer setEncodings, int count, int encoding) {
+        for (int i = 0; i < count; i++) {
+            if (setEncodings.getInt(4 + 4 * i) == encoding) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ---- Called by the hub on the selector thread ----
+
+    /*
+     * Completes the handshake; the viewer receives the shared stream from here on.
+     */
+    void start(int width, int height, byte[] desktopName) {
+        outbound.enqueue(Rfb.serverInit(width, height, Rfb.PIXEL_FORMAT_RGBX32, desktopName));
+    }
+
+    void send(SharedFrame frame, int offset) {
+        outbound.enqueue(frame, offset);
+    }
+
+    void closeSession(CloseStatus status) {
+        try {
+            if (webSocketSession.isOpen()) {
+                webSocketSession.close(status);
+            }
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    @Override
+    public void close() {
+        outbound.close();
+        broadcaster.detach(this);
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.kvm.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Pool of direct ByteBuffers shared by all console connections.
+ *
+ * Buffers come in power-of-two size classes between MIN_SIZE and MAX_SIZE. Released
+ * buffers are kept for reuse as long as the pool holds less than maxRetainedBytes;
+ * beyond that they are left to the garbage collector.
+ */
+public final class BufferPool {
+
+    public static final int MIN_SIZE = 4 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+    @SuppressWarnings("unchecked")
+    private final Queue<ByteBuffer>[] classes = new Queue[CLASS_COUNT];
+    private final long maxRetainedBytes;
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    // Pool-wide counters
+    private final AtomicLong acquires = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    public BufferPool(long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            classes[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /*
+     * Returns a cleared buffer with at least minCapacity bytes (capped at MAX_SIZE).
+     * Sets stats.bufferAllocations when a new buffer had to be allocated.
+     */
+    ByteBuffer acquire(int minCapacity, RelayStats stats) {
+        int index = classIndex(minCapacity);
+        acquires.incrementAndGet();
+
+        ByteBuffer buffer = classes[index].poll();
+        if (buffer != null) {
+            retainedBytes.addAndGet(-buffer.capacity());
+            buffer.clear();
+            return buffer;
+        }
+
+        int size = MIN_SIZE << index;
+        allocations.incrementAndGet();
+        allocatedBytes.addAndGet(size);
+        if (stats != null) {
+            stats.recordAllocation(size);
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /*
+     * Hands a buffer back to the pool. Buffers not obtained from acquire are ignored.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1 || capacity < MIN_SIZE || capacity > MAX_SIZE) {
+            return;
+        }
+        if (retainedBytes.addAndGet(capacity) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-capacity);
+            return;
+        }
+        classes[Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT].add(buffer);
+    }
+
+    private static int classIndex(int minCapacity) {
+        if (minCapacity <= MIN_SIZE) {
+            return 0;
+        }
+        int size = Math.min(Integer.highestOneBit(minCapacity - 1) << 1, MAX_SIZE);
+        return Integer.numberOfTrailingZeros(size) - MIN_SHIFT;
+    }
+
+    public long getAcquires() {
+        return acquires.get();
+    }
+
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+}
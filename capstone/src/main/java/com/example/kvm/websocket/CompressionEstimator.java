@@ -0,0 +1,58 @@
+package com.example.kvm.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/*
+ * Estimates the wire size of a console stream sent with permessage-deflate.
+ *
+ * The container compresses frames internally, so the compressed size is not
+ * visible to the application. Every SAMPLE_INTERVAL-th frame is compressed here
+ * the way the extension does it (raw deflate, sync flush, trailing 00 00 ff ff
+ * removed) and the resulting ratio is applied to the whole stream. Each sample
+ * starts from a fresh dictionary, so the estimate errs on the pessimistic side.
+ */
+final class CompressionEstimator {
+
+    private static final int SAMPLE_INTERVAL = 16;
+    private static final int FLUSH_TRAILER = 4;
+
+    private final RelayStats stats;
+    // Guarded by this
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final byte[] output = new byte[16 * 1024];
+    private long frames = 0;
+    private boolean ended = false;
+
+    CompressionEstimator(RelayStats stats) {
+        this.stats = stats;
+    }
+
+    /*
+     * Samples the frame (read mode) if it is due; its position is left untouched.
+     */
+    synchronized void sample(ByteBuffer frame) {
+        if (ended || frames++ % SAMPLE_INTERVAL != 0 || !frame.hasRemaining()) {
+            return;
+        }
+        int size = frame.remaining();
+        deflater.reset();
+        deflater.setInput(frame.duplicate());
+
+        long compressed = 0;
+        int produced;
+        do {
+            produced = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+            compressed += produced;
+        } while (produced == output.length);
+
+        stats.recordCompressionSample(size, Math.max(0, compressed - FLUSH_TRAILER));
+    }
+
+    synchronized void end() {
+        if (!ended) {
+            ended = true;
+            deflater.end();
+        }
+    }
+}
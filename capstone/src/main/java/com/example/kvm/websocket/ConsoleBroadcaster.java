@@ -0,0 +1,76 @@
+package com.example.kvm.websocket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+/*
+ * Registry of shared console upstreams for broadcast-mode sessions.
+ *
+ * The first viewer of a VM opens its BroadcastHub; later viewers attach to the
+ * same hub, and the hub is closed when its last viewer leaves or its VNC
+ * connection drops. Attach and detach are rare, so a single lock is enough.
+ */
+@Component
+public class ConsoleBroadcaster {
+
+    private final VNCProxyEngine proxyEngine;
+    private final OutboundPolicy outboundPolicy;
+
+    // Guarded by this
+    private final Map<String, BroadcastHub> hubs = new HashMap<>();
+
+    public ConsoleBroadcaster(VNCProxyEngine proxyEngine, OutboundPolicy outboundPolicy) {
+        this.proxyEngine = proxyEngine;
+        this.outboundPolicy = outboundPolicy;
+    }
+
+    /*
+     * Attaches a browser to the VM's shared upstream, connecting it if necessary.
+     */
+    synchronized BroadcastViewer attach(WebSocketSession session, String vmName, String host, int port)
+            throws IOException {
+        BroadcastHub hub = hubs.get(vmName);
+        if (hub == null || hub.isClosed()) {
+            hub = new BroadcastHub(proxyEngine, this, vmName);
+            hub.open(host, port);
+            hubs.put(vmName, hub);
+        }
+
+        BroadcastViewer viewer = new BroadcastViewer(session, vmName, hub, this, proxyEngine, outboundPolicy);
+        hub.addViewer(viewer);
+        viewer.greet();
+        return viewer;
+    }
+
+    synchronized void detach(BroadcastViewer viewer) {
+        BroadcastHub hub = viewer.getHub();
+        if (hub.removeViewer(viewer)) {
+            hubs.remove(hub.getVmName(), hub);
+            hub.close();
+        }
+    }
+
+    /*
+     * Forgets a hub whose upstream has closed.
+     */
+    synchronized void remove(BroadcastHub hub) {
+        hubs.remove(hub.getVmName(), hub);
+    }
+
+    /*
+     * Returns the relay statistics of every shared upstream.
+     */
+    public synchronized List<RelayStats> getUpstreamStats() {
+        List<RelayStats> stats = new ArrayList<>(hubs.size());
+        for (BroadcastHub hub : hubs.values()) {
+            stats.add(hub.getStats());
+        }
+        return stats;
+    }
+}
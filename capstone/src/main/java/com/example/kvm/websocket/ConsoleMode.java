@@ -0,0 +1,11 @@
+package com.example.kvm.websocket;
+
+/*
+ * How a console WebSocket is connected to the VM's VNC server.
+ */
+public enum ConsoleMode {
+    // Each browser gets its own VNC connection and full control
+    PASSTHROUGH,
+    // Browsers share one VNC connection per VM; only the oldest viewer controls input
+    BROADCAST
+}
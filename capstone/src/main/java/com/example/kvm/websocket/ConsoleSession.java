@@ -0,0 +1,25 @@
+package com.example.kvm.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * One browser console attached to a VM, either relayed to its own VNC connection
+ * (VNCConnection) or sharing a VM-wide upstream with other viewers (BroadcastViewer).
+ */
+interface ConsoleSession {
+
+    String getVmName();
+
+    RelayStats getStats();
+
+    SessionOutbound getOutbound();
+
+    /*
+     * Handles a binary message from the browser. The payload may be reused by the
+     * container once this returns.
+     */
+    void handleBrowserMessage(ByteBuffer payload) throws IOException;
+
+    void close();
+}
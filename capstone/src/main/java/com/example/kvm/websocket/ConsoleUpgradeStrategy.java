@@ -0,0 +1,138 @@
+package com.example.kvm.websocket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.server.standard.StandardWebSocketUpgradeStrategy;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.websocket.Decoder;
+import jakarta.websocket.Encoder;
+import jakarta.websocket.Extension;
+import jakarta.websocket.HandshakeResponse;
+import jakarta.websocket.server.HandshakeRequest;
+import jakarta.websocket.server.ServerEndpointConfig;
+
+/*
+ * WebSocket upgrade for console sessions with per-session control of
+ * permessage-deflate (?deflate=true|false, default kvm.console.deflate).
+ *
+ * Filtering the extension list Spring hands to the container is not enough:
+ * Tomcat negotiates its installed extensions regardless, so the decision is made
+ * in the endpoint configurator, which is where the container asks for it.
+ * Deflate is worth it for Raw/Hextile consoles but mostly burns CPU when the VNC
+ * server already sends zlib-compressed Tight or ZRLE.
+ */
+@Component
+public class ConsoleUpgradeStrategy extends StandardWebSocketUpgradeStrategy {
+
+    static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+
+    private final boolean deflateByDefault;
+
+    public ConsoleUpgradeStrategy(@Value("${kvm.console.deflate:true}") boolean deflateByDefault) {
+        this.deflateByDefault = deflateByDefault;
+    }
+
+    @Override
+    protected void upgradeHttpToWebSocket(HttpServletRequest request, HttpServletResponse response,
+                                          ServerEndpointConfig endpointConfig, Map<String, String> pathParams)
+            throws Exception {
+        String requested = request.getParameter("deflate");
+        boolean deflate = requested == null ? deflateByDefault : Boolean.parseBoolean(requested);
+        ServerEndpointConfig config = deflate ? endpointConfig : new WithoutDeflate(endpointConfig);
+        super.upgradeHttpToWebSocket(request, response, config, pathParams);
+    }
+
+    /*
+     * Endpoint configuration that refuses permessage-deflate and otherwise
+     * delegates to the configuration Spring built.
+     */
+    private static final class WithoutDeflate implements ServerEndpointConfig {
+
+        private final ServerEndpointConfig delegate;
+        private final Configurator configurator;
+
+        WithoutDeflate(ServerEndpointConfig delegate) {
+            this.delegate = delegate;
+            Configurator original = delegate.getConfigurator();
+            this.configurator = new Configurator() {
+                @Override
+                public String getNegotiatedSubprotocol(List<String> supported, List<String> requested) {
+                    return original.getNegotiatedSubprotocol(supported, requested);
+                }
+
+                @Override
+                public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested) {
+                    List<Extension> allowed = new ArrayList<>(installed.size());
+                    for (Extension extension : installed) {
+                        if (!PERMESSAGE_DEFLATE.equals(extension.getName())) {
+                            allowed.add(extension);
+                        }
+                    }
+                    return original.getNegotiatedExtensions(allowed, requested);
+                }
+
+                @Override
+                public boolean checkOrigin(String originHeaderValue) {
+                    return original.checkOrigin(originHeaderValue);
+                }
+
+                @Override
+                public void modifyHandshake(ServerEndpointConfig sec, HandshakeRequest request,
+                                            HandshakeResponse response) {
+                    original.modifyHandshake(sec, request, response);
+                }
+
+                @Override
+                public <T> T getEndpointInstance(Class<T> endpointClass) throws InstantiationException {
+                    return original.getEndpointInstance(endpointClass);
+                }
+            };
+        }
+
+        @Override
+        public Class<?> getEndpointClass() {
+            return delegate.getEndpointClass();
+        }
+
+        @Override
+        public String getPath() {
+            return delegate.getPath();
+        }
+
+        @Override
+        public List<String> getSubprotocols() {
+            return delegate.getSubprotocols();
+        }
+
+        @Override
+        public List<Extension> getExtensions() {
+            return delegate.getExtensions();
+        }
+
+        @Override
+        public Configurator getConfigurator() {
+            return configurator;
+        }
+
+        @Override
+        public List<Class<? extends Encoder>> getEncoders() {
+            return delegate.getEncoders();
+        }
+
+        @Override
+        public List<Class<? extends Decoder>> getDecoders() {
+            return delegate.getDecoders();
+        }
+
+        @Override
+        public Map<String, Object> getUserProperties() {
+            return delegate.getUserProperties();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.kvm.websocket;
+
+import java.util.Arrays;
+
+/*
+ * Server-side encoding preferences applied to a passthrough console.
+ *
+ * A profile never adds a real encoding the browser did not offer: it only moves
+ * the preferred ones to the front of the browser's SetEncodings list and sets the
+ * JPEG quality and zlib compression level pseudo-encodings (which QEMU honours for
+ * Tight). PASSTHROUGH leaves the browser's choice untouched.
+ */
+public enum EncodingProfile {
+
+    PASSTHROUGH(null, -1, -1),
+    // Lossless Tight/ZRLE with cheap compression
+    LAN(new int[] {Rfb.ENCODING_TIGHT, Rfb.ENCODING_ZRLE, Rfb.ENCODING_HEXTILE}, -1, 1),
+    // Tight with medium JPEG quality for VPN links
+    WAN(new int[] {Rfb.ENCODING_TIGHT, Rfb.ENCODING_ZRLE, Rfb.ENCODING_HEXTILE}, 6, 6),
+    // Smallest updates at the cost of image quality and server CPU
+    LOW_BANDWIDTH(new int[] {Rfb.ENCODING_TIGHT, Rfb.ENCODING_ZRLE}, 2, 9);
+
+    private final int[] preferred;
+    private final int quality;
+    private final int compressLevel;
+
+    EncodingProfile(int[] preferred, int quality, int compressLevel) {
+        this.preferred = preferred;
+        this.quality = quality;
+        this.compressLevel = compressLevel;
+    }
+
+    boolean rewritesEncodings() {
+        return preferred != null;
+    }
+
+    /*
+     * Returns the encoding list to send to the VNC server instead of the browser's.
+     */
+    int[] rewrite(int[] requested) {
+        if (preferred == null) {
+            return requested;
+        }
+        int[] result = new int[requested.length + 2];
+        int count = 0;
+
+        // Preferred encodings the browser can decode, in profile order
+        for (int encoding : preferred) {
+            if (contains(requested, encoding)) {
+                result[count++] = encoding;
+            }
+        }
+        // Everything else the browser asked for, minus its own quality and compression choices
+        for (int encoding : requested) {
+            if (!contains(preferred, encoding) && !isQualityLevel(encoding) && !isCompressLevel(encoding)) {
+                result[count++] = encoding;
+            }
+        }
+        // JPEG is part of Tight, so a quality level only makes sense with it
+        if (quality >= 0 && contains(requested, Rfb.ENCODING_TIGHT)) {
+            result[count++] = Rfb.ENCODING_QUALITY_LEVEL_0 + quality;
+        }
+        if (compressLevel >= 0) {
+            result[count++] = Rfb.ENCODING_COMPRESS_LEVEL_0 + compressLevel;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static boolean isQualityLevel(int encoding) {
+        return encoding >= Rfb.ENCODING_QUALITY_LEVEL_0 && encoding <= Rfb.ENCODING_QUALITY_LEVEL_0 + 9;
+    }
+
+    private static boolean isCompressLevel(int encoding) {
+        return encoding >= Rfb.ENCODING_COMPRESS_LEVEL_0 && encoding <= Rfb.ENCODING_COMPRESS_LEVEL_0 + 9;
+    }
+
+    private static boolean contains(int[] encodings, int encoding) {
+        for (int candidate : encodings) {
+            if (candidate == encoding) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.kvm.websocket;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/*
+ * Flow-control settings for the browser-bound side of console sessions.
+ */
+@Component
+public class OutboundPolicy {
+
+    // Maximum bytes queued for one browser before the overflow policy applies
+    private final int maxBufferedBytes;
+    // A single frame that takes longer than this to reach the browser closes the session
+    private final long sendTimeoutMillis;
+    private final OverflowPolicy overflowPolicy;
+
+    public OutboundPolicy(
+            @Value("${kvm.console.outbound.max-buffered-bytes:4194304}") int maxBufferedBytes,
+            @Value("${kvm.console.outbound.send-timeout-ms:10000}") long sendTimeoutMillis,
+            @Value("${kvm.console.outbound.overflow-policy:PAUSE_UPSTREAM}") OverflowPolicy overflowPolicy) {
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.sendTimeoutMillis = sendTimeoutMillis;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /*
+     * Returns a copy of this policy with a different overflow policy.
+     */
+    public OutboundPolicy withOverflowPolicy(OverflowPolicy policy) {
+        return new OutboundPolicy(maxBufferedBytes, sendTimeoutMillis, policy);
+    }
+
+    public int getMaxBufferedBytes() {
+        return maxBufferedBytes;
+    }
+
+    public long getSendTimeoutMillis() {
+        return sendTimeoutMillis;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+}
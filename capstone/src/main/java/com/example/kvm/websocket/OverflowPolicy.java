@@ -0,0 +1,14 @@
+package com.example.kvm.websocket;
+
+/*
+ * What to do when a browser falls behind and its outbound queue reaches the limit.
+ */
+public enum OverflowPolicy {
+
+    // Stop reading from the VNC server until the queue has drained to half the limit.
+    // QEMU then merges dirty regions itself, so stale updates are never sent.
+    PAUSE_UPSTREAM,
+
+    // Close the console; the browser has to reconnect
+    CLOSE
+}
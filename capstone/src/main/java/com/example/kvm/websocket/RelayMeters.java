@@ -0,0 +1,57 @@
+package com.example.kvm.websocket;
+
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/*
+ * Proxy-wide relay meters, fed by every RelayStats next to its per-session counters.
+ * Not tagged per session or VM: those come and go, and the per-session view is
+ * already served by /api/console/stats.
+ */
+final class RelayMeters {
+
+    private final Counter bytesToBrowser;
+    private final Counter framesToBrowser;
+    private final Counter bytesToVnc;
+    private final Counter messagesFromBrowser;
+    private final Timer sendLatency;
+
+    RelayMeters(MeterRegistry registry) {
+        this.bytesToBrowser = Counter.builder("vnc.relay.bytes")
+                .description("Bytes relayed between VNC servers and browsers")
+                .baseUnit("bytes")
+                .tag("direction", "to-browser")
+                .register(registry);
+        this.bytesToVnc = Counter.builder("vnc.relay.bytes")
+                .description("Bytes relayed between VNC servers and browsers")
+                .baseUnit("bytes")
+                .tag("direction", "to-vnc")
+                .register(registry);
+        this.framesToBrowser = Counter.builder("vnc.relay.messages")
+                .description("WebSocket frames relayed between VNC servers and browsers")
+                .tag("direction", "to-browser")
+                .register(registry);
+        this.messagesFromBrowser = Counter.builder("vnc.relay.messages")
+                .description("WebSocket frames relayed between VNC servers and browsers")
+                .tag("direction", "to-vnc")
+                .register(registry);
+        this.sendLatency = Timer.builder("vnc.relay.send")
+                .description("Time until a browser accepted a frame")
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    void recordFrameToBrowser(int bytes, long sendLatencyNanos) {
+        framesToBrowser.increment();
+        bytesToBrowser.increment(bytes);
+        sendLatency.record(sendLatencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void recordMessageFromBrowser(int bytes) {
+        messagesFromBrowser.increment();
+        bytesToVnc.increment(bytes);
+    }
+}
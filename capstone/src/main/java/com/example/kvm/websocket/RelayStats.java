@@ -0,0 +1,250 @@
+package com.example.kvm.websocket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Per-console relay counters, exposed through /api/console/stats.
+ * "Upstream" is the VNC server, "downstream" the browser.
+ */
+public final class RelayStats {
+
+    private final String sessionId;
+    private final String vmName;
+    private final RelayMeters meters;
+    private final long openedAt = System.currentTimeMillis();
+
+    // VNC server -> browser
+    private final AtomicLong bytesToBrowser = new AtomicLong();
+    private final AtomicLong framesToBrowser = new AtomicLong();
+    private final AtomicLong upstreamReads = new AtomicLong();
+
+    // Browser -> VNC server
+    private final AtomicLong bytesToVnc = new AtomicLong();
+    private final AtomicLong messagesFromBrowser = new AtomicLong();
+    private final AtomicLong upstreamWrites = new AtomicLong();
+
+    // Buffers this connection had to allocate because the pool was empty
+    private final AtomicLong bufferAllocations = new AtomicLong();
+    private final AtomicLong bufferAllocatedBytes = new AtomicLong();
+
+    // Current adaptive read size
+    private volatile int readSize;
+
+    // Outbound (browser-bound) queue and flow control
+    private volatile long queuedBytes;
+    private volatile int queuedFrames;
+    private final AtomicLong maxQueuedBytes = new AtomicLong();
+    private final AtomicLong pauses = new AtomicLong();
+    private final AtomicLong pausedNanos = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong sendTimeouts = new AtomicLong();
+    private final AtomicLong sendLatencyTotalNanos = new AtomicLong();
+    private final AtomicLong sendLatencyMaxNanos = new AtomicLong();
+
+    // Encoding negotiation: profile applied, and the last SetEncodings before and after rewriting
+    private volatile String encodingProfile = EncodingProfile.PASSTHROUGH.name();
+    private final AtomicLong setEncodingsRewritten = new AtomicLong();
+    private volatile int[] requestedEncodings;
+    private volatile int[] negotiatedEncodings;
+
+    // permessage-deflate: whether it was negotiated and the sampled compression ratio
+    private volatile boolean deflate;
+    private final AtomicLong sampledBytes = new AtomicLong();
+    private final AtomicLong sampledDeflatedBytes = new AtomicLong();
+
+    RelayStats(String sessionId, String vmName, RelayMeters meters) {
+        this.sessionId = sessionId;
+        this.vmName = vmName;
+        this.meters = meters;
+    }
+
+    void recordUpstreamRead() {
+        upstreamReads.incrementAndGet();
+    }
+
+    void recordFrameToBrowser(int bytes, long sendLatencyNanos) {
+        framesToBrowser.incrementAndGet();
+        bytesToBrowser.addAndGet(bytes);
+        sendLatencyTotalNanos.addAndGet(sendLatencyNanos);
+        sendLatencyMaxNanos.accumulateAndGet(sendLatencyNanos, Math::max);
+        meters.recordFrameToBrowser(bytes, sendLatencyNanos);
+    }
+
+    void recordQueued(long bytes, int frames) {
+        queuedBytes = bytes;
+        queuedFrames = frames;
+        maxQueuedBytes.accumulateAndGet(bytes, Math::max);
+    }
+
+    void recordPause() {
+        pauses.incrementAndGet();
+    }
+
+    void recordPausedNanos(long nanos) {
+        pausedNanos.addAndGet(nanos);
+    }
+
+    void recordOverflow() {
+        overflows.incrementAndGet();
+    }
+
+    void recordSendTimeout() {
+        sendTimeouts.incrementAndGet();
+    }
+
+    void recordMessageFromBrowser(int bytes) {
+        messagesFromBrowser.incrementAndGet();
+        bytesToVnc.addAndGet(bytes);
+        meters.recordMessageFromBrowser(bytes);
+    }
+
+    void recordUpstreamWrite() {
+        upstreamWrites.incrementAndGet();
+    }
+
+    void recordAllocation(int bytes) {
+        bufferAllocations.incrementAndGet();
+        bufferAllocatedBytes.addAndGet(bytes);
+    }
+
+    void setEncodingProfile(EncodingProfile profile) {
+        this.encodingProfile = profile.name();
+    }
+
+    void recordSetEncodings(int[] requested, int[] negotiated) {
+        setEncodingsRewritten.incrementAndGet();
+        requestedEncodings = requested;
+        negotiatedEncodings = negotiated;
+    }
+
+    void setDeflate(boolean deflate) {
+        this.deflate = deflate;
+    }
+
+    void recordCompressionSample(long bytes, long deflatedBytes) {
+        sampledBytes.addAndGet(bytes);
+        sampledDeflatedBytes.addAndGet(deflatedBytes);
+    }
+
+    void setReadSize(int readSize) {
+        this.readSize = readSize;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public String getVmName() {
+        return vmName;
+    }
+
+    public long getOpenedAt() {
+        return openedAt;
+    }
+
+    public long getBytesToBrowser() {
+        return bytesToBrowser.get();
+    }
+
+    public long getFramesToBrowser() {
+        return framesToBrowser.get();
+    }
+
+    public long getUpstreamReads() {
+        return upstreamReads.get();
+    }
+
+    public long getBytesToVnc() {
+        return bytesToVnc.get();
+    }
+
+    public long getMessagesFromBrowser() {
+        return messagesFromBrowser.get();
+    }
+
+    public long getUpstreamWrites() {
+        return upstreamWrites.get();
+    }
+
+    public long getBufferAllocations() {
+        return bufferAllocations.get();
+    }
+
+    public long getBufferAllocatedBytes() {
+        return bufferAllocatedBytes.get();
+    }
+
+    public int getReadSize() {
+        return readSize;
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public int getQueuedFrames() {
+        return queuedFrames;
+    }
+
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes.get();
+    }
+
+    public long getPauses() {
+        return pauses.get();
+    }
+
+    public long getPausedMillis() {
+        return pausedNanos.get() / 1_000_000;
+    }
+
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    public long getSendTimeouts() {
+        return sendTimeouts.get();
+    }
+
+    public long getAvgSendLatencyMicros() {
+        long frames = framesToBrowser.get();
+        return frames == 0 ? 0 : sendLatencyTotalNanos.get() / frames / 1000;
+    }
+
+    public long getMaxSendLatencyMicros() {
+        return sendLatencyMaxNanos.get() / 1000;
+    }
+
+    public String getEncodingProfile() {
+        return encodingProfile;
+    }
+
+    public long getSetEncodingsRewritten() {
+        return setEncodingsRewritten.get();
+    }
+
+    public int[] getRequestedEncodings() {
+        return requestedEncodings;
+    }
+
+    public int[] getNegotiatedEncodings() {
+        return negotiatedEncodings;
+    }
+
+    public boolean isDeflate() {
+        return deflate;
+    }
+
+    /*
+     * Estimated bytes on the wire after permessage-deflate; equals bytesToBrowser
+     * when deflate is off or nothing has been sampled yet.
+     */
+    public long getEstimatedWireBytes() {
+        long sampled = sampledBytes.get();
+        long bytes = bytesToBrowser.get();
+        if (!deflate || sampled == 0) {
+            return bytes;
+        }
+        return (long) (bytes * ((double) sampledDeflatedBytes.get() / sampled));
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.kvm.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * RFB (VNC) protocol constants and message builders used by the inspecting
+ * parts of the console proxy. See RFC 6143.
+ */
+final class Rfb {
+
+    static final String VERSION_3_8 = "RFB 003.008\n";
+    static final int VERSION_LENGTH = 12;
+
+    static final int SECURITY_NONE = 1;
+    static final int SECURITY_VNC_AUTH = 2;
+
+    // Server -> client message types
+    static final int SERVER_FRAMEBUFFER_UPDATE = 0;
+    static final int SERVER_SET_COLOUR_MAP_ENTRIES = 1;
+    static final int SERVER_BELL = 2;
+    static final int SERVER_CUT_TEXT = 3;
+
+    // Client -> server message types
+    static final int CLIENT_SET_PIXEL_FORMAT = 0;
+    static final int CLIENT_SET_ENCODINGS = 2;
+    static final int CLIENT_FRAMEBUFFER_UPDATE_REQUEST = 3;
+    static final int CLIENT_KEY_EVENT = 4;
+    static final int CLIENT_POINTER_EVENT = 5;
+    static final int CLIENT_CUT_TEXT = 6;
+    static final int CLIENT_QEMU = 255;
+
+    // Encodings
+    static final int ENCODING_RAW = 0;
+    static final int ENCODING_COPY_RECT = 1;
+    static final int ENCODING_RRE = 2;
+    static final int ENCODING_HEXTILE = 5;
+    static final int ENCODING_TIGHT = 7;
+    static final int ENCODING_ZRLE = 16;
+    static final int ENCODING_TIGHT_PNG = -260;
+    static final int ENCODING_CURSOR = -239;
+    static final int ENCODING_DESKTOP_SIZE = -223;
+    static final int ENCODING_LAST_RECT = -224;
+
+    // Pseudo-encoding ranges for JPEG quality (0..9) and compression level (0..9)
+    static final int ENCODING_QUALITY_LEVEL_0 = -32;
+    static final int ENCODING_COMPRESS_LEVEL_0 = -256;
+
+    // Hextile sub-encoding flags
+    static final int HEXTILE_RAW = 1;
+    static final int HEXTILE_BACKGROUND = 2;
+    static final int HEXTILE_FOREGROUND = 4;
+    static final int HEXTILE_ANY_SUBRECTS = 8;
+    static final int HEXTILE_SUBRECTS_COLOURED = 16;
+
+    /*
+     * 32bpp true colour, little endian, red in the lowest byte - the format noVNC
+     * asks for, so shared sessions can use it for every viewer.
+     */
+    static final byte[] PIXEL_FORMAT_RGBX32 = {
+            32, 24, 0, 1,           // bits-per-pixel, depth, big-endian, true-colour
+            0, (byte) 255,          // red-max
+            0, (byte) 255,          // green-max
+            0, (byte) 255,          // blue-max
+            0, 8, 16,               // red, green, blue shift
+            0, 0, 0                 // padding
+    };
+    static final int PIXEL_FORMAT_LENGTH = 16;
+
+    private Rfb() {
+    }
+
+    static ByteBuffer ascii(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /*
+     * Parses "RFB 003.008\n" into its minor version, or returns -1 if malformed.
+     */
+    static int parseMinorVersion(byte[] version) {
+        String text = new String(version, StandardCharsets.US_ASCII);
+        if (!text.startsWith("RFB 003.") || !text.endsWith("\n")) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(text.substring(8, 11));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static ByteBuffer setPixelFormat(byte[] pixelFormat) {
+        ByteBuffer message = ByteBuffer.allocate(4 + PIXEL_FORMAT_LENGTH);
+        message.put((byte) CLIENT_SET_PIXEL_FORMAT).put(new byte[3]).put(pixelFormat);
+        return message.flip();
+    }
+
+    static ByteBuffer setEncodings(int[] encodings) {
+        ByteBuffer message = ByteBuffer.allocate(4 + 4 * encodings.length);
+        message.put((byte) CLIENT_SET_ENCODINGS).put((byte) 0).putShort((short) encodings.length);
+        for (int encoding : encodings) {
+            message.putInt(encoding);
+        }
+        return message.flip();
+    }
+
+    static ByteBuffer framebufferUpdateRequest(boolean incremental, int width, int height) {
+        ByteBuffer message = ByteBuffer.allocate(10);
+        message.put((byte) CLIENT_FRAMEBUFFER_UPDATE_REQUEST)
+                .put((byte) (incremental ? 1 : 0))
+                .putShort((short) 0).putShort((short) 0)
+                .putShort((short) width).putShort((short) height);
+        return message.flip();
+    }
+
+    static ByteBuffer serverInit(int width, int height, byte[] pixelFormat, byte[] name) {
+        ByteBuffer message = ByteBuffer.allocate(2 + 2 + PIXEL_FORMAT_LENGTH + 4 + name.length);
+        message.putShort((short) width).putShort((short) height)
+                .put(pixelFormat)
+                .putInt(name.length).put(name);
+        return message.flip();
+    }
+
+    static ByteBuffer u32(int value) {
+        ByteBuffer message = ByteBuffer.allocate(4);
+        message.putInt(value);
+        return message.flip();
+    }
+
+    static ByteBuffer bytes(int... values) {
+        ByteBuffer message = ByteBuffer.allocate(values.length);
+        for (int value : values) {
+            message.put((byte) value);
+        }
+        return message.flip();
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.kvm.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Accumulates client -> server RFB bytes (which arrive in arbitrary WebSocket
+ * frames) and hands them out either as fixed-size handshake fields or as complete
+ * client messages. Client messages are small, so buffering them whole is cheap;
+ * ClientCutText is the only variable-size message and is capped.
+ */
+final class RfbClientReader {
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MAX_MESSAGE = 1024 * 1024;
+
+    // Write mode between calls
+    private ByteBuffer inbox = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+    void append(ByteBuffer data) throws IOException {
+        if (inbox.remaining() < data.remaining()) {
+            int required = inbox.position() + data.remaining();
+            if (required > MAX_MESSAGE + 16) {
+                throw new IOException("RFB client message exceeds " + MAX_MESSAGE + " bytes");
+            }
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(required, inbox.capacity() * 2));
+            inbox.flip();
+            grown.put(inbox);
+            inbox = grown;
+        }
+        inbox.put(data.duplicate());
+    }
+
+    /*
+     * Removes and returns exactly count bytes, or null if not enough have arrived.
+     */
+    byte[] poll(int count) {
+        if (inbox.position() < count) {
+            return null;
+        }
+        byte[] result = new byte[count];
+        inbox.flip();
+        inbox.get(result);
+        inbox.compact();
+        return result;
+    }
+
+    /*
+     * Removes and returns the next complete client message (read mode, own copy),
+     * or null if it has not fully arrived yet.
+     */
+    ByteBuffer pollMessage() throws IOException {
+        int available = inbox.position();
+        if (available < 1) {
+            return null;
+        }
+        int length = messageLength(available);
+        if (length < 0 || available < length) {
+            return null;
+        }
+
+        ByteBuffer message = ByteBuffer.allocate(length);
+        inbox.flip();
+        ByteBuffer slice = inbox.duplicate();
+        slice.limit(length);
+        message.put(slice).flip();
+        inbox.position(length);
+        inbox.compact();
+        return message;
+    }
+
+    /*
+     * Removes and returns everything buffered (read mode).
+     */
+    ByteBuffer drain() {
+        inbox.flip();
+        ByteBuffer rest = ByteBuffer.allocate(inbox.remaining());
+        rest.put(inbox).flip();
+        inbox.clear();
+        return rest;
+    }
+
+    /*
+     * Length of the message at the head of the inbox, or -1 if the header is incomplete.
+     */
+    private int messageLength(int available) throws IOException {
+        int type = inbox.get(0) & 0xFF;
+        switch (type) {
+            case Rfb.CLIENT_SET_PIXEL_FORMAT:
+                return 4 + Rfb.PIXEL_FORMAT_LENGTH;
+            case Rfb.CLIENT_SET_ENCODINGS:
+                return available < 4 ? -1 : 4 + 4 * (inbox.getShort(2) & 0xFFFF);
+            case Rfb.CLIENT_FRAMEBUFFER_UPDATE_REQUEST:
+                return 10;
+            case Rfb.CLIENT_KEY_EVENT:
+                return 8;
+            case Rfb.CLIENT_POINTER_EVENT:
+                return 6;
+            case Rfb.CLIENT_CUT_TEXT: {
+                if (available < 8) {
+                    return -1;
+                }
+                int textLength = inbox.getInt(4);
+                if (textLength < 0 || textLength > MAX_MESSAGE) {
+                    throw new IOException("RFB ClientCutText too large: " + Integer.toUnsignedLong(textLength));
+                }
+                return 8 + textLength;
+            }
+            case Rfb.CLIENT_QEMU: {
+                // QEMU extended key event (sub-type 0) is the only QEMU message viewers send us
+                if (available < 2) {
+                    return -1;
+                }
+                if (inbox.get(1) != 0) {
+                    throw new IOException("Unsupported QEMU client message sub-type " + inbox.get(1));
+                }
+                return 12;
+            }
+            default:
+                throw new IOException("Unsupported RFB client message type " + type);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.kvm.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Inspects the browser -> VNC stream of a passthrough console and replaces the
+ * browser's SetEncodings with the one chosen by the session's EncodingProfile.
+ *
+ * Only the client side of the connection is visible here, so the rewriter follows
+ * the handshake from the client's messages: it needs RFB 3.7+ and security type
+ * None to know where the handshake ends. Anything else (RFB 3.3, VNC auth, a
+ * client message it cannot frame) makes it step aside and forward bytes unchanged
+ * for the rest of the session. Called from the session's message thread only.
+ */
+final class RfbEncodingRewriter {
+
+    private static final Logger log = LoggerFactory.getLogger(RfbEncodingRewriter.class);
+
+    private enum State { VERSION, SECURITY, CLIENT_INIT, MESSAGES, PASSTHROUGH }
+
+    private final EncodingProfile profile;
+    private final RelayStats stats;
+    private final RfbClientReader reader = new RfbClientReader();
+    private State state = State.VERSION;
+
+    RfbEncodingRewriter(EncodingProfile profile, RelayStats stats) {
+        this.profile = profile;
+        this.stats = stats;
+    }
+
+    /*
+     * Processes bytes from the browser and passes what should reach the VNC server to sink.
+     */
+    void process(ByteBuffer payload, Consumer<ByteBuffer> sink) {
+        if (state == State.PASSTHROUGH) {
+            sink.accept(payload);
+            return;
+        }
+        boolean appended = false;
+        try {
+            reader.append(payload);
+            appended = true;
+            while (state != State.PASSTHROUGH && advance(sink)) {
+                // Keep going while complete messages are buffered
+            }
+        } catch (IOException e) {
+            log.warn("Encoding rewrite disabled for session {}: {}", stats.getSessionId(), e.getMessage());
+            state = State.PASSTHROUGH;
+        }
+        if (state == State.PASSTHROUGH) {
+            ByteBuffer rest = reader.drain();
+            if (rest.hasRemaining()) {
+                sink.accept(rest);
+            }
+            if (!appended) {
+                sink.accept(payload);
+            }
+        }
+    }
+
+    /*
+     * Forwards one handshake field or client message. Returns false if more bytes are needed.
+     */
+    private boolean advance(Consumer<ByteBuffer> sink) throws IOException {
+        switch (state) {
+            case VERSION -> {
+                byte[] version = reader.poll(Rfb.VERSION_LENGTH);
+                if (version == null) {
+                    return false;
+                }
+                sink.accept(ByteBuffer.wrap(version));
+                // With 3.3 the server picks the security type, which is not visible here
+                state = Rfb.parseMinorVersion(version) >= 7 ? State.SECURITY : State.PASSTHROUGH;
+            }
+            case SECURITY -> {
+                byte[] choice = reader.poll(1);
+                if (choice == null) {
+                    return false;
+                }
+                sink.accept(ByteBuffer.wrap(choice));
+                // Authentication payloads vary by type, only None has none
+                state = choice[0] == Rfb.SECURITY_NONE ? State.CLIENT_INIT : State.PASSTHROUGH;
+            }
+            case CLIENT_INIT -> {
+                byte[] clientInit = reader.poll(1);
+                if (clientInit == null) {
+                    return false;
+                }
+                sink.accept(ByteBuffer.wrap(clientInit));
+                state = State.MESSAGES;
+            }
+            case MESSAGES -> {
+                ByteBuffer message = reader.pollMessage();
+                if (message == null) {
+                    return false;
+                }
+                if ((message.get(0) & 0xFF) == Rfb.CLIENT_SET_ENCODINGS) {
+                    message = rewriteSetEncodings(message);
+                }
+                sink.accept(message);
+            }
+            default -> throw new IllegalStateException("Unexpected rewriter state " + state);
+        }
+        return true;
+    }
+
+    private ByteBuffer rewriteSetEncodings(ByteBuffer message) {
+        int[] requested = new int[message.getShort(2) & 0xFFFF];
+        for (int i = 0; i < requested.length; i++) {
+            requested[i] = message.getInt(4 + 4 * i);
+        }
+        int[] chosen = profile.rewrite(requested);
+        stats.recordSetEncodings(requested, chosen);
+        return Rfb.setEncodings(chosen);
+    }
+}
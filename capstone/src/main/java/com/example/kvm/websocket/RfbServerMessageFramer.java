@@ -0,0 +1,281 @@
+package com.example.kvm.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Incremental parser that finds message boundaries in the server -> client RFB
+ * stream without buffering message bodies.
+ *
+ * Bytes are fed in arbitrary chunks; the listener is told the offset (within the
+ * chunk) right after each complete message. Only stateless rectangle encodings can
+ * be framed - Raw, CopyRect, RRE, Hextile plus the Cursor, DesktopSize and LastRect
+ * pseudo-encodings - which is why shared sessions restrict the upstream to them.
+ * Used on the selector thread only.
+ */
+final class RfbServerMessageFramer {
+
+    interface Listener {
+        void onMessageEnd(int offset, int messageType);
+    }
+
+    private static final int STATE_TYPE = 0;
+    private static final int STATE_UPDATE_HEADER = 1;
+    private static final int STATE_RECT_HEADER = 2;
+    private static final int STATE_COLOUR_MAP_HEADER = 3;
+    private static final int STATE_CUT_TEXT_HEADER = 4;
+    private static final int STATE_RRE_HEADER = 5;
+    private static final int STATE_HEXTILE_SUBENCODING = 6;
+    private static final int STATE_HEXTILE_SUBRECT_COUNT = 7;
+
+    private final int bytesPerPixel;
+
+    // Header bytes collected for the current state
+    private final byte[] header = new byte[16];
+    private int needed = 1;
+    private int collected = 0;
+    private int state = STATE_TYPE;
+
+    // Body bytes to pass over before moving to nextState
+    private long skip = 0;
+    private int nextState = STATE_TYPE;
+
+    private int messageType;
+    private int rectsRemaining;
+    // Set when the last state transition finished a message
+    private boolean messageComplete = false;
+
+    // Current rectangle
+    private int rectWidth;
+    private int rectHeight;
+
+    // Hextile tile iteration
+    private int tileColumns;
+    private int tileIndex;
+    private int tileCount;
+    private int hextileFlags;
+
+    // Framebuffer size as last announced (ServerInit or DesktopSize)
+    private int framebufferWidth;
+    private int framebufferHeight;
+
+    RfbServerMessageFramer(int bytesPerPixel, int framebufferWidth, int framebufferHeight) {
+        this.bytesPerPixel = bytesPerPixel;
+        this.framebufferWidth = framebufferWidth;
+        this.framebufferHeight = framebufferHeight;
+    }
+
+    /*
+     * True if the bytes fed so far end exactly on a message boundary.
+     */
+    boolean isAtBoundary() {
+        return state == STATE_TYPE && collected == 0 && skip == 0;
+    }
+
+    int getFramebufferWidth() {
+        return framebufferWidth;
+    }
+
+    int getFramebufferHeight() {
+        return framebufferHeight;
+    }
+
+    /*
+     * Consumes the remaining bytes of chunk (without moving its position).
+     */
+    void feed(ByteBuffer chunk, Listener listener) throws IOException {
+        int position = chunk.position();
+        int limit = chunk.limit();
+
+        while (position < limit) {
+            if (skip > 0) {
+                int step = (int) Math.min(skip, limit - position);
+                position += step;
+                skip -= step;
+                if (skip > 0) {
+                    return;
+                }
+                enter(nextState);
+                position = emitIfComplete(position, listener);
+                continue;
+            }
+
+            int step = Math.min(needed - collected, limit - position);
+            chunk.get(position, header, collected, step);
+            position += step;
+            collected += step;
+            if (collected < needed) {
+                return;
+            }
+
+            collected = 0;
+            process();
+            position = emitIfComplete(position, listener);
+        }
+    }
+
+    /*
+     * Reports a message end once a state transition has returned to STATE_TYPE.
+     */
+    private int emitIfComplete(int position, Listener listener) {
+        if (messageComplete) {
+            messageComplete = false;
+            listener.onMessageEnd(position, messageType);
+        }
+        return position;
+    }
+
+    private void process() throws IOException {
+        switch (state) {
+            case STATE_TYPE -> {
+                messageType = header[0] & 0xFF;
+                switch (messageType) {
+                    case Rfb.SERVER_FRAMEBUFFER_UPDATE -> expect(STATE_UPDATE_HEADER, 3);
+                    case Rfb.SERVER_SET_COLOUR_MAP_ENTRIES -> expect(STATE_COLOUR_MAP_HEADER, 5);
+                    case Rfb.SERVER_BELL -> completeMessage();
+                    case Rfb.SERVER_CUT_TEXT -> expect(STATE_CUT_TEXT_HEADER, 7);
+                    default -> throw new IOException("Unsupported RFB server message type " + messageType);
+                }
+            }
+            case STATE_UPDATE_HEADER -> {
+                rectsRemaining = u16(1);
+                if (rectsRemaining == 0) {
+                    completeMessage();
+                } else {
+                    expect(STATE_RECT_HEADER, 12);
+                }
+            }
+            case STATE_RECT_HEADER -> startRect();
+            case STATE_COLOUR_MAP_HEADER -> skipThen(6L * u16(3), -1);
+            case STATE_CUT_TEXT_HEADER -> skipThen(Integer.toUnsignedLong(s32(3)), -1);
+            case STATE_RRE_HEADER -> skipThen((long) s32(0) * (bytesPerPixel + 8), -2);
+            case STATE_HEXTILE_SUBENCODING -> startTile();
+            case STATE_HEXTILE_SUBRECT_COUNT -> {
+                int subrects = header[0] & 0xFF;
+                int perSubrect = ((hextileFlags & Rfb.HEXTILE_SUBRECTS_COLOURED) != 0 ? bytesPerPixel : 0) + 2;
+                skipThen((long) subrects * perSubrect, -3);
+            }
+            default -> throw new IllegalStateException("Unknown framer state " + state);
+        }
+    }
+
+    private void startRect() throws IOException {
+        rectWidth = u16(4);
+        rectHeight = u16(6);
+        int encoding = s32(8);
+
+        switch (encoding) {
+            case Rfb.ENCODING_RAW -> skipThen((long) rectWidth * rectHeight * bytesPerPixel, -2);
+            case Rfb.ENCODING_COPY_RECT -> skipThen(4, -2);
+            case Rfb.ENCODING_RRE -> expect(STATE_RRE_HEADER, 4 + bytesPerPixel);
+            case Rfb.ENCODING_HEXTILE -> {
+                tileColumns = (rectWidth + 15) / 16;
+                tileCount = tileColumns * ((rectHeight + 15) / 16);
+                tileIndex = 0;
+                if (tileCount == 0) {
+                    rectDone();
+                } else {
+                    expect(STATE_HEXTILE_SUBENCODING, 1);
+                }
+            }
+            case Rfb.ENCODING_CURSOR -> skipThen(
+                    (long) rectWidth * rectHeight * bytesPerPixel + (long) ((rectWidth + 7) / 8) * rectHeight, -2);
+            case Rfb.ENCODING_DESKTOP_SIZE -> {
+                framebufferWidth = rectWidth;
+                framebufferHeight = rectHeight;
+                rectDone();
+            }
+            case Rfb.ENCODING_LAST_RECT -> {
+                rectsRemaining = 1;
+                rectDone();
+            }
+            default -> throw new IOException("Unsupported RFB encoding in shared session: " + encoding);
+        }
+    }
+
+    private void startTile() {
+        hextileFlags = header[0] & 0xFF;
+        int column = tileIndex % tileColumns;
+        int row = tileIndex / tileColumns;
+        int tileWidth = Math.min(16, rectWidth - column * 16);
+        int tileHeight = Math.min(16, rectHeight - row * 16);
+
+        if ((hextileFlags & Rfb.HEXTILE_RAW) != 0) {
+            skipThen((long) tileWidth * tileHeight * bytesPerPixel, -3);
+            return;
+        }
+
+        long colours = 0;
+        if ((hextileFlags & Rfb.HEXTILE_BACKGROUND) != 0) {
+            colours += bytesPerPixel;
+        }
+        if ((hextileFlags & Rfb.HEXTILE_FOREGROUND) != 0) {
+            colours += bytesPerPixel;
+        }
+        if ((hextileFlags & Rfb.HEXTILE_ANY_SUBRECTS) != 0) {
+            skipThen(colours, STATE_HEXTILE_SUBRECT_COUNT);
+        } else {
+            skipThen(colours, -3);
+        }
+    }
+
+    /*
+     * Skips body bytes, then continues with the given state. Negative targets are
+     * pseudo-states: -1 message done, -2 rectangle done, -3 hextile tile done.
+     */
+    private void skipThen(long bytes, int target) {
+        skip = bytes;
+        nextState = target;
+        if (skip == 0) {
+            enter(target);
+        }
+    }
+
+    private void enter(int target) {
+        switch (target) {
+            case -1 -> completeMessage();
+            case -2 -> rectDone();
+            case -3 -> tileDone();
+            case STATE_HEXTILE_SUBRECT_COUNT -> expect(STATE_HEXTILE_SUBRECT_COUNT, 1);
+            default -> throw new IllegalStateException("Unknown framer target " + target);
+        }
+    }
+
+    private void tileDone() {
+        tileIndex++;
+        if (tileIndex < tileCount) {
+            expect(STATE_HEXTILE_SUBENCODING, 1);
+        } else {
+            rectDone();
+        }
+    }
+
+    private void rectDone() {
+        rectsRemaining--;
+        if (rectsRemaining <= 0) {
+            completeMessage();
+        } else {
+            expect(STATE_RECT_HEADER, 12);
+        }
+    }
+
+    private void completeMessage() {
+        messageComplete = true;
+        expect(STATE_TYPE, 1);
+    }
+
+    private void expect(int newState, int bytes) {
+        state = newState;
+        needed = bytes;
+        collected = 0;
+    }
+
+    private int u16(int offset) {
+        return ((header[offset] & 0xFF) << 8) | (header[offset + 1] & 0xFF);
+    }
+
+    private int s32(int offset) {
+        return ((header[offset] & 0xFF) << 24) | ((header[offset + 1] & 0xFF) << 16)
+                | ((header[offset + 2] & 0xFF) << 8) | (header[offset + 3] & 0xFF);
+    }
+}
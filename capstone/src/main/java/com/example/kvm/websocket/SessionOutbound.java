@@ -0,0 +1,287 @@
+package com.example.kvm.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+/*
+ * Flow-controlled, browser-bound path of one console session.
+ *
+ * Frames are queued and sent one at a time with asynchronous sends. The queue is
+ * bounded by OutboundPolicy: on overflow either the VNC upstream is paused until
+ * the queue has drained to half the limit, or the session is closed. A frame that
+ * stays in flight longer than the send timeout also closes the session.
+ * Frames are either owned outright or views of a SharedFrame fanned out to
+ * several sessions.
+ */
+final class SessionOutbound {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionOutbound.class);
+
+    /*
+     * Lets the outbound path push back on whatever produces its frames.
+     */
+    interface FlowControl {
+        void pause();
+
+        void resume();
+    }
+
+    static final CloseStatus TOO_SLOW = CloseStatus.POLICY_VIOLATION.withReason("Client is not keeping up");
+    static final CloseStatus SEND_TIMEOUT = CloseStatus.SESSION_NOT_RELIABLE.withReason("Send timed out");
+
+    private final WebSocketSession session;
+    private final OutboundPolicy policy;
+    private final BufferPool bufferPool;
+    private final RelayStats stats;
+    private final FlowControl flowControl;
+    // Only present when permessage-deflate was negotiated
+    private final CompressionEstimator compressionEstimator;
+
+    // Guarded by this
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private long queuedBytes = 0;
+    private boolean inFlight = false;
+    private boolean paused = false;
+    private long pausedSince = 0;
+    private boolean closed = false;
+
+    // Start of the current send in System.nanoTime(), 0 when idle
+    private volatile long inFlightSince = 0;
+
+    // Thread currently inside sendBinary, used to detect synchronous completions
+    private final AtomicReference<Thread> sendingThread = new AtomicReference<>();
+
+    SessionOutbound(WebSocketSession session, OutboundPolicy policy, BufferPool bufferPool,
+                    RelayStats stats, FlowControl flowControl) {
+        this.session = session;
+        this.policy = policy;
+        this.bufferPool = bufferPool;
+        this.stats = stats;
+        this.flowControl = flowControl;
+        boolean deflate = WebSocketSender.isDeflateNegotiated(session);
+        this.compressionEstimator = deflate ? new CompressionEstimator(stats) : null;
+        stats.setDeflate(deflate);
+        WebSocketSender.setSendTimeout(session, policy.getSendTimeoutMillis());
+    }
+
+    /*
+     * Queues a frame (read mode) for the browser. Ownership of the buffer passes to
+     * this object; it is returned to the pool once sent or discarded.
+     */
+    void enqueue(ByteBuffer frame) {
+        enqueue(new Entry(frame, null));
+    }
+
+    /*
+     * Queues the shared frame from offset to its end. A reference is taken for as
+     * long as the frame is queued or in flight.
+     */
+    void enqueue(SharedFrame frame, int offset) {
+        frame.retain();
+        enqueue(new Entry(frame.view(offset), frame));
+    }
+
+    private void enqueue(Entry frame) {
+        int size = frame.data.remaining();
+        if (compressionEstimator != null) {
+            compressionEstimator.sample(frame.data);
+        }
+        boolean overflow = false;
+        boolean pause = false;
+        boolean startSending = false;
+
+        synchronized (this) {
+            if (closed) {
+                release(frame);
+                return;
+            }
+            if (queuedBytes + size > policy.getMaxBufferedBytes()
+                    && policy.getOverflowPolicy() == OverflowPolicy.CLOSE) {
+                overflow = true;
+            } else {
+                queue.add(frame);
+                queuedBytes += size;
+                stats.recordQueued(queuedBytes, queue.size());
+
+                if (policy.getOverflowPolicy() == OverflowPolicy.PAUSE_UPSTREAM
+                        && !paused && queuedBytes >= policy.getMaxBufferedBytes()) {
+                    paused = true;
+                    pausedSince = System.nanoTime();
+                    pause = true;
+                }
+                if (!inFlight) {
+                    inFlight = true;
+                    startSending = true;
+                }
+            }
+        }
+
+        if (overflow) {
+            release(frame);
+            stats.recordOverflow();
+            closeSession(TOO_SLOW);
+            return;
+        }
+        if (pause) {
+            stats.recordPause();
+            flowControl.pause();
+        }
+        if (startSending) {
+            drain();
+        }
+    }
+
+    /*
+     * Sends queued frames until the queue is empty or a send completes asynchronously.
+     */
+    private void drain() {
+        Thread current = Thread.currentThread();
+        while (true) {
+            Entry frame;
+            synchronized (this) {
+                frame = queue.poll();
+                if (frame == null || closed) {
+                    inFlight = false;
+                    if (frame != null) {
+                        release(frame);
+                    }
+                    return;
+                }
+                queuedBytes -= frame.data.remaining();
+                stats.recordQueued(queuedBytes, queue.size());
+            }
+
+            Send send = new Send(frame);
+            inFlightSince = System.nanoTime();
+            sendingThread.set(current);
+            WebSocketSender.sendBinary(session, frame.data, failure -> onSent(send, failure));
+            sendingThread.compareAndSet(current, null);
+
+            if (!send.completedInline) {
+                // The completion callback continues draining on another thread
+                return;
+            }
+        }
+    }
+
+    private void onSent(Send send, Throwable failure) {
+        long latency = System.nanoTime() - inFlightSince;
+        inFlightSince = 0;
+        release(send.frame);
+
+        if (failure != null) {
+            log.warn("Error sending to WebSocket {}: {}", session.getId(), failure.getMessage());
+            synchronized (this) {
+                inFlight = false;
+            }
+            closeSession(CloseStatus.SERVER_ERROR);
+            return;
+        }
+        stats.recordFrameToBrowser(send.size, latency);
+
+        boolean resume = false;
+        synchronized (this) {
+            if (paused && queuedBytes <= policy.getMaxBufferedBytes() / 2) {
+                paused = false;
+                stats.recordPausedNanos(System.nanoTime() - pausedSince);
+                resume = true;
+            }
+        }
+        if (resume) {
+            flowControl.resume();
+        }
+
+        if (sendingThread.get() == Thread.currentThread()) {
+            // Completed inside sendBinary - let the drain loop pick up the next frame
+            send.completedInline = true;
+        } else {
+            drain();
+        }
+    }
+
+    /*
+     * Closes the session if the frame in flight has exceeded the send timeout.
+     * Called periodically by the handler's watchdog.
+     */
+    boolean checkSendTimeout(long nowNanos) {
+        long since = inFlightSince;
+        if (since != 0 && nowNanos - since > TimeUnit.MILLISECONDS.toNanos(policy.getSendTimeoutMillis())) {
+            stats.recordSendTimeout();
+            closeSession(SEND_TIMEOUT);
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * Drops everything still queued. Called once the session is gone.
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+            Entry frame;
+            while ((frame = queue.poll()) != null) {
+                release(frame);
+            }
+            queuedBytes = 0;
+            stats.recordQueued(0, 0);
+        }
+        if (compressionEstimator != null) {
+            compressionEstimator.end();
+        }
+    }
+
+    private void release(Entry frame) {
+        if (frame.shared != null) {
+            frame.shared.release();
+        } else {
+            bufferPool.release(frame.data);
+        }
+    }
+
+    private void closeSession(CloseStatus status) {
+        close();
+        try {
+            if (session.isOpen()) {
+                session.close(status);
+            }
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /*
+     * A queued frame: the bytes to send plus the shared frame they belong to, if any.
+     */
+    private static final class Entry {
+        final ByteBuffer data;
+        final SharedFrame shared;
+
+        Entry(ByteBuffer data, SharedFrame shared) {
+            this.data = data;
+            this.shared = shared;
+        }
+    }
+
+    /*
+     * One frame in flight.
+     */
+    private static final class Send {
+        final Entry frame;
+        final int size;
+        boolean completedInline = false;
+
+        Send(Entry frame) {
+            this.frame = frame;
+            this.size = frame.data.remaining();
+        }
+    }
+}
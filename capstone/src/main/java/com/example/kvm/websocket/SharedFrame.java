@@ -0,0 +1,52 @@
+package com.example.kvm.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * A pooled buffer sent to several browsers at once.
+ *
+ * Each SessionOutbound holding a view of the frame owns one reference; the buffer
+ * goes back to the pool when the last reference is released.
+ */
+final class SharedFrame {
+
+    private final ByteBuffer buffer;
+    private final BufferPool bufferPool;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /*
+     * Wraps a filled buffer (read mode). The creator holds the first reference.
+     */
+    SharedFrame(ByteBuffer buffer, BufferPool bufferPool) {
+        this.buffer = buffer;
+        this.bufferPool = bufferPool;
+    }
+
+    /*
+     * Returns an independent view of the frame from offset to its end.
+     */
+    ByteBuffer view(int offset) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        return view;
+    }
+
+    int position() {
+        return buffer.position();
+    }
+
+    int limit() {
+        return buffer.limit();
+    }
+
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            bufferPool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.kvm.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Non-blocking connection to a VNC server, driven by the VNCProxyEngine selector.
+ *
+ * Writes may be queued from any thread; they are copied into pooled direct buffers
+ * and flushed by the selector thread when the socket is writable. Small writes that
+ * arrive between two flushes are coalesced into the same buffer. Reading can be
+ * paused and resumed from any thread, which is how slow WebSocket clients push back
+ * on the VNC server.
+ */
+final class UpstreamChannel {
+
+    private static final Logger log = LoggerFactory.getLogger(UpstreamChannel.class);
+
+    private final VNCProxyEngine engine;
+    private final SocketChannel socket;
+    private final UpstreamHandler handler;
+    private final BufferPool bufferPool;
+    private final RelayStats stats;
+
+    // Filled buffers (read mode) waiting to be written to the VNC server
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+
+    // Buffer (write mode) collecting small writes until the next flush, guarded by this
+    private ByteBuffer staging;
+
+    // Avoids flooding the selector with one interest update per queued write
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    // Selector registration, only touched on the selector thread
+    private SelectionKey key;
+
+    private volatile boolean connected = false;
+    private volatile boolean readPaused = false;
+    private volatile boolean closed = false;
+
+    UpstreamChannel(VNCProxyEngine engine, SocketChannel socket, UpstreamHandler handler, RelayStats stats) {
+        this.engine = engine;
+        this.socket = socket;
+        this.handler = handler;
+        this.bufferPool = engine.getBufferPool();
+        this.stats = stats;
+    }
+
+    /*
+     * Reads available bytes into dst. Only valid from UpstreamHandler.onReadable.
+     * Returns -1 at end of stream.
+     */
+    int read(ByteBuffer dst) throws IOException {
+        return socket.read(dst);
+    }
+
+    /*
+     * Acquires a pooled buffer on behalf of this connection.
+     */
+    ByteBuffer acquireBuffer(int minCapacity) {
+        return bufferPool.acquire(minCapacity, stats);
+    }
+
+    void releaseBuffer(ByteBuffer buffer) {
+        bufferPool.release(buffer);
+    }
+
+    RelayStats getStats() {
+        return stats;
+    }
+
+    /*
+     * Copies data into the outgoing buffers for the VNC server. The caller keeps
+     * ownership of src and may reuse it as soon as this method returns.
+     */
+    void write(ByteBuffer src) {
+        synchronized (this) {
+            // Checked under the lock: closeNow releases staging and drains the queue after setting closed
+            if (closed) {
+                return;
+            }
+            while (src.hasRemaining()) {
+                if (staging == null) {
+                    staging = bufferPool.acquire(src.remaining(), stats);
+                }
+                int chunk = Math.min(src.remaining(), staging.remaining());
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + chunk);
+                staging.put(slice);
+                src.position(src.position() + chunk);
+
+                if (!staging.hasRemaining()) {
+                    writeQueue.add(staging.flip());
+                    staging = null;
+                }
+            }
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            engine.execute(this::updateInterest);
+        }
+    }
+
+    void pauseReading() {
+        readPaused = true;
+        engine.execute(this::updateInterest);
+    }
+
+    void resumeReading() {
+        readPaused = false;
+        engine.execute(this::updateInterest);
+    }
+
+    boolean isConnected() {
+        return connected && !closed;
+    }
+
+    boolean isOpen() {
+        return !closed;
+    }
+
+    /*
+     * Closes the channel; the handler is notified once on the selector thread.
+     */
+    void close() {
+        engine.execute(() -> closeNow(null));
+    }
+
+    // ---- Selector thread only ----
+
+    void register(SelectionKey key) {
+        this.key = key;
+    }
+
+    void finishConnect() throws IOException {
+        if (socket.finishConnect()) {
+            connected = true;
+            updateInterest();
+            handler.onConnected(this);
+        }
+    }
+
+    void handleReadable() throws IOException {
+        handler.onReadable(this);
+    }
+
+    void flushWrites() throws IOException {
+        takeStaging();
+        ByteBuffer head;
+        while ((head = writeQueue.peek()) != null) {
+            socket.write(head);
+            if (head.hasRemaining()) {
+                // Socket buffer is full - wait for the next OP_WRITE
+                break;
+            }
+            writeQueue.poll();
+            bufferPool.release(head);
+            stats.recordUpstreamWrite();
+        }
+        updateInterest();
+    }
+
+    void updateInterest() {
+        flushScheduled.set(false);
+        if (closed || key == null || !key.isValid()) {
+            return;
+        }
+        if (connected) {
+            takeStaging();
+        }
+        int ops;
+        if (!connected) {
+            ops = SelectionKey.OP_CONNECT;
+        } else {
+            ops = readPaused ? 0 : SelectionKey.OP_READ;
+            if (!writeQueue.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+        }
+        key.interestOps(ops);
+    }
+
+    /*
+     * Moves coalesced writes from the staging buffer onto the write queue.
+     */
+    private void takeStaging() {
+        synchronized (this) {
+            if (staging != null && staging.position() > 0) {
+                writeQueue.add(staging.flip());
+                staging = null;
+            }
+        }
+    }
+
+    void closeNow(IOException cause) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        synchronized (this) {
+            bufferPool.release(staging);
+            staging = null;
+        }
+        ByteBuffer queued;
+        while ((queued = writeQueue.poll()) != null) {
+            bufferPool.release(queued);
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.warn("Error closing VNC connection: {}", e.getMessage());
+        }
+        handler.onClosed(this, cause);
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.kvm.websocket;
+
+import java.io.IOException;
+
+/*
+ * Callbacks for an upstream (VNC server) connection managed by the VNCProxyEngine.
+ * All callbacks run on the engine's selector thread and must never block.
+ */
+interface UpstreamHandler {
+
+    /*
+     * The TCP connection to the VNC server has been established.
+     */
+    void onConnected(UpstreamChannel channel);
+
+    /*
+     * Data can be read from the channel without blocking.
+     */
+    void onReadable(UpstreamChannel channel) throws IOException;
+
+    /*
+     * The channel has been closed; cause is null for an orderly close.
+     */
+    void onClosed(UpstreamChannel channel, IOException cause);
+}
@@ -0,0 +1,178 @@
+package com.example.kvm.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+/*
+ * A single console: one browser WebSocket relayed to one VNC server connection.
+ *
+ * VNC -> browser: data is read into a pooled direct buffer and handed to the
+ * session's flow-controlled SessionOutbound, which pauses the VNC upstream (or
+ * closes the session) when the browser falls behind. Each read drains everything
+ * the VNC server has produced so far, so many small RFB messages leave as one
+ * WebSocket frame. The read size adapts to the traffic.
+ * Browser -> VNC: messages are copied into the upstream channel's coalescing
+ * buffers and written by the selector thread, so the container thread never blocks.
+ * Unless the session's EncodingProfile is PASSTHROUGH, they first go through an
+ * RfbEncodingRewriter that replaces the browser's SetEncodings.
+ */
+final class VNCConnection implements UpstreamHandler, ConsoleSession {
+
+    private static final Logger log = LoggerFactory.getLogger(VNCConnection.class);
+
+    private final WebSocketSession webSocketSession;
+    private final String vmName;
+    private final RelayStats stats;
+    private final AdaptiveReadSize readSize = new AdaptiveReadSize();
+    private final SessionOutbound outbound;
+    private final RfbEncodingRewriter encodingRewriter;
+    private volatile UpstreamChannel upstream;
+
+    VNCConnection(WebSocketSession webSocketSession, String vmName, VNCProxyEngine engine, OutboundPolicy policy,
+                  EncodingProfile encodingProfile) {
+        this.webSocketSession = webSocketSession;
+        this.vmName = vmName;
+        this.stats = new RelayStats(webSocketSession.getId(), vmName, engine.getRelayMeters());
+        this.stats.setReadSize(readSize.next());
+        this.stats.setEncodingProfile(encodingProfile);
+        this.encodingRewriter = encodingProfile.rewritesEncodings()
+                ? new RfbEncodingRewriter(encodingProfile, stats) : null;
+        this.outbound = new SessionOutbound(webSocketSession, policy, engine.getBufferPool(), stats,
+                new SessionOutbound.FlowControl() {
+                    @Override
+                    public void pause() {
+                        UpstreamChannel channel = upstream;
+                        if (channel != null) {
+                            channel.pauseReading();
+                        }
+                    }
+
+                    @Override
+                    public void resume() {
+                        UpstreamChannel channel = upstream;
+                        if (channel != null) {
+                            channel.resumeReading();
+                        }
+                    }
+                });
+    }
+
+    void open(VNCProxyEngine engine, String host, int port) throws IOException {
+        this.upstream = engine.connect(host, port, this, stats);
+    }
+
+    @Override
+    public String getVmName() {
+        return vmName;
+    }
+
+    @Override
+    public RelayStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public SessionOutbound getOutbound() {
+        return outbound;
+    }
+
+    @Override
+    public void onConnected(UpstreamChannel channel) {
+        log.atInfo().addKeyValue("vm", vmName).log("VNC upstream connected for VM: {}", vmName);
+    }
+
+    @Override
+    public void onReadable(UpstreamChannel channel) throws IOException {
+        ByteBuffer buffer = channel.acquireBuffer(readSize.next());
+        int total = 0;
+        int bytesRead = 0;
+
+        // Drain what the VNC server has produced so far into a single frame
+        while (buffer.hasRemaining() && (bytesRead = channel.read(buffer)) > 0) {
+            total += bytesRead;
+            stats.recordUpstreamRead();
+        }
+        readSize.record(total);
+        stats.setReadSize(readSize.next());
+
+        if (total == 0) {
+            channel.releaseBuffer(buffer);
+            if (bytesRead < 0) {
+                channel.close();
+            }
+            return;
+        }
+        buffer.flip();
+
+        if (!webSocketSession.isOpen()) {
+            channel.releaseBuffer(buffer);
+            channel.close();
+            return;
+        }
+
+        outbound.enqueue(buffer);
+    }
+
+    @Override
+    public void onClosed(UpstreamChannel channel, IOException cause) {
+        if (cause != null) {
+            log.atWarn().addKeyValue("vm", vmName).log("Error reading from VNC: {}", cause.getMessage());
+        }
+        try {
+            if (webSocketSession.isOpen()) {
+                webSocketSession.close(cause == null ? CloseStatus.NORMAL : CloseStatus.SERVER_ERROR);
+            }
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    @Override
+    public void handleBrowserMessage(ByteBuffer payload) {
+        if (!isConnected()) {
+            return;
+        }
+        if (encodingRewriter == null) {
+            sendToVNC(payload);
+        } else {
+            stats.recordMessageFromBrowser(payload.remaining());
+            encodingRewriter.process(payload, this::writeUpstream);
+        }
+    }
+
+    /*
+     * Queues data from the browser for the VNC server. The payload is copied into
+     * pooled buffers because the container may reuse it once the handler returns;
+     * heap and direct payloads are handled alike.
+     */
+    void sendToVNC(ByteBuffer payload) {
+        stats.recordMessageFromBrowser(payload.remaining());
+        writeUpstream(payload);
+    }
+
+    private void writeUpstream(ByteBuffer data) {
+        UpstreamChannel channel = upstream;
+        if (channel != null && channel.isOpen()) {
+            channel.write(data.duplicate());
+        }
+    }
+
+    boolean isConnected() {
+        UpstreamChannel channel = upstream;
+        return channel != null && channel.isOpen();
+    }
+
+    @Override
+    public void close() {
+        outbound.close();
+        UpstreamChannel channel = upstream;
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
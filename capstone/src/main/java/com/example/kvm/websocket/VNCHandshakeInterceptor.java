@@ -1,25 +1,38 @@
 package com.example.kvm.websocket;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.http.server.ServerHttpRequest;
 import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.util.MultiValueMap;
 import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.server.HandshakeInterceptor;
+import org.springframework.web.util.UriComponentsBuilder;
 import org.springframework.stereotype.Component;
 
 import com.example.kvm.service.KvmService;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
 import java.util.Map;
 
 /*
- * WebSocket Handshake Interceptor - Extracts VM name and port before connection.
+ * WebSocket Handshake Interceptor - Extracts VM name, VNC host and port, console mode
+ * (?mode=broadcast or ?mode=passthrough) and encoding profile (?encoding=wan etc.)
+ * before connection.
  */
 @Component
 public class VNCHandshakeInterceptor implements HandshakeInterceptor {
 
+    private static final Logger log = LoggerFactory.getLogger(VNCHandshakeInterceptor.class);
+
     private final KvmService kvmService;
+    private final MeterRegistry registry;
 
-    public VNCHandshakeInterceptor(KvmService kvmService) {
+    public VNCHandshakeInterceptor(KvmService kvmService, MeterRegistry registry) {
         this.kvmService = kvmService;
+        this.registry = registry;
     }
 
     @Override
@@ -30,24 +43,55 @@ public class VNCHandshakeInterceptor implements HandshakeInterceptor {
         if (parts.length > 0) {
             String vmName = parts[parts.length - 1];
             attributes.put("vmName", vmName);
-            
+
+            // Port and host lookups may go to libvirtd, so they dominate the handshake
+            Timer.Sample sample = Timer.start(registry);
+            String outcome = "error";
             try {
                 // Get VNC port for this VM
                 int port = kvmService.getVNCPortByName(vmName);
                 attributes.put("port", String.valueOf(port));
-                System.out.println("VNC Handshake: VM=" + vmName + " Port=" + port);
+                // VNC servers listen on the hypervisor owning the VM
+                String host = kvmService.getVncHost(vmName);
+                attributes.put("host", host);
+                outcome = "success";
+                log.atInfo().addKeyValue("vm", vmName)
+                        .log("VNC Handshake: VM={} Host={} Port={}", vmName, host, port);
             } catch (Exception e) {
-                System.err.println("Failed to get VNC port for " + vmName + ": " + e.getMessage());
+                log.atWarn().addKeyValue("vm", vmName).log("Failed to get VNC port for {}: {}", vmName, e.getMessage());
                 return false;
+            } finally {
+                sample.stop(Timer.builder("vnc.handshake")
+                        .description("Time to resolve a console's VNC endpoint during the WebSocket handshake")
+                        .tag("outcome", outcome)
+                        .publishPercentileHistogram()
+                        .register(registry));
             }
+
+            // Optional per-session options; the handler falls back to the configured defaults
+            MultiValueMap<String, String> params = UriComponentsBuilder.fromUri(request.getURI()).build().getQueryParams();
+            putOption(attributes, "mode", params.getFirst("mode"), ConsoleMode.class);
+            putOption(attributes, "encodingProfile", params.getFirst("encoding"), EncodingProfile.class);
         }
         return true;
     }
 
+    private static <E extends Enum<E>> void putOption(Map<String, Object> attributes, String name, String value,
+                                                      Class<E> type) {
+        if (value == null) {
+            return;
+        }
+        try {
+            attributes.put(name, Enum.valueOf(type, value.toUpperCase().replace('-', '_')));
+        } catch (IllegalArgumentException e) {
+            log.warn("Ignoring unknown console option {}={}", name, value);
+        }
+    }
+
     @Override
     public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler, Exception exception) {
         if (exception != null) {
-            System.err.println("WebSocket handshake failed: " + exception.getMessage());
+            log.warn("WebSocket handshake failed: {}", exception.getMessage());
         }
     }
 }
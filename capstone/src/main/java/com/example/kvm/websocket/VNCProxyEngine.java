@@ -0,0 +1,272 @@
+package com.example.kvm.websocket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+
+/*
+ * Selector-based I/O engine for VNC console proxying.
+ *
+ * A single thread multiplexes the TCP connections to all VNC servers, so the number
+ * of concurrent consoles is bounded by the configured session limits rather than by
+ * a thread pool. Sends towards the browser are asynchronous (see WebSocketSender),
+ * so neither this thread nor the WebSocket container threads block on slow peers.
+ */
+@Component
+public class VNCProxyEngine {
+
+    private static final Logger log = LoggerFactory.getLogger(VNCProxyEngine.class);
+
+    private final Selector selector;
+    private final Thread selectorThread;
+    private volatile boolean running = true;
+
+    // Work handed to the selector thread by other threads (interest changes, registration, close)
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+    // Host name lookups block, so they stay off both the selector and the WebSocket container threads
+    private final ExecutorService resolver = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "vnc-proxy-resolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Session accounting for the configured limits
+    private final int maxSessions;
+    private final int maxSessionsPerVm;
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final Map<String, AtomicInteger> sessionsPerVm = new ConcurrentHashMap<>();
+
+    // Direct buffers shared by all consoles for both relay directions
+    private final BufferPool bufferPool;
+
+    // Proxy-wide traffic meters shared by all consoles
+    private final RelayMeters relayMeters;
+
+    public VNCProxyEngine(MeterRegistry registry,
+            @Value("${kvm.console.max-sessions:2000}") int maxSessions,
+            @Value("${kvm.console.max-sessions-per-vm:100}") int maxSessionsPerVm,
+            @Value("${kvm.console.buffer-pool.max-retained-bytes:67108864}") long maxRetainedBytes) throws IOException {
+        this.maxSessions = maxSessions;
+        this.maxSessionsPerVm = maxSessionsPerVm;
+        this.bufferPool = new BufferPool(maxRetainedBytes);
+        this.relayMeters = new RelayMeters(registry);
+        Gauge.builder("vnc.sessions.active", activeSessions, AtomicInteger::get)
+                .description("Open console sessions")
+                .register(registry);
+        this.selector = Selector.open();
+        this.selectorThread = new Thread(this::runSelector, "vnc-proxy-selector");
+        this.selectorThread.setDaemon(true);
+        this.selectorThread.start();
+    }
+
+    /*
+     * Reserves a console slot for the VM. Returns false if the total or per-VM limit is reached.
+     */
+    public boolean tryAcquireSession(String vmName) {
+        if (activeSessions.incrementAndGet() > maxSessions) {
+            activeSessions.decrementAndGet();
+            return false;
+        }
+        AtomicInteger perVm = sessionsPerVm.computeIfAbsent(vmName, k -> new AtomicInteger());
+        if (perVm.incrementAndGet() > maxSessionsPerVm) {
+            perVm.decrementAndGet();
+            activeSessions.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Releases a slot reserved with tryAcquireSession.
+     */
+    public void releaseSession(String vmName) {
+        activeSessions.decrementAndGet();
+        sessionsPerVm.computeIfPresent(vmName, (k, count) -> count.decrementAndGet() <= 0 ? null : count);
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    RelayMeters getRelayMeters() {
+        return relayMeters;
+    }
+
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    public int getActiveSessions(String vmName) {
+        AtomicInteger count = sessionsPerVm.get(vmName);
+        return count == null ? 0 : count.get();
+    }
+
+    /*
+     * Starts a non-blocking connection to a VNC server. The host name is resolved in
+     * the background; the handler is called back on the selector thread once the
+     * connection is established, readable or closed, including when it fails.
+     */
+    UpstreamChannel connect(String host, int port, UpstreamHandler handler, RelayStats stats) throws IOException {
+        SocketChannel socket = SocketChannel.open();
+        try {
+            socket.configureBlocking(false);
+            socket.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        UpstreamChannel channel = new UpstreamChannel(this, socket, handler, stats);
+        InetSocketAddress unresolved = InetSocketAddress.createUnresolved(host, port);
+        try {
+            resolver.execute(() -> {
+                InetSocketAddress address = new InetSocketAddress(unresolved.getHostString(), unresolved.getPort());
+                execute(() -> startConnect(channel, socket, address));
+            });
+        } catch (RejectedExecutionException e) {
+            socket.close();
+            throw new IOException("VNC proxy is shutting down", e);
+        }
+        return channel;
+    }
+
+    /*
+     * Selector thread: connects a resolved address. Any failure closes the channel,
+     * and with it the socket.
+     */
+    private void startConnect(UpstreamChannel channel, SocketChannel socket, InetSocketAddress address) {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            if (address.isUnresolved()) {
+                throw new UnknownHostException(address.getHostString());
+            }
+            socket.connect(address);
+            channel.register(socket.register(selector, SelectionKey.OP_CONNECT, channel));
+            // Loopback connects may complete immediately
+            if (socket.isConnectionPending() || socket.isConnected()) {
+                channel.finishConnect();
+            }
+        } catch (IOException e) {
+            closeQuietly(channel, e);
+        } catch (RuntimeException e) {
+            // e.g. UnresolvedAddressException or UnsupportedAddressTypeException from connect
+            closeQuietly(channel, new IOException(e));
+        }
+    }
+
+    /*
+     * Runs a task on the selector thread.
+     */
+    void execute(Runnable task) {
+        if (Thread.currentThread() == selectorThread) {
+            task.run();
+            return;
+        }
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    private void runSelector() {
+        while (running) {
+            try {
+                selector.select();
+                runPendingTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    processKey(key);
+                }
+            } catch (IOException e) {
+                log.error("VNC proxy selector error: {}", e.getMessage());
+            } catch (RuntimeException e) {
+                // This is the only selector thread; losing it would freeze every console
+                log.error("Unexpected error in VNC proxy selector", e);
+            }
+        }
+    }
+
+    private void processKey(SelectionKey key) {
+        UpstreamChannel channel = (UpstreamChannel) key.attachment();
+        try {
+            if (key.isValid() && key.isConnectable()) {
+                channel.finishConnect();
+            }
+            if (key.isValid() && key.isWritable()) {
+                channel.flushWrites();
+            }
+            if (key.isValid() && key.isReadable()) {
+                channel.handleReadable();
+            }
+        } catch (IOException e) {
+            closeQuietly(channel, e);
+        } catch (RuntimeException e) {
+            // A misbehaving handler must not take the whole engine down
+            log.error("Error in VNC proxy handler", e);
+            closeQuietly(channel, new IOException(e));
+        }
+    }
+
+    /*
+     * Closes a channel after an error; onClosed handlers may throw as well.
+     */
+    private void closeQuietly(UpstreamChannel channel, IOException cause) {
+        try {
+            channel.closeNow(cause);
+        } catch (RuntimeException e) {
+            log.error("Error closing VNC proxy channel", e);
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Error in VNC proxy task", e);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        resolver.shutdownNow();
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly((UpstreamChannel) key.attachment(), null);
+        }
+        selector.close();
+    }
+}
@@ -1,133 +1,142 @@
 package com.example.kvm.websocket;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 import org.springframework.stereotype.Component;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 
 /*
- * VNC WebSocket Handler - Proxies WebSocket connections to local VNC servers.
+ * VNC WebSocket Handler - Proxies WebSocket connections to the VMs' VNC servers.
  * Allows web browsers to connect to VNC via WebSocket tunnel.
+ * The actual byte relaying is done by the non-blocking VNCProxyEngine.
+ * In broadcast mode all viewers of a VM share one VNC connection (ConsoleBroadcaster).
  */
 @Component
 public class VNCWebSocketHandler extends AbstractWebSocketHandler {
 
-    private final Map<String, VNCConnection> connections = new ConcurrentHashMap<>();
-    private final ExecutorService executorService = Executors.newFixedThreadPool(10);
-    private final String VNC_HOST = "localhost";
+    private static final Logger log = LoggerFactory.getLogger(VNCWebSocketHandler.class);
 
-    @Override
-    public void afterConnectionEstablished(WebSocketSession session) throws Exception {
-        String vmName = session.getAttributes().get("vmName").toString();
-        String port = session.getAttributes().get("port").toString();
-        
-        System.out.println("WebSocket connected for VM: " + vmName + " on port: " + port);
-        
-        try {
-            int vncPort = Integer.parseInt(port);
-            VNCConnection vncConn = new VNCConnection(session, VNC_HOST, vncPort);
-            connections.put(session.getId(), vncConn);
-            
-            // Start reading from VNC server in background thread
-            executorService.execute(vncConn::readFromVNC);
-        } catch (Exception e) {
-            System.err.println("Failed to connect to VNC: " + e.getMessage());
-            session.close(CloseStatus.SERVER_ERROR);
-        }
-    }
+    private final Map<String, ConsoleSession> connections = new ConcurrentHashMap<>();
+    private final VNCProxyEngine proxyEngine;
+    private final ConsoleBroadcaster broadcaster;
+    private final OutboundPolicy outboundPolicy;
+    private final ConsoleMode defaultMode;
+    private final EncodingProfile defaultEncodingProfile;
+    private final MeterRegistry registry;
 
-    @Override
-    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
-        VNCConnection vncConn = connections.get(session.getId());
-        if (vncConn != null && vncConn.isConnected()) {
-            vncConn.sendToVNC(message.getPayload().array());
-        }
+    public VNCWebSocketHandler(VNCProxyEngine proxyEngine, ConsoleBroadcaster broadcaster, OutboundPolicy outboundPolicy,
+                               MeterRegistry registry,
+                               @Value("${kvm.console.default-mode:PASSTHROUGH}") ConsoleMode defaultMode,
+                               @Value("${kvm.console.encoding.default-profile:PASSTHROUGH}") EncodingProfile defaultEncodingProfile) {
+        this.proxyEngine = proxyEngine;
+        this.broadcaster = broadcaster;
+        this.outboundPolicy = outboundPolicy;
+        this.defaultMode = defaultMode;
+        this.defaultEncodingProfile = defaultEncodingProfile;
+        this.registry = registry;
     }
 
-    @Override
-    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
-        VNCConnection vncConn = connections.remove(session.getId());
-        if (vncConn != null) {
-            vncConn.close();
-            System.out.println("WebSocket disconnected for session: " + session.getId());
+    /*
+     * Watchdog closing sessions whose browser has not accepted a frame within the send timeout.
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void checkSendTimeouts() {
+        long now = System.nanoTime();
+        for (ConsoleSession connection : connections.values()) {
+            if (connection.getOutbound().checkSendTimeout(now)) {
+                log.atWarn().addKeyValue("vm", connection.getVmName())
+                        .log("Closing console for VM {}: send timed out", connection.getVmName());
+            }
         }
     }
 
     /*
-     * Inner class representing a single VNC connection through WebSocket.
+     * Returns the relay statistics of all open console sessions.
      */
-    private class VNCConnection {
-        private WebSocketSession webSocketSession;
-        private Socket vncSocket;
-        private InputStream vncInput;
-        private OutputStream vncOutput;
-        private volatile boolean connected = false;
-
-        VNCConnection(WebSocketSession webSocketSession, String host, int port) throws IOException {
-            this.webSocketSession = webSocketSession;
-            this.vncSocket = new Socket(host, port);
-            this.vncInput = vncSocket.getInputStream();
-            this.vncOutput = vncSocket.getOutputStream();
-            this.connected = true;
+    public List<RelayStats> getSessionStats() {
+        List<RelayStats> stats = new ArrayList<>(connections.size());
+        for (ConsoleSession connection : connections.values()) {
+            stats.add(connection.getStats());
         }
+        return stats;
+    }
 
-        void readFromVNC() {
-            try {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                
-                while (connected && (bytesRead = vncInput.read(buffer)) != -1) {
-                    if (webSocketSession.isOpen()) {
-                        webSocketSession.sendMessage(new BinaryMessage(ByteBuffer.wrap(buffer, 0, bytesRead)));
-                    } else {
-                        connected = false;
-                        break;
-                    }
-                }
-            } catch (IOException e) {
-                if (connected) {
-                    System.err.println("Error reading from VNC: " + e.getMessage());
-                }
-                connected = false;
-                try {
-                    webSocketSession.close();
-                } catch (IOException ex) {
-                    // Already closed
-                }
-            }
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+        String vmName = session.getAttributes().get("vmName").toString();
+        String vncHost = session.getAttributes().get("host").toString();
+        String port = session.getAttributes().get("port").toString();
+        Object requestedMode = session.getAttributes().get("mode");
+        ConsoleMode mode = requestedMode instanceof ConsoleMode ? (ConsoleMode) requestedMode : defaultMode;
+        Object requestedProfile = session.getAttributes().get("encodingProfile");
+        EncodingProfile encodingProfile = requestedProfile instanceof EncodingProfile
+                ? (EncodingProfile) requestedProfile : defaultEncodingProfile;
+
+        log.atInfo().addKeyValue("vm", vmName).addKeyValue("session", session.getId())
+                .log("WebSocket connected for VM: {} on {}:{} ({})", vmName, vncHost, port, mode);
+
+        // Enforce the total and per-VM console limits before touching the VNC server
+        if (!proxyEngine.tryAcquireSession(vmName)) {
+            log.atWarn().addKeyValue("vm", vmName).log("Console limit reached, rejecting session for VM: {}", vmName);
+            session.close(CloseStatus.SERVICE_OVERLOAD.withReason("Console session limit reached"));
+            return;
         }
 
-        void sendToVNC(byte[] data) throws IOException {
-            if (connected && vncOutput != null) {
-                vncOutput.write(data);
-                vncOutput.flush();
+        Timer.Sample sample = Timer.start(registry);
+        String outcome = "error";
+        try {
+            if (mode == ConsoleMode.BROADCAST) {
+                connections.put(session.getId(), broadcaster.attach(session, vmName, vncHost, Integer.parseInt(port)));
+            } else {
+                VNCConnection vncConn = new VNCConnection(session, vmName, proxyEngine, outboundPolicy, encodingProfile);
+                connections.put(session.getId(), vncConn);
+                vncConn.open(proxyEngine, vncHost, Integer.parseInt(port));
             }
+            outcome = "success";
+        } catch (Exception e) {
+            log.atWarn().addKeyValue("vm", vmName).log("Failed to connect to VNC: {}", e.getMessage());
+            if (!connections.containsKey(session.getId())) {
+                proxyEngine.releaseSession(vmName);
+            }
+            session.close(CloseStatus.SERVER_ERROR);
+        } finally {
+            sample.stop(Timer.builder("vnc.upstream.connect")
+                    .description("Time to open or join the VNC connection of a console")
+                    .tag("mode", mode.name().toLowerCase())
+                    .tag("outcome", outcome)
+                    .register(registry));
         }
+    }
 
-        boolean isConnected() {
-            return connected;
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+        ConsoleSession console = connections.get(session.getId());
+        if (console != null) {
+            console.handleBrowserMessage(message.getPayload());
         }
+    }
 
-        void close() {
-            connected = false;
-            try {
-                if (vncInput != null) vncInput.close();
-                if (vncOutput != null) vncOutput.close();
-                if (vncSocket != null) vncSocket.close();
-            } catch (IOException e) {
-                System.err.println("Error closing VNC connection: " + e.getMessage());
-            }
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
+        ConsoleSession console = connections.remove(session.getId());
+        if (console != null) {
+            console.close();
+            proxyEngine.releaseSession(console.getVmName());
+            log.atInfo().addKeyValue("vm", console.getVmName()).addKeyValue("session", session.getId())
+                    .log("WebSocket disconnected for session: {}", session.getId());
         }
     }
 }
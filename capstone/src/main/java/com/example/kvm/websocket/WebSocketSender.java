@@ -0,0 +1,86 @@
+package com.example.kvm.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+
+import jakarta.websocket.RemoteEndpoint;
+import jakarta.websocket.Session;
+
+/*
+ * Sends binary data to a browser without blocking the calling thread.
+ *
+ * Uses the container's asynchronous remote endpoint when the session is backed by a
+ * standard (JSR-356) WebSocket session. Other session types fall back to a plain
+ * synchronous send. At most one send per session may be in flight at a time.
+ */
+final class WebSocketSender {
+
+    private WebSocketSender() {
+    }
+
+    /*
+     * Sends data and calls done with null on success or the failure cause.
+     * The buffer must not be modified until done has been called.
+     */
+    static void sendBinary(WebSocketSession session, ByteBuffer data, Consumer<Throwable> done) {
+        RemoteEndpoint.Async async = asyncEndpoint(session);
+        if (async != null) {
+            try {
+                async.sendBinary(data, result -> done.accept(result.isOK() ? null : result.getException()));
+            } catch (RuntimeException e) {
+                done.accept(e);
+            }
+            return;
+        }
+
+        try {
+            session.sendMessage(new BinaryMessage(data));
+            done.accept(null);
+        } catch (IOException | RuntimeException e) {
+            done.accept(e);
+        }
+    }
+
+    /*
+     * Applies the container-level timeout for asynchronous sends, where supported.
+     */
+    static void setSendTimeout(WebSocketSession session, long timeoutMillis) {
+        RemoteEndpoint.Async async = asyncEndpoint(session);
+        if (async != null) {
+            async.setSendTimeout(timeoutMillis);
+        }
+    }
+
+    /*
+     * True if the browser and the container agreed on permessage-deflate.
+     */
+    static boolean isDeflateNegotiated(WebSocketSession session) {
+        List<WebSocketExtension> extensions = session.getExtensions();
+        if (extensions == null) {
+            return false;
+        }
+        for (WebSocketExtension extension : extensions) {
+            if (ConsoleUpgradeStrategy.PERMESSAGE_DEFLATE.equals(extension.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static RemoteEndpoint.Async asyncEndpoint(WebSocketSession session) {
+        if (session instanceof NativeWebSocketSession nativeSession) {
+            Session standard = nativeSession.getNativeSession(Session.class);
+            if (standard != null && standard.isOpen()) {
+                return standard.getAsyncRemote();
+            }
+        }
+        return null;
+    }
+}
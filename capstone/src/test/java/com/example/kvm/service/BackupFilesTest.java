@@ -0,0 +1,96 @@
+package com.example.kvm.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BackupFilesTest {
+
+    private static final int BLOCK = 64 * 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void writesDataBlocksAndMergesZeroRuns() throws IOException {
+        byte[] first = block(1);
+        byte[] fourth = block(4);
+        BackupFiles.Writer writer = new BackupFiles.Writer(dataFile(), extentsFile(), 6L * BLOCK);
+        try (writer) {
+            writer.write(0, ByteBuffer.wrap(first));
+            writer.write(BLOCK, ByteBuffer.allocate(BLOCK));
+            writer.write(2L * BLOCK, ByteBuffer.allocate(BLOCK));
+            writer.write(3L * BLOCK, ByteBuffer.wrap(fourth));
+            writer.write(4L * BLOCK, ByteBuffer.allocate(BLOCK));
+            writer.write(5L * BLOCK, ByteBuffer.allocate(BLOCK));
+        }
+
+        assertEquals(6L * BLOCK, writer.getChangedBytes());
+        assertEquals(2L * BLOCK, writer.getStoredBytes());
+        assertEquals(4, writer.getExtentCount());
+
+        List<long[]> extents = new ArrayList<>();
+        long virtualSize = BackupFiles.read(extentsFile(),
+                (offset, length, dataOffset) -> extents.add(new long[] {offset, length, dataOffset}));
+        assertEquals(6L * BLOCK, virtualSize);
+        assertArrayEquals(new long[] {0, BLOCK, 0}, extents.get(0));
+        assertArrayEquals(new long[] {BLOCK, 2L * BLOCK, BackupFiles.ZEROS}, extents.get(1));
+        assertArrayEquals(new long[] {3L * BLOCK, BLOCK, BLOCK}, extents.get(2));
+        assertArrayEquals(new long[] {4L * BLOCK, 2L * BLOCK, BackupFiles.ZEROS}, extents.get(3));
+
+        byte[] data = Files.readAllBytes(dataFile());
+        assertEquals(2 * BLOCK, data.length);
+        assertArrayEquals(first, Arrays.copyOfRange(data, 0, BLOCK));
+        assertArrayEquals(fourth, Arrays.copyOfRange(data, BLOCK, 2 * BLOCK));
+    }
+
+    @Test
+    void writesOnlyThePartOfTheBufferBetweenPositionAndLimit() throws IOException {
+        byte[] contents = block(7);
+        ByteBuffer buffer = ByteBuffer.allocate(3 * BLOCK);
+        buffer.position(BLOCK).put(contents).flip().position(BLOCK);
+        try (BackupFiles.Writer writer = new BackupFiles.Writer(dataFile(), extentsFile(), BLOCK)) {
+            writer.write(0, buffer);
+        }
+
+        assertEquals(BLOCK, buffer.position());
+        assertArrayEquals(contents, Files.readAllBytes(dataFile()));
+    }
+
+    @Test
+    void rejectsFilesThatAreNotExtentIndexes() throws IOException {
+        Files.write(extentsFile(), new byte[16]);
+
+        assertThrows(IOException.class, () -> BackupFiles.read(extentsFile(), (offset, length, dataOffset) -> { }));
+    }
+
+    private Path dataFile() {
+        return BackupFiles.dataFile(directory, "b1", "vda");
+    }
+
+    private Path extentsFile() {
+        return BackupFiles.extentsFile(directory, "b1", "vda");
+    }
+
+    /*
+     * A block no byte of which is zero, different for every seed.
+     */
+    static byte[] block(int seed) {
+        byte[] block = new byte[BLOCK];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) (1 + (i * 31 + seed * 17) % 255);
+        }
+        return block;
+    }
+}
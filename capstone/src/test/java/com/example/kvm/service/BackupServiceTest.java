@@ -0,0 +1,144 @@
+package com.example.kvm.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.example.kvm.model.BackupInfo;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/*
+ * Restores from backup files written the way BackupService.backup writes them;
+ * the libvirt and NBD side of a backup is covered by NbdClientTest.
+ */
+class BackupServiceTest {
+
+    private static final int BLOCK = 64 * 1024;
+    private static final int BLOCKS = 8;
+    private static final String VM = "web1";
+
+    @TempDir
+    Path backupDirectory;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private BackupService backupService;
+    private final List<BackupInfo> chain = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // restore() only touches the backup directory
+        backupService = new BackupService(null, null, null, null, objectMapper, new SimpleMeterRegistry(),
+                backupDirectory.toString(), backupDirectory.resolve("sockets").toString(), 100);
+        Files.createDirectories(backupDirectory.resolve(VM));
+    }
+
+    @Test
+    void restoresFullBackupFollowedByIncrementals() throws IOException {
+        byte[] a = BackupFilesTest.block(1);
+        byte[] b = BackupFilesTest.block(2);
+        byte[] c = BackupFilesTest.block(3);
+        byte[] d = BackupFilesTest.block(4);
+        byte[] e = BackupFilesTest.block(5);
+        byte[] zeros = new byte[BLOCK];
+
+        // Full: every block, most of them zeros
+        addLayer("b1", BackupInfo.Type.FULL, Map.of(0, a, 1, zeros, 2, zeros, 3, b, 4, zeros, 5, zeros, 6, zeros,
+                7, zeros));
+        // Block 1 written, block 3 zeroed by the guest
+        addLayer("b2", BackupInfo.Type.INCREMENTAL, Map.of(1, c, 3, zeros));
+        addLayer("b3", BackupInfo.Type.INCREMENTAL, Map.of(0, d, 7, e));
+        saveIndex();
+
+        assertArrayEquals(image(Map.of(0, a, 1, zeros, 3, b)), restore("b1"));
+        assertArrayEquals(image(Map.of(0, a, 1, c)), restore("b2"));
+        assertArrayEquals(image(Map.of(0, d, 1, c, 7, e)), restore("b3"));
+    }
+
+    @Test
+    void restoreStartsFromTheLatestFullBackup() throws IOException {
+        addLayer("b1", BackupInfo.Type.FULL, Map.of(0, BackupFilesTest.block(1)));
+        addLayer("b2", BackupInfo.Type.FULL, Map.of(2, BackupFilesTest.block(2)));
+        addLayer("b3", BackupInfo.Type.INCREMENTAL, Map.of(4, BackupFilesTest.block(3)));
+        // Files of the first chain are not needed any more
+        Files.delete(BackupFiles.dataFile(backupDirectory.resolve(VM), "b1", "vda"));
+        saveIndex();
+
+        assertArrayEquals(image(Map.of(2, BackupFilesTest.block(2), 4, BackupFilesTest.block(3))), restore("b3"));
+    }
+
+    @Test
+    void rejectsUnknownBackupsAndFormats() throws IOException {
+        addLayer("b1", BackupInfo.Type.FULL, Map.of(0, BackupFilesTest.block(1)));
+        saveIndex();
+
+        assertThrows(IllegalArgumentException.class,
+                () -> backupService.restore(VM, "missing", null, "raw", JobProgress.NONE));
+        assertThrows(IllegalArgumentException.class,
+                () -> backupService.restore(VM, "b1", null, "vmdk", JobProgress.NONE));
+        assertThrows(IllegalArgumentException.class,
+                () -> backupService.restore(VM, "b1", "vdb", "raw", JobProgress.NONE));
+    }
+
+    @Test
+    void failsOnChainWithoutFullBackup() throws IOException {
+        addLayer("b1", BackupInfo.Type.INCREMENTAL, Map.of(0, BackupFilesTest.block(1)));
+        saveIndex();
+
+        assertThrows(IOException.class, () -> backupService.restore(VM, "b1", null, "raw", JobProgress.NONE));
+    }
+
+    /*
+     * Writes the files of one backup of disk vda, blocks in ascending order as
+     * the NBD export delivers them.
+     */
+    private void addLayer(String id, BackupInfo.Type type, Map<Integer, byte[]> blocks) throws IOException {
+        Path directory = backupDirectory.resolve(VM);
+        try (BackupFiles.Writer writer = new BackupFiles.Writer(BackupFiles.dataFile(directory, id, "vda"),
+                BackupFiles.extentsFile(directory, id, "vda"), (long) BLOCKS * BLOCK)) {
+            for (int i = 0; i < BLOCKS; i++) {
+                if (blocks.containsKey(i)) {
+                    writer.write((long) i * BLOCK, ByteBuffer.wrap(blocks.get(i)));
+                }
+            }
+        }
+        BackupInfo.Disk disk = new BackupInfo.Disk();
+        disk.setTarget("vda");
+        disk.setVirtualSize((long) BLOCKS * BLOCK);
+        BackupInfo backup = new BackupInfo();
+        backup.setId(id);
+        backup.setVm(VM);
+        backup.setType(type);
+        backup.getDisks().add(disk);
+        chain.add(backup);
+    }
+
+    private void saveIndex() throws IOException {
+        objectMapper.writeValue(backupDirectory.resolve(VM).resolve("index.json").toFile(), chain);
+    }
+
+    private byte[] restore(String backupId) throws IOException {
+        String path = backupService.restore(VM, backupId, null, "raw", JobProgress.NONE);
+        assertEquals(backupDirectory.resolve(VM).resolve("restore").resolve(backupId + "-vda.raw").toString(), path);
+        return Files.readAllBytes(Path.of(path));
+    }
+
+    private static byte[] image(Map<Integer, byte[]> blocks) {
+        byte[] image = new byte[BLOCKS * BLOCK];
+        blocks.forEach((index, block) -> System.arraycopy(block, 0, image, index * BLOCK, BLOCK));
+        return image;
+    }
+}
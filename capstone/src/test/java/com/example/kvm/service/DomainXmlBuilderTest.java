@@ -0,0 +1,42 @@
+package com.example.kvm.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.junit.jupiter.api.Test;
+
+class DomainXmlBuilderTest {
+
+    private static final Map<String, String> LABELS = Map.of(
+            "owner", "O'Brien & \"ops\"",
+            "note", "<b>x</b>");
+
+    @Test
+    void labelsSurviveDomainXml() throws XMLStreamException {
+        String xml = new DomainXmlBuilder("vm1").labels(LABELS).build();
+
+        assertEquals(LABELS, DomainDescriptorParser.parse(xml).getLabels());
+    }
+
+    @Test
+    void labelsMetadataEscapesAttributes() throws XMLStreamException {
+        String xml = DomainXmlBuilder.labelsMetadata(LABELS);
+
+        Map<String, String> parsed = new LinkedHashMap<>();
+        XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(xml));
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT && "label".equals(reader.getLocalName())) {
+                parsed.put(reader.getAttributeValue(null, "key"), reader.getAttributeValue(null, "value"));
+            }
+        }
+        assertEquals(LABELS, parsed);
+    }
+}
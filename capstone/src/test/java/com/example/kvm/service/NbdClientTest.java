@@ -0,0 +1,301 @@
+package com.example.kvm.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Runs NbdClient against a scripted server on a Unix socket that answers the
+ * way qemu's NBD server does for a pull mode backup.
+ */
+class NbdClientTest {
+
+    private static final long NBD_MAGIC = 0x4e42444d41474943L;
+    private static final long IHAVEOPT = 0x49484156454f5054L;
+    private static final long OPTION_REPLY_MAGIC = 0x0003e889045565a9L;
+    private static final int REQUEST_MAGIC = 0x25609513;
+    private static final int STRUCTURED_REPLY_MAGIC = 0x668e33ef;
+
+    private static final int OPT_GO = 7;
+    private static final int OPT_STRUCTURED_REPLY = 8;
+    private static final int OPT_SET_META_CONTEXT = 10;
+    private static final int REP_ACK = 1;
+    private static final int REP_INFO = 3;
+    private static final int REP_META_CONTEXT = 4;
+    private static final int REP_ERR_UNKNOWN = (1 << 31) | 6;
+
+    private static final short CMD_READ = 0;
+    private static final short CMD_DISC = 2;
+    private static final short CMD_BLOCK_STATUS = 7;
+
+    private static final short FLAG_DONE = 1;
+    private static final short TYPE_OFFSET_DATA = 1;
+    private static final short TYPE_OFFSET_HOLE = 2;
+    private static final short TYPE_BLOCK_STATUS = 5;
+    private static final short TYPE_ERROR_OFFSET = (short) ((1 << 15) | 2);
+
+    private static final int CONTEXT_ID = 42;
+    private static final long EXPORT_SIZE = 1 << 20;
+
+    @TempDir
+    Path directory;
+
+    private final ExecutorService serverThread = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    void tearDown() {
+        serverThread.shutdownNow();
+    }
+
+    /*
+     * One connection's worth of server behaviour.
+     */
+    @FunctionalInterface
+    private interface Script {
+        void run(DataInputStream in, DataOutputStream out) throws IOException;
+    }
+
+    @Test
+    void negotiatesExportAndReadsBlockStatus() throws Exception {
+        Path socket = directory.resolve("nbd.sock");
+        Future<?> server = serve(socket, (in, out) -> {
+            negotiate(in, out, "vda", "qemu:dirty-bitmap:backup-vda");
+
+            long handle = expectRequest(in, CMD_BLOCK_STATUS, 0, (int) EXPORT_SIZE);
+            structuredHeader(out, FLAG_DONE, TYPE_BLOCK_STATUS, handle, 4 + 2 * 8);
+            out.writeInt(CONTEXT_ID);
+            out.writeInt(65536);
+            out.writeInt(NbdClient.STATE_DIRTY);
+            out.writeInt(196608);
+            out.writeInt(0);
+            out.flush();
+
+            expectRequest(in, CMD_DISC, 0, 0);
+        });
+
+        try (NbdClient client = NbdClient.connect(socket, "vda", "qemu:dirty-bitmap:backup-vda")) {
+            assertEquals(EXPORT_SIZE, client.getExportSize());
+
+            List<NbdClient.Extent> extents = client.blockStatus(0, EXPORT_SIZE);
+            assertEquals(2, extents.size());
+            assertEquals(0, extents.get(0).offset);
+            assertEquals(65536, extents.get(0).length);
+            assertEquals(NbdClient.STATE_DIRTY, extents.get(0).flags);
+            assertEquals(65536, extents.get(1).offset);
+            assertEquals(196608, extents.get(1).length);
+            assertEquals(0, extents.get(1).flags);
+        }
+        server.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void assemblesReadFromDataAndHoleChunks() throws Exception {
+        byte[] data = new byte[4096];
+        Arrays.fill(data, (byte) 7);
+        Path socket = directory.resolve("nbd.sock");
+        Future<?> server = serve(socket, (in, out) -> {
+            negotiate(in, out, "vda", "base:allocation");
+
+            // Chunks may come in any order; the hole is sent first
+            long handle = expectRequest(in, CMD_READ, 8192, 8192);
+            structuredHeader(out, (short) 0, TYPE_OFFSET_HOLE, handle, 12);
+            out.writeLong(8192);
+            out.writeInt(4096);
+            structuredHeader(out, FLAG_DONE, TYPE_OFFSET_DATA, handle, 8 + data.length);
+            out.writeLong(12288);
+            out.write(data);
+            out.flush();
+
+            expectRequest(in, CMD_DISC, 0, 0);
+        });
+
+        ByteBuffer buffer = ByteBuffer.allocate(16384);
+        // Garbage where the hole goes, which the read must overwrite
+        Arrays.fill(buffer.array(), (byte) 1);
+        buffer.position(4096).limit(12288);
+        try (NbdClient client = NbdClient.connect(socket, "vda", "base:allocation")) {
+            client.read(8192, buffer);
+        }
+        server.get(10, TimeUnit.SECONDS);
+
+        assertEquals(4096, buffer.position());
+        byte[] expected = new byte[16384];
+        Arrays.fill(expected, (byte) 1);
+        Arrays.fill(expected, 4096, 8192, (byte) 0);
+        Arrays.fill(expected, 8192, 12288, (byte) 7);
+        assertArrayEquals(expected, buffer.array());
+    }
+
+    @Test
+    void reportsErrorChunks() throws Exception {
+        Path socket = directory.resolve("nbd.sock");
+        Future<?> server = serve(socket, (in, out) -> {
+            negotiate(in, out, "vda", "base:allocation");
+
+            long handle = expectRequest(in, CMD_READ, 0, 512);
+            byte[] message = "I/O error".getBytes(StandardCharsets.UTF_8);
+            structuredHeader(out, FLAG_DONE, TYPE_ERROR_OFFSET, handle, 4 + 2 + message.length + 8);
+            out.writeInt(5);
+            out.writeShort(message.length);
+            out.write(message);
+            out.writeLong(0);
+            out.flush();
+
+            expectRequest(in, CMD_DISC, 0, 0);
+        });
+
+        try (NbdClient client = NbdClient.connect(socket, "vda", "base:allocation")) {
+            IOException error = assertThrows(IOException.class, () -> client.read(0, ByteBuffer.allocate(512)));
+            assertTrue(error.getMessage().contains("I/O error"), error.getMessage());
+        }
+        server.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void failsWhenMetadataContextIsNotOffered() throws Exception {
+        Path socket = directory.resolve("nbd.sock");
+        Future<?> server = serve(socket, (in, out) -> {
+            greet(in, out);
+            expectOption(in, OPT_STRUCTURED_REPLY);
+            optionReply(out, OPT_STRUCTURED_REPLY, REP_ACK, new byte[0]);
+            // A bitmap that does not exist: the context is silently left out
+            expectOption(in, OPT_SET_META_CONTEXT);
+            optionReply(out, OPT_SET_META_CONTEXT, REP_ACK, new byte[0]);
+        });
+
+        IOException error = assertThrows(IOException.class,
+                () -> NbdClient.connect(socket, "vda", "qemu:dirty-bitmap:backup-vda"));
+        assertTrue(error.getMessage().contains("metadata context"), error.getMessage());
+        server.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void failsWhenExportIsRefused() throws Exception {
+        Path socket = directory.resolve("nbd.sock");
+        Future<?> server = serve(socket, (in, out) -> {
+            greet(in, out);
+            expectOption(in, OPT_STRUCTURED_REPLY);
+            optionReply(out, OPT_STRUCTURED_REPLY, REP_ERR_UNKNOWN,
+                    "export not found".getBytes(StandardCharsets.UTF_8));
+        });
+
+        IOException error = assertThrows(IOException.class, () -> NbdClient.connect(socket, "vdz", "base:allocation"));
+        assertTrue(error.getMessage().contains("export not found"), error.getMessage());
+        server.get(10, TimeUnit.SECONDS);
+    }
+
+    private Future<?> serve(Path socket, Script script) throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        listener.bind(UnixDomainSocketAddress.of(socket));
+        return serverThread.submit(() -> {
+            try (listener; SocketChannel channel = listener.accept()) {
+                script.run(new DataInputStream(Channels.newInputStream(channel)),
+                        new DataOutputStream(Channels.newOutputStream(channel)));
+            }
+            return null;
+        });
+    }
+
+    private static void greet(DataInputStream in, DataOutputStream out) throws IOException {
+        out.writeLong(NBD_MAGIC);
+        out.writeLong(IHAVEOPT);
+        // Fixed newstyle, no zeroes
+        out.writeShort(3);
+        out.flush();
+        assertEquals(3, in.readInt());
+    }
+
+    /*
+     * Handshake of a server exporting one disk with a single metadata context.
+     */
+    private static void negotiate(DataInputStream in, DataOutputStream out, String export, String context)
+            throws IOException {
+        greet(in, out);
+        expectOption(in, OPT_STRUCTURED_REPLY);
+        optionReply(out, OPT_STRUCTURED_REPLY, REP_ACK, new byte[0]);
+
+        ByteBuffer query = ByteBuffer.wrap(expectOption(in, OPT_SET_META_CONTEXT));
+        assertEquals(export, string(query));
+        assertEquals(1, query.getInt());
+        assertEquals(context, string(query));
+        byte[] name = context.getBytes(StandardCharsets.UTF_8);
+        optionReply(out, OPT_SET_META_CONTEXT, REP_META_CONTEXT,
+                ByteBuffer.allocate(4 + name.length).putInt(CONTEXT_ID).put(name).array());
+        optionReply(out, OPT_SET_META_CONTEXT, REP_ACK, new byte[0]);
+
+        ByteBuffer go = ByteBuffer.wrap(expectOption(in, OPT_GO));
+        assertEquals(export, string(go));
+        optionReply(out, OPT_GO, REP_INFO, ByteBuffer.allocate(12).putShort((short) 0).putLong(EXPORT_SIZE)
+                .putShort((short) 1).array());
+        optionReply(out, OPT_GO, REP_ACK, new byte[0]);
+    }
+
+    private static byte[] expectOption(DataInputStream in, int option) throws IOException {
+        assertEquals(IHAVEOPT, in.readLong());
+        assertEquals(option, in.readInt());
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return data;
+    }
+
+    private static void optionReply(DataOutputStream out, int option, int type, byte[] data) throws IOException {
+        out.writeLong(OPTION_REPLY_MAGIC);
+        out.writeInt(option);
+        out.writeInt(type);
+        out.writeInt(data.length);
+        out.write(data);
+        out.flush();
+    }
+
+    /*
+     * Reads one transmission request and returns its handle.
+     */
+    private static long expectRequest(DataInputStream in, short command, long offset, int length)
+            throws IOException {
+        assertEquals(REQUEST_MAGIC, in.readInt());
+        in.readShort();
+        assertEquals(command, in.readShort());
+        long handle = in.readLong();
+        assertEquals(offset, in.readLong());
+        assertEquals(length, in.readInt());
+        return handle;
+    }
+
+    private static void structuredHeader(DataOutputStream out, short flags, short type, long handle, int length)
+            throws IOException {
+        out.writeInt(STRUCTURED_REPLY_MAGIC);
+        out.writeShort(flags);
+        out.writeShort(type);
+        out.writeLong(handle);
+        out.writeInt(length);
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.kvm.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class EncodingProfileTest {
+
+    // What noVNC offers: Tight, Tight PNG, ZRLE, Hextile, RRE, Raw, its quality and compression, pseudo-encodings
+    private static final int[] BROWSER = {
+            Rfb.ENCODING_RAW, Rfb.ENCODING_COPY_RECT, Rfb.ENCODING_RRE, Rfb.ENCODING_HEXTILE, Rfb.ENCODING_ZRLE,
+            Rfb.ENCODING_TIGHT, Rfb.ENCODING_TIGHT_PNG, Rfb.ENCODING_QUALITY_LEVEL_0 + 6,
+            Rfb.ENCODING_COMPRESS_LEVEL_0 + 2, Rfb.ENCODING_DESKTOP_SIZE, Rfb.ENCODING_CURSOR
+    };
+
+    @Test
+    void passthroughKeepsTheBrowsersList() {
+        assertFalse(EncodingProfile.PASSTHROUGH.rewritesEncodings());
+        assertSame(BROWSER, EncodingProfile.PASSTHROUGH.rewrite(BROWSER));
+    }
+
+    @Test
+    void movesPreferredEncodingsFirstAndReplacesLevels() {
+        assertTrue(EncodingProfile.WAN.rewritesEncodings());
+        assertArrayEquals(new int[] {
+                Rfb.ENCODING_TIGHT, Rfb.ENCODING_ZRLE, Rfb.ENCODING_HEXTILE,
+                Rfb.ENCODING_RAW, Rfb.ENCODING_COPY_RECT, Rfb.ENCODING_RRE, Rfb.ENCODING_TIGHT_PNG,
+                Rfb.ENCODING_DESKTOP_SIZE, Rfb.ENCODING_CURSOR,
+                Rfb.ENCODING_QUALITY_LEVEL_0 + 6, Rfb.ENCODING_COMPRESS_LEVEL_0 + 6
+        }, EncodingProfile.WAN.rewrite(BROWSER));
+    }
+
+    @Test
+    void lanSetsOnlyTheCompressionLevel() {
+        assertArrayEquals(new int[] {
+                Rfb.ENCODING_TIGHT, Rfb.ENCODING_ZRLE, Rfb.ENCODING_HEXTILE,
+                Rfb.ENCODING_RAW, Rfb.ENCODING_COPY_RECT, Rfb.ENCODING_RRE, Rfb.ENCODING_TIGHT_PNG,
+                Rfb.ENCODING_DESKTOP_SIZE, Rfb.ENCODING_CURSOR,
+                Rfb.ENCODING_COMPRESS_LEVEL_0 + 1
+        }, EncodingProfile.LAN.rewrite(BROWSER));
+    }
+
+    @Test
+    void neverAddsEncodingsTheBrowserDidNotOffer() {
+        int[] requested = {Rfb.ENCODING_HEXTILE, Rfb.ENCODING_RAW, Rfb.ENCODING_QUALITY_LEVEL_0 + 9};
+
+        // No Tight, so no JPEG quality either; the browser's own quality level is dropped
+        assertArrayEquals(new int[] {Rfb.ENCODING_HEXTILE, Rfb.ENCODING_RAW, Rfb.ENCODING_COMPRESS_LEVEL_0 + 6},
+                EncodingProfile.WAN.rewrite(requested));
+        // Hextile is not among the low bandwidth profile's preferences and keeps its place
+        assertArrayEquals(new int[] {Rfb.ENCODING_HEXTILE, Rfb.ENCODING_RAW, Rfb.ENCODING_COMPRESS_LEVEL_0 + 9},
+                EncodingProfile.LOW_BANDWIDTH.rewrite(requested));
+    }
+
+    @Test
+    void handlesAnEmptyList() {
+        assertArrayEquals(new int[] {Rfb.ENCODING_COMPRESS_LEVEL_0 + 9},
+                EncodingProfile.LOW_BANDWIDTH.rewrite(new int[0]));
+    }
+}
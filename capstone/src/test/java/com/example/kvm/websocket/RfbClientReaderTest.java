@@ -0,0 +1,108 @@
+package com.example.kvm.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class RfbClientReaderTest {
+
+    @Test
+    void pollsHandshakeFieldsOnceComplete() throws IOException {
+        RfbClientReader reader = new RfbClientReader();
+        reader.append(ByteBuffer.wrap("RFB 003".getBytes()));
+        assertNull(reader.poll(Rfb.VERSION_LENGTH));
+
+        reader.append(ByteBuffer.wrap(".008\n\1".getBytes()));
+        assertArrayEquals(Rfb.VERSION_3_8.getBytes(), reader.poll(Rfb.VERSION_LENGTH));
+        assertArrayEquals(new byte[] {1}, reader.poll(1));
+        assertNull(reader.poll(1));
+    }
+
+    @Test
+    void splitsMessagesAcrossArbitraryFrames() throws IOException {
+        byte[] key = {Rfb.CLIENT_KEY_EVENT, 1, 0, 0, 0, 0, 0, 0x61};
+        byte[] pointer = {Rfb.CLIENT_POINTER_EVENT, 0, 0, 10, 0, 20};
+        byte[] setEncodings = {Rfb.CLIENT_SET_ENCODINGS, 0, 0, 2, 0, 0, 0, 7, 0, 0, 0, 5};
+        byte[] request = {Rfb.CLIENT_FRAMEBUFFER_UPDATE_REQUEST, 1, 0, 0, 0, 0, 2, (byte) 0x80, 1, (byte) 0xe0};
+        byte[] qemuKey = {(byte) Rfb.CLIENT_QEMU, 0, 0, 1, 0, 0, 0, 0x61, 0, 0, 0, 0x1e};
+        byte[] cutText = {Rfb.CLIENT_CUT_TEXT, 0, 0, 0, 0, 0, 0, 3, 'a', 'b', 'c'};
+        byte[] pixelFormat = new byte[4 + Rfb.PIXEL_FORMAT_LENGTH];
+        pixelFormat[0] = Rfb.CLIENT_SET_PIXEL_FORMAT;
+        byte[][] messages = {key, pointer, setEncodings, request, qemuKey, cutText, pixelFormat};
+        byte[] stream = concat(messages);
+
+        for (int frameSize : new int[] {stream.length, 1, 2, 5, 13}) {
+            RfbClientReader reader = new RfbClientReader();
+            int next = 0;
+            for (int start = 0; start < stream.length; start += frameSize) {
+                reader.append(ByteBuffer.wrap(stream, start, Math.min(frameSize, stream.length - start)));
+                ByteBuffer message;
+                while ((message = reader.pollMessage()) != null) {
+                    byte[] bytes = new byte[message.remaining()];
+                    message.get(bytes);
+                    assertArrayEquals(messages[next++], bytes, "frame size " + frameSize);
+                }
+            }
+            assertEquals(messages.length, next, "frame size " + frameSize);
+            assertEquals(0, reader.drain().remaining());
+        }
+    }
+
+    @Test
+    void growsForLargeCutTextAndDrainsLeftovers() throws IOException {
+        byte[] text = new byte[4000];
+        Arrays.fill(text, (byte) 'x');
+        ByteBuffer message = ByteBuffer.allocate(8 + text.length).put((byte) Rfb.CLIENT_CUT_TEXT).position(4)
+                .putInt(text.length).put(text).flip();
+
+        RfbClientReader reader = new RfbClientReader();
+        reader.append(message);
+        reader.append(ByteBuffer.wrap(new byte[] {Rfb.CLIENT_POINTER_EVENT, 0}));
+
+        assertEquals(8 + text.length, reader.pollMessage().remaining());
+        assertNull(reader.pollMessage());
+        ByteBuffer rest = reader.drain();
+        assertEquals(2, rest.remaining());
+        assertEquals(Rfb.CLIENT_POINTER_EVENT, rest.get(0));
+    }
+
+    @Test
+    void doesNotConsumeTheAppendedBuffer() throws IOException {
+        ByteBuffer frame = ByteBuffer.wrap(new byte[] {Rfb.CLIENT_POINTER_EVENT, 0, 0, 1, 0, 1});
+        new RfbClientReader().append(frame);
+        assertEquals(0, frame.position());
+    }
+
+    @Test
+    void rejectsOversizedCutText() throws IOException {
+        RfbClientReader reader = new RfbClientReader();
+        reader.append(ByteBuffer.wrap(new byte[] {Rfb.CLIENT_CUT_TEXT, 0, 0, 0, 0x10, 0, 0, 0}));
+        assertThrows(IOException.class, reader::pollMessage);
+    }
+
+    @Test
+    void rejectsUnknownMessages() throws IOException {
+        RfbClientReader unknown = new RfbClientReader();
+        unknown.append(ByteBuffer.wrap(new byte[] {42}));
+        assertThrows(IOException.class, unknown::pollMessage);
+
+        RfbClientReader qemu = new RfbClientReader();
+        qemu.append(ByteBuffer.wrap(new byte[] {(byte) Rfb.CLIENT_QEMU, 1}));
+        assertThrows(IOException.class, qemu::pollMessage);
+    }
+
+    private static byte[] concat(byte[][] parts) {
+        ByteBuffer all = ByteBuffer.allocate(Arrays.stream(parts).mapToInt(part -> part.length).sum());
+        for (byte[] part : parts) {
+            all.put(part);
+        }
+        return all.array();
+    }
+}
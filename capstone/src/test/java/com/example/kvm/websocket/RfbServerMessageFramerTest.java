@@ -0,0 +1,206 @@
+package com.example.kvm.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class RfbServerMessageFramerTest {
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    /*
+     * A server -> client stream, remembering where each message ends.
+     */
+    private static final class Stream {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final List<Integer> ends = new ArrayList<>();
+        final List<Integer> types = new ArrayList<>();
+
+        void end(int type) {
+            ends.add(bytes.size());
+            types.add(type);
+        }
+
+        void updateHeader(int rects) throws IOException {
+            out.writeByte(Rfb.SERVER_FRAMEBUFFER_UPDATE);
+            out.writeByte(0);
+            out.writeShort(rects);
+        }
+
+        void rectHeader(int width, int height, int encoding) throws IOException {
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(width);
+            out.writeShort(height);
+            out.writeInt(encoding);
+        }
+
+        void pixels(int count) throws IOException {
+            out.write(new byte[count * BYTES_PER_PIXEL]);
+        }
+    }
+
+    @Test
+    void findsBoundariesOfEveryMessageType() throws IOException {
+        Stream stream = new Stream();
+
+        stream.out.writeByte(Rfb.SERVER_BELL);
+        stream.end(Rfb.SERVER_BELL);
+
+        stream.out.writeByte(Rfb.SERVER_SET_COLOUR_MAP_ENTRIES);
+        stream.out.writeByte(0);
+        stream.out.writeShort(0);
+        stream.out.writeShort(2);
+        stream.out.write(new byte[2 * 6]);
+        stream.end(Rfb.SERVER_SET_COLOUR_MAP_ENTRIES);
+
+        stream.out.writeByte(Rfb.SERVER_CUT_TEXT);
+        stream.out.write(new byte[3]);
+        stream.out.writeInt(5);
+        stream.out.write("hello".getBytes());
+        stream.end(Rfb.SERVER_CUT_TEXT);
+
+        // Raw, CopyRect, RRE with two subrects and a cursor in one update
+        stream.updateHeader(4);
+        stream.rectHeader(3, 2, Rfb.ENCODING_RAW);
+        stream.pixels(6);
+        stream.rectHeader(8, 8, Rfb.ENCODING_COPY_RECT);
+        stream.out.writeInt(0);
+        stream.rectHeader(10, 10, Rfb.ENCODING_RRE);
+        stream.out.writeInt(2);
+        stream.pixels(1);
+        for (int i = 0; i < 2; i++) {
+            stream.pixels(1);
+            stream.out.write(new byte[8]);
+        }
+        stream.rectHeader(9, 2, Rfb.ENCODING_CURSOR);
+        stream.pixels(18);
+        // Mask rows are padded to whole bytes
+        stream.out.write(new byte[2 * 2]);
+        stream.end(Rfb.SERVER_FRAMEBUFFER_UPDATE);
+
+        // Empty update
+        stream.updateHeader(0);
+        stream.end(Rfb.SERVER_FRAMEBUFFER_UPDATE);
+
+        assertFramed(stream);
+    }
+
+    @Test
+    void walksHextileTiles() throws IOException {
+        Stream stream = new Stream();
+        // 20x17 is four tiles: 16x16, 4x16, 16x1 and 4x1
+        stream.updateHeader(1);
+        stream.rectHeader(20, 17, Rfb.ENCODING_HEXTILE);
+        // Raw tile
+        stream.out.writeByte(Rfb.HEXTILE_RAW);
+        stream.pixels(16 * 16);
+        // Background and foreground, two plain subrects
+        stream.out.writeByte(Rfb.HEXTILE_BACKGROUND | Rfb.HEXTILE_FOREGROUND | Rfb.HEXTILE_ANY_SUBRECTS);
+        stream.pixels(2);
+        stream.out.writeByte(2);
+        stream.out.write(new byte[2 * 2]);
+        // Coloured subrects, no new colours
+        stream.out.writeByte(Rfb.HEXTILE_ANY_SUBRECTS | Rfb.HEXTILE_SUBRECTS_COLOURED);
+        stream.out.writeByte(3);
+        stream.out.write(new byte[3 * (BYTES_PER_PIXEL + 2)]);
+        // Same background as before: no bytes at all
+        stream.out.writeByte(0);
+        stream.end(Rfb.SERVER_FRAMEBUFFER_UPDATE);
+
+        stream.out.writeByte(Rfb.SERVER_BELL);
+        stream.end(Rfb.SERVER_BELL);
+
+        assertFramed(stream);
+    }
+
+    @Test
+    void endsUpdateAtLastRectAndTracksDesktopSize() throws IOException {
+        Stream stream = new Stream();
+        // Rectangle count unknown up front
+        stream.updateHeader(0xFFFF);
+        stream.rectHeader(1, 1, Rfb.ENCODING_RAW);
+        stream.pixels(1);
+        stream.rectHeader(1280, 800, Rfb.ENCODING_DESKTOP_SIZE);
+        stream.rectHeader(0, 0, Rfb.ENCODING_LAST_RECT);
+        stream.end(Rfb.SERVER_FRAMEBUFFER_UPDATE);
+
+        RfbServerMessageFramer framer = assertFramed(stream);
+        assertEquals(1280, framer.getFramebufferWidth());
+        assertEquals(800, framer.getFramebufferHeight());
+    }
+
+    @Test
+    void isAtBoundaryOnlyBetweenMessages() throws IOException {
+        Stream stream = new Stream();
+        stream.updateHeader(1);
+        stream.rectHeader(2, 2, Rfb.ENCODING_RAW);
+        stream.pixels(4);
+        byte[] bytes = stream.bytes.toByteArray();
+
+        RfbServerMessageFramer framer = new RfbServerMessageFramer(BYTES_PER_PIXEL, 640, 480);
+        assertTrue(framer.isAtBoundary());
+        framer.feed(ByteBuffer.wrap(bytes, 0, bytes.length - 1), (offset, type) -> { });
+        assertFalse(framer.isAtBoundary());
+        framer.feed(ByteBuffer.wrap(bytes, bytes.length - 1, 1), (offset, type) -> { });
+        assertTrue(framer.isAtBoundary());
+    }
+
+    @Test
+    void rejectsStatefulEncodings() throws IOException {
+        Stream stream = new Stream();
+        stream.updateHeader(1);
+        stream.rectHeader(16, 16, Rfb.ENCODING_TIGHT);
+        byte[] bytes = stream.bytes.toByteArray();
+
+        RfbServerMessageFramer framer = new RfbServerMessageFramer(BYTES_PER_PIXEL, 640, 480);
+        assertThrows(IOException.class, () -> framer.feed(ByteBuffer.wrap(bytes), (offset, type) -> { }));
+    }
+
+    @Test
+    void rejectsUnknownMessageTypes() {
+        RfbServerMessageFramer framer = new RfbServerMessageFramer(BYTES_PER_PIXEL, 640, 480);
+        assertThrows(IOException.class, () -> framer.feed(ByteBuffer.wrap(new byte[] {(byte) 150}),
+                (offset, type) -> { }));
+    }
+
+    /*
+     * Feeds the stream whole and in chunks of several sizes and checks that the
+     * same message ends are reported every time. Returns the last framer used.
+     */
+    private static RfbServerMessageFramer assertFramed(Stream stream) throws IOException {
+        byte[] bytes = stream.bytes.toByteArray();
+        RfbServerMessageFramer framer = null;
+        for (int chunkSize : new int[] {bytes.length, 1, 3, 7, 64}) {
+            framer = new RfbServerMessageFramer(BYTES_PER_PIXEL, 640, 480);
+            List<Integer> ends = new ArrayList<>();
+            List<Integer> types = new ArrayList<>();
+            for (int start = 0; start < bytes.length; start += chunkSize) {
+                int base = start;
+                // A chunk in the middle of a larger buffer, as the relay's buffers are
+                ByteBuffer chunk = ByteBuffer.wrap(bytes, start, Math.min(chunkSize, bytes.length - start));
+                framer.feed(chunk, (offset, type) -> {
+                    ends.add(offset);
+                    types.add(type);
+                });
+                assertEquals(base, chunk.position());
+            }
+            assertEquals(stream.ends, ends, "chunk size " + chunkSize);
+            assertEquals(stream.types, types, "chunk size " + chunkSize);
+            assertTrue(framer.isAtBoundary());
+        }
+        return framer;
+    }
+}